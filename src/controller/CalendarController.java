@@ -1,27 +1,177 @@
 package controller;
 
+import model.CalendarChange;
 import model.CalendarEvent;
+import model.CalendarFile;
+import model.CalendarJournal;
+import model.CalendarManifest;
+import model.CalendarListener;
 import model.CalendarModel;
+import model.CalendarSegment;
+import model.CalendarSnapshot;
+import model.ICalendar;
+import model.SearchIndex;
+import model.StringInterner;
+import model.TimeSpan;
 
 import java.io.*;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
+ * Keeps every calendar, each saved in a shard of its own and loaded the first time it is used.
+ * Safe to use from any number of threads at once, as each calendar is locked on its own.
+ *
  * @author mollyopheim
  * @author Kitty Elliott
  */
 public class CalendarController {
-	private final HashMap<String, CalendarModel> map;
 	/**
-	 * Represents the file on disk where the calendar(s) are saved and/or loaded
+	 * every calendar, by name, each loaded the first time it is used. A calendar is renamed or
+	 * deleted while its lock is held for writing, so its name is settled while its lock is held.
+	 */
+	private final ConcurrentHashMap<String, StoredCalendar> map;
+	/**
+	 * held for writing while calendars are created, deleted and renamed, so that their names
+	 * change one at a time and are logged to the journal in that order
+	 */
+	private final StampedLock names = new StampedLock();
+	/**
+	 * Represents the file on disk where the calendar(s) are saved and/or loaded: a
+	 * {@link CalendarManifest} naming a shard file beside it for each calendar
 	 */
 	public final File calFile;
-
+	/**
+	 * Represents the file on disk where the changes made since {@link #calFile} was last
+	 * written are logged
+	 */
+	public final File journalFile;
+	/**
+	 * the size in bytes past which the journal is folded into {@link #calFile}
+	 */
+	private static final long JOURNAL_LIMIT = 4 << 20;
+	/**
+	 * set once the query planner has been calibrated, which the first controller started does
+	 */
+	private static final AtomicBoolean calibrated = new AtomicBoolean();
+	/**
+	 * every change made to the calendars since they were last saved
+	 */
+	private final CalendarJournal journal;
+	/**
+	 * set once the journal could not be written, after which nothing more is logged in it
+	 */
+	private volatile boolean journalStopped;
+	private final CalendarListener journaler = this::logChanges;
+	/**
+	 * a snapshot of every calendar, republished after every change on the thread which made it
+	 */
+	private volatile Published published;
+	private final CalendarListener publisher = (source, changes) -> publishSnapshots();
+	/**
+	 * held while snapshots are published, and while a calendar is created, deleted or renamed,
+	 * so that the calendars published always match the journal's sequence, and none is
+	 * published under both names or neither
+	 */
+	private final Object publishLock = new Object();
+	private final Object saveLock = new Object();
+	/**
+	 * occupancy bitmaps of each calendar, at 15 minute granularity unless changed
+	 */
+	private final FreeBusyIndex freeBusy = new FreeBusyIndex(15);
+	/**
+	 * the full-text index of each calendar searched so far; guarded by itself
+	 */
+	private final Map<CalendarModel, SearchIndex> searchIndexes = new IdentityHashMap<>();
+	/**
+	 * how often each title and location is used, across every calendar
+	 */
+	private final CompletionIndex completions = new CompletionIndex();
+	/**
+	 * the calendars holding an event with each id, filled as each calendar is loaded
+	 */
+	private final EventDirectory directory = new EventDirectory();
+	/**
+	 * the one copy of each title and location shared by the events of every calendar
+	 */
+	private final StringInterner strings = new StringInterner();
+	/**
+	 * the number of the shard the next calendar, or calendar moved to a new file, is saved in
+	 */
+	private final AtomicLong nextShard = new AtomicLong();
+	/**
+	 * what the manifest last written or loaded says about each shard, by shard number
+	 */
+	private final Map<Long, CalendarManifest.Entry> savedEntries = new HashMap<>();
+	/**
+	 * the version of the snapshot in each shard file, by shard number, as last written or
+	 * loaded, for the calendars which have been loaded
+	 */
+	private final Map<Long, Long> savedVersions = new HashMap<>();
+	/**
+	 * the shards whose file is mapped into memory by their loaded calendar, so that they are not
+	 * replaced while it is; guarded by {@link #saveLock}
+	 */
+	private final Set<Long> mappedShards = new HashSet<>();
+	/**
+	 * shard files no longer in the manifest which could not be deleted yet, as they are still
+	 * mapped into memory on some systems; guarded by {@link #saveLock}
+	 */
+	private final Set<Path> retired = new HashSet<>();
+	/**
+	 * the snapshots most recently written to {@link #calFile}
+	 */
+	private Published lastSaved;
+	/**
+	 * what was found damaged and set aside as the calendars were loaded, every save which failed,
+	 * and the journal failing
+	 */
+	private final List<String> problems = Collections.synchronizedList(new ArrayList<>());
+	/**
+	 * told of each problem as it is found, on the thread which found it; null if nobody is listening
+	 */
+	private volatile Consumer<String> problemListener;
+	/**
+	 * the number of imports under way, during which the journal is not compacted, and
+	 * whether it filled up meanwhile; both guarded by {@link #compactionLock}
+	 */
+	private int importing;
+	private boolean compactionDeferred;
+	private final Object compactionLock = new Object();
 
 	/**
 	 * Initializes the CalendarController to have one default CalendarModel
@@ -34,29 +184,286 @@ public class CalendarController {
 			throw new IllegalArgumentException("given File must not be null");
 		}
 		this.calFile = calFile;
-		if (calFile.exists()) {
-			map = loadCalendars();
+		this.journalFile = new File(calFile.getPath() + ".journal");
+		Path path = calFile.toPath();
+		boolean sharded = calFile.exists() && CalendarManifest.isManifest(path);
+		// a journal only follows on from the calendar file it was started after
+		boolean fresh = !sharded && (!calFile.exists() || !CalendarFile.isCalendarFile(path));
+		long sequence = 0;
+		map = new ConcurrentHashMap<>();
+		if (sharded) {
+			// only the manifest is read; each calendar is loaded when first used
+			CalendarManifest manifest = CalendarManifest.read(path);
+			sequence = manifest.getSequence();
+			if (manifest.isDamaged()) {
+				reportProblem(String.format("The calendar manifest at \"%s\" failed its checksum; "
+						+ "what it says of each calendar's events was not relied on.", path));
+			}
+			for (Map.Entry<String, CalendarManifest.Entry> e : manifest.getCalendars().entrySet()) {
+				long shard = e.getValue().getShard();
+				map.put(e.getKey(), new StoredCalendar(shard, shardPath(shard), e.getValue()));
+				savedEntries.put(shard, e.getValue());
+				nextShard.set(Math.max(nextShard.get(), shard + 1));
+			}
+			if (!manifest.isDamaged()) {
+				deleteRetired(savedEntries.keySet());
+			}
 		} else {
-			map = new HashMap<>();
-			map.put("Default", new CalendarModel());
+			Map<String, CalendarModel> loaded;
+			if (calFile.exists()) {
+				loaded = loadCalendars();
+				sequence = fresh ? 0 : CalendarFile.readSequence(path);
+			} else {
+				loaded = Collections.singletonMap("Default", new CalendarModel());
+			}
+			for (Map.Entry<String, CalendarModel> e : loaded.entrySet()) {
+				map.put(e.getKey(), new StoredCalendar(nextShard.getAndIncrement(), e.getValue()));
+			}
+		}
+		if (fresh) {
+			Files.deleteIfExists(journalFile.toPath());
+		}
+		journal = CalendarJournal.open(journalFile.toPath(), sequence, new CalendarJournal.Calendars() {
+			@Override
+			public boolean contains(String name) {
+				return map.containsKey(name);
+			}
+
+			@Override
+			public CalendarModel get(String name) {
+				StoredCalendar stored = map.get(name);
+				return stored == null ? null : load(name, stored, false);
+			}
+
+			@Override
+			public void create(String name) {
+				map.put(name, new StoredCalendar(nextShard.getAndIncrement(), new CalendarModel()));
+			}
+
+			@Override
+			public void delete(String name) {
+				map.remove(name);
+			}
+
+			@Override
+			public void rename(String from, String to) {
+				map.put(to, map.remove(from));
+			}
+		}, JOURNAL_LIMIT, this::compactInBackground, this::journalFailed);
+		if (map.isEmpty()) {
+			map.put("Default", new StoredCalendar(nextShard.getAndIncrement(), new CalendarModel()));
+		}
+		for (StoredCalendar stored : map.values()) {
+			if (stored.isLoaded()) {
+				attach(stored.getModel());
+			}
+		}
+		publishSnapshots();
+		if (!sharded) {
+			saveCalendars();
+		}
+		if (calibrated.compareAndSet(false, true)) {
+			// takes about a second, during which queries plan with the default threshold
+			Thread calibrator = new Thread(CalendarModel::calibrateQueryPlanner, "calendar-calibration");
+			calibrator.setDaemon(true);
+			calibrator.start();
+		}
+	}
+
+	/**
+	 * Registers the controller's listeners with a calendar
+	 *
+	 * @param model -- a calendar which has just been created or loaded
+	 */
+	private void attach(CalendarModel model) {
+		model.setInterner(strings);
+		model.addListener(journaler);
+		model.addListener(publisher);
+		model.addListener(freeBusy);
+		model.addListener(completions);
+		completions.attach(model);
+		model.addListener(directory);
+		directory.attach(model);
+	}
+
+	/**
+	 * @param calName -- name of a calendar
+	 * @param stored  -- the calendar
+	 * @param attach  -- true to attach the calendar to the controller once it is read
+	 * @return the calendar's model, read from its shard if it has not been loaded
+	 * @throws UncheckedIOException if the shard could not be read
+	 */
+	private CalendarModel load(String calName, StoredCalendar stored, boolean attach) {
+		if (stored.isLoaded()) {
+			return stored.getModel();
+		}
+		try {
+			CalendarModel model = stored.load(read -> {
+				synchronized (saveLock) {
+					savedVersions.put(stored.getShard(), read.snapshot().getVersion());
+					if (stored.isMapped()) {
+						mappedShards.add(stored.getShard());
+					}
+				}
+				for (String problem : stored.takeProblems()) {
+					reportProblem(String.format("Calendar \"%s\": %s", calName, problem));
+				}
+				if (attach) {
+					attach(read);
+				}
+			});
+			if (attach) {
+				publishSnapshots();
+			}
+			return model;
+		} catch (IOException e) {
+			throw new UncheckedIOException(String.format("Error loading the calendar \"%s\"", calName), e);
+		}
+	}
+
+	/**
+	 * @param calNames -- names of calendars
+	 * @return the calendars, in the order of the names, loaded and attached to the controller if
+	 * they had not been used before, those not yet loaded being read in parallel
+	 * @throws NoSuchCalendarException if there is no calendar with one of the given names
+	 * @throws UncheckedIOException    if a calendar could not be loaded
+	 */
+	private List<StoredCalendar> calendars(List<String> calNames) throws NoSuchCalendarException {
+		List<StoredCalendar> found = new ArrayList<>(calNames.size());
+		for (String calName : calNames) {
+			StoredCalendar stored = map.get(calName);
+			if (stored == null) {
+				throw new NoSuchCalendarException(calName);
+			}
+			found.add(stored);
+		}
+		if (found.size() > 1) {
+			for (StoredCalendar stored : found) {
+				stored.preload();
+			}
+		}
+		for (int i = 0; i < found.size(); i++) {
+			load(calNames.get(i), found.get(i), true);
+		}
+		return found;
+	}
+
+	/**
+	 * @param calName   -- name of a calendar
+	 * @param exclusive -- true to lock the calendar for writing, false for reading
+	 * @return the calendar, loaded and locked
+	 * @throws NoSuchCalendarException if there is no calendar with the given name
+	 * @throws UncheckedIOException    if the calendar could not be loaded
+	 */
+	private Locked lock(String calName, boolean exclusive) throws NoSuchCalendarException {
+		return lock(Collections.singletonList(calName), exclusive);
+	}
+
+	/**
+	 * @param calNames  -- names of calendars
+	 * @param exclusive -- true to lock the calendars for writing, false for reading
+	 * @return the calendars, in the order of the names, loaded and locked
+	 * @throws NoSuchCalendarException if there is no calendar with one of the given names
+	 * @throws UncheckedIOException    if a calendar could not be loaded
+	 */
+	private Locked lock(List<String> calNames, boolean exclusive) throws NoSuchCalendarException {
+		while (true) {
+			List<StoredCalendar> stored = calendars(calNames);
+			Locked locked = new Locked(stored, exclusive);
+			// a calendar renamed or deleted while waiting for its lock is looked up again
+			boolean settled = true;
+			for (int i = 0; i < calNames.size() && settled; i++) {
+				settled = map.get(calNames.get(i)) == stored.get(i);
+			}
+			if (settled) {
+				return locked;
+			}
+			locked.close();
+		}
+	}
+
+	/**
+	 * Starts loading calendars which have not been used yet, in parallel on other threads,
+	 * so that they are ready, or nearly, when first used. Calendars are otherwise loaded,
+	 * one at a time, the first time they are used.
+	 *
+	 * @param calNames -- names of the calendars; names of no calendar are ignored
+	 */
+	public void preload(Collection<String> calNames) {
+		for (String calName : calNames) {
+			StoredCalendar stored = map.get(calName);
+			if (stored != null) {
+				stored.preload();
+			}
 		}
-		saveCalendars();
 	}
 
 	/**
-	 * Load the calendar state from the file specified by {@link #calFile}.
+	 * Runs a query over every calendar while none can be created, deleted, renamed or changed,
+	 * for the operations which look through all of them
+	 *
+	 * @param query -- the query
+	 * @return what the query returns
+	 * @throws UncheckedIOException if a calendar could not be loaded
+	 */
+	private <T> T readingAll(Supplier<T> query) {
+		long stamp = names.readLock();
+		try {
+			List<String> calNames = new ArrayList<>(map.keySet());
+			List<StoredCalendar> stored;
+			try {
+				stored = calendars(calNames);
+			} catch (NoSuchCalendarException e) {
+				throw new IllegalStateException(e);
+			}
+			Locked locked = new Locked(stored, false);
+			try {
+				return query.get();
+			} finally {
+				locked.close();
+			}
+		} finally {
+			names.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Load the calendar state from the file specified by {@link #calFile}, written whole
+	 * before calendars were saved in shards. Files in the format written before
+	 * {@link CalendarFile} are migrated.
 	 *
 	 * @return the mapping of calendar names to CalendarModel objects which
 	 * was loaded from the file
 	 * @throws IOException if there was an error reading the file, or if the
 	 *                     file data is somehow corrupt
 	 */
-	@SuppressWarnings({"unchecked", "rawtypes"})
 	private HashMap<String, CalendarModel> loadCalendars() throws IOException {
+		if (!CalendarFile.isCalendarFile(calFile.toPath())) {
+			return migrateLegacyCalendars();
+		}
+		HashMap<String, CalendarModel> loaded = new HashMap<>(CalendarFile.read(calFile.toPath()));
+		if (loaded.isEmpty()) {
+			loaded.put("Default", new CalendarModel());
+		}
+		return loaded;
+	}
+
+	/**
+	 * Load the calendar state from a file written by Java serialization, as every
+	 * calendar file was before {@link CalendarFile}, and keep a copy of the file
+	 * beside it with ".legacy" appended to its name. The calendars are saved in the
+	 * current format once loaded, so this happens only once for each file.
+	 *
+	 * @return the mapping of calendar names to CalendarModel objects which
+	 * was loaded from the file
+	 * @throws IOException if there was an error reading the file, or if the
+	 *                     file data is somehow corrupt
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private HashMap<String, CalendarModel> migrateLegacyCalendars() throws IOException {
 		HashMap loaded;
-		try {
-			FileInputStream fIn = new FileInputStream(calFile);
-			ObjectInputStream objIn = new ObjectInputStream(fIn);
+		try (ObjectInputStream objIn = new ObjectInputStream(
+				new BufferedInputStream(new FileInputStream(calFile)))) {
 			loaded = (HashMap) objIn.readObject();
 		} catch (IOException | ClassNotFoundException e) {
 			throw new IOException(String.format("Error loading the calendar file at \"%s\"\n",
@@ -73,16 +480,63 @@ public class CalendarController {
 		} else {
 			loaded.put("Default", new CalendarModel());
 		}
+		Files.copy(calFile.toPath(), new File(calFile.getPath() + ".legacy").toPath(),
+				StandardCopyOption.REPLACE_EXISTING);
 		return (HashMap<String, CalendarModel>) loaded;
 	}
 
+	/**
+	 * Gets what has been found damaged in the files the calendars are saved in, and any save
+	 * which failed. The events in a damaged part of a calendar's shard are set aside and the
+	 * rest of the calendar is loaded as usual; as calendars are loaded when first used, and
+	 * saved in the background, more may be found later.
+	 *
+	 * @return a description of each part set aside and each failed save so far, in the order found
+	 */
+	public List<String> getLoadProblems() {
+		synchronized (problems) {
+			return new ArrayList<>(problems);
+		}
+	}
+
+	/**
+	 * Sets what is told of each problem {@link #getLoadProblems()} goes on to include, as it is found
+	 *
+	 * @param listener -- told the description of each problem, on the thread which found it; or null
+	 */
+	public void setProblemListener(Consumer<String> listener) {
+		problemListener = listener;
+	}
+
+	/**
+	 * @param problem -- a description of something found damaged, of a save which failed, or of the journal failing
+	 */
+	private void reportProblem(String problem) {
+		problems.add(problem);
+		Consumer<String> listener = problemListener;
+		if (listener != null) {
+			listener.accept(problem);
+		}
+	}
+
 	/**
 	 * get a set containing the names of all the calendars.
 	 *
 	 * @return a set containing the names of all the calendars
 	 */
 	public Set<String> getCalendarNames() {
-		return new HashSet<>(map.keySet());
+		// names rarely change, so they are copied without locking unless they changed meanwhile
+		long stamp = names.tryOptimisticRead();
+		Set<String> copy = new HashSet<>(map.keySet());
+		if (!names.validate(stamp)) {
+			stamp = names.readLock();
+			try {
+				copy = new HashSet<>(map.keySet());
+			} finally {
+				names.unlockRead(stamp);
+			}
+		}
+		return copy;
 	}
 
 	/**
@@ -92,11 +546,23 @@ public class CalendarController {
 	 * @throws CalendarAlreadyExistsException if a calendar with the given name already exists
 	 */
 	public void createNewCalendar(String name) throws CalendarAlreadyExistsException {
-		if (map.containsKey(name)) {
-			throw new CalendarAlreadyExistsException(name);
-		} else {
-			map.put(name, new CalendarModel());
+		long stamp = names.writeLock();
+		try {
+			if (map.containsKey(name)) {
+				throw new CalendarAlreadyExistsException(name);
+			} else {
+				CalendarModel model = new CalendarModel();
+				attach(model);
+				// logged and added at once, so no snapshot saved includes the one but not the other
+				synchronized (publishLock) {
+					log(() -> journal.createCalendar(name));
+					map.put(name, new StoredCalendar(nextShard.getAndIncrement(), model));
+				}
+			}
+		} finally {
+			names.unlockWrite(stamp);
 		}
+		publishSnapshots();
 	}
 
 	/**
@@ -106,7 +572,54 @@ public class CalendarController {
 	 * @param name -- the name of the CalendarModel to be removed
 	 */
 	public boolean deleteCalendar(String name) {
-		return map.remove(name) != null;
+		long stamp = names.writeLock();
+		try {
+			StoredCalendar stored = map.get(name);
+			if (stored == null) {
+				return false;
+			}
+			long writing = stored.getLock().writeLock();
+			try {
+				synchronized (publishLock) {
+					map.remove(name);
+					log(() -> journal.deleteCalendar(name));
+				}
+				CalendarModel removed = stored.delete();
+				if (removed != null) {
+					detach(removed);
+				}
+			} finally {
+				stored.getLock().unlockWrite(writing);
+			}
+		} finally {
+			names.unlockWrite(stamp);
+		}
+		publishSnapshots();
+		return true;
+	}
+
+	/**
+	 * Unregisters the controller's listeners from a calendar which has been deleted
+	 *
+	 * @param removed -- the calendar
+	 */
+	private void detach(CalendarModel removed) {
+		removed.setInterner(null);
+		removed.removeListener(journaler);
+		removed.removeListener(publisher);
+		removed.removeListener(freeBusy);
+		freeBusy.forget(removed);
+		removed.removeListener(completions);
+		completions.detach(removed);
+		removed.removeListener(directory);
+		directory.detach(removed);
+		SearchIndex index;
+		synchronized (searchIndexes) {
+			index = searchIndexes.remove(removed);
+		}
+		if (index != null) {
+			removed.removeListener(index);
+		}
 	}
 
 	/**
@@ -120,13 +633,29 @@ public class CalendarController {
 	 */
 	public void renameCalendar(String newName, String oldName)
 			throws CalendarAlreadyExistsException, NoSuchCalendarException {
-		if (!map.containsKey(oldName)) {
-			throw new NoSuchCalendarException(oldName);
-		} else if (map.containsKey(newName)) {
-			throw new CalendarAlreadyExistsException(newName);
-		} else {
-			map.put(newName, map.remove(oldName));
+		long stamp = names.writeLock();
+		try {
+			StoredCalendar stored = map.get(oldName);
+			if (stored == null) {
+				throw new NoSuchCalendarException(oldName);
+			} else if (map.containsKey(newName)) {
+				throw new CalendarAlreadyExistsException(newName);
+			} else {
+				long writing = stored.getLock().writeLock();
+				try {
+					synchronized (publishLock) {
+						map.put(newName, stored);
+						map.remove(oldName);
+						log(() -> journal.renameCalendar(oldName, newName));
+					}
+				} finally {
+					stored.getLock().unlockWrite(writing);
+				}
+			}
+		} finally {
+			names.unlockWrite(stamp);
 		}
+		publishSnapshots();
 	}
 
 	/**
@@ -137,10 +666,8 @@ public class CalendarController {
 	 * @throws NoSuchCalendarException if there is no calendar with the given name
 	 */
 	public void addEvent(String calName, CalendarEvent newEvent) throws NoSuchCalendarException {
-		if (map.containsKey(calName)) {
-			map.get(calName).addEvent(newEvent);
-		} else {
-			throw new NoSuchCalendarException(calName);
+		try (Locked locked = lock(calName, true)) {
+			locked.model().addEvent(newEvent);
 		}
 	}
 
@@ -152,110 +679,1095 @@ public class CalendarController {
 	 * @throws NoSuchCalendarException if there is no calendar with the given name
 	 */
 	public void removeEvent(String calName, CalendarEvent newEvent) throws NoSuchCalendarException {
-		if (map.containsKey(calName)) {
-			map.get(calName).removeEvent(newEvent);
-		} else {
-			throw new NoSuchCalendarException(calName);
+		try (Locked locked = lock(calName, true)) {
+			locked.model().removeEvent(newEvent);
 		}
 	}
 
 	/**
-	 * Looks for events within a year for a certain calendar
+	 * Finds an event by id, in whichever calendar it is in. Ids are only unique within a
+	 * calendar, so if several calendars have an event with the id, the one which has had it
+	 * longest is used. Calendars which have not been loaded yet are not searched.
 	 *
-	 * @param calName -- name of the calendar
-	 * @param year    -- the year to get events from
-	 * @return the events found in that year
-	 * @throws NoSuchCalendarException if there is no calendar with the given name
+	 * @param id -- the id of the event
+	 * @return the event with the name of its calendar, or null if no calendar has an event with that id
+	 * @see CalendarEvent#getId()
 	 */
-	public CalendarEvent[] getEventsInYear(String calName, int year) throws NoSuchCalendarException {
-		if (map.containsKey(calName)) {
-			return map.get(calName).getEventsInYear(year);
-		} else {
-			throw new NoSuchCalendarException(calName);
+	public CalendarEntry getEvent(long id) {
+		while (true) {
+			StoredCalendar stored = holderOf(id);
+			if (stored == null) {
+				return null;
+			}
+			long stamp = stored.getLock().readLock();
+			try {
+				// the event may have been removed, or the calendar deleted, while waiting for the lock
+				CalendarEvent event = stored.getModel().getEvent(id);
+				String calName = nameOf(stored);
+				if (event != null && calName != null) {
+					return new CalendarEntry(calName, event);
+				}
+			} finally {
+				stored.getLock().unlockRead(stamp);
+			}
 		}
 	}
 
 	/**
-	 * Looks for events within a month for a certain calendar
+	 * Removes an event by id from whichever calendar {@link #getEvent(long)} finds it in
 	 *
-	 * @param calName -- name of the calendar
-	 * @param year    -- the year to get events from
-	 * @param month   -- the month to get events from
-	 * @return the events found in that month
-	 * @throws NoSuchCalendarException if there is no calendar with the given name
+	 * @param id -- the id of the event
+	 * @return true iff there was an event with that id
 	 */
-	public CalendarEvent[] getEventsInMonth(String calName, int year, int month)
-			throws NoSuchCalendarException {
-		if (map.containsKey(calName)) {
-			return map.get(calName).getEventsInMonth(year, month);
-		} else {
-			throw new NoSuchCalendarException(calName);
+	public boolean removeEvent(long id) {
+		while (true) {
+			StoredCalendar stored = holderOf(id);
+			if (stored == null) {
+				return false;
+			}
+			long stamp = stored.getLock().writeLock();
+			try {
+				if (nameOf(stored) != null && stored.getModel().removeEvent(id) != null) {
+					return true;
+				}
+			} finally {
+				stored.getLock().unlockWrite(stamp);
+			}
 		}
 	}
 
 	/**
-	 * Looks for events within a month for a certain calendar
+	 * Moves an event by id from whichever calendar {@link #getEvent(long)} finds it in to
+	 * another. An event which has been edited may be moved instead of being marked as modified.
+	 * Ids are only unique within a calendar, so {@link #moveEvent(String, long, String)} is to
+	 * be used where the calendar holding the event is known.
 	 *
-	 * @param calName -- name of the calendar
-	 * @param day     the date to query for events
-	 * @return the events found on that day
+	 * @param id        -- the id of the event
+	 * @param targetCal -- name of the calendar to move the event to
+	 * @return true iff there was an event with that id
 	 * @throws NoSuchCalendarException if there is no calendar with the given name
 	 */
-	public CalendarEvent[] getEventsInDay(String calName, LocalDate day)
-			throws NoSuchCalendarException {
-		if (map.containsKey(calName)) {
-			return map.get(calName).getEventsInDay(day);
-		} else {
-			throw new NoSuchCalendarException(calName);
+	public boolean moveEvent(long id, String targetCal) throws NoSuchCalendarException {
+		while (true) {
+			StoredCalendar target = calendars(Collections.singletonList(targetCal)).get(0);
+			StoredCalendar source = holderOf(id);
+			if (source == null) {
+				return false;
+			}
+			try (Locked locked = new Locked(Arrays.asList(source, target), true)) {
+				CalendarModel from = locked.models.get(0), to = locked.models.get(1);
+				CalendarEvent event = from.getEvent(id);
+				if (map.get(targetCal) != target || nameOf(source) == null || event == null) {
+					continue;
+				}
+				move(event, from, to);
+				return true;
+			}
 		}
 	}
 
 	/**
-	 * Looks for events within a month for a certain calendar
+	 * Moves an event by id from one calendar to another. An event which has been edited may be
+	 * moved instead of being marked as modified.
 	 *
-	 * @param calName -- name of the calendar
-	 * @param time     the hour to query for events
-	 * @return the events found on that day
-	 * @throws NoSuchCalendarException if there is no calendar with the given name
+	 * @param fromCal -- name of the calendar holding the event
+	 * @param id      -- the id of the event
+	 * @param toCal   -- name of the calendar to move the event to
+	 * @return true iff the first calendar had an event with that id
+	 * @throws NoSuchCalendarException if there is no calendar with one of the given names
 	 */
-	public CalendarEvent[] getEventsInHour(String calName, LocalDateTime time)
-			throws NoSuchCalendarException {
-		if (map.containsKey(calName)) {
-			return map.get(calName).getEventsInHour(time);
+	public boolean moveEvent(String fromCal, long id, String toCal) throws NoSuchCalendarException {
+		try (Locked locked = lock(Arrays.asList(fromCal, toCal), true)) {
+			CalendarEvent event = locked.model().getEvent(id);
+			if (event == null) {
+				return false;
+			}
+			move(event, locked.model(), locked.models.get(1));
+			return true;
+		}
+	}
+
+	/**
+	 * @param event -- an event of the first calendar
+	 * @param from  -- the calendar holding the event, locked for writing
+	 * @param to    -- the calendar to move the event to, locked for writing, which may be the same
+	 */
+	private static void move(CalendarEvent event, CalendarModel from, CalendarModel to) {
+		if (from == to) {
+			from.markModified(event);
+		} else if (to.getEvent(event.getId()) == null) {
+			// added first, so the directory always has the event under one calendar or the other
+			to.addEvent(event);
+			from.removeEvent(event);
 		} else {
-			throw new NoSuchCalendarException(calName);
+			// the target gives the event a new id, as it has its own event with this one
+			from.removeEvent(event);
+			to.addEvent(event);
 		}
 	}
 
 	/**
-	 * Gets the list of events in a current time range
+	 * @param id -- the id of an event
+	 * @return the loaded calendar which has held an event with that id longest, at some moment
+	 * during the call, or null if none did
+	 */
+	private StoredCalendar holderOf(long id) {
+		while (true) {
+			CalendarModel model = directory.calendarOf(id);
+			if (model == null) {
+				return null;
+			}
+			// the calendar may be part way through being loaded, renamed or deleted
+			for (StoredCalendar stored : map.values()) {
+				if (stored.getModel() == model) {
+					return stored;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param model -- one of the calendars
+	 * @return the name of the calendar
+	 */
+	private String nameOf(CalendarModel model) {
+		for (Map.Entry<String, StoredCalendar> e : map.entrySet()) {
+			if (e.getValue().getModel() == model) {
+				return e.getKey();
+			}
+		}
+		throw new IllegalStateException("calendar is not in the controller");
+	}
+
+	/**
+	 * @param stored -- a calendar, which must be locked so that it is not renamed meanwhile
+	 * @return the name of the calendar, or null if it has been deleted
+	 */
+	private String nameOf(StoredCalendar stored) {
+		for (Map.Entry<String, StoredCalendar> e : map.entrySet()) {
+			if (e.getValue() == stored) {
+				return e.getKey();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Takes a CalendarModel and adds many events to it at once
 	 *
-	 * @param calName -- name of the calendar
-	 * @param before  -- the LocalDateTime for the start of the search
-	 * @param after   -- the LocalDateTime for the end of the search
-	 * @return the events found in that range
+	 * @param calName   -- name of the calendar
+	 * @param newEvents -- the CalendarEvents to add to the CalendarModel
+	 * @throws NoSuchCalendarException if there is no calendar with the given name
 	 */
-	public CalendarEvent[] getEventsInRange(String calName, LocalDateTime before, LocalDateTime after)
-			throws NoSuchCalendarException {
-		if (map.containsKey(calName)) {
-			return map.get(calName).getEventsInRange(before, after);
-		} else {
-			throw new NoSuchCalendarException(calName);
+	public void addEvents(String calName, Collection<CalendarEvent> newEvents) throws NoSuchCalendarException {
+		try (Locked locked = lock(calName, true)) {
+			locked.model().addEvents(newEvents);
 		}
 	}
 
 	/**
-	 * Saves the CalendarModel objects and their respective CalendarEvents
-	 * to the calendar file specified by {@link #calFile}
+	 * Takes a CalendarModel and removes many events from it at once
+	 *
+	 * @param calName  -- name of the calendar
+	 * @param toRemove -- the CalendarEvents to remove from the CalendarModel
+	 * @throws NoSuchCalendarException if there is no calendar with the given name
 	 */
-	public void saveCalendars() {
-		BufferedWriter writer = null;
-		try {
-			FileOutputStream fOut = new FileOutputStream(calFile);
-			ObjectOutputStream objOut = new ObjectOutputStream(fOut);
-			objOut.writeObject(map);
+	public void removeEvents(String calName, Collection<CalendarEvent> toRemove) throws NoSuchCalendarException {
+		try (Locked locked = lock(calName, true)) {
+			locked.model().removeEvents(toRemove);
+		}
+	}
+
+	/**
+	 * Makes several changes to a CalendarModel as a single unit,
+	 * so that its observers are only notified once. The calendar is locked meanwhile,
+	 * so this is where events already in it are edited in place from other threads.
+	 *
+	 * @param calName -- name of the calendar
+	 * @param changes -- a function which makes changes to the CalendarModel it is given
+	 * @throws NoSuchCalendarException if there is no calendar with the given name
+	 * @see CalendarModel#batch(Consumer)
+	 */
+	public void batch(String calName, Consumer<CalendarModel> changes) throws NoSuchCalendarException {
+		try (Locked locked = lock(calName, true)) {
+			locked.model().batch(changes);
+		}
+	}
+
+	/**
+	 * Notifies a CalendarModel that one of its events has been edited,
+	 * so that it can re-index the event under its new date and times
+	 *
+	 * @param calName -- name of the calendar
+	 * @param event   -- the CalendarEvent which was changed
+	 * @throws NoSuchCalendarException if there is no calendar with the given name
+	 */
+	public void markModified(String calName, CalendarEvent event) throws NoSuchCalendarException {
+		try (Locked locked = lock(calName, true)) {
+			locked.model().markModified(event);
+		}
+	}
+
+	/**
+	 * Registers a listener to be told about every subsequent change to a calendar. It is
+	 * called on the thread which made the change, while the calendar is locked.
+	 *
+	 * @param calName  -- name of the calendar
+	 * @param listener -- the listener to add
+	 * @throws NoSuchCalendarException if there is no calendar with the given name
+	 */
+	public void addListener(String calName, CalendarListener listener) throws NoSuchCalendarException {
+		try (Locked locked = lock(calName, false)) {
+			locked.model().addListener(listener);
+		}
+	}
+
+	/**
+	 * Stops telling a listener about changes to a calendar
+	 *
+	 * @param calName  -- name of the calendar
+	 * @param listener -- the listener to remove
+	 * @return true iff the listener had been registered with the calendar
+	 * @throws NoSuchCalendarException if there is no calendar with the given name
+	 */
+	public boolean removeListener(String calName, CalendarListener listener) throws NoSuchCalendarException {
+		try (Locked locked = lock(calName, false)) {
+			return locked.model().removeListener(listener);
+		}
+	}
+
+	/**
+	 * Looks for events within a year for a certain calendar
+	 *
+	 * @param calName -- name of the calendar
+	 * @param year    -- the year to get events from
+	 * @return the events found in that year
+	 * @throws NoSuchCalendarException if there is no calendar with the given name
+	 */
+	public CalendarEvent[] getEventsInYear(String calName, int year) throws NoSuchCalendarException {
+		try (Locked locked = lock(calName, false)) {
+			return locked.model().getEventsInYear(year);
+		}
+	}
+
+	/**
+	 * Looks for events within a month for a certain calendar
+	 *
+	 * @param calName -- name of the calendar
+	 * @param year    -- the year to get events from
+	 * @param month   -- the month to get events from
+	 * @return the events found in that month
+	 * @throws NoSuchCalendarException if there is no calendar with the given name
+	 */
+	public CalendarEvent[] getEventsInMonth(String calName, int year, int month)
+			throws NoSuchCalendarException {
+		try (Locked locked = lock(calName, false)) {
+			return locked.model().getEventsInMonth(year, month);
+		}
+	}
+
+	/**
+	 * Looks for events within a month for a certain calendar
+	 *
+	 * @param calName -- name of the calendar
+	 * @param day     the date to query for events
+	 * @return the events found on that day
+	 * @throws NoSuchCalendarException if there is no calendar with the given name
+	 */
+	public CalendarEvent[] getEventsInDay(String calName, LocalDate day)
+			throws NoSuchCalendarException {
+		try (Locked locked = lock(calName, false)) {
+			return locked.model().getEventsInDay(day);
+		}
+	}
+
+	/**
+	 * Looks for events within a range of days for a certain calendar,
+	 * grouped by the day on which they occur
+	 *
+	 * @param calName -- name of the calendar
+	 * @param from    -- the first day to query for events (inclusive)
+	 * @param to      -- the last day to query for events (exclusive)
+	 * @return a map from each day that has events to that day's events, ordered by start time
+	 * @throws NoSuchCalendarException if there is no calendar with the given name
+	 */
+	public NavigableMap<LocalDate, CalendarEvent[]> getEventsByDay(String calName, LocalDate from, LocalDate to)
+			throws NoSuchCalendarException {
+		try (Locked locked = lock(calName, false)) {
+			return locked.model().getEventsByDay(from, to);
+		}
+	}
+
+	/**
+	 * Looks for events within a month for a certain calendar
+	 *
+	 * @param calName -- name of the calendar
+	 * @param time     the hour to query for events
+	 * @return the events found on that day
+	 * @throws NoSuchCalendarException if there is no calendar with the given name
+	 */
+	public CalendarEvent[] getEventsInHour(String calName, LocalDateTime time)
+			throws NoSuchCalendarException {
+		try (Locked locked = lock(calName, false)) {
+			return locked.model().getEventsInHour(time);
+		}
+	}
+
+	/**
+	 * Gets the list of events in a current time range
+	 *
+	 * @param calName -- name of the calendar
+	 * @param before  -- the LocalDateTime for the start of the search
+	 * @param after   -- the LocalDateTime for the end of the search
+	 * @return the events found in that range
+	 */
+	public CalendarEvent[] getEventsInRange(String calName, LocalDateTime before, LocalDateTime after)
+			throws NoSuchCalendarException {
+		try (Locked locked = lock(calName, false)) {
+			return locked.model().getEventsInRange(before, after);
+		}
+	}
+
+	/**
+	 * Gets the events in a time range from several calendars at once, as a single stream
+	 * ordered by start time. The calendars' events are merged as the stream is consumed,
+	 * so no calendar's events are collected into an array and nothing needs to be re-sorted.
+	 * Events with equal start times are ordered by the iteration order of the set of names.
+	 * Each calendar is locked for reading while the stream moves on through it, and the
+	 * stream fails if any of the calendars is changed before it has been consumed.
+	 *
+	 * @param calNames -- names of the calendars
+	 * @param before   -- the LocalDateTime for the start of the search
+	 * @param after    -- the LocalDateTime for the end of the search
+	 * @return the events found in that range, each with the name of its calendar; consuming it
+	 * throws ConcurrentModificationException if one of the calendars has changed meanwhile
+	 * @throws NoSuchCalendarException if there is no calendar with one of the given names
+	 */
+	public Stream<CalendarEntry> getEventsInRange(Set<String> calNames, LocalDateTime before, LocalDateTime after)
+			throws NoSuchCalendarException {
+		List<String> inRange = mayOverlap(calNames, before.toLocalDate().minusDays(1), after.toLocalDate());
+		Iterator<CalendarEntry> merged;
+		try (Locked locked = lock(inRange, false)) {
+			merged = merge(inRange, locked, before, after, true);
+		}
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(merged,
+				Spliterator.ORDERED | Spliterator.NONNULL), false);
+	}
+
+	/**
+	 * @param calNames -- names of calendars
+	 * @param from     -- the first day (inclusive)
+	 * @param to       -- the last day (inclusive)
+	 * @return the names of the calendars which may have events on the days, in the order of the
+	 * set; calendars not yet loaded are left out if their manifest entry says they have nothing then
+	 * @throws NoSuchCalendarException if there is no calendar with one of the given names
+	 */
+	private List<String> mayOverlap(Set<String> calNames, LocalDate from, LocalDate to)
+			throws NoSuchCalendarException {
+		List<String> inRange = new ArrayList<>(calNames.size());
+		for (String calName : calNames) {
+			StoredCalendar stored = map.get(calName);
+			if (stored == null) {
+				throw new NoSuchCalendarException(calName);
+			} else if (stored.mayOverlap(from, to)) {
+				inRange.add(calName);
+			}
+		}
+		return inRange;
+	}
+
+	/**
+	 * @param calNames -- names of calendars
+	 * @param locked   -- the calendars, locked for reading
+	 * @param before   -- the LocalDateTime for the start of the search
+	 * @param after    -- the LocalDateTime for the end of the search
+	 * @param relock   -- true if the calendars will have been unlocked by the time the events
+	 *                 after the first of each are needed, so must be locked again, and checked
+	 *                 for changes, for each
+	 * @return the events of the calendars in the range, merged in order of start time
+	 */
+	private Iterator<CalendarEntry> merge(List<String> calNames, Locked locked, LocalDateTime before,
+										  LocalDateTime after, boolean relock) {
+		PriorityQueue<Cursor> heads = new PriorityQueue<>(Math.max(1, calNames.size()));
+		for (int i = 0; i < calNames.size(); i++) {
+			Cursor cursor = new Cursor(calNames.get(i), i, locked.models.get(i).iterateEventsInRange(before, after),
+					relock ? locked.calendars.get(i) : null);
+			if (cursor.advance()) {
+				heads.add(cursor);
+			}
+		}
+		return new Iterator<CalendarEntry>() {
+			@Override
+			public boolean hasNext() {
+				return !heads.isEmpty();
+			}
+
+			@Override
+			public CalendarEntry next() {
+				Cursor cursor = heads.poll();
+				if (cursor == null) {
+					throw new NoSuchElementException();
+				}
+				CalendarEntry entry = new CalendarEntry(cursor.calName, cursor.head);
+				if (cursor.advanceLocked()) {
+					heads.add(cursor);
+				}
+				return entry;
+			}
+		};
+	}
+
+	/**
+	 * Adds the events in an iCalendar (.ics) file to a calendar. The file is read a buffer
+	 * at a time, on several threads at once if it is large, and its events are added in
+	 * batches as they are read, so it is never held in memory whole. Times in other time
+	 * zones are converted to the system's. Entries which cannot be read are skipped.
+	 *
+	 * @param calName -- name of the calendar
+	 * @param file    -- the file to read
+	 * @return how many events were added, and which entries were skipped
+	 * @throws NoSuchCalendarException if there is no calendar with the given name, or it is
+	 *                                 deleted before the import has finished
+	 * @throws IOException             if the file could not be read, or is not an iCalendar file
+	 * @see ICalendar#read(Path, ZoneId, int, ICalendar.Sink)
+	 */
+	public ImportReport importICalendar(String calName, Path file) throws NoSuchCalendarException, IOException {
+		// the events go to the calendar named when the import began, even if it is renamed meanwhile
+		StoredCalendar stored = calendars(Collections.singletonList(calName)).get(0);
+		long began = System.nanoTime();
+		int[] imported = {0};
+		List<String> errors = new ArrayList<>();
+		beginImport();
+		try {
+			ICalendar.read(file, ZoneId.systemDefault(), Runtime.getRuntime().availableProcessors(), new ICalendar.Sink() {
+				@Override
+				public void accept(List<CalendarEvent> events) {
+					try (Locked locked = new Locked(Collections.singletonList(stored), true)) {
+						if (nameOf(stored) == null) {
+							throw new CalendarDeleted(new NoSuchCalendarException(calName));
+						}
+						locked.model().addEvents(events);
+					}
+					imported[0] += events.size();
+				}
+
+				@Override
+				public void skip(long offset, String reason) {
+					errors.add(String.format("VEVENT at byte %d: %s", offset, reason));
+				}
+			});
+		} catch (CalendarDeleted deleted) {
+			throw deleted.getCause();
+		} finally {
+			endImport();
+		}
+		return new ImportReport(imported[0], errors, System.nanoTime() - began);
+	}
+
+	/**
+	 * Puts off compacting the journal until {@link #endImport()}, as rewriting every
+	 * calendar each time the journal fills would make a large import quadratic
+	 */
+	void beginImport() {
+		synchronized (compactionLock) {
+			importing++;
+		}
+	}
+
+	/**
+	 * Ends an import begun by {@link #beginImport()}, compacting the journal if it filled
+	 * up meanwhile and no other import is under way
+	 */
+	void endImport() {
+		boolean compact;
+		synchronized (compactionLock) {
+			compact = --importing == 0 && compactionDeferred;
+			compactionDeferred &= !compact;
+		}
+		if (compact) {
+			compactInBackground();
+		}
+	}
+
+	/**
+	 * Writes the events in a time range from several calendars to a channel as an
+	 * iCalendar document. Events are written as they are found, a buffer at a time;
+	 * each occurrence of a recurring event is written as an event of its own. The
+	 * calendars are locked for reading until the last event is written, so the
+	 * document holds them as they were at a single moment.
+	 *
+	 * @param calNames -- names of the calendars
+	 * @param before   -- the LocalDateTime for the start of the range
+	 * @param after    -- the LocalDateTime for the end of the range
+	 * @param out      -- the channel to write to, which is left open
+	 * @return the number of events written
+	 * @throws NoSuchCalendarException if there is no calendar with one of the given names
+	 * @throws IOException             if the channel could not be written
+	 */
+	public int exportICalendar(Set<String> calNames, LocalDateTime before, LocalDateTime after,
+							   WritableByteChannel out) throws NoSuchCalendarException, IOException {
+		List<String> inRange = mayOverlap(calNames, before.toLocalDate().minusDays(1), after.toLocalDate());
+		ICalendar.Writer writer = new ICalendar.Writer(out);
+		int written = 0;
+		try (Locked locked = lock(inRange, false)) {
+			for (Iterator<CalendarEntry> it = merge(inRange, locked, before, after, false); it.hasNext(); written++) {
+				writer.write(it.next().getEvent());
+			}
+		}
+		writer.finish();
+		return written;
+	}
+
+	/**
+	 * Counts the events in a current time range without retrieving them
+	 *
+	 * @param calName -- name of the calendar
+	 * @param before  -- the LocalDateTime for the start of the search
+	 * @param after   -- the LocalDateTime for the end of the search
+	 * @return the number of events {@link #getEventsInRange} would return
+	 * @throws NoSuchCalendarException if there is no calendar with the given name
+	 */
+	public int countEventsInRange(String calName, LocalDateTime before, LocalDateTime after)
+			throws NoSuchCalendarException {
+		try (Locked locked = lock(calName, false)) {
+			return locked.model().countEventsInRange(before, after);
+		}
+	}
+
+	/**
+	 * Counts the events in each of a series of consecutive periods of time,
+	 * e.g. each hour of a day or each day of a month
+	 *
+	 * @param calName -- name of the calendar
+	 * @param from    -- the start of the first period
+	 * @param to      -- the end of the last period
+	 * @param bucket  -- the length of each period
+	 * @return the number of events in each period, in order
+	 * @throws NoSuchCalendarException if there is no calendar with the given name
+	 * @see CalendarModel#histogram(LocalDateTime, LocalDateTime, ChronoUnit)
+	 */
+	public int[] histogram(String calName, LocalDateTime from, LocalDateTime to, ChronoUnit bucket)
+			throws NoSuchCalendarException {
+		try (Locked locked = lock(calName, false)) {
+			return locked.model().histogram(from, to, bucket);
+		}
+	}
+
+	/**
+	 * Finds when several calendars are busy over a range of days. Each calendar keeps a
+	 * bitmap of its busy slots per day, so this combines whole days of slots at a time
+	 * rather than comparing events.
+	 *
+	 * @param calNames -- names of the calendars
+	 * @param from     -- the first day (inclusive)
+	 * @param to       -- the last day (exclusive)
+	 * @param mode     -- whether a slot is busy when any of the calendars is busy, or only when all of them are
+	 * @return when the calendars are busy, in slots of {@link #getFreeBusyGranularity()} minutes
+	 * @throws NoSuchCalendarException if there is no calendar with one of the given names
+	 */
+	public FreeBusy getFreeBusy(Set<String> calNames, LocalDate from, LocalDate to, FreeBusy.Mode mode)
+			throws NoSuchCalendarException {
+		try (Locked locked = lock(new ArrayList<>(calNames), false)) {
+			return freeBusy.query(locked.models, from, to, mode);
+		}
+	}
+
+	/**
+	 * @return the length in minutes of the slots used by {@link #getFreeBusy}
+	 */
+	public int getFreeBusyGranularity() {
+		return freeBusy.getMinutesPerSlot();
+	}
+
+	/**
+	 * sets the length of the slots used by {@link #getFreeBusy}. The bitmaps are rebuilt
+	 * the next time each calendar is queried.
+	 *
+	 * @param minutes -- 5 or 15
+	 * @throws IllegalArgumentException if the length is not 5 or 15 minutes
+	 */
+	public void setFreeBusyGranularity(int minutes) {
+		freeBusy.setMinutesPerSlot(minutes);
+	}
+
+	/**
+	 * Searches the titles, locations and notes of the events in several calendars. Each
+	 * calendar is indexed the first time it is searched, and the index is kept up to date
+	 * as the calendar changes, so searches only look at the events which match.
+	 *
+	 * @param query    -- the words to look for; an event must contain every one of them
+	 * @param calNames -- names of the calendars to search
+	 * @param from     -- the first day an event may occur on (inclusive), or null for no limit
+	 * @param to       -- the last day an event may occur on (exclusive), or null for no limit
+	 * @param limit    -- the most events to return
+	 * @return the best matches, best first, each with the name of its calendar
+	 * @throws NoSuchCalendarException if there is no calendar with one of the given names
+	 * @see SearchIndex#search(String, LocalDate, LocalDate, int)
+	 */
+	public List<CalendarEntry> search(String query, Set<String> calNames, LocalDate from, LocalDate to, int limit)
+			throws NoSuchCalendarException {
+		List<String> inRange = mayOverlap(calNames, from == null ? LocalDate.MIN : from, to == null ? LocalDate.MAX : to);
+		List<SearchIndex.Hit> hits = new ArrayList<>();
+		Map<SearchIndex.Hit, String> calendarOf = new IdentityHashMap<>();
+		try (Locked locked = lock(inRange, false)) {
+			Iterator<String> calendarNames = inRange.iterator();
+			for (CalendarModel model : locked.models) {
+				String calName = calendarNames.next();
+				for (SearchIndex.Hit hit : searchIndexOf(model).search(query, from, to, limit)) {
+					hits.add(hit);
+					calendarOf.put(hit, calName);
+				}
+			}
+		}
+		Collections.sort(hits);
+		List<CalendarEntry> results = new ArrayList<>();
+		for (SearchIndex.Hit hit : hits.subList(0, Math.max(0, Math.min(limit, hits.size())))) {
+			results.add(new CalendarEntry(calendarOf.get(hit), hit.getEvent()));
+		}
+		return results;
+	}
+
+	/**
+	 * @param model -- a calendar
+	 * @return the calendar's full-text index, building it if the calendar has not been searched before
+	 */
+	private SearchIndex searchIndexOf(CalendarModel model) {
+		synchronized (searchIndexes) {
+			SearchIndex index = searchIndexes.get(model);
+			if (index == null) {
+				index = new SearchIndex(model);
+				model.addListener(index);
+				searchIndexes.put(model, index);
+			}
+			return index;
+		}
+	}
+
+	/**
+	 * Suggests titles for an event being typed, from the titles of the events in every calendar
+	 *
+	 * @param prefix -- what has been typed so far; case is ignored
+	 * @param limit  -- the most suggestions to return
+	 * @return the most used titles starting with the prefix, most used first
+	 */
+	public List<String> suggestTitles(String prefix, int limit) {
+		buildCompletions();
+		return completions.suggestTitles(prefix, limit);
+	}
+
+	/**
+	 * Suggests locations for an event being typed, from the locations of the events in every calendar
+	 *
+	 * @param prefix -- what has been typed so far; case is ignored
+	 * @param limit  -- the most suggestions to return
+	 * @return the most used locations starting with the prefix, most used first
+	 */
+	public List<String> suggestLocations(String prefix, int limit) {
+		buildCompletions();
+		return completions.suggestLocations(prefix, limit);
+	}
+
+	/**
+	 * count the titles and locations of every calendar for suggestions, unless they have been already
+	 */
+	private void buildCompletions() {
+		if (!completions.isBuilt()) {
+			readingAll(() -> {
+				completions.build();
+				return null;
+			});
+		}
+	}
+
+	/**
+	 * Captures a snapshot of every calendar in O(1) time. Safe to call from any thread.
+	 * The snapshots are unaffected by later changes, and never reflect part of a change
+	 * or batch of changes to a calendar. Calendars which have not been loaded yet are
+	 * left out; they are as they were saved.
+	 *
+	 * @return an unmodifiable map from the name of each calendar to its snapshot
+	 */
+	public Map<String, CalendarSnapshot> snapshot() {
+		return published.calendars;
+	}
+
+	/**
+	 * Publishes a new snapshot of every calendar for {@link #snapshot()}
+	 */
+	private void publishSnapshots() {
+		// one at a time, so that a snapshot taken earlier is never published over a later one
+		synchronized (publishLock) {
+			// every change up to this number is in the snapshots taken below
+			long sequence = journal.getSequence();
+			HashMap<String, CalendarSnapshot> current = new HashMap<>();
+			HashMap<String, Long> currentShards = new HashMap<>();
+			for (Map.Entry<String, StoredCalendar> e : map.entrySet()) {
+				if (e.getValue().isLoaded()) {
+					current.put(e.getKey(), e.getValue().getModel().snapshot());
+				}
+				currentShards.put(e.getKey(), e.getValue().getShard());
+			}
+			published = new Published(Collections.unmodifiableMap(current), currentShards, sequence);
+		}
+	}
+
+	/**
+	 * Logs the changes to a calendar in the journal
+	 *
+	 * @param source  -- the calendar which changed
+	 * @param changes -- the changes made to it
+	 */
+	private void logChanges(CalendarModel source, List<CalendarChange> changes) {
+		String calName = nameOf(source);
+		log(() -> {
+			for (CalendarChange change : changes) {
+				if (change.getType() == CalendarChange.Type.REMOVED) {
+					journal.removeEvent(calName, change.getEvent().getId());
+				} else {
+					journal.putEvent(calName, change.getEvent());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Logs changes in the journal, unless it has stopped, in which case they are only kept once
+	 * the calendars are saved
+	 *
+	 * @param changes -- logs the changes
+	 */
+	private void log(Runnable changes) {
+		if (!journalStopped) {
+			try {
+				changes.run();
+			} catch (UncheckedIOException e) {
+				// the journal stopped meanwhile, which journalFailed reports
+			}
+		}
+	}
+
+	/**
+	 * Reports that the journal could not be written, and saves the calendars in the background,
+	 * so that the changes it did not write are kept
+	 *
+	 * @param e -- why the journal could not be written
+	 */
+	private void journalFailed(IOException e) {
+		journalStopped = true;
+		reportProblem(String.format("Changes could not be logged to the journal at \"%s\", so from now on they "
+				+ "are only kept once the calendars are saved. %s", journalFile, e));
+		compactInBackground();
+	}
+
+	/**
+	 * Saves the calendars on a thread of its own, so that the journal is folded into
+	 * {@link #calFile} without holding up the journal's writer. While events are being
+	 * imported, this is put off until the last import ends.
+	 */
+	private void compactInBackground() {
+		synchronized (compactionLock) {
+			if (importing > 0) {
+				compactionDeferred = true;
+				return;
+			}
+		}
+		Thread compactor = new Thread(this::saveCalendars, "calendar-compactor");
+		compactor.setDaemon(true);
+		compactor.start();
+	}
+
+	/**
+	 * Saves the CalendarModel objects and their respective CalendarEvents as of the latest
+	 * {@link #snapshot()}: each calendar changed since it was last saved to its shard, as a
+	 * {@link CalendarSegment}, then the {@link CalendarManifest} naming every shard to
+	 * {@link #calFile}. Shards of calendars which did not change are not rewritten, and the
+	 * shards of deleted calendars are removed. A calendar still reading its events from the
+	 * file it was loaded from is saved to a new shard instead, and the old file removed once
+	 * the manifest no longer names it; files which cannot be removed yet, as some systems do
+	 * not remove files still mapped into memory, are tried again by later saves, and when the
+	 * calendars are next opened. The changes saved are then dropped from the journal.
+	 * Every change is logged to the journal as it is made, so this need not be called to keep
+	 * changes; it is called in the background once the journal grows large.
+	 * Safe to call from any thread, so that saving need not hold up the JavaFX Application
+	 * Thread; changes made while the files are being written are saved next time.
+	 * Does nothing if nothing has changed since the last save.
+	 */
+	public void saveCalendars() {
+		synchronized (saveLock) {
+			Published toSave = published;
+			if (toSave == lastSaved && calFile.exists()) {
+				return;
+			}
+			// files written to new shards, the files they take over from once the manifest is
+			// written, and the shards whose calendars no longer read from the file they are saved in
+			List<Path> moved = new ArrayList<>();
+			List<Path> replaced = new ArrayList<>();
+			List<Long> unmapped = new ArrayList<>();
+			try {
+				Map<String, CalendarManifest.Entry> entries = new HashMap<>();
+				Map<Long, CalendarManifest.Entry> written = new HashMap<>();
+				for (Map.Entry<String, Long> e : toSave.shards.entrySet()) {
+					long shard = e.getValue();
+					// calendars never loaded are as they were saved
+					CalendarSnapshot snapshot = toSave.calendars.get(e.getKey());
+					CalendarManifest.Entry entry = savedEntries.get(shard);
+					Long saved = savedVersions.get(shard);
+					if (snapshot != null && (entry == null || saved == null || saved != snapshot.getVersion())) {
+						long file = entry == null ? shard : entry.getShard();
+						if (mappedShards.contains(shard)) {
+							// the calendar may still read events from its file, so it is left as it is
+							replaced.add(shardPath(file));
+							file = nextShard.getAndIncrement();
+							moved.add(shardPath(file));
+							unmapped.add(shard);
+						}
+						Path temp = Paths.get(shardPath(file) + ".tmp");
+						CalendarSegment.write(temp, snapshot, toSave.sequence);
+						moveIntoPlace(temp, shardPath(file));
+						entry = CalendarManifest.Entry.of(file, snapshot);
+						savedVersions.put(shard, snapshot.getVersion());
+					}
+					entries.put(e.getKey(), entry);
+					written.put(shard, entry);
+				}
+				Path temp = Paths.get(calFile.getPath() + ".tmp");
+				new CalendarManifest(toSave.sequence, entries).write(temp);
+				moveIntoPlace(temp, calFile.toPath());
+				moved.clear();
+				retired.addAll(replaced);
+				for (Map.Entry<Long, CalendarManifest.Entry> e : savedEntries.entrySet()) {
+					if (!written.containsKey(e.getKey())) {
+						retired.add(shardPath(e.getValue().getShard()));
+					}
+				}
+				savedEntries.clear();
+				savedEntries.putAll(written);
+				savedVersions.keySet().retainAll(written.keySet());
+				mappedShards.retainAll(written.keySet());
+				mappedShards.removeAll(unmapped);
+				lastSaved = toSave;
+				if (!journalStopped) {
+					journal.cut(toSave.sequence);
+				}
+			} catch (IOException e) {
+				// the changes stay in the journal, and are saved again next time
+				reportProblem(String.format("The calendars could not be saved to \"%s\"; every change is still "
+						+ "kept in the journal at \"%s\". %s", calFile, journalFile, e));
+				retired.addAll(moved);
+			}
+			retired.removeIf(CalendarController::deleted);
+		}
+	}
+
+	/**
+	 * @param shard -- the number of a shard
+	 * @return the file the shard is saved in
+	 */
+	private Path shardPath(long shard) {
+		return CalendarManifest.shardPath(calFile.toPath(), shard);
+	}
+
+	/**
+	 * Deletes the shard files beside {@link #calFile} which are not in its manifest, left by
+	 * saves which could not delete them as they were still mapped into memory
+	 *
+	 * @param kept -- the numbers of the shards in the manifest
+	 */
+	private void deleteRetired(Set<Long> kept) {
+		Path path = calFile.toPath().toAbsolutePath();
+		String prefix = path.getFileName() + ".";
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(path.getParent(), file -> {
+			String name = file.getFileName().toString();
+			return name.startsWith(prefix) && name.length() > prefix.length()
+					&& name.substring(prefix.length()).chars().allMatch(c -> c >= '0' && c <= '9');
+		})) {
+			for (Path file : files) {
+				String number = file.getFileName().toString().substring(prefix.length());
+				if (number.length() > 18 || !kept.contains(Long.parseLong(number))) {
+					deleted(file);
+				}
+			}
+		} catch (IOException e) {
+			// they are tried again next time the calendars are opened
+		}
+	}
+
+	/**
+	 * @param path -- a file no longer needed
+	 * @return true if the file was deleted, or was gone already
+	 */
+	private static boolean deleted(Path path) {
+		try {
+			Files.deleteIfExists(path);
+			return true;
 		} catch (IOException e) {
-			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Renames a file written aside over the file it replaces, so that a crash leaves one or the other
+	 *
+	 * @param temp -- the new file
+	 * @param path -- the file to replace
+	 * @throws IOException if the file could not be renamed
+	 */
+	private static void moveIntoPlace(Path temp, Path path) throws IOException {
+		Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Waits for every change made so far to be logged to the journal on disk, then stops
+	 * logging. The calendars must not be changed afterwards.
+	 *
+	 * @throws IOException if the journal could not be written
+	 */
+	public void close() throws IOException {
+		journal.close();
+	}
+
+	/**
+	 * The snapshots of every calendar, the shard each is saved in, and the number of the
+	 * last change logged to the journal which they include
+	 */
+	private static final class Published {
+		private final Map<String, CalendarSnapshot> calendars;
+		private final Map<String, Long> shards;
+		private final long sequence;
+
+		private Published(Map<String, CalendarSnapshot> calendars, Map<String, Long> shards, long sequence) {
+			this.calendars = calendars;
+			this.shards = shards;
+			this.sequence = sequence;
+		}
+	}
+
+	/**
+	 * Carries a {@link NoSuchCalendarException} out of a callback which cannot throw it
+	 */
+	private static final class CalendarDeleted extends RuntimeException {
+		private static final long serialVersionUID = -4310998712235046721L;
+
+		private CalendarDeleted(NoSuchCalendarException cause) {
+			super(cause);
+		}
+
+		@Override
+		public synchronized NoSuchCalendarException getCause() {
+			return (NoSuchCalendarException) super.getCause();
+		}
+	}
+
+	/**
+	 * Locks held on one or more calendars, taken in the order of their shards, so that two
+	 * threads locking some of the same calendars never each wait for the other
+	 */
+	private static final class Locked implements AutoCloseable {
+		private final List<StoredCalendar> calendars;
+		private final List<CalendarModel> models;
+		private final StoredCalendar[] held;
+		private final long[] stamps;
+
+		/**
+		 * @param calendars -- the calendars to lock, which must have been loaded; any may appear more than once
+		 * @param exclusive -- true to lock the calendars for writing, false for reading
+		 */
+		private Locked(List<StoredCalendar> calendars, boolean exclusive) {
+			this.calendars = calendars;
+			this.models = new ArrayList<>(calendars.size());
+			for (StoredCalendar stored : calendars) {
+				models.add(stored.getModel());
+			}
+			held = calendars.size() == 1 ? new StoredCalendar[]{calendars.get(0)}
+					: calendars.stream().distinct().sorted(Comparator.comparingLong(StoredCalendar::getShard))
+					.toArray(StoredCalendar[]::new);
+			stamps = new long[held.length];
+			for (int i = 0; i < held.length; i++) {
+				stamps[i] = exclusive ? held[i].getLock().writeLock() : held[i].getLock().readLock();
+			}
+		}
+
+		/**
+		 * @return the first calendar locked
+		 */
+		private CalendarModel model() {
+			return models.get(0);
+		}
+
+		@Override
+		public void close() {
+			for (int i = held.length - 1; i >= 0; i--) {
+				held[i].getLock().unlock(stamps[i]);
+			}
+		}
+	}
+
+	/**
+	 * The next unmerged event from one calendar, for
+	 * {@link #getEventsInRange(Set, LocalDateTime, LocalDateTime)}
+	 */
+	private static final class Cursor implements Comparable<Cursor> {
+		private final String calName;
+		private final int order;
+		private final Iterator<CalendarEvent> events;
+		/**
+		 * the calendar, if it must be locked again to move on, and a stamp which stays valid
+		 * for as long as the calendar is not changed
+		 */
+		private final StoredCalendar stored;
+		private final long unchanged;
+		private CalendarEvent head;
+		private long headStart;
+
+		/**
+		 * @param stored -- the calendar, if it will have been unlocked when the cursor is next
+		 *               advanced, or null; it must be locked while this is constructed
+		 */
+		private Cursor(String calName, int order, Iterator<CalendarEvent> events, StoredCalendar stored) {
+			this.calName = calName;
+			this.order = order;
+			this.events = events;
+			this.stored = stored;
+			this.unchanged = stored == null ? 0 : stored.getLock().tryOptimisticRead();
+		}
+
+		/**
+		 * @return true iff there was another event to move on to
+		 * @throws ConcurrentModificationException if the calendar has been changed since the cursor was made
+		 */
+		private boolean advanceLocked() {
+			if (stored == null) {
+				return advance();
+			}
+			StampedLock lock = stored.getLock();
+			long stamp = lock.readLock();
+			try {
+				if (!lock.validate(unchanged)) {
+					throw new ConcurrentModificationException(
+							String.format("The calendar \"%s\" was changed while its events were being read.", calName));
+				}
+				return advance();
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+
+		/**
+		 * @return true iff there was another event to move on to
+		 */
+		private boolean advance() {
+			if (!events.hasNext()) {
+				return false;
+			}
+			head = events.next();
+			headStart = TimeSpan.toEpochSecond(head.getDate(), head.getStartTime());
+			return true;
+		}
+
+		@Override
+		public int compareTo(Cursor other) {
+			int byStart = Long.compare(headStart, other.headStart);
+			return byStart != 0 ? byStart : Integer.compare(order, other.order);
 		}
 	}
 }
@@ -0,0 +1,41 @@
+package controller;
+
+import model.CalendarEvent;
+
+/**
+ * An event, together with the name of the calendar it belongs to
+ *
+ * @see CalendarController#getEventsInRange(java.util.Set, java.time.LocalDateTime, java.time.LocalDateTime)
+ */
+public final class CalendarEntry {
+    private final String calendarName;
+    private final CalendarEvent event;
+
+    /**
+     * @param calendarName the name of the calendar the event belongs to
+     * @param event        the event
+     */
+    public CalendarEntry(String calendarName, CalendarEvent event) {
+        this.calendarName = calendarName;
+        this.event = event;
+    }
+
+    /**
+     * @return the name of the calendar the event belongs to
+     */
+    public String getCalendarName() {
+        return calendarName;
+    }
+
+    /**
+     * @return the event
+     */
+    public CalendarEvent getEvent() {
+        return event;
+    }
+
+    @Override
+    public String toString() {
+        return calendarName + ": " + event.getTitle();
+    }
+}
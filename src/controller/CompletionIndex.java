@@ -0,0 +1,134 @@
+package controller;
+
+import model.CalendarChange;
+import model.CalendarEvent;
+import model.CalendarListener;
+import model.CalendarModel;
+import model.PrefixIndex;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Counts the titles and locations of the events in every calendar, to suggest completions
+ * while they are typed.
+ */
+final class CompletionIndex implements CalendarListener {
+    /**
+     * the most suggestions offered at once
+     */
+    static final int SUGGESTIONS = 8;
+
+    private final Set<CalendarModel> models = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final PrefixIndex titles = new PrefixIndex(SUGGESTIONS), locations = new PrefixIndex(SUGGESTIONS);
+    /**
+     * the title and location each event was counted under, since they may have changed by the time
+     * the event is recounted
+     */
+    private final Map<CalendarEvent, String[]> counted = new IdentityHashMap<>();
+    private boolean built;
+
+    /**
+     * include a calendar's events in the counts
+     *
+     * @param model a calendar this is listening to
+     */
+    synchronized void attach(CalendarModel model) {
+        if (models.add(model) && built) {
+            countAll(model);
+        }
+    }
+
+    /**
+     * remove a calendar's events from the counts
+     *
+     * @param model a calendar this is no longer listening to
+     */
+    synchronized void detach(CalendarModel model) {
+        if (models.remove(model) && built) {
+            for (CalendarEvent event : model.getAllEvents()) {
+                uncount(event);
+            }
+        }
+    }
+
+    /**
+     * @param prefix the start of a title
+     * @param limit  the most suggestions to return
+     * @return the most used titles starting with the prefix, most used first
+     */
+    synchronized List<String> suggestTitles(String prefix, int limit) {
+        build();
+        return titles.complete(prefix, Math.min(limit, SUGGESTIONS));
+    }
+
+    /**
+     * @param prefix the start of a location
+     * @param limit  the most suggestions to return
+     * @return the most used locations starting with the prefix, most used first
+     */
+    synchronized List<String> suggestLocations(String prefix, int limit) {
+        build();
+        return locations.complete(prefix, Math.min(limit, SUGGESTIONS));
+    }
+
+    /**
+     * @return true iff the counts have been taken
+     */
+    synchronized boolean isBuilt() {
+        return built;
+    }
+
+    /**
+     * take the counts, unless they have been already
+     */
+    synchronized void build() {
+        if (!built) {
+            built = true;
+            for (CalendarModel model : models) {
+                countAll(model);
+            }
+        }
+    }
+
+    private void countAll(CalendarModel model) {
+        for (CalendarEvent event : model.getAllEvents()) {
+            count(event);
+        }
+    }
+
+    /**
+     * recount the events a change names
+     */
+    @Override
+    public synchronized void calendarChanged(CalendarModel source, List<CalendarChange> changes) {
+        if (!built || !models.contains(source)) {
+            return;
+        }
+        for (CalendarChange change : changes) {
+            uncount(change.getEvent());
+            if (change.getType() != CalendarChange.Type.REMOVED) {
+                count(change.getEvent());
+            }
+        }
+    }
+
+    private void count(CalendarEvent event) {
+        if (event.getRecurringEvent() == null && !counted.containsKey(event)) {
+            counted.put(event, new String[]{event.getTitle(), event.getLocation()});
+            titles.add(event.getTitle());
+            locations.add(event.getLocation());
+        }
+    }
+
+    private void uncount(CalendarEvent event) {
+        String[] was = counted.remove(event);
+        if (was != null) {
+            titles.remove(was[0]);
+            locations.remove(was[1]);
+        }
+    }
+}
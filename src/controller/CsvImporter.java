@@ -0,0 +1,509 @@
+package controller;
+
+import javafx.scene.paint.Color;
+import model.CalendarEvent;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Imports events into the calendars of a {@link CalendarController} from a CSV file with a
+ * row for each event, in the columns title, date, start, end, location, notes, color and
+ * calendar, parsing the rows on several threads at once.
+ */
+public final class CsvImporter {
+    /**
+     * the most rows in a chunk
+     */
+    private static final int CHUNK_ROWS = 1024;
+    /**
+     * the length in chars past which a chunk is cut at the end of the row, whatever its number of rows
+     */
+    private static final int CHUNK_CHARS = 1 << 18;
+    private static final int COLUMNS = 8;
+
+    private final CalendarController controller;
+    private final int workers;
+
+    /**
+     * @param controller -- the controller to add events to
+     */
+    public CsvImporter(CalendarController controller) {
+        this(controller, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param controller -- the controller to add events to
+     * @param workers    -- the number of threads to turn rows into events on
+     * @throws IllegalArgumentException if the number of workers is not positive
+     */
+    public CsvImporter(CalendarController controller, int workers) {
+        if (controller == null) {
+            throw new IllegalArgumentException("given controller must not be null");
+        } else if (workers < 1) {
+            throw new IllegalArgumentException("Workers must be positive, not " + workers);
+        }
+        this.controller = controller;
+        this.workers = workers;
+    }
+
+    /**
+     * Add the events in a CSV file to their calendars
+     *
+     * @param file    -- the file to read, in UTF-8
+     * @param calName -- name of the calendar for rows which do not name one
+     * @return how many events were added, and which rows were skipped
+     * @throws IOException if the file could not be read
+     */
+    public ImportReport importFile(Path file, String calName) throws IOException {
+        long began = System.nanoTime();
+        BlockingQueue<Chunk> chunks = new ArrayBlockingQueue<>(2 * workers);
+        BlockingQueue<Parsed> parsed = new ArrayBlockingQueue<>(2 * workers);
+        ExecutorService pool = Executors.newFixedThreadPool(workers + 1, task -> {
+            Thread thread = new Thread(task, "csv-import");
+            thread.setDaemon(true);
+            return thread;
+        });
+        int imported = 0;
+        List<String> errors = new ArrayList<>();
+        controller.beginImport();
+        try {
+            pool.execute(() -> read(file, chunks, parsed));
+            for (int i = 0; i < workers; i++) {
+                pool.execute(() -> parse(chunks, parsed));
+            }
+            // chunks are parsed in whatever order the workers finish them, and held until their turn
+            Map<Long, Parsed> waiting = new HashMap<>();
+            long next = 0;
+            for (int done = 0; done < workers; ) {
+                Parsed chunk = take(parsed);
+                if (chunk.failure instanceof IOException) {
+                    throw (IOException) chunk.failure;
+                } else if (chunk.failure != null) {
+                    throw (RuntimeException) chunk.failure;
+                } else if (chunk.events == null) {
+                    done++;
+                    continue;
+                }
+                waiting.put(chunk.sequence, chunk);
+                for (Parsed ready; (ready = waiting.remove(next)) != null; next++) {
+                    imported += apply(ready, calName);
+                    errors.addAll(ready.errors);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+            controller.endImport();
+        }
+        return new ImportReport(imported, errors, System.nanoTime() - began);
+    }
+
+    /**
+     * add the events of a chunk to their calendars, creating any which do not exist
+     *
+     * @return the number of events added
+     */
+    private int apply(Parsed chunk, String calName) {
+        Map<String, List<CalendarEvent>> byCalendar = new LinkedHashMap<>();
+        for (int i = 0; i < chunk.events.size(); i++) {
+            String name = chunk.calendars.get(i) == null ? calName : chunk.calendars.get(i);
+            byCalendar.computeIfAbsent(name, n -> new ArrayList<>()).add(chunk.events.get(i));
+        }
+        for (Map.Entry<String, List<CalendarEvent>> e : byCalendar.entrySet()) {
+            while (true) {
+                try {
+                    controller.addEvents(e.getKey(), e.getValue());
+                    break;
+                } catch (NoSuchCalendarException missing) {
+                    try {
+                        controller.createNewCalendar(e.getKey());
+                    } catch (CalendarAlreadyExistsException created) {
+                        // another thread created it meanwhile
+                    }
+                }
+            }
+        }
+        return chunk.events.size();
+    }
+
+    /**
+     * the reading stage: cut the file into chunks of whole rows, then tell each worker there are no more
+     */
+    private void read(Path file, BlockingQueue<Chunk> chunks, BlockingQueue<Parsed> parsed) {
+        try {
+            try (Reader in = new InputStreamReader(Files.newInputStream(file), StandardCharsets.UTF_8)) {
+                char[] buffer = new char[1 << 16];
+                StringBuilder text = new StringBuilder(CHUNK_CHARS + 1024);
+                long sequence = 0;
+                int line = 1, firstLine = 1, rows = 0;
+                boolean quoted = false;
+                for (int n; (n = in.read(buffer)) >= 0; ) {
+                    // skip a byte order mark
+                    int from = sequence == 0 && text.length() == 0 && n > 0 && buffer[0] == '\uFEFF' ? 1 : 0;
+                    for (int i = from; i < n; i++) {
+                        char c = buffer[i];
+                        if (c == '"') {
+                            quoted = !quoted;
+                        } else if (c == '\n') {
+                            line++;
+                            if (!quoted && ++rows >= CHUNK_ROWS || !quoted && text.length() + i - from >= CHUNK_CHARS) {
+                                text.append(buffer, from, i + 1 - from);
+                                from = i + 1;
+                                chunks.put(new Chunk(sequence++, firstLine, text.toString()));
+                                text.setLength(0);
+                                firstLine = line;
+                                rows = 0;
+                            }
+                        }
+                    }
+                    text.append(buffer, from, n - from);
+                }
+                if (text.length() > 0) {
+                    chunks.put(new Chunk(sequence, firstLine, text.toString()));
+                }
+            }
+            for (int i = 0; i < workers; i++) {
+                chunks.put(new Chunk(-1, 0, null));
+            }
+        } catch (IOException | RuntimeException e) {
+            Parsed failure = new Parsed(-1);
+            failure.failure = e;
+            try {
+                parsed.put(failure);
+            } catch (InterruptedException interrupted) {
+                // the import was given up
+            }
+        } catch (InterruptedException e) {
+            // the import was given up
+        }
+    }
+
+    /**
+     * the parsing stage: turn the rows of each chunk into events until there are no more chunks
+     */
+    private void parse(BlockingQueue<Chunk> chunks, BlockingQueue<Parsed> parsed) {
+        try {
+            RowParser parser = new RowParser();
+            for (Chunk chunk; (chunk = chunks.take()).text != null; ) {
+                Parsed result;
+                try {
+                    result = parser.parse(chunk);
+                } catch (RuntimeException e) {
+                    result = new Parsed(chunk.sequence);
+                    result.failure = e;
+                }
+                parsed.put(result);
+            }
+            parsed.put(new Parsed(-1));
+        } catch (InterruptedException e) {
+            // the import was given up
+        }
+    }
+
+    private static <T> T take(BlockingQueue<T> queue) throws IOException {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while importing", e);
+        }
+    }
+
+    /**
+     * Whole rows of the file, and where they start
+     */
+    private static final class Chunk {
+        private final long sequence;
+        private final int firstLine;
+        /**
+         * the rows, or null if there are no more chunks
+         */
+        private final String text;
+
+        private Chunk(long sequence, int firstLine, String text) {
+            this.sequence = sequence;
+            this.firstLine = firstLine;
+            this.text = text;
+        }
+    }
+
+    /**
+     * The events read from a chunk, with the calendar each belongs in, and the rows skipped
+     */
+    private static final class Parsed {
+        private final long sequence;
+        /**
+         * null if this marks the end of a worker's chunks
+         */
+        private final List<CalendarEvent> events;
+        /**
+         * the calendar named by each event's row, or null if it named none
+         */
+        private final List<String> calendars;
+        private final List<String> errors;
+        private Exception failure;
+
+        /**
+         * @param sequence the number of the chunk, or -1 to mark the end of a worker's chunks
+         */
+        private Parsed(long sequence) {
+            this.sequence = sequence;
+            this.events = sequence < 0 ? null : new ArrayList<>();
+            this.calendars = sequence < 0 ? null : new ArrayList<>();
+            this.errors = sequence < 0 ? null : new ArrayList<>();
+        }
+    }
+
+    /**
+     * Reads rows field by field, without splitting them or matching patterns against them
+     */
+    private static final class RowParser {
+        private final String[] fields = new String[COLUMNS];
+        private final StringBuilder unquoted = new StringBuilder();
+        private String text;
+        private int pos;
+
+        /**
+         * @return the events read from the rows of a chunk, and the rows which could not be read
+         */
+        private Parsed parse(Chunk chunk) {
+            Parsed result = new Parsed(chunk.sequence);
+            text = chunk.text;
+            pos = 0;
+            int line = chunk.firstLine;
+            while (pos < text.length()) {
+                int rowStart = pos, rowLine = line;
+                String problem = null;
+                int count;
+                try {
+                    count = row();
+                } catch (IllegalArgumentException e) {
+                    problem = e.getMessage();
+                    count = 0;
+                    skipRow();
+                }
+                for (int i = rowStart; i < pos; i++) {
+                    if (text.charAt(i) == '\n') {
+                        line++;
+                    }
+                }
+                if (problem == null && count == 1 && fields[0].isEmpty()) {
+                    // a blank line
+                    continue;
+                } else if (problem == null && chunk.sequence == 0 && rowStart == 0
+                        && fields[0].trim().equalsIgnoreCase("title")) {
+                    // the column names
+                    continue;
+                }
+                try {
+                    if (problem != null) {
+                        throw new IllegalArgumentException(problem);
+                    }
+                    result.events.add(toEvent(count));
+                    result.calendars.add(count > 7 && !fields[7].trim().isEmpty() ? fields[7].trim() : null);
+                } catch (IllegalArgumentException | DateTimeException e) {
+                    result.errors.add(String.format("line %d: %s", rowLine, e.getMessage()));
+                }
+            }
+            text = null;
+            return result;
+        }
+
+        /**
+         * read the fields of the row at {@link #pos} into {@link #fields}, leaving pos at the start of the next row
+         *
+         * @return the number of fields
+         * @throws IllegalArgumentException if the row is malformed
+         */
+        private int row() {
+            int count = 0;
+            while (true) {
+                String field = field();
+                if (count == COLUMNS) {
+                    throw new IllegalArgumentException("more than " + COLUMNS + " columns");
+                }
+                fields[count++] = field;
+                if (pos < text.length() && text.charAt(pos) == ',') {
+                    pos++;
+                    continue;
+                }
+                endRow();
+                return count;
+            }
+        }
+
+        /**
+         * @return the field at {@link #pos}, leaving pos at the comma or line break after it
+         */
+        private String field() {
+            int start = pos, length = text.length();
+            if (pos < length && text.charAt(pos) == '"') {
+                unquoted.setLength(0);
+                int from = ++pos;
+                while (true) {
+                    int quote = text.indexOf('"', pos);
+                    if (quote < 0) {
+                        pos = length;
+                        throw new IllegalArgumentException("a quoted field does not end");
+                    }
+                    if (quote + 1 < length && text.charAt(quote + 1) == '"') {
+                        // a doubled quote stands for one
+                        unquoted.append(text, from, quote + 1);
+                        pos = from = quote + 2;
+                        continue;
+                    }
+                    unquoted.append(text, from, quote);
+                    pos = quote + 1;
+                    break;
+                }
+                if (pos < length && text.charAt(pos) != ',' && text.charAt(pos) != '\r' && text.charAt(pos) != '\n') {
+                    throw new IllegalArgumentException("text after a quoted field");
+                }
+                return unquoted.toString();
+            }
+            while (pos < length) {
+                char c = text.charAt(pos);
+                if (c == ',' || c == '\n' || c == '\r') {
+                    break;
+                } else if (c == '"') {
+                    throw new IllegalArgumentException("a quote within an unquoted field");
+                }
+                pos++;
+            }
+            return text.substring(start, pos);
+        }
+
+        /**
+         * move past the line break ending a row
+         */
+        private void endRow() {
+            if (pos < text.length() && text.charAt(pos) == '\r') {
+                pos++;
+            }
+            if (pos < text.length() && text.charAt(pos) == '\n') {
+                pos++;
+            }
+        }
+
+        /**
+         * move past the rest of a malformed row, and the line break ending it
+         */
+        private void skipRow() {
+            boolean quoted = false;
+            for (; pos < text.length(); pos++) {
+                char c = text.charAt(pos);
+                if (c == '"') {
+                    quoted = !quoted;
+                } else if (c == '\n' && !quoted) {
+                    pos++;
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @param count the number of fields read
+         * @return the event the fields describe
+         */
+        private CalendarEvent toEvent(int count) {
+            if (count < 2 || fields[1].trim().isEmpty()) {
+                throw new IllegalArgumentException("no date");
+            }
+            LocalDate date = date(fields[1].trim());
+            String start = count > 2 ? fields[2].trim() : "", end = count > 3 ? fields[3].trim() : "";
+            LocalTime startTime, endTime;
+            if (start.isEmpty()) {
+                if (!end.isEmpty()) {
+                    throw new IllegalArgumentException("an end time but no start time");
+                }
+                startTime = LocalTime.MIDNIGHT;
+                endTime = LocalTime.MAX;
+            } else {
+                startTime = time(start);
+                endTime = end.isEmpty() ? null : time(end);
+            }
+            CalendarEvent event = new CalendarEvent(orNull(fields[0]), date, startTime, endTime,
+                    count > 4 ? orNull(fields[4]) : null, count > 5 ? orNull(fields[5]) : null);
+            if (count > 6 && !fields[6].trim().isEmpty()) {
+                event.setColor(color(fields[6].trim()));
+            }
+            return event;
+        }
+
+        private static String orNull(String field) {
+            return field.isEmpty() ? null : field;
+        }
+
+        /**
+         * @return a date written as yyyy-MM-dd
+         */
+        private static LocalDate date(String s) {
+            if (s.length() != 10 || s.charAt(4) != '-' || s.charAt(7) != '-') {
+                throw new IllegalArgumentException("\"" + s + "\" is not a date");
+            }
+            return LocalDate.of(digits(s, 0, 4), digits(s, 5, 2), digits(s, 8, 2));
+        }
+
+        /**
+         * @return a time written as H:mm, HH:mm or HH:mm:ss
+         */
+        private static LocalTime time(String s) {
+            int colon = s.indexOf(':');
+            if (colon < 1 || colon > 2 || (s.length() != colon + 3 && (s.length() != colon + 6 || s.charAt(colon + 3) != ':'))) {
+                throw new IllegalArgumentException("\"" + s + "\" is not a time");
+            }
+            int hour = digits(s, 0, colon), minute = digits(s, colon + 1, 2);
+            return s.length() == colon + 3 ? LocalTime.of(hour, minute) : LocalTime.of(hour, minute, digits(s, colon + 4, 2));
+        }
+
+        /**
+         * @return a color written as #RRGGBB, or as CSS names it
+         */
+        private static Color color(String s) {
+            if (s.length() == 7 && s.charAt(0) == '#') {
+                int rgb = 0;
+                for (int i = 1; i < 7; i++) {
+                    int digit = Character.digit(s.charAt(i), 16);
+                    if (digit < 0) {
+                        throw new IllegalArgumentException("\"" + s + "\" is not a color");
+                    }
+                    rgb = rgb << 4 | digit;
+                }
+                return Color.rgb(rgb >> 16, rgb >> 8 & 0xFF, rgb & 0xFF);
+            }
+            try {
+                return Color.web(s);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("\"" + s + "\" is not a color");
+            }
+        }
+
+        private static int digits(String s, int from, int count) {
+            int value = 0;
+            for (int i = from; i < from + count; i++) {
+                int digit = s.charAt(i) - '0';
+                if (digit < 0 || digit > 9) {
+                    throw new IllegalArgumentException("\"" + s + "\" is not a number where one is expected");
+                }
+                value = value * 10 + digit;
+            }
+            return value;
+        }
+    }
+}
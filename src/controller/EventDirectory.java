@@ -0,0 +1,104 @@
+package controller;
+
+import model.CalendarChange;
+import model.CalendarEvent;
+import model.CalendarListener;
+import model.CalendarModel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Maps the id of every event to the calendars holding an event with that id, so an event can
+ * be found by id without asking each calendar in turn.
+ */
+final class EventDirectory implements CalendarListener {
+    private final Set<CalendarModel> models = Collections.newSetFromMap(new IdentityHashMap<>());
+    /**
+     * the calendar which has held each id longest
+     */
+    private final Map<Long, CalendarModel> calendars = new HashMap<>();
+    /**
+     * the other calendars holding each id held by more than one, in the order they were filed
+     */
+    private final Map<Long, List<CalendarModel>> others = new HashMap<>();
+
+    /**
+     * file a calendar's events in the directory
+     *
+     * @param model a calendar this is listening to, which nobody is changing meanwhile
+     */
+    synchronized void attach(CalendarModel model) {
+        if (models.add(model)) {
+            model.forEachId(id -> file(id, model));
+        }
+    }
+
+    /**
+     * remove a calendar's events from the directory
+     *
+     * @param model a calendar this is no longer listening to, which nobody is changing meanwhile
+     */
+    synchronized void detach(CalendarModel model) {
+        if (models.remove(model)) {
+            model.forEachId(id -> unfile(id, model));
+        }
+    }
+
+    /**
+     * @param id the id of an event
+     * @return the calendar which has held an event with that id longest, or null if none does
+     */
+    synchronized CalendarModel calendarOf(long id) {
+        return calendars.get(id);
+    }
+
+    private void file(long id, CalendarModel model) {
+        CalendarModel first = calendars.putIfAbsent(id, model);
+        if (first != null && first != model) {
+            List<CalendarModel> more = others.computeIfAbsent(id, key -> new ArrayList<>(1));
+            if (!more.contains(model)) {
+                more.add(model);
+            }
+        }
+    }
+
+    private void unfile(long id, CalendarModel model) {
+        List<CalendarModel> more = others.get(id);
+        if (calendars.get(id) == model) {
+            if (more == null) {
+                calendars.remove(id);
+                return;
+            }
+            calendars.put(id, more.remove(0));
+        } else if (more == null || !more.remove(model)) {
+            return;
+        }
+        if (more.isEmpty()) {
+            others.remove(id);
+        }
+    }
+
+    /**
+     * re-file the events a change names
+     */
+    @Override
+    public synchronized void calendarChanged(CalendarModel source, List<CalendarChange> changes) {
+        if (!models.contains(source)) {
+            return;
+        }
+        for (CalendarChange change : changes) {
+            CalendarEvent event = change.getEvent();
+            if (change.getType() == CalendarChange.Type.REMOVED) {
+                unfile(event.getId(), source);
+            } else {
+                file(event.getId(), source);
+            }
+        }
+    }
+}
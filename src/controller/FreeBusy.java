@@ -0,0 +1,199 @@
+package controller;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * When one or more calendars are busy over a range of days, as a bitmap with one bit per
+ * fixed-length slot of time.
+ *
+ * @see CalendarController#getFreeBusy(java.util.Set, LocalDate, LocalDate, FreeBusy.Mode)
+ */
+public final class FreeBusy {
+
+    /**
+     * How the calendars in a query are combined
+     */
+    public enum Mode {
+        /**
+         * a slot is busy if any of the calendars is busy during it (the union)
+         */
+        ANY,
+        /**
+         * a slot is busy only if every one of the calendars is busy during it (the intersection)
+         */
+        ALL
+    }
+
+    /**
+     * A period of time which is entirely busy or entirely free
+     */
+    public static final class Period {
+        private final LocalDateTime start, end;
+
+        private Period(LocalDateTime start, LocalDateTime end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * @return when the period starts (inclusive)
+         */
+        public LocalDateTime getStart() {
+            return start;
+        }
+
+        /**
+         * @return when the period ends (exclusive)
+         */
+        public LocalDateTime getEnd() {
+            return end;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Period && start.equals(((Period) o).start) && end.equals(((Period) o).end);
+        }
+
+        @Override
+        public int hashCode() {
+            return start.hashCode() * 31 + end.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return start + " - " + end;
+        }
+    }
+
+    private final LocalDate from;
+    private final int days;
+    private final int minutesPerSlot;
+    private final int slotsPerDay;
+    private final int wordsPerDay;
+    /**
+     * the bitmap of each day in turn, {@link #wordsPerDay} words per day
+     */
+    private final long[] words;
+
+    /**
+     * @param from           the first day covered
+     * @param days           the number of days covered
+     * @param minutesPerSlot the length of each slot
+     * @param words          the bitmap of each day in turn. not copied.
+     */
+    FreeBusy(LocalDate from, int days, int minutesPerSlot, long[] words) {
+        this.from = from;
+        this.days = days;
+        this.minutesPerSlot = minutesPerSlot;
+        this.slotsPerDay = FreeBusyIndex.MINUTES_PER_DAY / minutesPerSlot;
+        this.wordsPerDay = FreeBusyIndex.wordsPerDay(minutesPerSlot);
+        this.words = words;
+    }
+
+    /**
+     * @return the first day covered
+     */
+    public LocalDate getFrom() {
+        return from;
+    }
+
+    /**
+     * @return the day after the last day covered
+     */
+    public LocalDate getTo() {
+        return from.plusDays(days);
+    }
+
+    /**
+     * @return the length of each slot of time, in minutes
+     */
+    public int getMinutesPerSlot() {
+        return minutesPerSlot;
+    }
+
+    /**
+     * @param time any time within the days covered
+     * @return true iff the slot containing that time is busy
+     * @throws IllegalArgumentException if the time is not within the days covered
+     */
+    public boolean isBusy(LocalDateTime time) {
+        long day = time.toLocalDate().toEpochDay() - from.toEpochDay();
+        if (day < 0 || day >= days) {
+            throw new IllegalArgumentException(time + " is not between " + from + " and " + getTo());
+        }
+        int slot = (time.getHour() * 60 + time.getMinute()) / minutesPerSlot;
+        return isBusy((int) day, slot);
+    }
+
+    private boolean isBusy(int day, int slot) {
+        return (words[day * wordsPerDay + (slot >>> 6)] & (1L << slot)) != 0;
+    }
+
+    /**
+     * @return the total number of busy minutes, counting whole slots
+     */
+    public long getBusyMinutes() {
+        long slots = 0;
+        for (long word : words) {
+            slots += Long.bitCount(word);
+        }
+        return slots * minutesPerSlot;
+    }
+
+    /**
+     * @param day one of the days covered
+     * @return a copy of that day's bitmap: bit i of word i / 64 is set iff slot i is busy
+     * @throws IllegalArgumentException if the day is not covered
+     */
+    public long[] getBitmap(LocalDate day) {
+        long offset = day.toEpochDay() - from.toEpochDay();
+        if (offset < 0 || offset >= days) {
+            throw new IllegalArgumentException(day + " is not between " + from + " and " + getTo());
+        }
+        int start = (int) offset * wordsPerDay;
+        return Arrays.copyOfRange(words, start, start + wordsPerDay);
+    }
+
+    /**
+     * @return every maximal busy period, in order. Periods may run across midnight.
+     */
+    public List<Period> getBusyPeriods() {
+        return getPeriods(true);
+    }
+
+    /**
+     * @return every maximal free period, in order. Periods may run across midnight.
+     */
+    public List<Period> getFreePeriods() {
+        return getPeriods(false);
+    }
+
+    private List<Period> getPeriods(boolean busy) {
+        List<Period> periods = new ArrayList<>();
+        LocalDateTime start = null;
+        for (int day = 0; day < days; day++) {
+            for (int slot = 0; slot < slotsPerDay; slot++) {
+                if (isBusy(day, slot) == busy) {
+                    if (start == null) {
+                        start = slotStart(day, slot);
+                    }
+                } else if (start != null) {
+                    periods.add(new Period(start, slotStart(day, slot)));
+                    start = null;
+                }
+            }
+        }
+        if (start != null) {
+            periods.add(new Period(start, getTo().atStartOfDay()));
+        }
+        return periods;
+    }
+
+    private LocalDateTime slotStart(int day, int slot) {
+        return from.plusDays(day).atStartOfDay().plusMinutes((long) slot * minutesPerSlot);
+    }
+}
@@ -0,0 +1,212 @@
+package controller;
+
+import model.CalendarChange;
+import model.CalendarEvent;
+import model.CalendarListener;
+import model.CalendarModel;
+import model.TimeSpan;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Keeps a bitmap of the busy slots of time on each day of each calendar, so that free/busy
+ * queries across many calendars are answered with bitwise operations.
+ */
+final class FreeBusyIndex implements CalendarListener {
+    static final int MINUTES_PER_DAY = 24 * 60;
+    private static final int SECONDS_PER_DAY = MINUTES_PER_DAY * 60;
+
+    private int minutesPerSlot;
+    /**
+     * the bitmaps of every calendar queried so far, by day. Days with no busy slots are absent.
+     */
+    private final Map<CalendarModel, NavigableMap<Long, long[]>> bitmaps = new IdentityHashMap<>();
+
+    /**
+     * @param minutesPerSlot the length of each slot of time: 5 or 15 minutes
+     */
+    FreeBusyIndex(int minutesPerSlot) {
+        setMinutesPerSlot(minutesPerSlot);
+    }
+
+    /**
+     * @param minutesPerSlot the number of minutes in each slot
+     * @return the number of words needed for one day's bitmap
+     */
+    static int wordsPerDay(int minutesPerSlot) {
+        return (MINUTES_PER_DAY / minutesPerSlot + 63) / 64;
+    }
+
+    /**
+     * @return the length of each slot of time, in minutes
+     */
+    synchronized int getMinutesPerSlot() {
+        return minutesPerSlot;
+    }
+
+    /**
+     * change the length of each slot of time, discarding every bitmap
+     *
+     * @param minutesPerSlot 5 or 15
+     * @throws IllegalArgumentException if the length is not 5 or 15 minutes
+     */
+    synchronized void setMinutesPerSlot(int minutesPerSlot) {
+        if (minutesPerSlot != 5 && minutesPerSlot != 15) {
+            throw new IllegalArgumentException("Free/busy slots must be 5 or 15 minutes long, not " + minutesPerSlot);
+        }
+        this.minutesPerSlot = minutesPerSlot;
+        bitmaps.clear();
+    }
+
+    /**
+     * discard the bitmaps of a calendar which is no longer needed
+     *
+     * @param model the calendar
+     */
+    synchronized void forget(CalendarModel model) {
+        bitmaps.remove(model);
+    }
+
+    /**
+     * @param models the calendars to combine
+     * @param from   the first day (inclusive)
+     * @param to     the last day (exclusive)
+     * @param mode   whether a slot is busy when any, or only when all, of the calendars are busy
+     * @return when the calendars are busy. If there are no calendars, nothing is busy.
+     */
+    synchronized FreeBusy query(Collection<CalendarModel> models, LocalDate from, LocalDate to, FreeBusy.Mode mode) {
+        if (to.isBefore(from)) {
+            throw new IllegalArgumentException("The end of a free/busy query must not be before its start");
+        }
+        int days = Math.toIntExact(to.toEpochDay() - from.toEpochDay());
+        int wordsPerDay = wordsPerDay(minutesPerSlot);
+        long[] result = null;
+        long[] scratch = null;
+        for (CalendarModel model : models) {
+            long[] words;
+            if (result == null) {
+                words = result = new long[days * wordsPerDay];
+            } else if (mode == FreeBusy.Mode.ANY) {
+                words = result;
+            } else {
+                words = scratch == null ? scratch = new long[result.length] : clear(scratch);
+            }
+            for (Map.Entry<Long, long[]> e
+                    : bitmapsOf(model).subMap(from.toEpochDay(), true, to.toEpochDay(), false).entrySet()) {
+                int offset = (int) (e.getKey() - from.toEpochDay()) * wordsPerDay;
+                long[] day = e.getValue();
+                for (int i = 0; i < wordsPerDay; i++) {
+                    words[offset + i] |= day[i];
+                }
+            }
+            for (CalendarEvent occurrence
+                    : model.getOccurrencesInRange(from.atStartOfDay().minusSeconds(1), to.atStartOfDay())) {
+                TimeSpan span = TimeSpan.of(occurrence);
+                if (span.getEnd() > span.getStart()) {
+                    int offset = (int) (span.getStartEpochDay() - from.toEpochDay()) * wordsPerDay;
+                    mark(words, offset, span);
+                }
+            }
+            if (words == scratch) {
+                for (int i = 0; i < result.length; i++) {
+                    result[i] &= scratch[i];
+                }
+            }
+        }
+        return new FreeBusy(from, days, minutesPerSlot, result == null ? new long[days * wordsPerDay] : result);
+    }
+
+    private static long[] clear(long[] words) {
+        Arrays.fill(words, 0);
+        return words;
+    }
+
+    /**
+     * @param model a calendar
+     * @return the calendar's bitmaps, building them if it has not been queried before
+     */
+    private NavigableMap<Long, long[]> bitmapsOf(CalendarModel model) {
+        NavigableMap<Long, long[]> days = bitmaps.get(model);
+        if (days == null) {
+            days = new TreeMap<>();
+            for (CalendarEvent event : model.getAllEvents()) {
+                TimeSpan span = TimeSpan.of(event);
+                if (event.getRecurrence() == null && span.getEnd() > span.getStart()) {
+                    mark(days.computeIfAbsent(span.getStartEpochDay(), d -> new long[wordsPerDay(minutesPerSlot)]),
+                            0, span);
+                }
+            }
+            bitmaps.put(model, days);
+        }
+        return days;
+    }
+
+    /**
+     * recompute the bitmaps of every day an event was moved from or to
+     */
+    @Override
+    public synchronized void calendarChanged(CalendarModel source, List<CalendarChange> changes) {
+        NavigableMap<Long, long[]> days = bitmaps.get(source);
+        if (days == null) {
+            return;
+        }
+        Set<Long> touched = new HashSet<>();
+        for (CalendarChange change : changes) {
+            if (change.getOldSpan() != null) {
+                touched.add(change.getOldSpan().getStartEpochDay());
+            }
+            if (change.getNewSpan() != null) {
+                touched.add(change.getNewSpan().getStartEpochDay());
+            }
+        }
+        for (long day : touched) {
+            long[] words = new long[wordsPerDay(minutesPerSlot)];
+            boolean busy = false;
+            for (CalendarEvent event : source.getEventsInDay(LocalDate.ofEpochDay(day))) {
+                TimeSpan span = TimeSpan.of(event);
+                if (event.getRecurringEvent() == null && span.getEnd() > span.getStart()) {
+                    mark(words, 0, span);
+                    busy = true;
+                }
+            }
+            if (busy) {
+                days.put(day, words);
+            } else {
+                days.remove(day);
+            }
+        }
+    }
+
+    /**
+     * set the bits of every slot which overlaps an event
+     *
+     * @param words  the bitmaps of one or more days
+     * @param offset the index of the first word of the bitmap of the event's day
+     * @param span   the event's span, which must not be empty
+     */
+    private void mark(long[] words, int offset, TimeSpan span) {
+        int secondsPerSlot = minutesPerSlot * 60;
+        long dayStart = span.getStartEpochDay() * SECONDS_PER_DAY;
+        int first = (int) ((span.getStart() - dayStart) / secondsPerSlot);
+        int last = (int) ((span.getEnd() - dayStart - 1) / secondsPerSlot);
+        for (int w = first >>> 6; w <= last >>> 6; w++) {
+            long mask = -1L;
+            if (w == first >>> 6) {
+                mask &= -1L << first;
+            }
+            if (w == last >>> 6) {
+                mask &= -1L >>> (63 - (last & 63));
+            }
+            words[offset + w] |= mask;
+        }
+    }
+}
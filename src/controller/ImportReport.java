@@ -0,0 +1,70 @@
+package controller;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What came of importing events into a calendar from a file: how many were added, which
+ * entries in the file were skipped and why, and how long it took.
+ *
+ * @see CalendarController#importICalendar(String, java.nio.file.Path)
+ * @see CsvImporter
+ */
+public final class ImportReport {
+    private final int imported;
+    private final List<String> errors;
+    private final long nanos;
+
+    /**
+     * @param imported the number of events added
+     * @param errors   a description of each entry skipped, in no particular order
+     * @param nanos    how long the import took, in nanoseconds
+     */
+    ImportReport(int imported, List<String> errors, long nanos) {
+        this.imported = imported;
+        this.errors = Collections.unmodifiableList(errors);
+        this.nanos = nanos;
+    }
+
+    /**
+     * @return the number of events added to the calendar
+     */
+    public int getImported() {
+        return imported;
+    }
+
+    /**
+     * @return a description of each entry in the file which could not be read, with where it is in the file
+     */
+    public List<String> getErrors() {
+        return errors;
+    }
+
+    /**
+     * @return how long the import took, in milliseconds
+     */
+    public long getMillis() {
+        return nanos / 1_000_000;
+    }
+
+    /**
+     * @return the number of events added per second
+     */
+    public double getEventsPerSecond() {
+        return nanos == 0 ? 0 : imported * 1e9 / nanos;
+    }
+
+    /**
+     * @return the number of entries in the file (rows of a CSV file, or VEVENTs of an
+     * iCalendar file) read per second, whether they were added or skipped
+     */
+    public double getEntriesPerSecond() {
+        return nanos == 0 ? 0 : (imported + errors.size()) * 1e9 / nanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d events imported in %d ms (%.0f entries/s), %d skipped",
+                imported, getMillis(), getEntriesPerSecond(), errors.size());
+    }
+}
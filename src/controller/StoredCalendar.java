@@ -0,0 +1,212 @@
+package controller;
+
+import model.CalendarFile;
+import model.CalendarManifest;
+import model.CalendarModel;
+import model.CalendarSegment;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+
+/**
+ * One calendar of a {@link CalendarController}: the shard it is saved in and, once it has
+ * been loaded, its model.
+ */
+final class StoredCalendar {
+    private final long shard;
+    private final Path file;
+    private final CalendarManifest.Entry saved;
+    private final StampedLock lock = new StampedLock();
+    private CompletableFuture<CalendarModel> loading;
+    private volatile CalendarModel model;
+    /**
+     * true once the calendar has been read from a segment, whose file it then reads events from
+     */
+    private volatile boolean mapped;
+    private boolean deleted;
+    /**
+     * what was set aside as damaged when the calendar was read, until taken
+     */
+    private volatile List<String> problems = Collections.emptyList();
+
+    /**
+     * @param shard the number of the shard the calendar is saved in
+     * @param file  the shard's file
+     * @param saved what the manifest says about the calendar
+     */
+    StoredCalendar(long shard, Path file, CalendarManifest.Entry saved) {
+        this.shard = shard;
+        this.file = file;
+        this.saved = saved;
+    }
+
+    /**
+     * @param shard the number of the shard the calendar is to be saved in
+     * @param model the calendar, which has not been saved in the shard
+     */
+    StoredCalendar(long shard, CalendarModel model) {
+        this.shard = shard;
+        this.file = null;
+        this.saved = null;
+        this.model = model;
+    }
+
+    /**
+     * @return the number of the shard the calendar is saved in
+     */
+    long getShard() {
+        return shard;
+    }
+
+    /**
+     * @return the lock guarding the calendar's model
+     */
+    StampedLock getLock() {
+        return lock;
+    }
+
+    /**
+     * @return true iff the calendar has been loaded
+     */
+    boolean isLoaded() {
+        return model != null;
+    }
+
+    /**
+     * @return the calendar, or null if it has not been loaded
+     */
+    CalendarModel getModel() {
+        return model;
+    }
+
+    /**
+     * @return true iff the calendar was read from a segment, so its shard's file stays mapped
+     * into memory for as long as the calendar is used
+     */
+    boolean isMapped() {
+        return mapped;
+    }
+
+    /**
+     * @param from -- the first day (inclusive)
+     * @param to   -- the last day (inclusive)
+     * @return false if the calendar is not loaded, and the manifest says it has no event on any of the days
+     */
+    boolean mayOverlap(LocalDate from, LocalDate to) {
+        return model != null || saved.mayOverlap(from, to);
+    }
+
+    /**
+     * start reading the calendar on another thread, if it has not been loaded or started already
+     */
+    synchronized void preload() {
+        if (model == null && loading == null) {
+            loading = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return read();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+    }
+
+    /**
+     * @param onLoad told of the calendar once it has been read, before anyone else can use it,
+     *               unless the calendar has been deleted meanwhile
+     * @return the calendar, read from its shard, or waited for if it is being preloaded, unless it has been already
+     * @throws IOException if the shard could not be read
+     */
+    synchronized CalendarModel load(Consumer<CalendarModel> onLoad) throws IOException {
+        if (model == null) {
+            CalendarModel read;
+            if (loading == null) {
+                read = read();
+            } else {
+                try {
+                    read = loading.join();
+                } catch (CompletionException e) {
+                    loading = null;
+                    if (e.getCause() instanceof UncheckedIOException) {
+                        throw ((UncheckedIOException) e.getCause()).getCause();
+                    }
+                    throw e;
+                }
+                loading = null;
+            }
+            if (!deleted) {
+                onLoad.accept(read);
+            }
+            model = read;
+        }
+        return model;
+    }
+
+    /**
+     * mark the calendar as deleted, once any load under way has finished
+     *
+     * @return the calendar, or null if it had not been loaded
+     */
+    synchronized CalendarModel delete() {
+        deleted = true;
+        return model;
+    }
+
+    /**
+     * @return a description of each part of the shard set aside as damaged when the calendar
+     * was read, which is only returned once
+     */
+    List<String> takeProblems() {
+        List<String> taken = problems;
+        problems = Collections.emptyList();
+        return taken;
+    }
+
+    /**
+     * @return the calendar read from its shard, which is a segment unless it was saved before they were used
+     */
+    private CalendarModel read() throws IOException {
+        if (CalendarSegment.isSegment(file)) {
+            List<String> found = new ArrayList<>();
+            CalendarModel read = CalendarSegment.open(file, found::add);
+            mapped = true;
+            if (!found.isEmpty()) {
+                found.add(String.format("A copy of the damaged file was kept at \"%s\".", keepDamaged()));
+                problems = found;
+            }
+            return read;
+        }
+        Collection<CalendarModel> read = CalendarFile.read(file).values();
+        if (read.size() != 1) {
+            throw new IOException(String.format("Calendar shard at \"%s\" is corrupted.", file));
+        }
+        return read.iterator().next();
+    }
+
+    /**
+     * copy the shard beside itself, unless an identical copy was kept already
+     *
+     * @return the copy
+     */
+    private Path keepDamaged() throws IOException {
+        for (int n = 0; ; n++) {
+            Path copy = file.resolveSibling(file.getFileName() + ".damaged" + (n == 0 ? "" : "." + n));
+            if (!Files.exists(copy)) {
+                return Files.copy(file, copy);
+            } else if (Files.mismatch(file, copy) == -1) {
+                return copy;
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package model;
+
+/**
+ * Describes how a single event in a {@link CalendarModel} changed.
+ *
+ * @see CalendarListener
+ */
+public final class CalendarChange {
+
+    /**
+     * The kinds of change an event can undergo
+     */
+    public enum Type {
+        /**
+         * the event was not in the calendar, and now is
+         */
+        ADDED,
+        /**
+         * the event was in the calendar, and now is not
+         */
+        REMOVED,
+        /**
+         * the event was in the calendar and still is, but may have been edited or moved
+         */
+        MODIFIED
+    }
+
+    private final Type type;
+    private final CalendarEvent event;
+    private final TimeSpan oldSpan;
+    private final TimeSpan newSpan;
+
+    /**
+     * @param type    what happened to the event
+     * @param event   the event which changed
+     * @param oldSpan the span the event occupied before the change. null if it was added.
+     * @param newSpan the span the event occupies after the change. null if it was removed.
+     */
+    CalendarChange(Type type, CalendarEvent event, TimeSpan oldSpan, TimeSpan newSpan) {
+        this.type = type;
+        this.event = event;
+        this.oldSpan = oldSpan;
+        this.newSpan = newSpan;
+    }
+
+    /**
+     * @return what happened to the event
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return the event which changed
+     */
+    public CalendarEvent getEvent() {
+        return event;
+    }
+
+    /**
+     * @return the span the event occupied before the change, or null if it was {@link Type#ADDED added}
+     */
+    public TimeSpan getOldSpan() {
+        return oldSpan;
+    }
+
+    /**
+     * @return the span the event occupies after the change, or null if it was {@link Type#REMOVED removed}
+     */
+    public TimeSpan getNewSpan() {
+        return newSpan;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s %s (%s -> %s)", type, event.getTitle(), oldSpan, newSpan);
+    }
+}
@@ -0,0 +1,48 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Accumulates the events touched by one mutation, or one batch of mutations, to a
+ * {@link CalendarModel}, and turns them into {@link CalendarChange} records once the
+ * batch is over.
+ */
+class CalendarDelta {
+    private final Map<CalendarEvent, TimeSpan> spanBefore = new IdentityHashMap<>();
+    private final List<CalendarEvent> touched = new ArrayList<>();
+
+    /**
+     * @param event  an event which is about to be added, removed or re-filed
+     * @param before the span the event is currently filed under, or null if it is not in the calendar
+     */
+    void touch(CalendarEvent event, TimeSpan before) {
+        if (!spanBefore.containsKey(event)) {
+            spanBefore.put(event, before);
+            touched.add(event);
+        }
+    }
+
+    /**
+     * @param model the calendar the events were touched in
+     * @return the net change to each touched event
+     */
+    List<CalendarChange> resolve(CalendarModel model) {
+        List<CalendarChange> changes = new ArrayList<>(touched.size());
+        for (CalendarEvent event : touched) {
+            TimeSpan before = spanBefore.get(event);
+            TimeSpan after = model.spanOf(event);
+            if (before == null && after != null) {
+                changes.add(new CalendarChange(CalendarChange.Type.ADDED, event, null, after));
+            } else if (before != null && after == null) {
+                changes.add(new CalendarChange(CalendarChange.Type.REMOVED, event, before, null));
+            } else if (before != null) {
+                changes.add(new CalendarChange(CalendarChange.Type.MODIFIED, event, before, after));
+            }
+        }
+        return Collections.unmodifiableList(changes);
+    }
+}
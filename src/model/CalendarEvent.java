@@ -2,10 +2,15 @@ package model;
 
 import javafx.scene.paint.Color;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Represents a calendar event
@@ -18,13 +23,46 @@ public class CalendarEvent implements Serializable {
     public static final Color DEFAULT_COLOR = Color.LIGHTGRAY;
 
     private static final long serialVersionUID = -3059578212481803086L;
+    /**
+     * the packed value of {@link #DEFAULT_COLOR}
+     */
+    static final int DEFAULT_ARGB = ColorPalette.pack(DEFAULT_COLOR);
+    /**
+     * the fields as they have always been written. The color is held as a packed int, but still
+     * written as the java.awt.Color it used to be held as, so files stay readable either way.
+     */
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("id", long.class),
+            new ObjectStreamField("title", String.class),
+            new ObjectStreamField("date", LocalDate.class),
+            new ObjectStreamField("startTime", LocalTime.class),
+            new ObjectStreamField("endTime", LocalTime.class),
+            new ObjectStreamField("location", String.class),
+            new ObjectStreamField("notes", String.class),
+            new ObjectStreamField("color", java.awt.Color.class),
+            new ObjectStreamField("recurrence", RecurrenceRule.class),
+    };
+    /**
+     * the next id to hand out. Starts from the current time, shifted clear of the ids handed out
+     * in earlier runs, and is moved past the id of every event read back from a file.
+     */
+    private static final AtomicLong NEXT_ID = new AtomicLong(System.currentTimeMillis() << 20);
+    private long id = newId();
     private String title;
     private LocalDate date;
     private LocalTime startTime;
     private LocalTime endTime;
     private String location;
     private String notes;
-    private java.awt.Color color;
+    /**
+     * the color packed by {@link ColorPalette#pack(Color)}
+     */
+    private int argb = DEFAULT_ARGB;
+    private RecurrenceRule recurrence;
+    /**
+     * the recurring event this is one occurrence of; null if it is not an occurrence
+     */
+    private transient CalendarEvent recurringEvent;
 
     /**
      * construct a new event with the default color.
@@ -62,6 +100,36 @@ public class CalendarEvent implements Serializable {
         setColor(color);
     }
 
+    /**
+     * construct a copy of an event
+     *
+     * @param other the event to copy
+     */
+    CalendarEvent(CalendarEvent other) {
+        this.id = other.id;
+        this.title = other.title;
+        this.date = other.date;
+        this.startTime = other.startTime;
+        this.endTime = other.endTime;
+        this.location = other.location;
+        this.notes = other.notes;
+        this.argb = other.argb;
+        this.recurrence = other.recurrence;
+    }
+
+    /**
+     * construct one occurrence of a recurring event
+     *
+     * @param recurringEvent the recurring event
+     * @param date           the date of the occurrence
+     */
+    CalendarEvent(CalendarEvent recurringEvent, LocalDate date) {
+        this(recurringEvent);
+        this.date = date;
+        this.recurrence = null;
+        this.recurringEvent = recurringEvent;
+    }
+
     /**
      * construct a new event with the default color at the specified time
      *
@@ -75,6 +143,43 @@ public class CalendarEvent implements Serializable {
         this.startTime = date.toLocalTime();
     }
 
+    /**
+     * @return a number identifying the event, which stays the same when the event is changed,
+     * moved between calendars, saved or loaded. Copies of an event share its id, as do the
+     * occurrences of a recurring event.
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * give the event a new id, because another event in the same calendar already has its id
+     */
+    void renumber() {
+        id = newId();
+    }
+
+    /**
+     * @return an id no event has had yet
+     */
+    static long newId() {
+        return NEXT_ID.getAndIncrement();
+    }
+
+    /**
+     * @param id the id the event had when it was stored in a form which does not keep the event itself
+     */
+    void restoreId(long id) {
+        this.id = id;
+    }
+
+    /**
+     * @param id the id of an event read back from a file
+     */
+    static void reserveId(long id) {
+        NEXT_ID.accumulateAndGet(id + 1, Math::max);
+    }
+
     /**
      * @return the event's title
      */
@@ -163,22 +268,102 @@ public class CalendarEvent implements Serializable {
      * @return the event's color.
      */
     public Color getColor() {
-        return color == null
-                ? DEFAULT_COLOR
-                : Color.rgb(color.getRed(), color.getBlue(), color.getGreen());
+        return argb == DEFAULT_ARGB ? DEFAULT_COLOR : ColorPalette.color(argb);
     }
 
     /**
      * @param color the new color of the event. If null, then {@link #DEFAULT_COLOR} is used.
      */
     public void setColor(Color color) {
-        if (color == null || color.equals(DEFAULT_COLOR)) {
-            this.color = null;
+        argb = color == null ? DEFAULT_ARGB : ColorPalette.pack(color);
+    }
+
+    /**
+     * @return the event's color packed by {@link ColorPalette#pack(Color)}
+     */
+    int getPackedColor() {
+        return argb;
+    }
+
+    /**
+     * @param argb the new color of the event, packed by {@link ColorPalette#pack(Color)}
+     */
+    void setPackedColor(int argb) {
+        this.argb = argb;
+    }
+
+    /**
+     * @return the rule by which the event repeats, or null if it happens only once
+     */
+    public RecurrenceRule getRecurrence() {
+        return recurrence;
+    }
+
+    /**
+     * Make the event repeat, or stop it repeating. A repeating event is stored once, and
+     * queries return a separate occurrence for each date on which it falls, starting with
+     * its own date.
+     *
+     * @param recurrence the rule by which the event should repeat, or null if it should happen only once
+     */
+    public void setRecurrence(RecurrenceRule recurrence) {
+        this.recurrence = recurrence;
+    }
+
+    /**
+     * @return the recurring event this is one occurrence of, or null if this event is not an occurrence.
+     * Changes should be made to the recurring event, rather than to its occurrences.
+     */
+    public CalendarEvent getRecurringEvent() {
+        return recurringEvent;
+    }
+
+    /**
+     * writes the color as a java.awt.Color with its green and blue swapped, or null for the
+     * default color, as it was written before colors were packed
+     *
+     * @param out the stream this event is being written to
+     * @throws IOException if the stream could not be written
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("id", id);
+        fields.put("title", title);
+        fields.put("date", date);
+        fields.put("startTime", startTime);
+        fields.put("endTime", endTime);
+        fields.put("location", location);
+        fields.put("notes", notes);
+        fields.put("color", argb == DEFAULT_ARGB ? null : new java.awt.Color(
+                (argb >> 16) & 0xFF, argb & 0xFF, (argb >> 8) & 0xFF, (argb >>> 24) & 0xFF));
+        fields.put("recurrence", recurrence);
+        out.writeFields();
+    }
+
+    /**
+     * gives events saved before ids were introduced an id, and keeps new ids clear of the ones read back
+     *
+     * @param in the stream this event is being read from
+     * @throws IOException            if the stream could not be read
+     * @throws ClassNotFoundException if a serialized class could not be found
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        id = fields.get("id", 0L);
+        title = (String) fields.get("title", null);
+        date = (LocalDate) fields.get("date", null);
+        startTime = (LocalTime) fields.get("startTime", null);
+        endTime = (LocalTime) fields.get("endTime", null);
+        location = (String) fields.get("location", null);
+        notes = (String) fields.get("notes", null);
+        java.awt.Color written = (java.awt.Color) fields.get("color", null);
+        argb = written == null ? DEFAULT_ARGB : written.getAlpha() << 24
+                | written.getRed() << 16 | written.getBlue() << 8 | written.getGreen();
+        recurrence = (RecurrenceRule) fields.get("recurrence", null);
+        if (id == 0) {
+            renumber();
         } else {
-            int r = (int) (color.getRed() * 255f);
-            int b = (int) (color.getBlue() * 255f);
-            int g = (int) (color.getGreen() * 255f);
-            this.color = new java.awt.Color(r, b, g);
+            reserveId(id);
         }
     }
 }
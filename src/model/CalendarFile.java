@@ -0,0 +1,591 @@
+package model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+
+/**
+ * Reads and writes calendars in a compact, versioned binary format, in place of Java
+ * serialization.
+ */
+public final class CalendarFile {
+    /**
+     * the first four bytes of every calendar file
+     */
+    public static final int MAGIC = 0x43414C46;
+    /**
+     * the version of the format written
+     * <p>
+     * The format, version 2. Fixed-width integers are big-endian; a varint is an unsigned
+     * LEB128 integer of up to 10 bytes, and an svarint is a zigzag-encoded signed varint.
+     * <pre>
+     * file      := magic:u32 = 0x43414C46 ("CALF")  version:u16 = 2  reserved:u16 = 0
+     *              sequence:u64 strings calendars
+     * strings   := count:varint { length:varint utf8-bytes }       every distinct string, once
+     * calendars := count:varint calendar*
+     * calendar  := name:varint mode:u8 count:varint event*        mode 0 is OBJECTS, 1 is PACKED
+     * event     := flags:u8 start:svarint id:svarint title:varint location:varint notes:varint
+     *              [length:svarint]                               unless flags has NO_END
+     *              [startNanos:varint [endNanos:varint]]          if flags has NANOS
+     *              [color:u32]                                    if flags has COLOR
+     *              [rule]                                         if flags has RULE
+     * rule      := frequency:u8 interval:varint count:varint hasUntil:u8 [until:svarint]
+     *              exceptions:varint exception:svarint*
+     * </pre>
+     * The sequence is the number of the last {@link CalendarJournal journal} record the
+     * calendars include. The name, title, location and notes are indexes into the strings,
+     * plus one, with 0 for null. An event's start is in minutes since 1970-01-01T00:00, less
+     * the start of the event before it in the calendar, or 0 for the first. Its id is likewise
+     * less the id of the event before it. Its length is the minute of the day it ends less the
+     * minute of the day it starts. Events starting or ending part way through a minute have
+     * the NANOS flag, and the nanoseconds into the minute they start and end. A color is packed
+     * by {@link ColorPalette#pack(javafx.scene.paint.Color)}; events without one have the default
+     * color. A rule's frequency is the ordinal of its {@link RecurrenceRule.Frequency}; its
+     * last date and each exception are in days from the event's date, the exceptions in order.
+     * <p>
+     * Version 1 is the same without the sequence, which is read as 0. Readers reject files with
+     * a version they do not know. A version adding fields must change the version number.
+     */
+    public static final int VERSION = 2;
+
+    private static final int NO_END = 1, NANOS = 2, COLOR = 4, RULE = 8;
+    private static final long NANOS_PER_MINUTE = 60_000_000_000L;
+    private static final int MINUTES_PER_DAY = 1440;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final Comparator<CalendarEvent> BY_START =
+            Comparator.comparing(CalendarEvent::getDate).thenComparing(CalendarEvent::getStartTime);
+
+    private CalendarFile() {
+    }
+
+    /**
+     * @param path any file
+     * @return true iff the file starts with {@link #MAGIC}, so is not in an older format
+     * @throws IOException if the file could not be read
+     */
+    public static boolean isCalendarFile(Path path) throws IOException {
+        ByteBuffer header = readHeader(path);
+        return header.remaining() >= 4 && header.getInt(0) == MAGIC;
+    }
+
+    /**
+     * @param path a calendar file
+     * @return the number of the last journal record the calendars in the file include
+     * @throws IOException if the file could not be read, or is not a calendar file
+     */
+    public static long readSequence(Path path) throws IOException {
+        ByteBuffer header = readHeader(path);
+        if (header.remaining() < 8 || header.getInt() != MAGIC) {
+            throw new IOException(String.format("File at \"%s\" is not a calendar file.", path));
+        }
+        int version = Short.toUnsignedInt(header.getShort());
+        header.getShort();
+        if (version == 1) {
+            return 0;
+        } else if (version != VERSION || header.remaining() < 8) {
+            throw new IOException(String.format("Calendar file at \"%s\" has version %d; only versions 1 to %d are supported.",
+                    path, version, VERSION));
+        }
+        return header.getLong();
+    }
+
+    /**
+     * @return up to the first 16 bytes of a file
+     */
+    private static ByteBuffer readHeader(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(16);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // keep reading until the header is in, or the file ends
+            }
+            return header.flip();
+        }
+    }
+
+    /**
+     * Write calendars to a file, replacing anything in it, and force them to the disk
+     *
+     * @param path      the file to write
+     * @param calendars the calendars to write, by name
+     * @param sequence  the number of the last journal record the calendars include, or 0
+     * @throws IOException if the file could not be written
+     */
+    public static void write(Path path, Map<String, CalendarSnapshot> calendars, long sequence) throws IOException {
+        Map<String, List<CalendarEvent>> events = new LinkedHashMap<>();
+        Map<String, Integer> strings = new LinkedHashMap<>();
+        for (Map.Entry<String, CalendarSnapshot> calendar : calendars.entrySet()) {
+            List<CalendarEvent> sorted = new ArrayList<>(calendar.getValue().getEvents());
+            // a stable sort, so events starting together keep the order they were added in
+            sorted.sort(BY_START);
+            events.put(calendar.getKey(), sorted);
+            intern(strings, calendar.getKey());
+            for (CalendarEvent event : sorted) {
+                intern(strings, event.getTitle());
+                intern(strings, event.getLocation());
+                intern(strings, event.getNotes());
+            }
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            Output out = new Output(channel);
+            out.putInt(MAGIC);
+            out.putShort(VERSION);
+            out.putShort(0);
+            out.putLong(sequence);
+            out.putVarint(strings.size());
+            for (String string : strings.keySet()) {
+                byte[] utf8 = string.getBytes(StandardCharsets.UTF_8);
+                out.putVarint(utf8.length);
+                out.put(utf8, 0, utf8.length);
+            }
+            out.putVarint(calendars.size());
+            for (Map.Entry<String, CalendarSnapshot> calendar : calendars.entrySet()) {
+                out.putVarint(index(strings, calendar.getKey()));
+                out.putByte(calendar.getValue().getStorageMode().ordinal());
+                List<CalendarEvent> sorted = events.get(calendar.getKey());
+                out.putVarint(sorted.size());
+                EventWriter writer = new EventWriter((o, string) -> o.putVarint(index(strings, string)));
+                for (CalendarEvent event : sorted) {
+                    writer.write(out, event);
+                }
+            }
+            out.flush();
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Read back calendars written by {@link #write(Path, Map, long)}
+     *
+     * @param path the file to read
+     * @return the calendars in the file, by name, in the order they were written
+     * @throws IOException if the file could not be read, is not a calendar file, has a version
+     *                     this does not know, or is corrupt
+     */
+    public static Map<String, CalendarModel> read(Path path) throws IOException {
+        readSequence(path);
+        ByteBuffer in = readAll(path);
+        try {
+            in.position(in.getShort(4) == 1 ? 8 : 16);
+            String[] strings = new String[checkedCount(in, getVarint(in)) + 1];
+            for (int i = 1; i < strings.length; i++) {
+                int length = checkedCount(in, getVarint(in));
+                strings[i] = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+                in.position(in.position() + length);
+            }
+            Map<String, CalendarModel> calendars = new LinkedHashMap<>();
+            for (int n = checkedCount(in, getVarint(in)); n > 0; n--) {
+                String name = strings[(int) getVarint(in)];
+                CalendarModel model = new CalendarModel(CalendarModel.StorageMode.values()[in.get()]);
+                int count = checkedCount(in, getVarint(in));
+                List<CalendarEvent> events = new ArrayList<>(count);
+                EventReader reader = new EventReader(buffer -> strings[(int) getVarint(buffer)]);
+                for (int i = 0; i < count; i++) {
+                    events.add(reader.read(in));
+                }
+                model.addEvents(events);
+                if (name == null || calendars.put(name, model) != null) {
+                    throw new IOException(String.format("Calendar file at \"%s\" is corrupted.", path));
+                }
+            }
+            if (in.hasRemaining()) {
+                throw new IOException(String.format("Calendar file at \"%s\" is corrupted.", path));
+            }
+            return calendars;
+        } catch (RuntimeException e) {
+            throw new IOException(String.format("Calendar file at \"%s\" is corrupted.", path), e);
+        }
+    }
+
+    /**
+     * @return the whole of a file, in a heap buffer
+     */
+    static ByteBuffer readAll(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(String.format("File at \"%s\" is too large.", path));
+            }
+            ByteBuffer in = ByteBuffer.allocate((int) size);
+            while (in.hasRemaining() && channel.read(in) >= 0) {
+                // keep reading until the buffer is full, or the file ends
+            }
+            return in.flip();
+        }
+    }
+
+    /**
+     * give a string the next index, plus one, unless it is null or has one already
+     */
+    static void intern(Map<String, Integer> strings, String string) {
+        if (string != null) {
+            strings.putIfAbsent(string, strings.size() + 1);
+        }
+    }
+
+    /**
+     * @return the index, plus one, given to a string by {@link #intern(Map, String)}, or 0 for null
+     */
+    static int index(Map<String, Integer> strings, String string) {
+        return string == null ? 0 : strings.get(string);
+    }
+
+    /**
+     * @return a count read from the file, which cannot be more than the bytes left in it
+     */
+    static int checkedCount(ByteBuffer in, long count) throws IOException {
+        if (count < 0 || count > in.remaining()) {
+            throw new IOException("count " + count + " runs past the end of the file");
+        }
+        return (int) count;
+    }
+
+    static long getVarint(ByteBuffer in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("varint longer than 10 bytes");
+    }
+
+    static long getSvarint(ByteBuffer in) throws IOException {
+        long zigzag = getVarint(in);
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    /**
+     * @return a string written by {@link Output#putString(String)}
+     */
+    static String getString(ByteBuffer in) throws IOException {
+        long lengthPlusOne = getVarint(in);
+        if (lengthPlusOne == 0) {
+            return null;
+        }
+        int length = checkedCount(in, lengthPlusOne - 1);
+        String string = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return string;
+    }
+
+    /**
+     * Writes how a string is referred to from an event
+     */
+    interface StringEncoder {
+        void put(Output out, String string) throws IOException;
+    }
+
+    /**
+     * Reads back a string written by a {@link StringEncoder}
+     */
+    interface StringDecoder {
+        String get(ByteBuffer in) throws IOException;
+    }
+
+    /**
+     * Writes events as described by {@link CalendarFile}, each start and id relative to the
+     * event written before it by the same writer
+     */
+    static final class EventWriter {
+        private final StringEncoder strings;
+        private long lastStart, lastId;
+
+        EventWriter(StringEncoder strings) {
+            this.strings = strings;
+        }
+
+        /**
+         * write the next event's start and id relative to 0, as if it were the first
+         */
+        void reset() {
+            lastStart = 0;
+            lastId = 0;
+        }
+
+        void write(Output out, CalendarEvent event) throws IOException {
+            LocalTime startTime = event.getStartTime(), endTime = event.getEndTime();
+            RecurrenceRule rule = event.getRecurrence();
+            long start = event.getDate().toEpochDay() * MINUTES_PER_DAY + minuteOf(startTime);
+            int flags = (endTime == null ? NO_END : 0)
+                    | (nanosOf(startTime) != 0 || (endTime != null && nanosOf(endTime) != 0) ? NANOS : 0)
+                    | (event.getPackedColor() != CalendarEvent.DEFAULT_ARGB ? COLOR : 0)
+                    | (rule != null ? RULE : 0);
+            out.putByte(flags);
+            out.putSvarint(start - lastStart);
+            out.putSvarint(event.getId() - lastId);
+            lastStart = start;
+            lastId = event.getId();
+            strings.put(out, event.getTitle());
+            strings.put(out, event.getLocation());
+            strings.put(out, event.getNotes());
+            if (endTime != null) {
+                out.putSvarint(minuteOf(endTime) - minuteOf(startTime));
+            }
+            if ((flags & NANOS) != 0) {
+                out.putVarint(nanosOf(startTime));
+                if (endTime != null) {
+                    out.putVarint(nanosOf(endTime));
+                }
+            }
+            if ((flags & COLOR) != 0) {
+                out.putInt(event.getPackedColor());
+            }
+            if (rule != null) {
+                long day = event.getDate().toEpochDay();
+                out.putByte(rule.getFrequency().ordinal());
+                out.putVarint(rule.getInterval());
+                out.putVarint(rule.getCount());
+                out.putByte(rule.getUntil() == null ? 0 : 1);
+                if (rule.getUntil() != null) {
+                    out.putSvarint(rule.getUntil().toEpochDay() - day);
+                }
+                NavigableSet<LocalDate> exceptions = rule.getExceptions();
+                out.putVarint(exceptions.size());
+                for (LocalDate exception : exceptions) {
+                    out.putSvarint(exception.toEpochDay() - day);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads back events written by an {@link EventWriter}
+     */
+    static final class EventReader {
+        private final StringDecoder strings;
+        /**
+         * events in start order often share a date, and most times are on the minute
+         */
+        private final LocalTime[] times = new LocalTime[MINUTES_PER_DAY];
+        private LocalDate date;
+        private long start, id;
+
+        EventReader(StringDecoder strings) {
+            this.strings = strings;
+        }
+
+        /**
+         * read the next event's start and id relative to 0, as if it were the first
+         */
+        void reset() {
+            start = 0;
+            id = 0;
+        }
+
+        /**
+         * @return the next event, with its id reserved so that no new event is given it
+         * @throws IOException if the event is corrupt
+         */
+        CalendarEvent read(ByteBuffer in) throws IOException {
+            int flags = in.get();
+            start += getSvarint(in);
+            id += getSvarint(in);
+            String title = strings.get(in);
+            String location = strings.get(in);
+            String notes = strings.get(in);
+            long day = Math.floorDiv(start, MINUTES_PER_DAY);
+            int startMinute = Math.floorMod(start, MINUTES_PER_DAY);
+            int endMinute = (flags & NO_END) != 0 ? -1 : Math.toIntExact(startMinute + getSvarint(in));
+            if (date == null || date.toEpochDay() != day) {
+                date = LocalDate.ofEpochDay(day);
+            }
+            LocalTime startTime, endTime = null;
+            if ((flags & NANOS) != 0) {
+                startTime = LocalTime.ofNanoOfDay(startMinute * NANOS_PER_MINUTE + getVarint(in));
+                if (endMinute >= 0) {
+                    endTime = LocalTime.ofNanoOfDay(endMinute * NANOS_PER_MINUTE + getVarint(in));
+                }
+            } else {
+                startTime = timeAt(startMinute);
+                if (endMinute >= 0) {
+                    endTime = timeAt(endMinute);
+                }
+            }
+            CalendarEvent event = new CalendarEvent(title, date, startTime, endTime, location, notes);
+            event.restoreId(id);
+            CalendarEvent.reserveId(id);
+            if ((flags & COLOR) != 0) {
+                event.setPackedColor(in.getInt());
+            }
+            if ((flags & RULE) != 0) {
+                event.setRecurrence(readRule(in, day));
+            }
+            return event;
+        }
+
+        private static RecurrenceRule readRule(ByteBuffer in, long day) throws IOException {
+            RecurrenceRule rule = new RecurrenceRule(RecurrenceRule.Frequency.values()[in.get()],
+                    Math.toIntExact(getVarint(in)));
+            rule = rule.withCount(Math.toIntExact(getVarint(in)));
+            if (in.get() != 0) {
+                rule = rule.withUntil(LocalDate.ofEpochDay(day + getSvarint(in)));
+            }
+            int n = checkedCount(in, getVarint(in));
+            if (n > 0) {
+                List<LocalDate> exceptions = new ArrayList<>(n);
+                for (int i = 0; i < n; i++) {
+                    exceptions.add(LocalDate.ofEpochDay(day + getSvarint(in)));
+                }
+                rule = rule.withExceptions(exceptions);
+            }
+            return rule;
+        }
+
+        private LocalTime timeAt(int minute) {
+            LocalTime time = times[minute];
+            if (time == null) {
+                time = times[minute] = LocalTime.of(minute / 60, minute % 60);
+            }
+            return time;
+        }
+    }
+
+    private static int minuteOf(LocalTime time) {
+        return time.getHour() * 60 + time.getMinute();
+    }
+
+    private static long nanosOf(LocalTime time) {
+        return time.toNanoOfDay() % NANOS_PER_MINUTE;
+    }
+
+    /**
+     * Buffers writes to a channel, or collects them in a growing heap buffer if there is no channel
+     */
+    static final class Output {
+        private final FileChannel channel;
+        private ByteBuffer buffer;
+
+        /**
+         * @param channel the channel to write to
+         */
+        Output(FileChannel channel) {
+            this.channel = channel;
+            this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+
+        /**
+         * @param capacity the number of bytes to make room for at first
+         */
+        Output(int capacity) {
+            this.channel = null;
+            this.buffer = ByteBuffer.allocate(capacity);
+        }
+
+        /**
+         * @return the bytes collected, from 0 to {@link #size()}, if there is no channel
+         */
+        byte[] array() {
+            return buffer.array();
+        }
+
+        /**
+         * @return the number of bytes buffered
+         */
+        int size() {
+            return buffer.position();
+        }
+
+        /**
+         * forget the bytes buffered
+         */
+        void clear() {
+            buffer.clear();
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() >= bytes) {
+                return;
+            }
+            if (channel != null) {
+                flush();
+            } else {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+                larger.put(buffer.flip());
+                buffer = larger;
+            }
+        }
+
+        /**
+         * write out the bytes buffered, if there is a channel
+         */
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        void putByte(int b) throws IOException {
+            ensure(1);
+            buffer.put((byte) b);
+        }
+
+        void putShort(int s) throws IOException {
+            ensure(2);
+            buffer.putShort((short) s);
+        }
+
+        void putInt(int i) throws IOException {
+            ensure(4);
+            buffer.putInt(i);
+        }
+
+        void putLong(long l) throws IOException {
+            ensure(8);
+            buffer.putLong(l);
+        }
+
+        void putVarint(long value) throws IOException {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer.put((byte) (value & 0x7F | 0x80));
+                value >>>= 7;
+            }
+            buffer.put((byte) value);
+        }
+
+        void putSvarint(long value) throws IOException {
+            putVarint(value << 1 ^ value >> 63);
+        }
+
+        /**
+         * write a string as its length in UTF-8 plus one, or 0 for null, then its UTF-8 bytes
+         */
+        void putString(String string) throws IOException {
+            if (string == null) {
+                putVarint(0);
+                return;
+            }
+            byte[] utf8 = string.getBytes(StandardCharsets.UTF_8);
+            putVarint(utf8.length + 1L);
+            put(utf8, 0, utf8.length);
+        }
+
+        void put(byte[] bytes, int off, int len) throws IOException {
+            if (channel == null) {
+                ensure(len);
+            }
+            for (int end = off + len; off < end; ) {
+                ensure(1);
+                int n = Math.min(buffer.remaining(), end - off);
+                buffer.put(bytes, off, n);
+                off += n;
+            }
+        }
+    }
+}
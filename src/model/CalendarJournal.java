@@ -0,0 +1,743 @@
+package model;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+/**
+ * An append-only log of the changes made to a set of named calendars since they were last
+ * saved, so that keeping a change costs a write the size of the change.
+ */
+public final class CalendarJournal implements Closeable {
+    /**
+     * the first four bytes of every journal
+     */
+    public static final int MAGIC = 0x43414C4A;
+    /**
+     * the version of the format written
+     * <p>
+     * The format, version 1, in the terms of {@link CalendarFile}:
+     * <pre>
+     * journal := magic:u32 = 0x43414C4A ("CALJ")  version:u16 = 1  reserved:u16 = 0  record*
+     * record  := length:u32 checksum:u32 sequence:u64 type:u8 body
+     * body    := name:string                           CREATE_CALENDAR (1), DELETE_CALENDAR (2)
+     *          | from:string to:string                 RENAME_CALENDAR (3)
+     *          | calendar:string event                 PUT_EVENT (4), adding or replacing the event with its id
+     *          | calendar:string id:u64                REMOVE_EVENT (5)
+     * string  := lengthPlusOne:varint utf8-bytes       0 for null
+     * </pre>
+     * The length counts the bytes from the sequence to the end of the body, and the checksum is
+     * the CRC32C of those bytes. An event is encoded as in a calendar file, with its strings in
+     * line and its start and id relative to 0. A record cut short or failing its checksum ends
+     * the journal: it is where a crash interrupted a write, and is dropped when the journal is
+     * next opened.
+     */
+    public static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 8;
+    private static final int FRAME_SIZE = 8;
+    private static final byte CREATE_CALENDAR = 1, DELETE_CALENDAR = 2, RENAME_CALENDAR = 3,
+            PUT_EVENT = 4, REMOVE_EVENT = 5;
+
+    private final Path path;
+    private final long limit;
+    private final Runnable onFull;
+    private final Consumer<IOException> onFailure;
+    private final Thread writer;
+    private final Object lock = new Object();
+    /**
+     * the records logged but not yet written, and the buffer they are swapped with while being written
+     */
+    private CalendarFile.Output pending = new CalendarFile.Output(1 << 12), writing = new CalendarFile.Output(1 << 12);
+    private final CalendarFile.Output record = new CalendarFile.Output(1 << 8);
+    private final CRC32C checksum = new CRC32C();
+    /**
+     * the number of the last record logged, written, and cut from the front of the journal
+     */
+    private long sequence, durable, cut;
+    /**
+     * records up to this number are to be cut from the front of the journal
+     */
+    private long cutRequested;
+    private IOException failure;
+    private boolean closed;
+    /**
+     * whether the journal has been reported full since it was last cut
+     */
+    private boolean full;
+    /**
+     * the number of bytes in the file; only touched by the writer thread, and while opening
+     */
+    private long size;
+    private FileChannel channel;
+
+    private CalendarJournal(Path path, long after, long sequence, long limit, Runnable onFull,
+                            Consumer<IOException> onFailure) {
+        this.path = path;
+        this.sequence = this.durable = sequence;
+        this.cut = this.cutRequested = after;
+        this.limit = limit;
+        this.onFull = onFull;
+        this.onFailure = onFailure;
+        this.writer = new Thread(this::writeLoop, "calendar-journal");
+        writer.setDaemon(true);
+    }
+
+    /**
+     * Replay the changes logged in a journal on calendars loaded from a calendar file, and open
+     * it to log further changes. The journal is created if it does not exist, and cut short
+     * after its last whole record if a crash interrupted a write.
+     *
+     * @param path      the journal
+     * @param after     the number of the last change the calendars include, as written in their file
+     * @param calendars the calendars, by name, which are changed to match the journal
+     * @param limit     the size in bytes past which the journal is reported full
+     * @param onFull    called, on the writer thread, once the journal passes the limit, before
+     *                  the changes which filled it are flushed, so it must not wait on the journal.
+     *                  It is not called again until the journal is {@link #cut(long) cut}.
+     * @param onFailure called, on the writer thread, if the journal cannot be written; from then
+     *                  on, logging a change throws an {@link UncheckedIOException}
+     * @return the journal, ready to log the changes following the last one replayed
+     * @throws IOException if the journal could not be read or written, or is not a journal
+     */
+    public static CalendarJournal open(Path path, long after, Map<String, CalendarModel> calendars,
+                                       long limit, Runnable onFull, Consumer<IOException> onFailure)
+            throws IOException {
+        return open(path, after, new Calendars() {
+            @Override
+            public boolean contains(String name) {
+                return calendars.containsKey(name);
+            }
+
+            @Override
+            public CalendarModel get(String name) {
+                return calendars.get(name);
+            }
+
+            @Override
+            public void create(String name) {
+                calendars.put(name, new CalendarModel());
+            }
+
+            @Override
+            public void delete(String name) {
+                calendars.remove(name);
+            }
+
+            @Override
+            public void rename(String from, String to) {
+                calendars.put(to, calendars.remove(from));
+            }
+        }, limit, onFull, onFailure);
+    }
+
+    /**
+     * Replay the changes logged in a journal on calendars which are loaded only if the
+     * journal changes their events, and open it to log further changes, as
+     * {@link #open(Path, long, Map, long, Runnable, Consumer)} does
+     *
+     * @param path      the journal
+     * @param after     the number of the last change the calendars include, as written in their file
+     * @param calendars the calendars which are changed to match the journal
+     * @param limit     the size in bytes past which the journal is reported full
+     * @param onFull    called, on the writer thread, once the journal passes the limit, before
+     *                  the changes which filled it are flushed, so it must not wait on the journal.
+     *                  It is not called again until the journal is {@link #cut(long) cut}.
+     * @param onFailure called, on the writer thread, if the journal cannot be written; from then
+     *                  on, logging a change throws an {@link UncheckedIOException}
+     * @return the journal, ready to log the changes following the last one replayed
+     * @throws IOException if the journal could not be read or written, or is not a journal
+     */
+    public static CalendarJournal open(Path path, long after, Calendars calendars,
+                                       long limit, Runnable onFull, Consumer<IOException> onFailure)
+            throws IOException {
+        long last = after;
+        long end = HEADER_SIZE;
+        if (Files.exists(path) && Files.size(path) >= HEADER_SIZE) {
+            try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+                Records records = new Records(in);
+                ByteBuffer header = records.next(HEADER_SIZE);
+                if (header.getInt() != MAGIC || header.getShort() != VERSION) {
+                    throw new IOException(String.format("File at \"%s\" is not a calendar journal.", path));
+                }
+                Replay replay = new Replay(calendars);
+                for (ByteBuffer body = records.next(); body != null; body = records.next()) {
+                    long number = body.getLong();
+                    if (number > after) {
+                        try {
+                            replay.apply(body);
+                        } catch (RuntimeException e) {
+                            throw new IOException(String.format("Calendar journal at \"%s\" is corrupted.", path), e);
+                        }
+                    }
+                    last = Math.max(last, number);
+                    end = records.offset();
+                }
+                replay.finish();
+            }
+        }
+        CalendarJournal journal = new CalendarJournal(path, after, last, limit, onFull, onFailure);
+        journal.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        if (journal.channel.size() < HEADER_SIZE) {
+            journal.channel.truncate(0);
+            journal.channel.write(header(), 0);
+        } else {
+            journal.channel.truncate(end);
+        }
+        journal.channel.force(false);
+        journal.size = journal.channel.size();
+        journal.channel.position(journal.size);
+        journal.writer.start();
+        return journal;
+    }
+
+    private static ByteBuffer header() {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putShort((short) VERSION).putShort((short) 0);
+        return header.flip();
+    }
+
+    /**
+     * @return the number of the last change logged
+     */
+    public long getSequence() {
+        synchronized (lock) {
+            return sequence;
+        }
+    }
+
+    /**
+     * log that a calendar was created
+     *
+     * @param name the name of the calendar
+     * @return the number of the change
+     */
+    public long createCalendar(String name) {
+        synchronized (lock) {
+            begin(CREATE_CALENDAR);
+            putString(name);
+            return end();
+        }
+    }
+
+    /**
+     * log that a calendar was deleted
+     *
+     * @param name the name the calendar had
+     * @return the number of the change
+     */
+    public long deleteCalendar(String name) {
+        synchronized (lock) {
+            begin(DELETE_CALENDAR);
+            putString(name);
+            return end();
+        }
+    }
+
+    /**
+     * log that a calendar was renamed
+     *
+     * @param from the old name of the calendar
+     * @param to   the new name of the calendar
+     * @return the number of the change
+     */
+    public long renameCalendar(String from, String to) {
+        synchronized (lock) {
+            begin(RENAME_CALENDAR);
+            putString(from);
+            putString(to);
+            return end();
+        }
+    }
+
+    /**
+     * log that an event was added to a calendar or changed, as it is now
+     *
+     * @param calendar the name of the calendar
+     * @param event    the event
+     * @return the number of the change
+     */
+    public long putEvent(String calendar, CalendarEvent event) {
+        synchronized (lock) {
+            begin(PUT_EVENT);
+            putString(calendar);
+            try {
+                new CalendarFile.EventWriter((out, string) -> out.putString(string)).write(record, event);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return end();
+        }
+    }
+
+    /**
+     * log that an event was removed from a calendar
+     *
+     * @param calendar the name of the calendar
+     * @param id       the id of the event
+     * @return the number of the change
+     */
+    public long removeEvent(String calendar, long id) {
+        synchronized (lock) {
+            begin(REMOVE_EVENT);
+            putString(calendar);
+            try {
+                record.putLong(id);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return end();
+        }
+    }
+
+    private void begin(byte type) {
+        if (closed) {
+            throw new IllegalStateException("The journal at \"" + path + "\" is closed");
+        } else if (failure != null) {
+            // nothing more is written, so nothing more is kept
+            throw new UncheckedIOException(String.format("Calendar journal at \"%s\" could not be written.", path),
+                    failure);
+        }
+        record.clear();
+        try {
+            record.putLong(sequence + 1);
+            record.putByte(type);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void putString(String string) {
+        try {
+            record.putString(string);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * frame the record and queue it for the writer thread
+     */
+    private long end() {
+        checksum.reset();
+        checksum.update(record.array(), 0, record.size());
+        try {
+            pending.putInt(record.size());
+            pending.putInt((int) checksum.getValue());
+            pending.put(record.array(), 0, record.size());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        lock.notifyAll();
+        return ++sequence;
+    }
+
+    /**
+     * Wait for every change logged so far to be written and forced to the disk
+     *
+     * @throws IOException if the journal could not be written
+     */
+    public void flush() throws IOException {
+        synchronized (lock) {
+            long target = sequence;
+            while (durable < target && failure == null && writer.isAlive()) {
+                waitOnLock();
+            }
+            checkFailure();
+        }
+    }
+
+    /**
+     * Drop the changes up to a given number from the front of the journal, because a calendar
+     * file including them has been written. Waits until the journal has been rewritten.
+     *
+     * @param upTo the number of the last change to drop
+     * @throws IOException if the journal could not be rewritten
+     */
+    public void cut(long upTo) throws IOException {
+        synchronized (lock) {
+            cutRequested = Math.max(cutRequested, upTo);
+            lock.notifyAll();
+            while (cut < upTo && failure == null && writer.isAlive()) {
+                waitOnLock();
+            }
+            checkFailure();
+        }
+    }
+
+    /**
+     * Write every change logged so far, then stop the writer thread. No more changes may be logged.
+     *
+     * @throws IOException if the journal could not be written or closed
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (lock) {
+            checkFailure();
+        }
+    }
+
+    private void waitOnLock() throws IOException {
+        try {
+            lock.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for the journal", e);
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException(String.format("Calendar journal at \"%s\" could not be written.", path), failure);
+        }
+    }
+
+    /**
+     * writes and forces whatever has been logged since the last pass, and cuts the journal
+     * when asked, until closed
+     */
+    private void writeLoop() {
+        while (true) {
+            CalendarFile.Output batch;
+            long batchSequence, cutTo;
+            boolean stop;
+            synchronized (lock) {
+                while (pending.size() == 0 && cutRequested <= cut && !closed) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        closed = true;
+                    }
+                }
+                batch = pending;
+                pending = writing;
+                writing = batch;
+                batchSequence = sequence;
+                cutTo = cutRequested;
+                stop = closed;
+            }
+            IOException error = null;
+            try {
+                if (batch.size() > 0) {
+                    ByteBuffer bytes = ByteBuffer.wrap(batch.array(), 0, batch.size());
+                    while (bytes.hasRemaining()) {
+                        channel.write(bytes);
+                    }
+                    channel.force(false);
+                    size += batch.size();
+                }
+                if (cutTo > cut) {
+                    rewriteAfter(cutTo);
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+            boolean reportFull = false;
+            synchronized (lock) {
+                batch.clear();
+                if (error != null) {
+                    failure = error;
+                    pending.clear();
+                } else {
+                    if (cutTo > cut) {
+                        cut = cutTo;
+                        full = false;
+                    }
+                    reportFull = !full && size > limit;
+                    full |= reportFull;
+                }
+            }
+            // reported before the changes are durable, so that it has been once flush returns
+            if (reportFull) {
+                onFull.run();
+            }
+            if (error != null) {
+                onFailure.accept(error);
+            }
+            synchronized (lock) {
+                if (error == null) {
+                    durable = batchSequence;
+                }
+                lock.notifyAll();
+                stop |= failure != null;
+            }
+            if (stop) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    synchronized (lock) {
+                        if (failure == null) {
+                            // reported by close
+                            failure = e;
+                        }
+                    }
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * replace the journal with one holding only the records after a given number. Records are
+     * written in the order of their numbers, so those kept are copied across in one piece,
+     * without being read into memory.
+     */
+    private void rewriteAfter(long upTo) throws IOException {
+        long keep = HEADER_SIZE;
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_SIZE + Long.BYTES);
+        while (keep + frame.capacity() <= size) {
+            frame.clear();
+            while (frame.hasRemaining() && channel.read(frame, keep + frame.position()) >= 0) {
+                // keep reading until the frame and sequence number are in
+            }
+            if (frame.getLong(FRAME_SIZE) > upTo) {
+                break;
+            }
+            keep += FRAME_SIZE + frame.getInt(0);
+        }
+        keep = Math.min(keep, size);
+        Path temp = Paths.get(path + ".tmp");
+        FileChannel rewritten = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            rewritten.write(header());
+            for (long position = keep; position < size; ) {
+                position += channel.transferTo(position, size - position, rewritten);
+            }
+            rewritten.force(false);
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            rewritten.close();
+            throw e;
+        }
+        channel.close();
+        channel = rewritten;
+        size = channel.size();
+        channel.position(size);
+    }
+
+    /**
+     * The calendars a journal is replayed on, by name
+     */
+    public interface Calendars {
+        /**
+         * @param name the name of a calendar
+         * @return true iff there is a calendar with the name
+         */
+        boolean contains(String name);
+
+        /**
+         * @param name the name of a calendar
+         * @return the calendar with the name, loaded if it has not been, or null if there is none
+         */
+        CalendarModel get(String name);
+
+        /**
+         * add an empty calendar
+         *
+         * @param name a name no calendar has
+         */
+        void create(String name);
+
+        /**
+         * remove a calendar
+         *
+         * @param name the name of the calendar, which may not exist
+         */
+        void delete(String name);
+
+        /**
+         * rename a calendar
+         *
+         * @param from the name of the calendar
+         * @param to   a name no calendar has
+         */
+        void rename(String from, String to);
+    }
+
+    /**
+     * Applies records to calendars. Events put in a calendar are held back and added together,
+     * so that replaying many additions costs one bulk add.
+     */
+    /**
+     * Reads the records of a journal a block at a time, so that replaying a journal takes memory
+     * for its largest record rather than for the whole journal
+     */
+    private static final class Records {
+        private final FileChannel in;
+        private final long size;
+        private final CRC32C crc = new CRC32C();
+        /**
+         * the bytes read but not yet returned
+         */
+        private ByteBuffer block = ByteBuffer.allocate(1 << 16).flip();
+        /**
+         * the offset in the file of the next byte to be returned from the block
+         */
+        private long offset;
+
+        private Records(FileChannel in) throws IOException {
+            this.in = in;
+            this.size = in.size();
+        }
+
+        /**
+         * @return the offset in the file of the end of the last record returned
+         */
+        private long offset() {
+            return offset;
+        }
+
+        /**
+         * @return the body of the next whole record with a good checksum, starting at its sequence
+         * number, which is only valid until the next call; or null if there is none
+         */
+        private ByteBuffer next() throws IOException {
+            if (!fill(FRAME_SIZE)) {
+                return null;
+            }
+            int start = block.position();
+            int length = block.getInt(start), expected = block.getInt(start + 4);
+            if (length < 9 || length > size - offset - FRAME_SIZE || !fill(FRAME_SIZE + length)) {
+                return null;
+            }
+            start = block.position();
+            ByteBuffer body = block.duplicate();
+            body.limit(start + FRAME_SIZE + length).position(start + FRAME_SIZE);
+            body = body.slice();
+            crc.reset();
+            crc.update(body.duplicate());
+            if ((int) crc.getValue() != expected) {
+                return null;
+            }
+            block.position(start + FRAME_SIZE + length);
+            offset += FRAME_SIZE + length;
+            return body;
+        }
+
+        /**
+         * @param length the number of bytes to read
+         * @return the next bytes, whatever they hold
+         * @throws IOException if the file ends first
+         */
+        private ByteBuffer next(int length) throws IOException {
+            if (!fill(length)) {
+                throw new IOException("The journal ends too soon.");
+            }
+            ByteBuffer bytes = block.duplicate();
+            bytes.limit(block.position() + length);
+            block.position(block.position() + length);
+            offset += length;
+            return bytes;
+        }
+
+        /**
+         * read ahead until at least the given number of bytes are in the block
+         *
+         * @return false if the file ends first
+         */
+        private boolean fill(int length) throws IOException {
+            if (block.remaining() >= length) {
+                return true;
+            } else if (length > size - offset) {
+                return false;
+            }
+            if (length > block.capacity()) {
+                block = ByteBuffer.allocate(length).put(block);
+            } else {
+                block.compact();
+            }
+            while (block.hasRemaining() && in.read(block, offset + block.position()) >= 0) {
+                // keep reading until the block is full, or the file ends
+            }
+            block.flip();
+            return block.remaining() >= length;
+        }
+    }
+
+    private static final class Replay {
+        private final Calendars calendars;
+        private final Map<CalendarModel, Map<Long, CalendarEvent>> held = new HashMap<>();
+
+        private Replay(Calendars calendars) {
+            this.calendars = calendars;
+        }
+
+        private void apply(ByteBuffer body) throws IOException {
+            byte type = body.get();
+            String name = CalendarFile.getString(body);
+            switch (type) {
+                case CREATE_CALENDAR:
+                    finish();
+                    if (!calendars.contains(name)) {
+                        calendars.create(name);
+                    }
+                    break;
+                case DELETE_CALENDAR:
+                    finish();
+                    calendars.delete(name);
+                    break;
+                case RENAME_CALENDAR:
+                    finish();
+                    String to = CalendarFile.getString(body);
+                    if (calendars.contains(name) && !calendars.contains(to)) {
+                        calendars.rename(name, to);
+                    }
+                    break;
+                case PUT_EVENT:
+                    CalendarEvent event = new CalendarFile.EventReader(CalendarFile::getString).read(body);
+                    CalendarModel model = calendars.get(name);
+                    if (model != null) {
+                        model.removeEvent(event.getId());
+                        held.computeIfAbsent(model, m -> new LinkedHashMap<>()).put(event.getId(), event);
+                    }
+                    break;
+                case REMOVE_EVENT:
+                    long id = body.getLong();
+                    model = calendars.get(name);
+                    if (model != null) {
+                        Map<Long, CalendarEvent> events = held.get(model);
+                        if (events == null || events.remove(id) == null) {
+                            model.removeEvent(id);
+                        }
+                    }
+                    break;
+                default:
+                    throw new IOException("unknown record type " + type);
+            }
+        }
+
+        /**
+         * add the events held back
+         */
+        private void finish() {
+            for (Map.Entry<CalendarModel, Map<Long, CalendarEvent>> e : held.entrySet()) {
+                e.getKey().addEvents(new ArrayList<>(e.getValue().values()));
+            }
+            held.clear();
+        }
+    }
+}
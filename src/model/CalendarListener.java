@@ -0,0 +1,22 @@
+package model;
+
+import java.util.List;
+
+/**
+ * Receives notice of changes made to a {@link CalendarModel}.
+ *
+ * @see CalendarModel#addListener(CalendarListener)
+ */
+@FunctionalInterface
+public interface CalendarListener {
+
+    /**
+     * Called once after each change, or batch of changes, to a calendar.
+     * Called on the thread which made the change.
+     *
+     * @param source  the calendar which changed
+     * @param changes every event which was added, removed or modified, in the order
+     *                they were first touched. never empty. each event appears at most once.
+     */
+    void calendarChanged(CalendarModel source, List<CalendarChange> changes);
+}
@@ -0,0 +1,266 @@
+package model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * Names the calendars saved as shards, one {@link CalendarSegment} for each calendar, so that
+ * saving rewrites only the calendars which changed.
+ */
+public final class CalendarManifest {
+    /**
+     * the first four bytes of every manifest
+     */
+    public static final int MAGIC = 0x43414C4D;
+    /**
+     * the version of the format written
+     * <p>
+     * The format, version 3, in the terms of {@link CalendarFile}:
+     * <pre>
+     * manifest := magic:u32 = 0x43414C4D ("CALM")  version:u16 = 3  reserved:u16 = 0
+     *             sequence:u64 count:varint entry* checksum:u32
+     * entry    := name:string shard:varint eventsPlusOne:varint first:svarint last:svarint
+     * </pre>
+     * The sequence is the number of the last {@link CalendarJournal journal} record the
+     * shards named include. Each calendar's number of events is written plus one, with 0 if it
+     * is not known. First and last are the days, counted from 1970-01-01, of the earliest and
+     * latest occurrence of any event in the calendar, with {@link LocalDate#MAX} as the last for
+     * events which recur forever; both are 0 for a calendar without events, or not known about.
+     * The checksum is the CRC32C of everything before it. A manifest which fails it but can
+     * still be read is taken to name the right shards, but what it says of their events is
+     * not trusted: they are read as not known, so that no calendar is skipped on its word.
+     * <p>
+     * Version 2 is the same without the checksum, and version 1 also without the events, first
+     * and last, which are read as not known.
+     */
+    public static final int VERSION = 3;
+
+    private final long sequence;
+    private final Map<String, Entry> calendars;
+    private boolean damaged;
+
+    /**
+     * @param sequence  the number of the last journal record the shards include
+     * @param calendars the entry of each calendar, by name
+     */
+    public CalendarManifest(long sequence, Map<String, Entry> calendars) {
+        this.sequence = sequence;
+        this.calendars = Collections.unmodifiableMap(new LinkedHashMap<>(calendars));
+    }
+
+    /**
+     * @return the number of the last journal record the shards include
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return true iff the manifest was read from a file which failed its checksum, so that
+     * what it says of each calendar's events is not known
+     */
+    public boolean isDamaged() {
+        return damaged;
+    }
+
+    /**
+     * @return the entry of each calendar, by name, in the order they were written
+     */
+    public Map<String, Entry> getCalendars() {
+        return calendars;
+    }
+
+    /**
+     * @param manifest a manifest
+     * @param shard    the number of one of its shards
+     * @return the file holding the shard, named after the manifest followed by a dot and the number
+     */
+    public static Path shardPath(Path manifest, long shard) {
+        return manifest.resolveSibling(manifest.getFileName() + "." + shard);
+    }
+
+    /**
+     * @param path any file
+     * @return true iff the file starts with {@link #MAGIC}
+     * @throws IOException if the file could not be read
+     */
+    public static boolean isManifest(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            while (magic.hasRemaining() && channel.read(magic) >= 0) {
+                // keep reading until the magic is in, or the file ends
+            }
+            return !magic.hasRemaining() && magic.getInt(0) == MAGIC;
+        }
+    }
+
+    /**
+     * Write the manifest to a file, replacing anything in it, and force it to the disk
+     *
+     * @param path the file to write
+     * @throws IOException if the file could not be written
+     */
+    public void write(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            CalendarFile.Output out = new CalendarFile.Output(1 << 12);
+            out.putInt(MAGIC);
+            out.putShort(VERSION);
+            out.putShort(0);
+            out.putLong(sequence);
+            out.putVarint(calendars.size());
+            for (Map.Entry<String, Entry> calendar : calendars.entrySet()) {
+                Entry entry = calendar.getValue();
+                out.putString(calendar.getKey());
+                out.putVarint(entry.shard);
+                out.putVarint(entry.events + 1L);
+                out.putSvarint(entry.events <= 0 ? 0 : entry.first.toEpochDay());
+                out.putSvarint(entry.events <= 0 ? 0 : entry.last.toEpochDay());
+            }
+            CRC32C crc = new CRC32C();
+            crc.update(out.array(), 0, out.size());
+            out.putInt((int) crc.getValue());
+            ByteBuffer bytes = ByteBuffer.wrap(out.array(), 0, out.size());
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Read back a manifest written by {@link #write(Path)}
+     *
+     * @param path the file to read
+     * @return the manifest
+     * @throws IOException if the file could not be read, is not a manifest, has a version
+     *                     this does not know, or is corrupt
+     */
+    public static CalendarManifest read(Path path) throws IOException {
+        ByteBuffer in = CalendarFile.readAll(path);
+        if (in.remaining() < 8 || in.getInt() != MAGIC) {
+            throw new IOException(String.format("File at \"%s\" is not a calendar manifest.", path));
+        }
+        int version = Short.toUnsignedInt(in.getShort());
+        in.getShort();
+        if (version < 1 || version > VERSION) {
+            throw new IOException(String.format("Calendar manifest at \"%s\" has version %d; only versions 1 to %d are supported.",
+                    path, version, VERSION));
+        }
+        boolean damaged = false;
+        if (version > 2) {
+            if (in.remaining() < 4) {
+                throw new IOException(String.format("Calendar manifest at \"%s\" is corrupted.", path));
+            }
+            int end = in.limit() - 4;
+            CRC32C crc = new CRC32C();
+            crc.update(in.duplicate().position(0).limit(end));
+            damaged = (int) crc.getValue() != in.getInt(end);
+            in.limit(end);
+        }
+        try {
+            long sequence = in.getLong();
+            Map<String, Entry> calendars = new LinkedHashMap<>();
+            for (int n = CalendarFile.checkedCount(in, CalendarFile.getVarint(in)); n > 0; n--) {
+                String name = CalendarFile.getString(in);
+                long shard = CalendarFile.getVarint(in);
+                long events = version > 1 ? CalendarFile.getVarint(in) - 1 : -1;
+                long first = version > 1 ? CalendarFile.getSvarint(in) : 0;
+                long last = version > 1 ? CalendarFile.getSvarint(in) : 0;
+                Entry entry;
+                if (events < 0 || damaged) {
+                    entry = new Entry(shard, -1, LocalDate.MIN, LocalDate.MAX);
+                } else if (events == 0) {
+                    entry = new Entry(shard, 0, null, null);
+                } else {
+                    entry = new Entry(shard, Math.toIntExact(events), LocalDate.ofEpochDay(first), LocalDate.ofEpochDay(last));
+                }
+                if (name == null || calendars.put(name, entry) != null) {
+                    throw new IOException(String.format("Calendar manifest at \"%s\" is corrupted.", path));
+                }
+            }
+            if (in.hasRemaining()) {
+                throw new IOException(String.format("Calendar manifest at \"%s\" is corrupted.", path));
+            }
+            CalendarManifest manifest = new CalendarManifest(sequence, calendars);
+            manifest.damaged = damaged;
+            return manifest;
+        } catch (RuntimeException e) {
+            throw new IOException(String.format("Calendar manifest at \"%s\" is corrupted.", path), e);
+        }
+    }
+
+    /**
+     * What the manifest says about one calendar: the shard it is saved in, how many events it
+     * has and the days they fall between
+     */
+    public static final class Entry {
+        private final long shard;
+        private final int events;
+        private final LocalDate first, last;
+
+        private Entry(long shard, int events, LocalDate first, LocalDate last) {
+            this.shard = shard;
+            this.events = events;
+            this.first = first;
+            this.last = last;
+        }
+
+        /**
+         * @param shard    the number of the shard the calendar is saved in
+         * @param snapshot the calendar as saved
+         * @return the entry describing the calendar
+         */
+        public static Entry of(long shard, CalendarSnapshot snapshot) {
+            LocalDate first = null, last = null;
+            for (CalendarEvent event : snapshot.getEvents()) {
+                LocalDate end = event.getDate();
+                if (event.getRecurrence() != null) {
+                    end = event.getRecurrence().getLastDate(event.getDate());
+                    if (end == null) {
+                        end = LocalDate.MAX;
+                    }
+                }
+                if (first == null || event.getDate().isBefore(first)) {
+                    first = event.getDate();
+                }
+                if (last == null || end.isAfter(last)) {
+                    last = end;
+                }
+            }
+            return new Entry(shard, snapshot.size(), first, last);
+        }
+
+        /**
+         * @return the number of the shard the calendar is saved in
+         */
+        public long getShard() {
+            return shard;
+        }
+
+        /**
+         * @return the number of events in the calendar, counting each recurring event once,
+         * or -1 if the manifest does not say
+         */
+        public int getEvents() {
+            return events;
+        }
+
+        /**
+         * @param from the first day (inclusive)
+         * @param to   the last day (inclusive)
+         * @return false if the calendar certainly has no event on any of the days
+         */
+        public boolean mayOverlap(LocalDate from, LocalDate to) {
+            return events != 0 && !first.isAfter(to) && !last.isBefore(from);
+        }
+    }
+}
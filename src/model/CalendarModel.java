@@ -1,20 +1,171 @@
 package model;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Observable;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
 
 /**
  * A representation of a calendar of events
  *
  * @author Jessica Coan
  */
-public class CalendarModel extends Observable implements Serializable {
+public class CalendarModel implements Serializable {
     private static final long serialVersionUID = 5184911405741555741L;
-    private List<CalendarEvent> events = new ArrayList<>();
+    private static final CalendarListener[] NO_LISTENERS = new CalendarListener[0];
+    private static final long SECONDS_PER_DAY = 86_400;
+    private static final AtomicReferenceFieldUpdater<CalendarModel, CalendarListener[]> LISTENERS =
+            AtomicReferenceFieldUpdater.newUpdater(CalendarModel.class, CalendarListener[].class, "listeners");
+
+    /**
+     * How a CalendarModel lays out its events in memory
+     */
+    public enum StorageMode {
+        /**
+         * each event is a CalendarEvent object, indexed by an interval tree and by day.
+         * Mutations are O(log n).
+         */
+        OBJECTS,
+        /**
+         * events are packed into parallel primitive arrays sorted by start time, and
+         * CalendarEvent objects are only created for events which a query returns.
+         * Uses far less memory for large calendars, but mutations are O(n).
+         */
+        PACKED
+    }
+
+    /**
+     * the serialized form of calendars saved before events were kept in an {@link EventStore},
+     * and of snapshots of calendars which keep their events as objects.
+     * Only ever non-null while such a calendar is being serialized or deserialized.
+     */
+    private List<CalendarEvent> events;
+    /**
+     * the recurring events, in the serialized form of a calendar which has any.
+     * Only ever non-null while the calendar is being serialized or deserialized.
+     */
+    private List<CalendarEvent> recurring;
+    private StorageMode mode;
+    private EventStore store;
+    /**
+     * recurring events are kept apart from the store, which only holds events that happen once
+     */
+    private transient RecurrenceIndex recurrences;
+    private transient volatile QueryPlan lastQueryPlan;
+    private transient int batchDepth;
+    /**
+     * the delta for the change in progress; null if there is none, or nobody was listening when it began
+     */
+    private transient CalendarDelta pendingDelta;
+    /**
+     * copied on every registration, so that changes can be dispatched without locking
+     */
+    private transient volatile CalendarListener[] listeners = NO_LISTENERS;
+    /**
+     * the contents of the calendar as of the end of the last change
+     */
+    private transient volatile CalendarSnapshot snapshot;
+    /**
+     * true iff the store has been changed since {@link #snapshot} was published
+     */
+    private transient boolean unpublished;
+    /**
+     * true iff events have been re-filed unchanged since {@link #snapshot} was published, so it
+     * is out of date without the calendar having changed
+     */
+    private transient boolean refiled;
+    /**
+     * the interner for the titles and locations of events added or modified; null if there is none
+     */
+    private transient StringInterner strings;
+
+    /**
+     * construct an empty calendar which stores its events as {@link StorageMode#OBJECTS objects}
+     */
+    public CalendarModel() {
+        this(StorageMode.OBJECTS);
+    }
+
+    /**
+     * construct an empty calendar
+     *
+     * @param mode how the calendar should store its events. must not be null.
+     */
+    public CalendarModel(StorageMode mode) {
+        if (mode == null) {
+            throw new IllegalArgumentException("StorageMode must not be null");
+        }
+        this.mode = mode;
+        this.store = mode == StorageMode.PACKED ? new PackedEventStore() : new IndexedEventStore(Collections.emptyList());
+        this.recurrences = new RecurrenceIndex();
+        this.snapshot = new CalendarSnapshot(0, mode, store.snapshot(), recurrences.snapshot());
+    }
+
+    /**
+     * construct a calendar over a segment mapped into memory, whose events are read from it
+     * only as they are needed
+     *
+     * @param segment   the segment the calendar was saved in
+     * @param recurring the recurring events saved in the segment
+     */
+    CalendarModel(CalendarSegment segment, List<CalendarEvent> recurring) {
+        this.mode = segment.getStorageMode();
+        this.store = new SegmentEventStore(segment, mode);
+        this.recurrences = new RecurrenceIndex();
+        for (CalendarEvent event : recurring) {
+            recurrences.add(event);
+        }
+        this.snapshot = new CalendarSnapshot(0, mode, store.snapshot(), recurrences.snapshot());
+    }
+
+    /**
+     * construct a calendar which exists only to be serialized
+     *
+     * @see #serialForm(StorageMode, List, EventStore, List)
+     */
+    private CalendarModel(StorageMode mode, List<CalendarEvent> events, EventStore store,
+                          List<CalendarEvent> recurring) {
+        this.mode = mode;
+        this.events = events;
+        this.store = store;
+        this.recurring = recurring.isEmpty() ? null : recurring;
+    }
+
+    /**
+     * @param mode      how the calendar should store its events once read back
+     * @param events    the events to write in the old list form, or null if a store is given
+     * @param store     the store to write, or null if a list of events is given
+     * @param recurring the recurring events to write
+     * @return a calendar which serializes to the given events, and which must not be used for anything else
+     */
+    static CalendarModel serialForm(StorageMode mode, List<CalendarEvent> events, EventStore store,
+                                    List<CalendarEvent> recurring) {
+        return new CalendarModel(mode, events, store, recurring);
+    }
+
+    /**
+     * @return how this calendar stores its events
+     */
+    public StorageMode getStorageMode() {
+        return mode;
+    }
 
     /**
      * Gets all the events within a specific year
@@ -23,10 +174,8 @@ public class CalendarModel extends Observable implements Serializable {
      * @return an array with all the events in that year
      */
     public CalendarEvent[] getEventsInYear(int year) {
-        LocalDateTime before = getDateTime(year, 1, 1).minusSeconds(1);
-        LocalDateTime after = getDateTime(year, 1, 1).plusYears(1);
-
-        return getEventsInRange(before, after);
+        LocalDate first = LocalDate.of(year, 1, 1);
+        return getEventsInDays(first.toEpochDay(), first.plusYears(1).toEpochDay());
     }
 
     /**
@@ -37,10 +186,8 @@ public class CalendarModel extends Observable implements Serializable {
      * @return an array of events in that month
      */
     public CalendarEvent[] getEventsInMonth(int year, int month) {
-        LocalDateTime before = getDateTime(year, month, 1).minusSeconds(1);
-        LocalDateTime after = getDateTime(year, month, 1).plusMonths(1);
-
-        return getEventsInRange(before, after);
+        LocalDate first = LocalDate.of(year, month, 1);
+        return getEventsInDays(first.toEpochDay(), first.plusMonths(1).toEpochDay());
     }
 
     /**
@@ -52,10 +199,7 @@ public class CalendarModel extends Observable implements Serializable {
      * @return an array of all the events on that day
      */
     public CalendarEvent[] getEventsInDay(int year, int month, int day) {
-        LocalDateTime before = getDateTime(year, month, day).minusSeconds(1);
-        LocalDateTime after = getDateTime(year, month, day).plusDays(1);
-
-        return getEventsInRange(before, after);
+        return getEventsInDay(LocalDate.of(year, month, day));
     }
 
     /**
@@ -65,7 +209,58 @@ public class CalendarModel extends Observable implements Serializable {
      * @return an array containing the events
      */
     public CalendarEvent[] getEventsInDay(LocalDate day) {
-        return getEventsInDay(day.getYear(), day.getMonthValue(), day.getDayOfMonth());
+        long epochDay = day.toEpochDay();
+        return getEventsInDays(epochDay, epochDay + 1);
+    }
+
+    /**
+     * @param fromDay the first day, in days since the epoch (inclusive)
+     * @param toDay   the last day, in days since the epoch (exclusive)
+     * @return every event and occurrence taking place within the given days, ordered by start time
+     */
+    private CalendarEvent[] getEventsInDays(long fromDay, long toDay) {
+        CalendarEvent[] stored = store.getEventsInDays(fromDay, toDay);
+        if (recurrences.isEmpty()) {
+            return stored;
+        }
+        // events never run past midnight, so this window holds exactly the events starting within the days
+        return RecurrenceIndex.merge(stored,
+                recurrences.occurrences(fromDay * SECONDS_PER_DAY - 1, toDay * SECONDS_PER_DAY));
+    }
+
+    /**
+     * Get all the events within a range of days, grouped by the day on which they occur.
+     * Equivalent to calling {@link #getEventsInDay(LocalDate)} for each day in the range,
+     * but in a single pass.
+     *
+     * @param from the first day of the range (inclusive)
+     * @param to   the last day of the range (exclusive)
+     * @return a map from each day in the range which has any events to
+     * an array of that day's events, ordered by start time
+     */
+    public NavigableMap<LocalDate, CalendarEvent[]> getEventsByDay(LocalDate from, LocalDate to) {
+        NavigableMap<LocalDate, CalendarEvent[]> byDay = store.getEventsByDay(from, to);
+        if (recurrences.isEmpty()) {
+            return byDay;
+        }
+        CalendarEvent[] occurrences = recurrences.occurrences(from.toEpochDay() * SECONDS_PER_DAY - 1,
+                to.toEpochDay() * SECONDS_PER_DAY);
+        if (occurrences.length == 0) {
+            return byDay;
+        }
+        byDay = new TreeMap<>(byDay);
+        // occurrences are in start order, so each day's are contiguous
+        for (int i = 0, j; i < occurrences.length; i = j) {
+            LocalDate day = occurrences[i].getDate();
+            j = i + 1;
+            while (j < occurrences.length && occurrences[j].getDate().equals(day)) {
+                j++;
+            }
+            CalendarEvent[] stored = byDay.get(day);
+            CalendarEvent[] onDay = Arrays.copyOfRange(occurrences, i, j);
+            byDay.put(day, stored == null ? onDay : RecurrenceIndex.merge(stored, onDay));
+        }
+        return byDay;
     }
 
     /**
@@ -95,40 +290,277 @@ public class CalendarModel extends Observable implements Serializable {
     }
 
     /**
-     * Given a start date on a Calendar and an end date, find all events that occur after the start and before the end
+     * Given a start date on a Calendar and an end date, find all events that are taking place at any
+     * point after the start and before the end. This includes events which began before the start
+     * but are still running.
      *
      * @param before start date Calendar
      * @param after  end date Calendar
-     * @return all the events that occur within the given range
+     * @return all the events that occur within the given range, ordered by start time
      */
     public CalendarEvent[] getEventsInRange(LocalDateTime before, LocalDateTime after) {
-        return events.parallelStream()
-                .filter(event -> isDateInRange(
-                        // LocalDateTime at which the event starts
-                        event.getDate().atTime(event.getStartTime()),
-                        before, after))
-                .toArray(CalendarEvent[]::new);
+        long lo = TimeSpan.toEpochSecond(before);
+        long hi = TimeSpan.toEpochSecond(after);
+        QueryPlan plan = QueryExecutor.plan(store, lo, hi);
+        lastQueryPlan = plan;
+        CalendarEvent[] stored = QueryExecutor.execute(store, plan, lo, hi);
+        return recurrences.isEmpty() ? stored : RecurrenceIndex.merge(stored, recurrences.occurrences(lo, hi));
+    }
+
+    /**
+     * Find only the occurrences of recurring events which
+     * {@link #getEventsInRange(LocalDateTime, LocalDateTime)} would return
+     *
+     * @param before start date Calendar
+     * @param after  end date Calendar
+     * @return the occurrences of recurring events within the given range, ordered by start time
+     */
+    public CalendarEvent[] getOccurrencesInRange(LocalDateTime before, LocalDateTime after) {
+        return recurrences.occurrences(TimeSpan.toEpochSecond(before), TimeSpan.toEpochSecond(after));
+    }
+
+    /**
+     * Find the events that {@link #getEventsInRange(LocalDateTime, LocalDateTime)} would return
+     * one at a time, as the iterator is advanced, rather than collecting them into an array.
+     * The calendar must not be changed while the iterator is in use.
+     *
+     * @param before start date Calendar
+     * @param after  end date Calendar
+     * @return an iterator over the events that occur within the given range, ordered by start time
+     */
+    public Iterator<CalendarEvent> iterateEventsInRange(LocalDateTime before, LocalDateTime after) {
+        long lo = TimeSpan.toEpochSecond(before);
+        long hi = TimeSpan.toEpochSecond(after);
+        return RecurrenceIndex.merge(store.iterateRange(lo, hi), recurrences.occurrences(lo, hi));
+    }
+
+    /**
+     * Count the events that {@link #getEventsInRange(LocalDateTime, LocalDateTime)} would return,
+     * without creating an array of them.
+     *
+     * @param before start date Calendar
+     * @param after  end date Calendar
+     * @return the number of events taking place at any point after the start and before the end
+     */
+    public int countEventsInRange(LocalDateTime before, LocalDateTime after) {
+        long lo = TimeSpan.toEpochSecond(before);
+        long hi = TimeSpan.toEpochSecond(after);
+        return store.countInRange(lo, hi) + recurrences.countInRange(lo, hi);
+    }
+
+    /**
+     * Count the events within each of a series of consecutive, equally sized periods of time,
+     * without creating any arrays of events. A period holds the same events that a day or hour
+     * query for that period would return: every event running at any point from the first second
+     * of the period until the period ends. An event which spans two periods is counted in both.
+     *
+     * @param from   the start of the first period
+     * @param to     the end of the last period. if the time between from and to is not a multiple
+     *               of the bucket size, the last period is cut short.
+     * @param bucket the size of each period, between {@link ChronoUnit#MINUTES minutes}
+     *               and {@link ChronoUnit#MILLENNIA millennia}
+     * @return an array holding the number of events in each period, in order
+     * @throws IllegalArgumentException if the bucket size is not supported or to is before from
+     */
+    public int[] histogram(LocalDateTime from, LocalDateTime to, ChronoUnit bucket) {
+        if (bucket.compareTo(ChronoUnit.MINUTES) < 0 || bucket.compareTo(ChronoUnit.MILLENNIA) > 0) {
+            throw new IllegalArgumentException("Unsupported histogram bucket: " + bucket);
+        } else if (to.isBefore(from)) {
+            throw new IllegalArgumentException("The end of a histogram must not be before its start");
+        }
+        long n = bucket.between(from, to);
+        if (from.plus(n, bucket).isBefore(to)) {
+            n++;
+        }
+        int[] counts = new int[Math.toIntExact(n)];
+        LocalDateTime periodStart = from;
+        for (int i = 0; i < counts.length; i++) {
+            LocalDateTime periodEnd = from.plus(i + 1, bucket);
+            if (periodEnd.isAfter(to)) {
+                periodEnd = to;
+            }
+            if (periodStart.toLocalTime().equals(LocalTime.MIDNIGHT)
+                    && periodEnd.toLocalTime().equals(LocalTime.MIDNIGHT)) {
+                counts[i] = store.countInDays(periodStart.toLocalDate().toEpochDay(),
+                        periodEnd.toLocalDate().toEpochDay());
+            } else {
+                counts[i] = store.countInRange(TimeSpan.toEpochSecond(periodStart) - 1,
+                        TimeSpan.toEpochSecond(periodEnd));
+            }
+            if (!recurrences.isEmpty()) {
+                counts[i] += recurrences.countInRange(TimeSpan.toEpochSecond(periodStart) - 1,
+                        TimeSpan.toEpochSecond(periodEnd));
+            }
+            periodStart = periodEnd;
+        }
+        return counts;
+    }
+
+    /**
+     * For diagnostics: report how the most recent range query against this calendar was answered.
+     * Range queries are those made through {@link #getEventsInRange(LocalDateTime, LocalDateTime)}
+     * and {@link #getEventsInHour(LocalDateTime)}; day, month and year queries always use
+     * the calendar's index.
+     *
+     * @return the plan used by the most recent range query, or null if there has not been one
+     */
+    public QueryPlan getLastQueryPlan() {
+        return lastQueryPlan;
+    }
+
+    /**
+     * Time sequential and parallel range queries on this machine, and use the results
+     * to decide when a range query against any calendar should be run in parallel.
+     * Run in the background by the first {@code CalendarController} started; a conservative
+     * default is used until then. Takes on the order of a second, so should not be called from
+     * the JavaFX Application Thread. Only the first call measures anything; later ones wait for
+     * it to finish, and return the same threshold.
+     *
+     * @return the smallest number of events for which a calendar will now consider running
+     * a range query in parallel, or {@link Integer#MAX_VALUE} if it never will
+     */
+    public static int calibrateQueryPlanner() {
+        return QueryExecutor.calibrate();
     }
     
+    /**
+     * Capture the contents of this calendar, as of the end of the last change, in O(1) time.
+     * Safe to call from any thread, including while the calendar is being changed on another;
+     * the snapshot never reflects part of a change or batch. Events edited in place are
+     * captured as they were when {@link #markModified(CalendarEvent)} was last called.
+     *
+     * @return an immutable snapshot of this calendar
+     */
+    public CalendarSnapshot snapshot() {
+        return snapshot;
+    }
+
     /**
      * Returns a list of all of the CalendarEvents in the
-     * calendar.
+     * calendar. Recurring events are listed once, rather than once per occurrence.
      * 
-     * @return all of the events associated with this calendar
+     * @return an unmodifiable view of all of the events associated with this calendar
      */
     public List<CalendarEvent> getAllEvents() {
-    	return events;
+        if (recurrences.isEmpty()) {
+            return store.getAllEvents();
+        }
+        List<CalendarEvent> all = new ArrayList<>(store.size() + recurrences.size());
+        all.addAll(store.getAllEvents());
+        all.addAll(recurrences.getAll());
+        return Collections.unmodifiableList(all);
+    }
+
+    /**
+     * Tells the action the id of every event in this calendar. Unlike {@link #getAllEvents()},
+     * this does not read events which have not been read yet from the segment the calendar was
+     * opened from.
+     *
+     * @param action told each id
+     */
+    public void forEachId(LongConsumer action) {
+        store.forEachId(action);
+        for (CalendarEvent event : recurrences.getAll()) {
+            action.accept(event.getId());
+        }
     }
 
     /**
-     * Add a CalendarEvent to this calendar
+     * Find an event by id in O(1) time. For a recurring event, only the event itself has its id;
+     * any of its occurrences' ids finds the recurring event.
+     *
+     * @param id the id of an event
+     * @return the event in this calendar with that id, or null if there is none
+     * @see CalendarEvent#getId()
+     */
+    public CalendarEvent getEvent(long id) {
+        CalendarEvent event = store.get(id);
+        return event != null ? event : recurrences.get(id);
+    }
+
+    /**
+     * @param event any event
+     * @return the span under which the event is filed: for a recurring event, the span of
+     * its first occurrence. null if the event is not in this calendar.
+     */
+    TimeSpan spanOf(CalendarEvent event) {
+        TimeSpan span = store.spanOf(event);
+        return span != null ? span : recurrences.spanOf(event);
+    }
+
+    /**
+     * re-file an event which is in this calendar, moving it between the store and the
+     * recurring events if it has started or stopped repeating
+     *
+     * @param event the event to re-file
+     */
+    private void refile(CalendarEvent event) {
+        if (event.getRecurrence() != null) {
+            store.remove(event);
+            recurrences.add(event);
+        } else if (recurrences.remove(event)) {
+            store.add(event);
+        } else {
+            store.update(event);
+        }
+    }
+
+    /**
+     * Add a CalendarEvent to this calendar. Adding an event which is already
+     * in this calendar has the same effect as {@link #markModified(CalendarEvent)}.
      *
      * @param event event to add
      */
     public void addEvent(CalendarEvent event) {
-        events.add(event);
-        setChanged();
-        notifyObservers(event);
+        addEvents(Collections.singletonList(event));
+    }
+
+    /**
+     * Add many CalendarEvents to this calendar at once. Indexes are built in bulk, and
+     * listeners are notified once with a {@link CalendarChange} for every event.
+     * Events which are already in this calendar are treated as modified.
+     *
+     * @param toAdd events to add
+     */
+    public void addEvents(Collection<CalendarEvent> toAdd) {
+        CalendarDelta delta = beginChange();
+        try {
+            Set<CalendarEvent> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+            List<CalendarEvent> fresh = new ArrayList<>(toAdd.size());
+            for (CalendarEvent event : toAdd) {
+                if (!seen.add(event)) {
+                    continue;
+                }
+                if (strings != null) {
+                    strings.intern(event);
+                }
+                TimeSpan before = spanOf(event);
+                if (delta != null) {
+                    delta.touch(event, before);
+                }
+                if (before != null) {
+                    refile(event);
+                    continue;
+                }
+                if (getEvent(event.getId()) != null) {
+                    // ids are unique within a calendar
+                    event.renumber();
+                }
+                if (event.getRecurrence() != null) {
+                    recurrences.add(event);
+                } else {
+                    fresh.add(event);
+                }
+            }
+            unpublished |= !seen.isEmpty();
+            if (fresh.size() == 1) {
+                store.add(fresh.get(0));
+            } else if (!fresh.isEmpty()) {
+                store.addAll(fresh);
+            }
+        } finally {
+            endChange();
+        }
     }
 
     /**
@@ -137,43 +569,270 @@ public class CalendarModel extends Observable implements Serializable {
      * @param event event to remove
      */
     public void removeEvent(CalendarEvent event) {
-        events.remove(event);
-        setChanged();
-        notifyObservers();
+        removeEvents(Collections.singletonList(event));
     }
 
     /**
-     * Mark that an event in this model has been modified, so Observers can be updated accordingly
+     * Remove an event by id in O(1) time, rather than by searching for it
+     *
+     * @param id the id of the event to remove
+     * @return the event removed, or null if there was no event with that id
+     */
+    public CalendarEvent removeEvent(long id) {
+        CalendarEvent event = getEvent(id);
+        if (event != null) {
+            removeEvent(event);
+        }
+        return event;
+    }
+
+    /**
+     * Remove many CalendarEvents from this calendar at once. Listeners are notified
+     * once with a {@link CalendarChange} for every event removed. Events which are not
+     * in this calendar are ignored.
+     *
+     * @param toRemove events to remove
+     */
+    public void removeEvents(Collection<CalendarEvent> toRemove) {
+        CalendarDelta delta = beginChange();
+        try {
+            Set<CalendarEvent> present = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (CalendarEvent event : toRemove) {
+                TimeSpan before = spanOf(event);
+                if (before != null && delta != null) {
+                    delta.touch(event, before);
+                }
+                if (before != null && !recurrences.remove(event)) {
+                    present.add(event);
+                }
+                unpublished |= before != null;
+            }
+            if (present.size() == 1) {
+                store.remove(present.iterator().next());
+            } else if (!present.isEmpty()) {
+                store.removeAll(present);
+            }
+        } finally {
+            endChange();
+        }
+    }
+
+    /**
+     * Mark that an event in this model has been modified, so listeners can be updated accordingly.
+     * Must be called after changing the date or times of an event in this calendar, so that
+     * range queries reflect the change.
      *
      * @param event event that has been modified
      */
     public void markModified(CalendarEvent event) {
-        setChanged();
-        notifyObservers(event);
+        CalendarDelta delta = beginChange();
+        try {
+            TimeSpan before = spanOf(event);
+            if (before != null) {
+                if (delta != null) {
+                    delta.touch(event, before);
+                }
+                if (strings != null) {
+                    strings.intern(event);
+                }
+                refile(event);
+                unpublished = true;
+            }
+        } finally {
+            endChange();
+        }
+    }
+
+    /**
+     * Perform several changes to this calendar as a single unit. Listeners are notified
+     * once, after the changes have been made, with the net change to every event touched,
+     * rather than once per change. Batches may be nested; only the outermost batch
+     * notifies listeners. If the changes throw an exception, listeners are still
+     * told about any changes made before it was thrown.
+     *
+     * @param changes a function which makes changes to the calendar it is given
+     */
+    public void batch(Consumer<CalendarModel> changes) {
+        beginChange();
+        try {
+            changes.accept(this);
+        } finally {
+            endChange();
+        }
+    }
+
+    /**
+     * Share the titles and locations of this calendar's events, and of every event added or
+     * modified from now on, with the other calendars given the same interner. Events already in
+     * the calendar are interned at once; this changes no event's value, so listeners are not told.
+     * Calendars stored {@link StorageMode#PACKED packed} already hold each value once, so only
+     * their events added or modified from now on are interned; calendars read in place from a
+     * {@link CalendarSegment} intern each event as it is read. The interner is not saved with
+     * the calendar.
+     *
+     * @param interner the interner to use, or null to stop interning
+     */
+    public void setInterner(StringInterner interner) {
+        strings = interner;
+        if (store instanceof SegmentEventStore) {
+            beginChange();
+            try {
+                // snapshots decode events afresh, so a new one is needed to intern them too
+                ((SegmentEventStore) store).setInterner(interner);
+                refiled = true;
+            } finally {
+                endChange();
+            }
+            return;
+        }
+        if (interner == null || mode == StorageMode.PACKED) {
+            return;
+        }
+        beginChange();
+        try {
+            List<CalendarEvent> all = new ArrayList<>(store.getAllEvents());
+            all.addAll(recurrences.getAll());
+            for (CalendarEvent event : all) {
+                // re-file only events whose strings were replaced, so snapshots share them too
+                if (interner.intern(event)) {
+                    refile(event);
+                    refiled = true;
+                }
+            }
+        } finally {
+            endChange();
+        }
+    }
+
+    /**
+     * Register a listener to be told about every subsequent change to this calendar.
+     * Listeners registered part way through a batch are not told about that batch.
+     * Listeners are not saved with the calendar.
+     *
+     * @param listener the listener to add
+     */
+    public void addListener(CalendarListener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("CalendarListener must not be null");
+        }
+        CalendarListener[] current, updated;
+        do {
+            current = listeners;
+            updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = listener;
+        } while (!LISTENERS.compareAndSet(this, current, updated));
+    }
+
+    /**
+     * Stop telling a listener about changes to this calendar
+     *
+     * @param listener the listener to remove
+     * @return true iff the listener had been registered
+     */
+    public boolean removeListener(CalendarListener listener) {
+        CalendarListener[] current, updated;
+        do {
+            current = listeners;
+            int i = 0;
+            while (i < current.length && current[i] != listener) {
+                i++;
+            }
+            if (i == current.length) {
+                return false;
+            }
+            updated = new CalendarListener[current.length - 1];
+            System.arraycopy(current, 0, updated, 0, i);
+            System.arraycopy(current, i + 1, updated, i, updated.length - i);
+        } while (!LISTENERS.compareAndSet(this, current, updated));
+        return true;
+    }
+
+    /**
+     * @return the delta which changes should be recorded into until the matching {@link #endChange()},
+     * or null if nobody is listening
+     */
+    private CalendarDelta beginChange() {
+        if (batchDepth++ == 0) {
+            pendingDelta = listeners.length == 0 ? null : new CalendarDelta();
+        }
+        return pendingDelta;
+    }
+
+    /**
+     * publishes a new snapshot and notifies listeners of the pending delta if this ends the outermost change
+     */
+    private void endChange() {
+        if (--batchDepth != 0) {
+            return;
+        }
+        if (unpublished || refiled) {
+            // a snapshot only re-filed keeps its version, which counts changes to the calendar
+            long version = snapshot.getVersion() + (unpublished ? 1 : 0);
+            unpublished = refiled = false;
+            snapshot = new CalendarSnapshot(version, mode, store.snapshot(), recurrences.snapshot());
+        }
+        if (pendingDelta != null) {
+            CalendarDelta delta = pendingDelta;
+            pendingDelta = null;
+            List<CalendarChange> changes = delta.resolve(this);
+            if (!changes.isEmpty()) {
+                for (CalendarListener listener : listeners) {
+                    listener.calendarChanged(this, changes);
+                }
+            }
+        }
     }
 
     /**
-     * Checks if a given Date is between two Calendar dates
+     * moves the events of calendars saved as a list, in the old format or from a
+     * {@link CalendarSnapshot}, into an {@link EventStore}, and publishes the first snapshot
      *
-     * @param date   date to check
-     * @param before start date to check between
-     * @param after  end date to check between
-     * @return true if the given Date is between the two Calendar dates
+     * @param in the stream this model is being read from
+     * @throws IOException            if the stream could not be read
+     * @throws ClassNotFoundException if a serialized class could not be found
      */
-    private boolean isDateInRange(LocalDateTime date, LocalDateTime before, LocalDateTime after) {
-        return after.isAfter(date) && before.isBefore(date);
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        listeners = NO_LISTENERS;
+        if (store == null) {
+            List<CalendarEvent> saved = events == null ? Collections.emptyList() : events;
+            if (mode == StorageMode.PACKED) {
+                store = new PackedEventStore();
+                store.addAll(saved);
+            } else {
+                mode = StorageMode.OBJECTS;
+                store = new IndexedEventStore(saved);
+            }
+            events = null;
+        }
+        recurrences = new RecurrenceIndex();
+        if (recurring != null) {
+            for (CalendarEvent event : recurring) {
+                recurrences.add(event);
+            }
+            recurring = null;
+        }
+        snapshot = new CalendarSnapshot(0, mode, store.snapshot(), recurrences.snapshot());
     }
 
     /**
-     * Returns a Calendar object set to a specific year, month, and day set
+     * writes the recurring events of a live calendar alongside its store
      *
-     * @param year  year of the calendar
-     * @param month month of the calendar
-     * @param day   day of the calendar
-     * @return a calendar set to year, month, day, hour 0, minute 0
+     * @param out the stream to write to
+     * @throws IOException if the stream could not be written
      */
-    private LocalDateTime getDateTime(int year, int month, int day) {
-        return getDateTime(year, month, day, 0, 0);
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        if (recurrences == null) {
+            // a serial form, whose recurring events are already in place
+            out.defaultWriteObject();
+            return;
+        }
+        recurring = recurrences.isEmpty() ? null : new ArrayList<>(recurrences.getAll());
+        try {
+            out.defaultWriteObject();
+        } finally {
+            recurring = null;
+        }
     }
 
     /**
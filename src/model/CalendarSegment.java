@@ -0,0 +1,818 @@
+package model;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32C;
+
+/**
+ * One calendar saved to be read in place: the file is mapped into memory, and an event is
+ * only decoded when a query returns it.
+ */
+public final class CalendarSegment {
+    /**
+     * the first four bytes of every segment
+     */
+    public static final int MAGIC = 0x43414C53;
+    /**
+     * the version of the format written
+     * <p>
+     * The format, version 2, in the terms of {@link CalendarFile}:
+     * <pre>
+     * segment   := header directory data
+     * header    := magic:u32 = 0x43414C53 ("CALS")  version:u16 = 2  mode:u8  reserved:u8 = 0
+     *              sequence:u64 strings:u32 events:u32 recurring:u32 years:u32 maxLength:u32
+     *              blockSize:u32 stringBytes:u32 recordBytes:u32
+     * directory := year*years  recordBlock*ceil((events + recurring) / blockSize)
+     *              stringBlock*ceil(strings / blockSize)  idBlock*ceil(events / blockSize)
+     *              checksum:u32
+     * data      := stringEnd:u32*strings  utf8-bytes
+     *              start:u32*events  length:u32*events  id*events
+     *              recordEnd:u32*(events + recurring)  record-bytes
+     * year        := year:i32 firstRow:u32
+     * recordBlock := firstStart:i64 recordStart:u32 checksum:u32
+     * stringBlock := byteStart:u32 checksum:u32
+     * idBlock     := checksum:u32
+     * id          := id:i64 row:u32                                 in order of id
+     * </pre>
+     * Mode 0 is OBJECTS, 1 is PACKED, and the sequence is as in {@link CalendarFile}. Each string
+     * runs from the end of the one before it to its own end, counted from the first UTF-8 byte.
+     * Rows are the events which happen once, in start order, and a year holds the rows from its
+     * first up to the next year's first. A row's start is the second into its year at which the
+     * event starts, and its length the seconds until it ends; the longest is maxLength. Records
+     * likewise end where recordEnd says, the events' in the order of their rows, followed by the
+     * recurring events'. Each is an event as in {@link CalendarFile}, with its start and id
+     * relative to 0 rather than to the record before it, and strings referred to by their
+     * index plus one, or 0 for null.
+     * <p>
+     * Each block holds blockSize records, strings or ids, the last fewer. The first string or
+     * record of a block starts where its directory entry says rather than where the one before
+     * it ends, so that a damaged block cannot move its neighbours; a record block also has the
+     * epoch second its first row starts at, or {@link Long#MAX_VALUE} if it holds none. The
+     * checksums are CRC32Cs: a record block's of its rows' starts and lengths, its recordEnds and
+     * its record bytes, in that order; a string block's of its stringEnds and UTF-8 bytes; an id
+     * block's of its ids; and the directory's of everything before it, from the magic on.
+     * <p>
+     * Version 1 has no blocks: its header ends at maxLength, the year table follows the strings,
+     * and nothing is checksummed.
+     */
+    public static final int VERSION = 2;
+    /**
+     * the number of records, strings or ids in each checksummed block
+     */
+    static final int BLOCK_SIZE = 4096;
+
+    private static final int V1_HEADER_SIZE = 36;
+    private static final int HEADER_SIZE = 48;
+    private static final long SECONDS_PER_DAY = 86_400;
+    private static final Comparator<CalendarEvent> BY_START =
+            Comparator.comparing(CalendarEvent::getDate).thenComparing(CalendarEvent::getStartTime);
+
+    private final Path path;
+    private final ByteBuffer map;
+    private final int version;
+    private final CalendarModel.StorageMode mode;
+    private final int events, recurring, stringCount;
+    private final long maxLength;
+    private final int stringEnds, stringBytes, starts, lengths, ids, recordEnds, recordBytes;
+    private final int stringBytesEnd, recordBytesEnd;
+    /**
+     * the first row of each year, and the second that year starts at
+     */
+    private final int[] firstRows;
+    private final long[] yearStarts;
+    /**
+     * the number of records, strings or ids in each block; every one is in block 0 in version 1
+     */
+    private final int blockSize;
+    /**
+     * where each block's entry is in the directory, and the directory's checksum
+     */
+    private final int recordBlocks, stringBlocks, idBlocks, directoryEnd;
+    /**
+     * where each record block's and string block's first record or string starts, and the
+     * second each record block's first row starts at
+     */
+    private final int[] recordBlockStarts, stringBlockStarts;
+    private final long[] blockFirstStarts;
+    /**
+     * the blocks which failed their checksums, and the records set aside because of them;
+     * all empty unless the segment was opened to recover what it can
+     */
+    private BitSet badRecordBlocks = new BitSet(), badStringBlocks = new BitSet();
+    private BitSet lost = new BitSet();
+    /**
+     * the ids of the rows, sorted, and the row each is in, rebuilt in memory if the id index
+     * was damaged; null if it is whole
+     */
+    private long[] idKeys;
+    private int[] idRows;
+    /**
+     * the strings decoded so far, by index, so that the events sharing one share a single copy
+     */
+    private final Map<Integer, String> strings = new ConcurrentHashMap<>();
+
+    private CalendarSegment(Path path, ByteBuffer map) throws IOException {
+        this.path = path;
+        this.map = map;
+        if (map.capacity() < V1_HEADER_SIZE || map.getInt(0) != MAGIC) {
+            throw new IOException(String.format("File at \"%s\" is not a calendar segment.", path));
+        }
+        version = Short.toUnsignedInt(map.getShort(4));
+        if (version < 1 || version > VERSION) {
+            throw new IOException(String.format("Calendar segment at \"%s\" has version %d; only versions 1 to %d are supported.",
+                    path, version, VERSION));
+        }
+        int modeIndex = map.get(6);
+        stringCount = map.getInt(16);
+        events = map.getInt(20);
+        recurring = map.getInt(24);
+        int years = map.getInt(28);
+        maxLength = Integer.toUnsignedLong(map.getInt(32));
+        if (modeIndex < 0 || modeIndex >= CalendarModel.StorageMode.values().length
+                || stringCount < 0 || events < 0 || recurring < 0 || years < 0 || years > events) {
+            throw corrupted(null);
+        }
+        mode = CalendarModel.StorageMode.values()[modeIndex];
+        int records = events + recurring;
+        int yearTable;
+        if (version == 1) {
+            blockSize = Integer.MAX_VALUE;
+            recordBlocks = stringBlocks = idBlocks = directoryEnd = 0;
+            recordBlockStarts = stringBlockStarts = new int[1];
+            blockFirstStarts = new long[]{Long.MIN_VALUE};
+            stringEnds = V1_HEADER_SIZE;
+            stringBytes = section(stringEnds, 4L * stringCount);
+            stringBytesEnd = section(stringBytes, stringCount == 0 ? 0 : end(stringEnds, stringCount - 1));
+            yearTable = stringBytesEnd;
+            starts = section(yearTable, 8L * years);
+        } else {
+            if (map.capacity() < HEADER_SIZE) {
+                throw corrupted(null);
+            }
+            blockSize = map.getInt(36);
+            if (blockSize < 1) {
+                throw corrupted(null);
+            }
+            yearTable = HEADER_SIZE;
+            recordBlocks = section(yearTable, 8L * years);
+            stringBlocks = section(recordBlocks, 16L * blocks(records));
+            idBlocks = section(stringBlocks, 8L * blocks(stringCount));
+            directoryEnd = section(idBlocks, 4L * blocks(events));
+            stringEnds = section(directoryEnd, 4);
+            stringBytes = section(stringEnds, 4L * stringCount);
+            stringBytesEnd = section(stringBytes, Integer.toUnsignedLong(map.getInt(40)));
+            starts = stringBytesEnd;
+            recordBlockStarts = new int[blocks(records)];
+            blockFirstStarts = new long[recordBlockStarts.length];
+            for (int b = 0; b < recordBlockStarts.length; b++) {
+                blockFirstStarts[b] = map.getLong(recordBlocks + 16 * b);
+                recordBlockStarts[b] = map.getInt(recordBlocks + 16 * b + 8);
+            }
+            stringBlockStarts = new int[blocks(stringCount)];
+            for (int b = 0; b < stringBlockStarts.length; b++) {
+                stringBlockStarts[b] = map.getInt(stringBlocks + 8 * b);
+            }
+        }
+        lengths = section(starts, 4L * events);
+        ids = section(lengths, 4L * events);
+        recordEnds = section(ids, 12L * events);
+        recordBytes = section(recordEnds, 4L * records);
+        recordBytesEnd = section(recordBytes, version == 1
+                ? (records == 0 ? 0 : end(recordEnds, records - 1)) : Integer.toUnsignedLong(map.getInt(44)));
+        if (recordBytesEnd != map.capacity()) {
+            throw corrupted(null);
+        }
+        firstRows = new int[years];
+        yearStarts = new long[years];
+        for (int y = 0; y < years; y++) {
+            firstRows[y] = map.getInt(yearTable + 8 * y + 4);
+            yearStarts[y] = LocalDate.ofYearDay(map.getInt(yearTable + 8 * y), 1).toEpochDay() * SECONDS_PER_DAY;
+            if (y == 0 ? firstRows[y] != 0 : firstRows[y] <= firstRows[y - 1] || yearStarts[y] <= yearStarts[y - 1]) {
+                throw corrupted(null);
+            }
+        }
+    }
+
+    /**
+     * @return the number of blocks holding the given number of records, strings or ids
+     */
+    private int blocks(int count) {
+        return (int) ((count + (long) blockSize - 1) / blockSize);
+    }
+
+    /**
+     * @return the position just after a section of the file, which must be within the file
+     */
+    private int section(int at, long size) throws IOException {
+        if (size < 0 || at + size > map.capacity()) {
+            throw corrupted(null);
+        }
+        return (int) (at + size);
+    }
+
+    /**
+     * @return the end of the i-th of a run of ends, which must be in order
+     */
+    private int end(int at, int i) throws IOException {
+        int end = map.getInt(at + 4 * i);
+        if (end < 0 || (i > 0 && end < map.getInt(at + 4 * (i - 1)))) {
+            throw corrupted(null);
+        }
+        return end;
+    }
+
+    private IOException corrupted(Throwable cause) {
+        return new IOException(String.format("Calendar segment at \"%s\" is corrupted.", path), cause);
+    }
+
+    /**
+     * @param path any file
+     * @return true iff the file starts with {@link #MAGIC}
+     * @throws IOException if the file could not be read
+     */
+    public static boolean isSegment(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            while (magic.hasRemaining() && channel.read(magic) >= 0) {
+                // keep reading until the magic is in, or the file ends
+            }
+            return !magic.hasRemaining() && magic.getInt(0) == MAGIC;
+        }
+    }
+
+    /**
+     * Write a calendar to a file, replacing anything in it, and force it to the disk.
+     * The file must not be one which is open: write a new file and rename it into place.
+     *
+     * @param path     the file to write
+     * @param snapshot the calendar to write
+     * @param sequence the number of the last journal record the calendar includes, or 0
+     * @throws IOException if the file could not be written
+     */
+    public static void write(Path path, CalendarSnapshot snapshot, long sequence) throws IOException {
+        List<CalendarEvent> once = new ArrayList<>(), repeating = new ArrayList<>();
+        Map<String, Integer> strings = new LinkedHashMap<>();
+        for (CalendarEvent event : snapshot.getEvents()) {
+            (event.getRecurrence() == null ? once : repeating).add(event);
+            CalendarFile.intern(strings, event.getTitle());
+            CalendarFile.intern(strings, event.getLocation());
+            CalendarFile.intern(strings, event.getNotes());
+        }
+        // a stable sort, so events starting together keep the order they were added in
+        once.sort(BY_START);
+
+        List<Integer> years = new ArrayList<>(), firstRows = new ArrayList<>();
+        long[] spans = new long[2 * once.size()];
+        long[] byId = new long[once.size()];
+        long maxLength = 0;
+        for (int row = 0; row < once.size(); row++) {
+            CalendarEvent event = once.get(row);
+            TimeSpan span = TimeSpan.of(event);
+            int year = event.getDate().getYear();
+            if (years.isEmpty() || years.get(years.size() - 1) != year) {
+                years.add(year);
+                firstRows.add(row);
+            }
+            spans[2 * row] = span.getStart() - LocalDate.ofYearDay(year, 1).toEpochDay() * SECONDS_PER_DAY;
+            spans[2 * row + 1] = span.getEnd() - span.getStart();
+            maxLength = Math.max(maxLength, span.getEnd() - span.getStart());
+            byId[row] = event.getId();
+        }
+        Integer[] idOrder = new Integer[once.size()];
+        for (int row = 0; row < idOrder.length; row++) {
+            idOrder[row] = row;
+        }
+        Arrays.sort(idOrder, Comparator.comparingLong(row -> byId[row]));
+
+        CalendarFile.Output records = new CalendarFile.Output(1 << 12);
+        int[] recordEnds = new int[once.size() + repeating.size()];
+        CalendarFile.EventWriter writer = new CalendarFile.EventWriter(
+                (o, string) -> o.putVarint(CalendarFile.index(strings, string)));
+        for (int i = 0; i < recordEnds.length; i++) {
+            writer.reset();
+            writer.write(records, i < once.size() ? once.get(i) : repeating.get(i - once.size()));
+            recordEnds[i] = records.size();
+        }
+        List<byte[]> utf8 = new ArrayList<>(strings.size());
+        int[] stringEnds = new int[strings.size()];
+        for (String string : strings.keySet()) {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            stringEnds[utf8.size()] = (utf8.isEmpty() ? 0 : stringEnds[utf8.size() - 1]) + bytes.length;
+            utf8.add(bytes);
+        }
+
+        // the whole file is put together first, as the directory holds the checksums of what follows it
+        CalendarFile.Output out = new CalendarFile.Output(HEADER_SIZE + 32 * recordEnds.length + records.size()
+                + (stringEnds.length == 0 ? 0 : stringEnds[stringEnds.length - 1]) + 1024);
+        out.putInt(MAGIC);
+        out.putShort(VERSION);
+        out.putByte(snapshot.getStorageMode().ordinal());
+        out.putByte(0);
+        out.putLong(sequence);
+        out.putInt(strings.size());
+        out.putInt(once.size());
+        out.putInt(repeating.size());
+        out.putInt(years.size());
+        out.putInt(Math.toIntExact(maxLength));
+        out.putInt(BLOCK_SIZE);
+        out.putInt(stringEnds.length == 0 ? 0 : stringEnds[stringEnds.length - 1]);
+        out.putInt(records.size());
+        for (int y = 0; y < years.size(); y++) {
+            out.putInt(years.get(y));
+            out.putInt(firstRows.get(y));
+        }
+        for (int first = 0; first < recordEnds.length; first += BLOCK_SIZE) {
+            out.putLong(first < once.size() ? TimeSpan.of(once.get(first)).getStart() : Long.MAX_VALUE);
+            out.putInt(first == 0 ? 0 : recordEnds[first - 1]);
+            out.putInt(0);
+        }
+        for (int first = 0; first < stringEnds.length; first += BLOCK_SIZE) {
+            out.putInt(first == 0 ? 0 : stringEnds[first - 1]);
+            out.putInt(0);
+        }
+        for (int first = 0; first < once.size(); first += BLOCK_SIZE) {
+            out.putInt(0);
+        }
+        out.putInt(0);
+        for (int end : stringEnds) {
+            out.putInt(end);
+        }
+        for (byte[] bytes : utf8) {
+            out.put(bytes, 0, bytes.length);
+        }
+        for (int row = 0; row < once.size(); row++) {
+            out.putInt(Math.toIntExact(spans[2 * row]));
+        }
+        for (int row = 0; row < once.size(); row++) {
+            out.putInt(Math.toIntExact(spans[2 * row + 1]));
+        }
+        for (int row : idOrder) {
+            out.putLong(byId[row]);
+            out.putInt(row);
+        }
+        for (int end : recordEnds) {
+            out.putInt(end);
+        }
+        out.put(records.array(), 0, records.size());
+
+        ByteBuffer file = ByteBuffer.wrap(out.array(), 0, out.size()).slice();
+        CalendarSegment written = new CalendarSegment(path, file);
+        for (int b = 0; b < written.recordBlockStarts.length; b++) {
+            file.putInt(written.recordBlocks + 16 * b + 12, written.recordBlockChecksum(b));
+        }
+        for (int b = 0; b < written.stringBlockStarts.length; b++) {
+            file.putInt(written.stringBlocks + 8 * b + 4, written.stringBlockChecksum(b));
+        }
+        for (int b = 0; b < written.blocks(once.size()); b++) {
+            file.putInt(written.idBlocks + 4 * b, written.idBlockChecksum(b));
+        }
+        file.putInt(written.directoryEnd, written.directoryChecksum());
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (file.hasRemaining()) {
+                channel.write(file);
+            }
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Open a calendar written by {@link #write(Path, CalendarSnapshot, long)}, mapping the file
+     * into memory rather than reading it. The file must not be changed while the calendar is
+     * in use; saving it again writes a new file.
+     *
+     * @param path the file to open
+     * @return the calendar, which reads each event from the file when it is first needed
+     * @throws IOException if the file could not be mapped, is not a segment, has a version
+     *                     this does not know, or is corrupt, even in part
+     */
+    public static CalendarModel open(Path path) throws IOException {
+        return open(path, problem -> {
+            throw new UncheckedIOException(new IOException(problem));
+        });
+    }
+
+    /**
+     * Open a calendar written by {@link #write(Path, CalendarSnapshot, long)} as
+     * {@link #open(Path)} does, except that the events in blocks which fail their checksums
+     * are left out, rather than the whole calendar being refused
+     *
+     * @param path     the file to open
+     * @param problems told of each part of the file set aside, and how many events it cost
+     * @return the calendar, without the events set aside
+     * @throws IOException if the file could not be mapped, is not a segment, has a version
+     *                     this does not know, or has a corrupt header or directory
+     */
+    public static CalendarModel open(Path path, Consumer<String> problems) throws IOException {
+        ByteBuffer map;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(String.format("File at \"%s\" is too large.", path));
+            }
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        try {
+            CalendarSegment segment = new CalendarSegment(path, map);
+            if (segment.version > 1) {
+                segment.verify(problems);
+            }
+            Reader reader = segment.reader();
+            List<CalendarEvent> repeating = new ArrayList<>(segment.recurring);
+            for (int i = 0; i < segment.recurring; i++) {
+                if (!segment.lost.get(segment.events + i)) {
+                    repeating.add(reader.decode(segment.events + i));
+                }
+            }
+            if (segment.idKeys != null && segment.idKeys.length > 0) {
+                CalendarEvent.reserveId(segment.idKeys[segment.idKeys.length - 1]);
+            } else if (segment.events > 0) {
+                CalendarEvent.reserveId(map.getLong(segment.ids + 12 * (segment.events - 1)));
+            }
+            return new CalendarModel(segment, repeating);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } catch (RuntimeException e) {
+            throw new IOException(String.format("Calendar segment at \"%s\" is corrupted.", path), e);
+        }
+    }
+
+    /**
+     * check every block against its checksum, on as many threads as there are processors,
+     * and set aside the events in those which fail
+     */
+    private void verify(Consumer<String> problems) throws IOException {
+        if (map.getInt(directoryEnd) != directoryChecksum()) {
+            throw new IOException(String.format("Calendar segment at \"%s\" has a corrupted header.", path));
+        }
+        int records = recordBlockStarts.length, strings = stringBlockStarts.length, idTable = blocks(events);
+        int[] bad = IntStream.range(0, records + strings + idTable).parallel().filter(i -> {
+            if (i < records) {
+                return map.getInt(recordBlocks + 16 * i + 12) != recordBlockChecksum(i);
+            } else if (i < records + strings) {
+                return map.getInt(stringBlocks + 8 * (i - records) + 4) != stringBlockChecksum(i - records);
+            }
+            return map.getInt(idBlocks + 4 * (i - records - strings)) != idBlockChecksum(i - records - strings);
+        }).toArray();
+        BitSet badIdBlocks = new BitSet();
+        for (int i : bad) {
+            if (i < records) {
+                badRecordBlocks.set(i);
+                int first = i * blockSize, last = Math.min(first + blockSize, events + recurring);
+                lost.set(first, last);
+                problems.accept(String.format("Records %d to %d of the calendar segment at \"%s\" failed their checksum; "
+                        + "their %d events were set aside.", first, last - 1, path, last - first));
+            } else if (i < records + strings) {
+                badStringBlocks.set(i - records);
+            } else {
+                badIdBlocks.set(i - records - strings);
+            }
+        }
+        Reader reader = reader();
+        if (!badStringBlocks.isEmpty()) {
+            // the events using a damaged string are as good as damaged themselves
+            int before = lost.cardinality();
+            for (int record = lost.nextClearBit(0); record < events + recurring; record = lost.nextClearBit(record + 1)) {
+                try {
+                    reader.decode(record);
+                } catch (IOException | RuntimeException e) {
+                    lost.set(record);
+                }
+            }
+            problems.accept(String.format("Strings in %d blocks of the calendar segment at \"%s\" failed their checksum; "
+                    + "the %d events using them were set aside.", badStringBlocks.cardinality(), path, lost.cardinality() - before));
+        }
+        if (!badIdBlocks.isEmpty()) {
+            rebuildIds(badIdBlocks, reader);
+            problems.accept(String.format("%d blocks of the id index of the calendar segment at \"%s\" failed their checksum; "
+                    + "the index was rebuilt.", badIdBlocks.cardinality(), path));
+        }
+    }
+
+    /**
+     * rebuild the id index in memory from its blocks which are whole, and the events the others held
+     */
+    private void rebuildIds(BitSet badIdBlocks, Reader reader) throws IOException {
+        long[] keys = new long[events];
+        int[] rows = new int[events];
+        int n = 0;
+        BitSet found = new BitSet(events);
+        for (int entry = 0; entry < events; entry++) {
+            int row = map.getInt(ids + 12 * entry + 8);
+            if (!badIdBlocks.get(entry / blockSize) && row >= 0 && row < events && !found.get(row)) {
+                found.set(row);
+                keys[n] = map.getLong(ids + 12 * entry);
+                rows[n++] = row;
+            }
+        }
+        for (int row = found.nextClearBit(0); row < events; row = found.nextClearBit(row + 1)) {
+            if (!lost.get(row)) {
+                keys[n] = reader.decode(row).getId();
+                rows[n++] = row;
+            }
+        }
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingLong(i -> keys[i]));
+        idKeys = new long[n];
+        idRows = new int[n];
+        for (int i = 0; i < n; i++) {
+            idKeys[i] = keys[order[i]];
+            idRows[i] = rows[order[i]];
+        }
+    }
+
+    private int directoryChecksum() {
+        return checksum(0, directoryEnd);
+    }
+
+    private int recordBlockChecksum(int block) {
+        int first = block * blockSize, last = (int) Math.min((long) first + blockSize, events + recurring);
+        int rowsEnd = Math.min(last, events), rows = Math.max(0, rowsEnd - first);
+        int bytesEnd = block + 1 < recordBlockStarts.length ? recordBlockStarts[block + 1] : recordBytesEnd - recordBytes;
+        return checksum(starts + 4 * first, 4 * rows, lengths + 4 * first, 4 * rows,
+                recordEnds + 4 * first, 4 * (last - first),
+                recordBytes + recordBlockStarts[block], bytesEnd - recordBlockStarts[block]);
+    }
+
+    private int stringBlockChecksum(int block) {
+        int first = block * blockSize, last = (int) Math.min((long) first + blockSize, stringCount);
+        int bytesEnd = block + 1 < stringBlockStarts.length ? stringBlockStarts[block + 1] : stringBytesEnd - stringBytes;
+        return checksum(stringEnds + 4 * first, 4 * (last - first),
+                stringBytes + stringBlockStarts[block], bytesEnd - stringBlockStarts[block]);
+    }
+
+    private int idBlockChecksum(int block) {
+        int first = block * blockSize, last = (int) Math.min((long) first + blockSize, events);
+        return checksum(ids + 12 * first, 12 * (last - first));
+    }
+
+    /**
+     * @param ranges the position and length of each of a number of runs of bytes
+     * @return the CRC32C of the runs, one after the other; 0 if any of them is not within the file
+     */
+    private int checksum(int... ranges) {
+        CRC32C crc = new CRC32C();
+        ByteBuffer bytes = map.duplicate();
+        for (int i = 0; i < ranges.length; i += 2) {
+            int at = ranges[i], length = ranges[i + 1];
+            if (length == 0) {
+                continue;
+            } else if (at < 0 || length < 0 || (long) at + length > map.capacity()) {
+                return 0;
+            }
+            bytes.limit(at + length).position(at);
+            crc.update(bytes);
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * @return how the calendar stores the events it does not read from the segment
+     */
+    CalendarModel.StorageMode getStorageMode() {
+        return mode;
+    }
+
+    /**
+     * @return the number of events in the segment which happen once, including any set aside
+     */
+    int size() {
+        return events;
+    }
+
+    /**
+     * @return the rows set aside as their blocks were damaged, which must not be read; not to be changed
+     */
+    BitSet getLostRows() {
+        return lost.get(0, events);
+    }
+
+    /**
+     * @return the most seconds any event in the segment lasts
+     */
+    long getMaxLength() {
+        return maxLength;
+    }
+
+    /**
+     * @param row a row of the segment
+     * @return the second the row's event starts at
+     */
+    long startOf(int row) {
+        return yearStarts[yearOf(row)] + map.getInt(starts + 4 * row);
+    }
+
+    /**
+     * @param row a row of the segment
+     * @return the second the row's event ends at
+     */
+    long endOf(int row) {
+        return startOf(row) + map.getInt(lengths + 4 * row);
+    }
+
+    /**
+     * @param row a row of the segment
+     * @return the span the row's event was saved with
+     */
+    TimeSpan spanOf(int row) {
+        long start = startOf(row);
+        return new TimeSpan(start, start + map.getInt(lengths + 4 * row));
+    }
+
+    /**
+     * @param id the id of an event
+     * @return the row holding the event with that id, or -1 if there is none
+     */
+    int rowOf(long id) {
+        if (idKeys != null) {
+            int i = Arrays.binarySearch(idKeys, id);
+            return i < 0 ? -1 : idRows[i];
+        }
+        int lo = 0, hi = events;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            long found = map.getLong(ids + 12 * mid);
+            if (found < id) lo = mid + 1;
+            else if (found > id) hi = mid;
+            else return map.getInt(ids + 12 * mid + 8);
+        }
+        return -1;
+    }
+
+    /**
+     * tell the action the id of every event in the segment which happens once, without decoding any
+     *
+     * @param skip   the rows whose events are to be left out
+     * @param action told each id
+     */
+    void forEachId(BitSet skip, LongConsumer action) {
+        if (idKeys != null) {
+            for (int i = 0; i < idKeys.length; i++) {
+                if (!skip.get(idRows[i])) {
+                    action.accept(idKeys[i]);
+                }
+            }
+            return;
+        }
+        for (int entry = 0; entry < events; entry++) {
+            if (!skip.get(map.getInt(ids + 12 * entry + 8))) {
+                action.accept(map.getLong(ids + 12 * entry));
+            }
+        }
+    }
+
+    /**
+     * @param second an epoch second
+     * @return the first row whose event does not start before that second
+     */
+    int lowerBound(long second) {
+        // the last year starting at or before the second
+        int lo = 0, hi = yearStarts.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (yearStarts[mid] <= second) lo = mid + 1;
+            else hi = mid;
+        }
+        int year = lo - 1;
+        if (year < 0) {
+            return 0;
+        }
+        long key = second - yearStarts[year];
+        int from = firstRows[year], to = year + 1 < firstRows.length ? firstRows[year + 1] : events;
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            if (relativeStart(mid, year) < key) from = mid + 1;
+            else to = mid;
+        }
+        return from;
+    }
+
+    /**
+     * @return the second into the year at which a row starts; for a row set aside, the second
+     * its block's first row starts at instead, which keeps the rows in order without reading it
+     */
+    private long relativeStart(int row, int year) {
+        int block = row / blockSize;
+        if (badRecordBlocks.get(block)) {
+            return blockFirstStarts[block] - yearStarts[year];
+        }
+        return map.getInt(starts + 4 * row);
+    }
+
+    /**
+     * @param second an epoch second
+     * @return the first row whose event starts after that second
+     */
+    int upperBound(long second) {
+        return second == Long.MAX_VALUE ? events : lowerBound(second + 1);
+    }
+
+    /**
+     * @return the year, as an index into {@link #firstRows}, holding a row
+     */
+    private int yearOf(int row) {
+        int lo = 0, hi = firstRows.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (firstRows[mid] <= row) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo - 1;
+    }
+
+    /**
+     * @param index the index of a string, plus one, or 0 for null
+     * @return the string
+     */
+    private String string(long index) throws IOException {
+        if (index == 0) {
+            return null;
+        } else if (index < 0 || index > stringCount) {
+            throw corrupted(null);
+        }
+        int i = (int) index - 1;
+        String string = strings.get(i);
+        if (string == null) {
+            if (badStringBlocks.get(i / blockSize)) {
+                throw corrupted(null);
+            }
+            int from = i % blockSize == 0 ? stringBlockStarts[i / blockSize] : map.getInt(stringEnds + 4 * (i - 1));
+            int to = map.getInt(stringEnds + 4 * i);
+            byte[] utf8 = new byte[to - from];
+            map.get(stringBytes + from, utf8);
+            string = new String(utf8, StandardCharsets.UTF_8);
+            String raced = strings.putIfAbsent(i, string);
+            if (raced != null) {
+                string = raced;
+            }
+        }
+        return string;
+    }
+
+    /**
+     * @return a new reader of the segment's events, for use by one thread at a time
+     */
+    Reader reader() {
+        return new Reader();
+    }
+
+    /**
+     * Decodes the segment's events one at a time. Not safe for use by more than one thread.
+     */
+    final class Reader {
+        private final ByteBuffer in = map.duplicate();
+        private final CalendarFile.EventReader reader = new CalendarFile.EventReader(
+                buffer -> string(CalendarFile.getVarint(buffer)));
+
+        private Reader() {
+        }
+
+        /**
+         * @param row a row of the segment
+         * @return a new CalendarEvent holding the row's event
+         * @throws UncheckedIOException if the event is corrupt
+         */
+        CalendarEvent read(int row) {
+            try {
+                return decode(row);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (RuntimeException e) {
+                throw new UncheckedIOException(corrupted(e));
+            }
+        }
+
+        private CalendarEvent decode(int record) throws IOException {
+            int end = map.getInt(recordEnds + 4 * record);
+            int start = record % blockSize == 0 ? recordBlockStarts[record / blockSize] : map.getInt(recordEnds + 4 * (record - 1));
+            in.limit(recordBytes + end).position(recordBytes + start);
+            reader.reset();
+            CalendarEvent event = reader.read(in);
+            if (in.hasRemaining()) {
+                throw corrupted(null);
+            }
+            return event;
+        }
+    }
+}
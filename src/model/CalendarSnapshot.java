@@ -0,0 +1,82 @@
+package model;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An immutable copy of the contents of a {@link CalendarModel} at the end of one change,
+ * which may be read from any thread while the calendar goes on being changed.
+ *
+ * @see CalendarModel#snapshot()
+ */
+public final class CalendarSnapshot implements Serializable {
+    private static final long serialVersionUID = -2466911372707317455L;
+
+    private final long version;
+    private final CalendarModel.StorageMode mode;
+    private final transient EventSnapshot events;
+    /**
+     * private copies of the calendar's recurring events, which are never changed
+     */
+    private final transient List<CalendarEvent> recurring;
+
+    /**
+     * @param version   the number of changes made to the calendar since it was created or loaded
+     * @param mode      how the calendar stores its events
+     * @param events    the calendar's events
+     * @param recurring the calendar's recurring events
+     */
+    CalendarSnapshot(long version, CalendarModel.StorageMode mode, EventSnapshot events,
+                     List<CalendarEvent> recurring) {
+        this.version = version;
+        this.mode = mode;
+        this.events = events;
+        this.recurring = recurring;
+    }
+
+    /**
+     * @return the number of changes, or batches of changes, made to the calendar between
+     * it being created or loaded and this snapshot being taken. A later snapshot of the same
+     * calendar has a higher version iff the calendar changed in between.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return how the calendar stores its events
+     */
+    public CalendarModel.StorageMode getStorageMode() {
+        return mode;
+    }
+
+    /**
+     * @return the number of events in the snapshot, counting each recurring event once
+     */
+    public int size() {
+        return events.size() + recurring.size();
+    }
+
+    /**
+     * @return new copies of every event in the snapshot, which the caller may change freely.
+     * Recurring events are copied once, after every other event.
+     */
+    public List<CalendarEvent> getEvents() {
+        List<CalendarEvent> copies = events.copyEvents();
+        if (!recurring.isEmpty()) {
+            copies = new ArrayList<>(copies);
+            for (CalendarEvent event : recurring) {
+                copies.add(new CalendarEvent(event));
+            }
+        }
+        return copies;
+    }
+
+    /**
+     * @return a calendar which serializes to this snapshot's events
+     */
+    private Object writeReplace() {
+        return events.toSerialForm(recurring);
+    }
+}
@@ -0,0 +1,45 @@
+package model;
+
+import javafx.scene.paint.Color;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Converts between colors and packed ARGB ints, handing out one shared Color for each
+ * packed value.
+ */
+final class ColorPalette {
+    private static final ConcurrentMap<Integer, Color> COLORS = new ConcurrentHashMap<>();
+
+    private ColorPalette() {
+    }
+
+    /**
+     * @param color any color
+     * @return the color packed as 8 bits each of opacity, red, green and blue
+     */
+    static int pack(Color color) {
+        return channel(color.getOpacity()) << 24
+                | channel(color.getRed()) << 16
+                | channel(color.getGreen()) << 8
+                | channel(color.getBlue());
+    }
+
+    /**
+     * @param argb a value returned by {@link #pack(Color)}
+     * @return the shared color it represents
+     */
+    static Color color(int argb) {
+        Color color = COLORS.get(argb);
+        if (color == null) {
+            color = COLORS.computeIfAbsent(argb, packed -> Color.rgb(
+                    (packed >> 16) & 0xFF, (packed >> 8) & 0xFF, packed & 0xFF, ((packed >>> 24) & 0xFF) / 255.0));
+        }
+        return color;
+    }
+
+    private static int channel(double value) {
+        return (int) Math.round(value * 255);
+    }
+}
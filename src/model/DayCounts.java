@@ -0,0 +1,96 @@
+package model;
+
+/**
+ * A Fenwick (binary indexed) tree counting events per day, so that the number of
+ * events within any range of days is found in O(log d) time.
+ */
+class DayCounts {
+    private static final int INITIAL_CAPACITY = 512;
+
+    /**
+     * the epoch day counted by index 0 of {@link #perDay}
+     */
+    private long origin;
+    private int[] perDay = new int[0];
+    /**
+     * 1-based Fenwick tree over {@link #perDay}
+     */
+    private int[] tree = new int[1];
+
+    /**
+     * @param day   an epoch day
+     * @param delta the amount to change the count of events on that day by
+     */
+    void add(long day, int delta) {
+        if (perDay.length == 0) {
+            origin = day - INITIAL_CAPACITY / 2;
+            resize(origin, INITIAL_CAPACITY);
+        } else if (day < origin || day >= origin + perDay.length) {
+            long lo = Math.min(origin, day), hi = Math.max(origin + perDay.length, day + 1);
+            int capacity = (int) Math.max(perDay.length * 2L, hi - lo);
+            // leave room to grow in the direction the range is being extended
+            resize(day < origin ? hi - capacity : lo, capacity);
+        }
+        int i = (int) (day - origin);
+        perDay[i] += delta;
+        for (i++; i < tree.length; i += i & -i) {
+            tree[i] += delta;
+        }
+    }
+
+    /**
+     * @param fromDay the first epoch day (inclusive)
+     * @param toDay   the last epoch day (exclusive)
+     * @return the number of events on those days
+     */
+    int count(long fromDay, long toDay) {
+        return fromDay >= toDay ? 0 : prefix(toDay) - prefix(fromDay);
+    }
+
+    /**
+     * @param day an epoch day
+     * @return the number of events on days before the given day
+     */
+    private int prefix(long day) {
+        long offset = day - origin;
+        if (offset <= 0) {
+            return 0;
+        }
+        int sum = 0;
+        for (int i = (int) Math.min(offset, perDay.length); i > 0; i -= i & -i) {
+            sum += tree[i];
+        }
+        return sum;
+    }
+
+    /**
+     * move the counted range of days, rebuilding the Fenwick tree in O(capacity) time
+     *
+     * @param newOrigin   the epoch day to be counted by index 0
+     * @param newCapacity the number of days to count
+     */
+    private void resize(long newOrigin, int newCapacity) {
+        int[] counts = new int[newCapacity];
+        if (perDay.length > 0) {
+            System.arraycopy(perDay, 0, counts, (int) (origin - newOrigin), perDay.length);
+        }
+        perDay = counts;
+        origin = newOrigin;
+        tree = new int[newCapacity + 1];
+        for (int i = 1; i <= newCapacity; i++) {
+            tree[i] += counts[i - 1];
+            int parent = i + (i & -i);
+            if (parent <= newCapacity) {
+                tree[parent] += tree[i];
+            }
+        }
+    }
+
+    /**
+     * forget every count
+     */
+    void clear() {
+        perDay = new int[0];
+        tree = new int[1];
+    }
+}
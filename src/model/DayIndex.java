@@ -0,0 +1,219 @@
+package model;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+/**
+ * A secondary index of CalendarEvents, bucketed by the day on which they take place
+ * and sorted by start time within each day.
+ */
+class DayIndex {
+    private static final long SECONDS_PER_DAY = 86_400;
+    private final NavigableMap<Long, List<CalendarEvent>> buckets = new TreeMap<>();
+    private final Map<CalendarEvent, TimeSpan> filedUnder = new IdentityHashMap<>();
+    private final DayCounts counts = new DayCounts();
+
+    /**
+     * remove every event from the index
+     */
+    void clear() {
+        buckets.clear();
+        filedUnder.clear();
+        counts.clear();
+    }
+
+    /**
+     * add an event to the bucket for its current date, after any events in that bucket
+     * which start at or before it. If the event is already present it is re-filed instead.
+     *
+     * @param event the event to add
+     */
+    void insert(CalendarEvent event) {
+        remove(event);
+        TimeSpan span = TimeSpan.of(event);
+        List<CalendarEvent> bucket = buckets.computeIfAbsent(span.getStartEpochDay(), d -> new ArrayList<>());
+        // binary search for the first event starting strictly after this one
+        int lo = 0, hi = bucket.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (filedUnder.get(bucket.get(mid)).getStart() <= span.getStart()) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        bucket.add(lo, event);
+        filedUnder.put(event, span);
+        counts.add(span.getStartEpochDay(), 1);
+    }
+
+    /**
+     * remove an event from the index
+     *
+     * @param event the event to remove
+     * @return true iff the event was present
+     */
+    boolean remove(CalendarEvent event) {
+        TimeSpan span = filedUnder.remove(event);
+        if (span == null) {
+            return false;
+        }
+        List<CalendarEvent> bucket = buckets.get(span.getStartEpochDay());
+        for (int i = 0; i < bucket.size(); i++) {
+            if (bucket.get(i) == event) {
+                bucket.remove(i);
+                break;
+            }
+        }
+        if (bucket.isEmpty()) {
+            buckets.remove(span.getStartEpochDay());
+        }
+        counts.add(span.getStartEpochDay(), -1);
+        return true;
+    }
+
+    /**
+     * @param fromDay the first day, in days since the epoch (inclusive)
+     * @param toDay   the last day, in days since the epoch (exclusive)
+     * @return every event taking place within the given days, ordered by start time
+     */
+    CalendarEvent[] getEventsInDays(long fromDay, long toDay) {
+        NavigableMap<Long, List<CalendarEvent>> range = buckets.subMap(fromDay, true, toDay, false);
+        if (range.size() == 1) {
+            return range.firstEntry().getValue().toArray(new CalendarEvent[0]);
+        }
+        List<CalendarEvent> found = new ArrayList<>();
+        for (List<CalendarEvent> bucket : range.values()) {
+            found.addAll(bucket);
+        }
+        return found.toArray(new CalendarEvent[0]);
+    }
+
+    /**
+     * @param fromDay the first day, in days since the epoch (inclusive)
+     * @param toDay   the last day, in days since the epoch (exclusive)
+     * @return the number of events taking place within the given days
+     */
+    int countInDays(long fromDay, long toDay) {
+        return counts.count(fromDay, toDay);
+    }
+
+    /**
+     * count the events overlapping a window without creating any objects.
+     * Whole days inside the window are counted in O(log n); only the events on the
+     * first and last day of the window are tested individually.
+     *
+     * @param lo exclusive start of the window, in epoch seconds
+     * @param hi exclusive end of the window, in epoch seconds
+     * @return the number of events whose span overlaps the window
+     * @see TimeSpan#overlaps(long, long)
+     */
+    int countInRange(long lo, long hi) {
+        // events never cross midnight, so none on a day after the one containing hi - 1 can overlap
+        long firstDay = Math.floorDiv(lo, SECONDS_PER_DAY), lastDay = Math.floorDiv(hi - 1, SECONDS_PER_DAY);
+        if (firstDay > lastDay) {
+            return 0;
+        }
+        int count = countOverlapping(firstDay, lo, hi);
+        if (lastDay != firstDay) {
+            count += counts.count(firstDay + 1, lastDay) + countOverlapping(lastDay, lo, hi);
+        }
+        return count;
+    }
+
+    /**
+     * find the events overlapping a window lazily, in start order. Events never cross midnight,
+     * so only the days from the one containing lo to the one containing hi - 1 are visited.
+     *
+     * @param lo exclusive start of the window, in epoch seconds
+     * @param hi exclusive end of the window, in epoch seconds
+     * @return an iterator over every event whose span overlaps the window.
+     * The index must not be changed while it is in use.
+     */
+    Iterator<CalendarEvent> iterateRange(long lo, long hi) {
+        long firstDay = Math.floorDiv(lo, SECONDS_PER_DAY), lastDay = Math.floorDiv(hi - 1, SECONDS_PER_DAY);
+        if (firstDay > lastDay) {
+            return Collections.emptyIterator();
+        }
+        Iterator<List<CalendarEvent>> days = buckets.subMap(firstDay, true, lastDay, true).values().iterator();
+        return new Iterator<CalendarEvent>() {
+            private List<CalendarEvent> bucket = Collections.emptyList();
+            private int i;
+            private CalendarEvent next = advance();
+
+            private CalendarEvent advance() {
+                while (true) {
+                    while (i < bucket.size()) {
+                        CalendarEvent event = bucket.get(i++);
+                        TimeSpan span = filedUnder.get(event);
+                        if (span.getStart() >= hi) {
+                            return null;
+                        } else if (span.getEnd() > lo) {
+                            return event;
+                        }
+                    }
+                    if (!days.hasNext()) {
+                        return null;
+                    }
+                    bucket = days.next();
+                    i = 0;
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public CalendarEvent next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                CalendarEvent event = next;
+                next = advance();
+                return event;
+            }
+        };
+    }
+
+    /**
+     * @return the number of events on the given day which overlap the window (lo, hi)
+     */
+    private int countOverlapping(long day, long lo, long hi) {
+        List<CalendarEvent> bucket = buckets.get(day);
+        if (bucket == null) {
+            return 0;
+        }
+        int count = 0;
+        for (int i = 0; i < bucket.size(); i++) {
+            if (filedUnder.get(bucket.get(i)).overlaps(lo, hi)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param from the first day (inclusive)
+     * @param to   the last day (exclusive)
+     * @return a map from each day within the range which has any events,
+     * to that day's events ordered by start time
+     */
+    NavigableMap<LocalDate, CalendarEvent[]> getEventsByDay(LocalDate from, LocalDate to) {
+        NavigableMap<LocalDate, CalendarEvent[]> result = new TreeMap<>();
+        for (Map.Entry<Long, List<CalendarEvent>> e
+                : buckets.subMap(from.toEpochDay(), true, to.toEpochDay(), false).entrySet()) {
+            result.put(LocalDate.ofEpochDay(e.getKey()), e.getValue().toArray(new CalendarEvent[0]));
+        }
+        return result;
+    }
+}
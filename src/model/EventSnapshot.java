@@ -0,0 +1,27 @@
+package model;
+
+import java.util.List;
+
+/**
+ * An immutable copy of the contents of an {@link EventStore} at one moment,
+ * safe to read from any thread.
+ */
+interface EventSnapshot {
+
+    /**
+     * @return the number of events in the snapshot
+     */
+    int size();
+
+    /**
+     * @return new copies of every event in the snapshot, in the order the store would save them
+     */
+    List<CalendarEvent> copyEvents();
+
+    /**
+     * @param recurring the calendar's recurring events, which are kept apart from the store
+     * @return a calendar which serializes to the contents of the snapshot and the given recurring events.
+     * It exists only to be written out, and must not be used for anything else.
+     */
+    CalendarModel toSerialForm(List<CalendarEvent> recurring);
+}
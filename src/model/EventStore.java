@@ -0,0 +1,162 @@
+package model;
+
+import java.io.Serializable;
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.function.LongConsumer;
+
+/**
+ * The storage backing a {@link CalendarModel}. All implementations answer queries
+ * with events ordered by start time.
+ */
+interface EventStore extends Serializable {
+
+    /**
+     * @return the number of events in the store
+     */
+    int size();
+
+    /**
+     * @param id the id of an event
+     * @return the event in the store with that id, or null if there is none
+     * @see CalendarEvent#getId()
+     */
+    CalendarEvent get(long id);
+
+    /**
+     * @param event any event
+     * @return the span under which the given event is currently filed,
+     * or null if it is not in the store
+     */
+    TimeSpan spanOf(CalendarEvent event);
+
+    /**
+     * add an event to the store under its current span.
+     * If the event is already present it is re-filed instead.
+     * An event whose id is already taken by another event in the store is given a new id.
+     *
+     * @param event the event to add
+     */
+    void add(CalendarEvent event);
+
+    /**
+     * add many events at once, more cheaply than adding them one at a time
+     *
+     * @param events distinct events, none of which are already in the store
+     */
+    void addAll(List<CalendarEvent> events);
+
+    /**
+     * @param event the event to remove
+     * @return true iff the event was present
+     */
+    boolean remove(CalendarEvent event);
+
+    /**
+     * remove many events at once, more cheaply than removing them one at a time
+     *
+     * @param events distinct events, all of which are in the store
+     */
+    void removeAll(Collection<CalendarEvent> events);
+
+    /**
+     * re-file an event whose date or times may have changed.
+     * Does nothing if the event is not in the store.
+     *
+     * @param event the event which changed
+     */
+    void update(CalendarEvent event);
+
+    /**
+     * @param lo exclusive start of the window, in epoch seconds
+     * @param hi exclusive end of the window, in epoch seconds
+     * @return every event whose span overlaps the window, ordered by start time
+     * @see TimeSpan#overlaps(long, long)
+     */
+    CalendarEvent[] getEventsInRange(long lo, long hi);
+
+    /**
+     * find the events {@link #getEventsInRange(long, long)} would return one at a time,
+     * as the iterator is advanced. The store must not be changed while the iterator is in use.
+     *
+     * @param lo exclusive start of the window, in epoch seconds
+     * @param hi exclusive end of the window, in epoch seconds
+     * @return an iterator over every event whose span overlaps the window, ordered by start time
+     */
+    Iterator<CalendarEvent> iterateRange(long lo, long hi);
+
+    /**
+     * count the events {@link #getEventsInRange(long, long)} would return,
+     * without creating any objects
+     *
+     * @param lo exclusive start of the window, in epoch seconds
+     * @param hi exclusive end of the window, in epoch seconds
+     * @return the number of events whose span overlaps the window
+     */
+    int countInRange(long lo, long hi);
+
+    /**
+     * count the events {@link #getEventsInDays(long, long)} would return,
+     * without creating any objects
+     *
+     * @param fromDay the first day, in days since the epoch (inclusive)
+     * @param toDay   the last day, in days since the epoch (exclusive)
+     * @return the number of events taking place within the given days
+     */
+    int countInDays(long fromDay, long toDay);
+
+    /**
+     * the same as {@link #getEventsInRange(long, long)}, but found by testing every event in
+     * the store rather than by using an index. Cheaper than the index for very small stores.
+     *
+     * @param lo       exclusive start of the window, in epoch seconds
+     * @param hi       exclusive end of the window, in epoch seconds
+     * @param parallel whether to split the scan across the threads of the calling ForkJoinPool
+     * @return every event whose span overlaps the window, ordered by start time
+     */
+    CalendarEvent[] scanRange(long lo, long hi, boolean parallel);
+
+    /**
+     * @return a span from the earliest start to the latest start of any event
+     * in the store, or null if the store is empty
+     */
+    TimeSpan getBounds();
+
+    /**
+     * @param fromDay the first day, in days since the epoch (inclusive)
+     * @param toDay   the last day, in days since the epoch (exclusive)
+     * @return every event taking place within the given days, ordered by start time
+     */
+    CalendarEvent[] getEventsInDays(long fromDay, long toDay);
+
+    /**
+     * @param from the first day (inclusive)
+     * @param to   the last day (exclusive)
+     * @return a map from each day within the range which has any events,
+     * to that day's events ordered by start time
+     */
+    NavigableMap<LocalDate, CalendarEvent[]> getEventsByDay(LocalDate from, LocalDate to);
+
+    /**
+     * @return an unmodifiable list of every event in the store
+     */
+    List<CalendarEvent> getAllEvents();
+
+    /**
+     * tell the action the id of every event in the store, without creating any events
+     *
+     * @param action told each id
+     */
+    void forEachId(LongConsumer action);
+
+    /**
+     * Capture the store's current contents in O(1) time. Must be called from the thread
+     * which changes the store, but the snapshot may then be read from any thread.
+     *
+     * @return an immutable snapshot of every event in the store, as of its last add or update
+     */
+    EventSnapshot snapshot();
+}
@@ -0,0 +1,861 @@
+package model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.DateTimeException;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Reads and writes calendars as iCalendar (RFC 5545) files, streaming in both directions.
+ * Only VEVENTs are read; other components and properties are ignored.
+ */
+public final class ICalendar {
+    /**
+     * the most events handed over at once
+     */
+    static final int BATCH_SIZE = 4096;
+    /**
+     * files smaller than this, per thread, are not worth splitting
+     */
+    static final long MIN_CHUNK = 1 << 20;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int MAX_LINE = 1 << 20;
+    private static final int FOLD_AT = 75;
+    private static final byte[] BEGIN_VEVENT = "BEGIN:VEVENT".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] BEGIN_VCALENDAR = "BEGIN:VCALENDAR".getBytes(StandardCharsets.US_ASCII);
+
+    private ICalendar() {
+    }
+
+    /**
+     * Receives what is read from a file, always on the thread which called
+     * {@link #read(Path, ZoneId, int, Sink)}
+     */
+    public interface Sink {
+        /**
+         * @param events the next events read, in no particular order. The sink may keep the list.
+         */
+        void accept(List<CalendarEvent> events);
+
+        /**
+         * @param offset the position in the file of the VEVENT which was skipped
+         * @param reason why it could not be read
+         */
+        void skip(long offset, String reason);
+    }
+
+    /**
+     * Read every VEVENT in an iCalendar file
+     *
+     * @param path    the file to read
+     * @param zone    the time zone to convert times in other zones to
+     * @param threads the most threads to parse the file on at once
+     * @param sink    what to hand the events read to
+     * @throws IOException if the file could not be read, or does not begin as an iCalendar file does
+     */
+    public static void read(Path path, ZoneId zone, int threads, Sink sink) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer head = ByteBuffer.allocate(BEGIN_VCALENDAR.length + 3);
+            while (head.hasRemaining() && channel.read(head, head.position()) >= 0) {
+                // keep reading until the head is in, or the file ends
+            }
+            head.flip();
+            if (head.remaining() >= 3 && head.get(0) == (byte) 0xEF && head.get(1) == (byte) 0xBB
+                    && head.get(2) == (byte) 0xBF) {
+                head.position(3);
+            }
+            if (!startsWith(head, head.position(), BEGIN_VCALENDAR)) {
+                throw new IOException(String.format("File at \"%s\" is not an iCalendar file.", path));
+            }
+            int chunks = (int) Math.max(1, Math.min(threads, size / MIN_CHUNK));
+            if (chunks == 1) {
+                new Parser(channel, 0, size, zone, batch -> batch.deliver(sink)).parse();
+                return;
+            }
+            readInParallel(channel, size, chunks, zone, sink);
+        }
+    }
+
+    /**
+     * split a file into chunks beginning with a VEVENT, and parse them on a thread each,
+     * handing the batches read to the sink as they arrive
+     */
+    private static void readInParallel(FileChannel channel, long size, int chunks, ZoneId zone, Sink sink)
+            throws IOException {
+        List<Long> starts = new ArrayList<>();
+        starts.add(0L);
+        for (int i = 1; i < chunks; i++) {
+            long start = nextEvent(channel, Math.max(starts.get(starts.size() - 1), size / chunks * i), size);
+            if (start < size && start > starts.get(starts.size() - 1)) {
+                starts.add(start);
+            }
+        }
+        starts.add(size);
+        int n = starts.size() - 1;
+        // a few batches per thread in flight, so that memory stays bounded however large the file
+        BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(2 * n);
+        ExecutorService pool = Executors.newFixedThreadPool(n, task -> {
+            Thread thread = new Thread(task, "icalendar-reader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            for (int i = 0; i < n; i++) {
+                long from = starts.get(i), to = starts.get(i + 1);
+                pool.execute(() -> {
+                    Batch last = new Batch();
+                    try {
+                        new Parser(channel, from, to, zone, batch -> {
+                            try {
+                                queue.put(batch);
+                            } catch (InterruptedException e) {
+                                throw new IllegalStateException(e);
+                            }
+                        }).parse();
+                    } catch (IOException | RuntimeException e) {
+                        last.failure = e;
+                    }
+                    last.done = true;
+                    try {
+                        queue.put(last);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            }
+            for (int done = 0; done < n; ) {
+                Batch batch;
+                try {
+                    batch = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while reading an iCalendar file", e);
+                }
+                if (batch.failure instanceof IOException) {
+                    throw (IOException) batch.failure;
+                } else if (batch.failure != null) {
+                    throw (RuntimeException) batch.failure;
+                }
+                batch.deliver(sink);
+                if (batch.done) {
+                    done++;
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the position of the first line from the given one on which is BEGIN:VEVENT, or the size if there is none
+     */
+    private static long nextEvent(FileChannel channel, long from, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        // the line before the one searched for must end within what has been read
+        long position = Math.max(0, from - 1);
+        while (position < size) {
+            buffer.clear();
+            int n = channel.read(buffer, position);
+            if (n <= 0) {
+                break;
+            }
+            buffer.flip();
+            for (int i = 0; i < n; i++) {
+                if (buffer.get(i) != '\n') {
+                    continue;
+                }
+                if (i + 1 + BEGIN_VEVENT.length > n) {
+                    // the line is cut off by the end of the buffer: read again from it
+                    if (position + i + 1 >= size || n < buffer.capacity()) {
+                        return size;
+                    }
+                    break;
+                }
+                if (startsWith(buffer, i + 1, BEGIN_VEVENT)) {
+                    return position + i + 1;
+                }
+            }
+            long next = position + n;
+            for (int i = n - 1; i >= 0; i--) {
+                if (buffer.get(i) == '\n') {
+                    next = position + i;
+                    break;
+                }
+            }
+            position = next > position ? next : position + n;
+        }
+        return size;
+    }
+
+    private static boolean startsWith(ByteBuffer buffer, int at, byte[] prefix) {
+        if (buffer.limit() - at < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (Character.toUpperCase(buffer.get(at + i)) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * the events and skipped VEVENTs read from part of a file
+     */
+    private static final class Batch {
+        private final List<CalendarEvent> events = new ArrayList<>();
+        private final List<Long> skippedAt = new ArrayList<>();
+        private final List<String> skippedBecause = new ArrayList<>();
+        /**
+         * true iff this is the last batch of its chunk
+         */
+        private boolean done;
+        private Exception failure;
+
+        private void deliver(Sink sink) {
+            for (int i = 0; i < skippedAt.size(); i++) {
+                sink.skip(skippedAt.get(i), skippedBecause.get(i));
+            }
+            if (!events.isEmpty()) {
+                sink.accept(events);
+            }
+        }
+    }
+
+    /**
+     * Takes each batch once it is full
+     */
+    private interface BatchSink {
+        void put(Batch batch);
+    }
+
+    /**
+     * Reads the unfolded content lines of part of a file, from a buffer refilled as it is used up
+     */
+    private static final class LineReader {
+        private final FileChannel channel;
+        private final long end;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        /**
+         * the position in the file of the start of the buffer
+         */
+        private long bufferAt;
+        private byte[] line = new byte[256];
+        private int length;
+        private long lineAt;
+
+        private LineReader(FileChannel channel, long from, long end) {
+            this.channel = channel;
+            this.end = end;
+            this.bufferAt = from;
+            buffer.limit(0);
+        }
+
+        /**
+         * @return the position in the file of the line last returned
+         */
+        long offset() {
+            return lineAt;
+        }
+
+        /**
+         * @return the next line, with any lines folded into it unfolded, or null if there are no more
+         */
+        String next() throws IOException {
+            lineAt = bufferAt + buffer.position();
+            length = 0;
+            int b = read();
+            if (b < 0) {
+                return null;
+            }
+            while (b >= 0) {
+                if (b == '\n') {
+                    if (length > 0 && line[length - 1] == '\r') {
+                        length--;
+                    }
+                    int next = peek();
+                    if (next != ' ' && next != '\t') {
+                        break;
+                    }
+                    // a folded line: drop the line break and the space after it
+                    read();
+                } else {
+                    if (length == line.length) {
+                        if (length >= MAX_LINE) {
+                            throw new IOException("line at byte " + lineAt + " is longer than " + MAX_LINE + " bytes");
+                        }
+                        line = java.util.Arrays.copyOf(line, length * 2);
+                    }
+                    line[length++] = (byte) b;
+                }
+                b = read();
+            }
+            return new String(line, 0, length, StandardCharsets.UTF_8);
+        }
+
+        private int read() throws IOException {
+            return fill() ? buffer.get() & 0xFF : -1;
+        }
+
+        private int peek() throws IOException {
+            return fill() ? buffer.get(buffer.position()) & 0xFF : -1;
+        }
+
+        /**
+         * @return true iff there is a byte left to read
+         */
+        private boolean fill() throws IOException {
+            if (buffer.hasRemaining()) {
+                return true;
+            }
+            bufferAt += buffer.limit();
+            buffer.clear();
+            if (bufferAt >= end) {
+                buffer.limit(0);
+                return false;
+            }
+            buffer.limit((int) Math.min(buffer.capacity(), end - bufferAt));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, bufferAt + buffer.position()) < 0) {
+                    break;
+                }
+            }
+            buffer.flip();
+            return buffer.hasRemaining();
+        }
+    }
+
+    /**
+     * Turns the VEVENTs in part of a file into events
+     */
+    private static final class Parser {
+        private final LineReader lines;
+        private final ZoneId zone;
+        private final BatchSink out;
+        private final Map<String, ZoneId> zones = new HashMap<>();
+        private Batch batch = new Batch();
+
+        // the properties of the VEVENT being read
+        private long eventAt;
+        private String summary, location, description, rrule;
+        private Property dtstart, dtend, duration;
+        private final List<Property> exdates = new ArrayList<>();
+
+        private Parser(FileChannel channel, long from, long to, ZoneId zone, BatchSink out) {
+            this.lines = new LineReader(channel, from, to);
+            this.zone = zone;
+            this.out = out;
+        }
+
+        private void parse() throws IOException {
+            boolean inEvent = false;
+            int depth = 0;
+            for (String line; (line = lines.next()) != null; ) {
+                if (!inEvent) {
+                    if (line.equalsIgnoreCase("BEGIN:VEVENT")) {
+                        inEvent = true;
+                        depth = 0;
+                        begin(lines.offset());
+                    }
+                } else if (startsWithIgnoreCase(line, "BEGIN:")) {
+                    // an alarm or other component within the event
+                    depth++;
+                } else if (startsWithIgnoreCase(line, "END:")) {
+                    if (depth > 0) {
+                        depth--;
+                    } else {
+                        inEvent = false;
+                        end();
+                    }
+                } else if (depth == 0) {
+                    property(line);
+                }
+            }
+            if (inEvent) {
+                skip("the VEVENT does not end");
+            }
+            if (!batch.events.isEmpty() || !batch.skippedAt.isEmpty()) {
+                out.put(batch);
+            }
+        }
+
+        private void begin(long offset) {
+            eventAt = offset;
+            summary = location = description = rrule = null;
+            dtstart = dtend = duration = null;
+            exdates.clear();
+        }
+
+        private void property(String line) {
+            Property property = Property.parse(line);
+            if (property == null) {
+                return;
+            }
+            switch (property.name) {
+                case "SUMMARY":
+                    summary = unescape(property.value);
+                    break;
+                case "LOCATION":
+                    location = unescape(property.value);
+                    break;
+                case "DESCRIPTION":
+                    description = unescape(property.value);
+                    break;
+                case "DTSTART":
+                    dtstart = property;
+                    break;
+                case "DTEND":
+                    dtend = property;
+                    break;
+                case "DURATION":
+                    duration = property;
+                    break;
+                case "RRULE":
+                    rrule = property.value;
+                    break;
+                case "EXDATE":
+                    exdates.add(property);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void end() {
+            if (dtstart == null) {
+                skip("the VEVENT has no DTSTART");
+                return;
+            }
+            try {
+                batch.events.add(toEvent());
+            } catch (DateTimeException | IllegalArgumentException | IndexOutOfBoundsException e) {
+                skip(e.getMessage() == null ? e.toString() : e.getMessage());
+                return;
+            }
+            if (batch.events.size() == BATCH_SIZE) {
+                out.put(batch);
+                batch = new Batch();
+            }
+        }
+
+        private void skip(String reason) {
+            batch.skippedAt.add(eventAt);
+            batch.skippedBecause.add(reason);
+        }
+
+        private CalendarEvent toEvent() {
+            LocalDateTime start = dateTime(dtstart);
+            LocalDate date = start.toLocalDate();
+            LocalTime startTime = start.toLocalTime(), endTime = null;
+            if (dtstart.isDate()) {
+                startTime = LocalTime.MIDNIGHT;
+                endTime = LocalTime.MAX;
+            } else if (dtend != null || duration != null) {
+                LocalDateTime end = dtend != null ? dateTime(dtend) : start.plus(duration(duration.value));
+                if (end.isBefore(start)) {
+                    end = start;
+                }
+                endTime = end.toLocalDate().isAfter(date) ? LocalTime.MAX : end.toLocalTime();
+            }
+            CalendarEvent event = new CalendarEvent(summary, date, startTime, endTime, location, description);
+            if (rrule != null) {
+                event.setRecurrence(rule(rrule, date));
+            }
+            return event;
+        }
+
+        /**
+         * @return the rule, or null if it repeats more often than daily
+         */
+        private RecurrenceRule rule(String value, LocalDate date) {
+            RecurrenceRule.Frequency frequency = null;
+            int interval = 1, count = 0;
+            LocalDate until = null;
+            for (String part : value.split(";")) {
+                int eq = part.indexOf('=');
+                if (eq < 0) {
+                    continue;
+                }
+                String key = part.substring(0, eq).toUpperCase(Locale.ROOT), v = part.substring(eq + 1);
+                switch (key) {
+                    case "FREQ":
+                        for (RecurrenceRule.Frequency f : RecurrenceRule.Frequency.values()) {
+                            if (f.name().equalsIgnoreCase(v)) {
+                                frequency = f;
+                            }
+                        }
+                        break;
+                    case "INTERVAL":
+                        interval = Integer.parseInt(v);
+                        break;
+                    case "COUNT":
+                        count = Integer.parseInt(v);
+                        break;
+                    case "UNTIL":
+                        until = dateTime(new Property("UNTIL", null, v)).toLocalDate();
+                        break;
+                    default:
+                        break;
+                }
+            }
+            if (frequency == null) {
+                return null;
+            }
+            RecurrenceRule rule = new RecurrenceRule(frequency, interval).withCount(count).withUntil(until);
+            List<LocalDate> exceptions = new ArrayList<>();
+            for (Property exdate : exdates) {
+                for (String v : exdate.value.split(",")) {
+                    exceptions.add(dateTime(new Property("EXDATE", exdate.tzid, v)).toLocalDate());
+                }
+            }
+            return exceptions.isEmpty() ? rule : rule.withExceptions(exceptions);
+        }
+
+        /**
+         * @return the date and time a DATE or DATE-TIME value stands for, in {@link #zone} if it is in another
+         */
+        private LocalDateTime dateTime(Property property) {
+            String v = property.value.trim();
+            LocalDate date = LocalDate.of(digits(v, 0, 4), digits(v, 4, 2), digits(v, 6, 2));
+            if (v.length() == 8) {
+                return date.atStartOfDay();
+            } else if (v.charAt(8) != 'T' || (v.length() != 15 && !(v.length() == 16 && v.charAt(15) == 'Z'))) {
+                throw new IllegalArgumentException("\"" + v + "\" is not a date and time");
+            }
+            LocalDateTime local = date.atTime(digits(v, 9, 2), digits(v, 11, 2), Math.min(59, digits(v, 13, 2)));
+            ZoneId from = v.length() == 16 ? ZoneOffset.UTC : zoneOf(property.tzid);
+            return from == null ? local : local.atZone(from).withZoneSameInstant(zone).toLocalDateTime();
+        }
+
+        /**
+         * @return the zone with the given id, or null if there is none or it is not known
+         */
+        private ZoneId zoneOf(String tzid) {
+            if (tzid == null) {
+                return null;
+            }
+            return zones.computeIfAbsent(tzid, id -> {
+                try {
+                    return ZoneId.of(id.startsWith("/") ? id.substring(1) : id);
+                } catch (DateTimeException e) {
+                    return null;
+                }
+            });
+        }
+
+        private static int digits(String s, int from, int count) {
+            int value = 0;
+            for (int i = from; i < from + count; i++) {
+                int digit = s.charAt(i) - '0';
+                if (digit < 0 || digit > 9) {
+                    throw new IllegalArgumentException("\"" + s + "\" is not a date and time");
+                }
+                value = value * 10 + digit;
+            }
+            return value;
+        }
+
+        /**
+         * @return a DURATION value, which may be in weeks
+         */
+        private static Duration duration(String value) {
+            String v = value.trim();
+            boolean negative = v.startsWith("-");
+            if (v.startsWith("+") || negative) {
+                v = v.substring(1);
+            }
+            Duration d = v.endsWith("W")
+                    ? Duration.ofDays(7L * Integer.parseInt(v.substring(1, v.length() - 1)))
+                    : Duration.parse(v);
+            return negative ? d.negated() : d;
+        }
+
+        private static boolean startsWithIgnoreCase(String s, String prefix) {
+            return s.regionMatches(true, 0, prefix, 0, prefix.length());
+        }
+    }
+
+    /**
+     * One content line: its name, its TZID if it has one, whether it is a DATE, and its value
+     */
+    private static final class Property {
+        private final String name;
+        private final String tzid;
+        private final String value;
+        private boolean date;
+
+        private Property(String name, String tzid, String value) {
+            this.name = name;
+            this.tzid = tzid;
+            this.value = value;
+        }
+
+        /**
+         * @return true iff the value is a date without a time
+         */
+        private boolean isDate() {
+            return date || value.trim().length() == 8;
+        }
+
+        /**
+         * @return the property on a line, or null if the line is not one
+         */
+        private static Property parse(String line) {
+            int nameEnd = 0;
+            while (nameEnd < line.length() && line.charAt(nameEnd) != ';' && line.charAt(nameEnd) != ':') {
+                nameEnd++;
+            }
+            if (nameEnd == line.length()) {
+                return null;
+            }
+            String name = line.substring(0, nameEnd).toUpperCase(Locale.ROOT);
+            String tzid = null;
+            boolean date = false;
+            int i = nameEnd;
+            while (i < line.length() && line.charAt(i) == ';') {
+                int paramStart = ++i;
+                boolean quoted = false;
+                while (i < line.length() && (quoted || (line.charAt(i) != ';' && line.charAt(i) != ':'))) {
+                    if (line.charAt(i) == '"') {
+                        quoted = !quoted;
+                    }
+                    i++;
+                }
+                String param = line.substring(paramStart, i);
+                int eq = param.indexOf('=');
+                if (eq > 0) {
+                    String key = param.substring(0, eq).toUpperCase(Locale.ROOT);
+                    String v = param.substring(eq + 1).replace("\"", "");
+                    if (key.equals("TZID")) {
+                        tzid = v;
+                    } else if (key.equals("VALUE")) {
+                        date = v.equalsIgnoreCase("DATE");
+                    }
+                }
+            }
+            if (i >= line.length()) {
+                return null;
+            }
+            Property property = new Property(name, tzid, line.substring(i + 1));
+            property.date = date;
+            return property;
+        }
+    }
+
+    /**
+     * @return a TEXT value with its escapes undone
+     */
+    static String unescape(String value) {
+        if (value.indexOf('\\') < 0) {
+            return value;
+        }
+        StringBuilder s = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                s.append(next == 'n' || next == 'N' ? '\n' : next);
+            } else {
+                s.append(c);
+            }
+        }
+        return s.toString();
+    }
+
+    /**
+     * @return a string escaped as a TEXT value
+     */
+    static String escape(String value) {
+        StringBuilder s = new StringBuilder(value.length() + 8);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == ';' || c == ',') {
+                s.append('\\').append(c);
+            } else if (c == '\n') {
+                s.append("\\n");
+            } else if (c != '\r') {
+                s.append(c);
+            }
+        }
+        return s.toString();
+    }
+
+    /**
+     * Writes events to a channel as an iCalendar document, a buffer at a time. The document is
+     * begun when the writer is created, and must be ended with {@link #finish()}.
+     */
+    public static final class Writer {
+        private final WritableByteChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private final String stamp;
+        private final StringBuilder line = new StringBuilder(128);
+
+        /**
+         * @param channel the channel to write to, which is left open
+         * @throws IOException if the channel could not be written
+         */
+        public Writer(WritableByteChannel channel) throws IOException {
+            this.channel = channel;
+            this.stamp = dateTime(LocalDateTime.now(ZoneOffset.UTC)) + "Z";
+            put("BEGIN:VCALENDAR");
+            put("VERSION:2.0");
+            put("PRODID:-//Calendar//Calendar//EN");
+            put("CALSCALE:GREGORIAN");
+        }
+
+        /**
+         * @param event the event to write next
+         * @throws IOException if the channel could not be written
+         */
+        public void write(CalendarEvent event) throws IOException {
+            LocalDate date = event.getDate();
+            LocalTime start = event.getStartTime(), end = event.getEndTime();
+            boolean allDay = LocalTime.MIDNIGHT.equals(start) && LocalTime.MAX.equals(end);
+            put("BEGIN:VEVENT");
+            put("UID:" + event.getId() + "@calendar");
+            put("DTSTAMP:" + stamp);
+            if (allDay) {
+                put("DTSTART;VALUE=DATE:" + date(date));
+                put("DTEND;VALUE=DATE:" + date(date.plusDays(1)));
+            } else {
+                put("DTSTART:" + dateTime(date.atTime(start)));
+                if (end != null) {
+                    put("DTEND:" + dateTime(LocalTime.MAX.equals(end) ? date.plusDays(1).atStartOfDay() : date.atTime(end)));
+                }
+            }
+            if (event.getTitle() != null) {
+                put("SUMMARY:" + escape(event.getTitle()));
+            }
+            if (event.getLocation() != null) {
+                put("LOCATION:" + escape(event.getLocation()));
+            }
+            if (event.getNotes() != null) {
+                put("DESCRIPTION:" + escape(event.getNotes()));
+            }
+            RecurrenceRule rule = event.getRecurrence();
+            if (rule != null) {
+                line.setLength(0);
+                line.append("RRULE:FREQ=").append(rule.getFrequency()).append(";INTERVAL=").append(rule.getInterval());
+                if (rule.getCount() > 0) {
+                    line.append(";COUNT=").append(rule.getCount());
+                }
+                if (rule.getUntil() != null) {
+                    line.append(";UNTIL=").append(allDay ? date(rule.getUntil()) : dateTime(rule.getUntil().atTime(LocalTime.of(23, 59, 59))));
+                }
+                put(line.toString());
+                if (!rule.getExceptions().isEmpty()) {
+                    line.setLength(0);
+                    line.append(allDay ? "EXDATE;VALUE=DATE:" : "EXDATE:");
+                    for (LocalDate exception : rule.getExceptions()) {
+                        line.append(allDay ? date(exception) : dateTime(exception.atTime(start))).append(',');
+                    }
+                    line.setLength(line.length() - 1);
+                    put(line.toString());
+                }
+            }
+            put("END:VEVENT");
+        }
+
+        /**
+         * end the document, and write out everything buffered
+         *
+         * @throws IOException if the channel could not be written
+         */
+        public void finish() throws IOException {
+            put("END:VCALENDAR");
+            flush();
+        }
+
+        /**
+         * write a content line, folded so that no line is longer than 75 bytes
+         */
+        private void put(String contentLine) throws IOException {
+            byte[] utf8 = contentLine.getBytes(StandardCharsets.UTF_8);
+            int from = 0, room = FOLD_AT;
+            while (utf8.length - from > room) {
+                int to = from + room;
+                // never fold within a character
+                while ((utf8[to] & 0xC0) == 0x80) {
+                    to--;
+                }
+                putBytes(utf8, from, to - from);
+                putBytes(new byte[]{'\r', '\n', ' '}, 0, 3);
+                from = to;
+                room = FOLD_AT - 1;
+            }
+            putBytes(utf8, from, utf8.length - from);
+            putBytes(new byte[]{'\r', '\n'}, 0, 2);
+        }
+
+        private void putBytes(byte[] bytes, int off, int len) throws IOException {
+            while (len > 0) {
+                if (!buffer.hasRemaining()) {
+                    flush();
+                }
+                int n = Math.min(len, buffer.remaining());
+                buffer.put(bytes, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        private static String date(LocalDate date) {
+            StringBuilder s = new StringBuilder(8);
+            appendDate(s, date);
+            return s.toString();
+        }
+
+        private static String dateTime(LocalDateTime dateTime) {
+            StringBuilder s = new StringBuilder(15);
+            appendDate(s, dateTime.toLocalDate());
+            s.append('T');
+            appendDigits(s, dateTime.getHour(), 2);
+            appendDigits(s, dateTime.getMinute(), 2);
+            appendDigits(s, dateTime.getSecond(), 2);
+            return s.toString();
+        }
+
+        private static void appendDate(StringBuilder s, LocalDate date) {
+            appendDigits(s, date.getYear(), 4);
+            appendDigits(s, date.getMonthValue(), 2);
+            appendDigits(s, date.getDayOfMonth(), 2);
+        }
+
+        /**
+         * append a number of up to the given number of digits, padded with zeros
+         */
+        private static void appendDigits(StringBuilder s, int value, int digits) {
+            for (int d = digits - 1, scale = (int) Math.pow(10, d); d >= 0; d--, scale /= 10) {
+                s.append((char) ('0' + value / scale % 10));
+            }
+        }
+    }
+}
@@ -0,0 +1,375 @@
+package model;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.function.LongConsumer;
+import java.util.stream.Stream;
+
+/**
+ * Stores CalendarEvent objects in a list, indexed by an {@link IntervalTree}
+ * for range queries and a {@link DayIndex} for whole-day queries.
+ * This is the default storage for a {@link CalendarModel}.
+ */
+class IndexedEventStore implements EventStore {
+    private static final long serialVersionUID = -6401594627123309514L;
+    private final List<CalendarEvent> events = new ArrayList<>();
+    /**
+     * the position of each event in {@link #events}, by id
+     */
+    private transient LongMap positions = new LongMap();
+    /**
+     * the number of removed events whose places in {@link #events} are still null
+     */
+    private transient int holes;
+    private transient IntervalTree tree = new IntervalTree();
+    private transient DayIndex days = new DayIndex();
+    /**
+     * a frozen copy of each event, as of the last time it was added or updated
+     */
+    private transient PersistentEventMap<Frozen> frozen = PersistentEventMap.empty();
+    /**
+     * collects changes to {@link #frozen} since the last snapshot; null if there are none
+     */
+    private transient PersistentEventMap.Editor<Frozen> editor;
+    private transient Snapshot snapshot;
+    /**
+     * the number of events ever added, numbering frozen copies in the order of {@link #events}
+     */
+    private transient long added;
+
+    /**
+     * @param events the events to initially fill the store with
+     */
+    IndexedEventStore(Iterable<CalendarEvent> events) {
+        for (CalendarEvent event : events) {
+            add(event);
+        }
+    }
+
+    @Override
+    public int size() {
+        return events.size() - holes;
+    }
+
+    @Override
+    public CalendarEvent get(long id) {
+        long position = positions.get(id);
+        return position == LongMap.MISSING ? null : events.get((int) position);
+    }
+
+    @Override
+    public TimeSpan spanOf(CalendarEvent event) {
+        return tree.spanOf(event);
+    }
+
+    @Override
+    public void add(CalendarEvent event) {
+        if (tree.spanOf(event) == null) {
+            append(event);
+            freeze(event, added++);
+        } else {
+            freeze(event, editor().get(event).order);
+        }
+        tree.insert(event);
+        days.insert(event);
+    }
+
+    @Override
+    public void addAll(List<CalendarEvent> toAdd) {
+        for (CalendarEvent event : toAdd) {
+            append(event);
+        }
+        tree.insertAll(toAdd);
+        for (CalendarEvent event : toAdd) {
+            days.insert(event);
+            freeze(event, added++);
+        }
+    }
+
+    @Override
+    public void removeAll(Collection<CalendarEvent> toRemove) {
+        for (CalendarEvent event : toRemove) {
+            tree.remove(event);
+            days.remove(event);
+            editor().remove(event);
+            punch(event);
+        }
+        // one pass over the list, rather than one per event
+        compact();
+    }
+
+    @Override
+    public boolean remove(CalendarEvent event) {
+        if (!tree.remove(event)) {
+            return false;
+        }
+        days.remove(event);
+        editor().remove(event);
+        punch(event);
+        if (holes > 16 && holes * 2 > events.size()) {
+            compact();
+        }
+        return true;
+    }
+
+    /**
+     * add an event to the end of the list, giving it a new id if its own is taken
+     */
+    private void append(CalendarEvent event) {
+        if (positions.get(event.getId()) != LongMap.MISSING) {
+            event.renumber();
+        }
+        positions.put(event.getId(), events.size());
+        events.add(event);
+    }
+
+    /**
+     * leave a hole in the list where a removed event was
+     */
+    private void punch(CalendarEvent event) {
+        long position = positions.remove(event.getId());
+        events.set((int) position, null);
+        holes++;
+    }
+
+    /**
+     * close up the holes in the list, keeping the events in order
+     */
+    private void compact() {
+        if (holes > 0) {
+            events.removeIf(Objects::isNull);
+            holes = 0;
+            for (int i = 0; i < events.size(); i++) {
+                positions.put(events.get(i).getId(), i);
+            }
+        }
+    }
+
+    @Override
+    public void update(CalendarEvent event) {
+        if (tree.spanOf(event) != null) {
+            tree.insert(event);
+            days.insert(event);
+            freeze(event, editor().get(event).order);
+        }
+    }
+
+    @Override
+    public EventSnapshot snapshot() {
+        if (editor != null) {
+            frozen = editor.freeze();
+            editor = null;
+            snapshot = null;
+        }
+        if (snapshot == null) {
+            snapshot = new Snapshot(frozen);
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return the editor collecting changes for the next snapshot
+     */
+    private PersistentEventMap.Editor<Frozen> editor() {
+        if (editor == null) {
+            editor = frozen.edit();
+        }
+        return editor;
+    }
+
+    /**
+     * record a private copy of an event's current state for future snapshots
+     *
+     * @param event the event to copy
+     * @param order the event's position among every event ever added
+     */
+    private void freeze(CalendarEvent event, long order) {
+        editor().put(event, new Frozen(new CalendarEvent(event), order));
+    }
+
+    @Override
+    public CalendarEvent[] getEventsInRange(long lo, long hi) {
+        List<CalendarEvent> found = new ArrayList<>();
+        tree.query(lo, hi, found::add);
+        return found.toArray(new CalendarEvent[0]);
+    }
+
+    @Override
+    public Iterator<CalendarEvent> iterateRange(long lo, long hi) {
+        return days.iterateRange(lo, hi);
+    }
+
+    @Override
+    public int countInRange(long lo, long hi) {
+        return days.countInRange(lo, hi);
+    }
+
+    @Override
+    public int countInDays(long fromDay, long toDay) {
+        return days.countInDays(fromDay, toDay);
+    }
+
+    @Override
+    public CalendarEvent[] scanRange(long lo, long hi, boolean parallel) {
+        Stream<CalendarEvent> stream = parallel ? events.parallelStream() : events.stream();
+        CalendarEvent[] found = stream
+                .filter(event -> event != null && tree.spanOf(event).overlaps(lo, hi))
+                .toArray(CalendarEvent[]::new);
+        // the list is in insertion order; a stable sort keeps ties in that order
+        Comparator<CalendarEvent> byStart = Comparator.comparingLong(event -> tree.spanOf(event).getStart());
+        if (parallel) {
+            Arrays.parallelSort(found, byStart);
+        } else {
+            Arrays.sort(found, byStart);
+        }
+        return found;
+    }
+
+    @Override
+    public TimeSpan getBounds() {
+        return tree.getBounds();
+    }
+
+    @Override
+    public CalendarEvent[] getEventsInDays(long fromDay, long toDay) {
+        return days.getEventsInDays(fromDay, toDay);
+    }
+
+    @Override
+    public NavigableMap<LocalDate, CalendarEvent[]> getEventsByDay(LocalDate from, LocalDate to) {
+        return days.getEventsByDay(from, to);
+    }
+
+    @Override
+    public List<CalendarEvent> getAllEvents() {
+        return Collections.unmodifiableList(holes == 0 ? events : withoutHoles());
+    }
+
+    @Override
+    public void forEachId(LongConsumer action) {
+        for (CalendarEvent event : events) {
+            if (event != null) {
+                action.accept(event.getId());
+            }
+        }
+    }
+
+    /**
+     * @return a copy of the list without its holes
+     */
+    private ArrayList<CalendarEvent> withoutHoles() {
+        ArrayList<CalendarEvent> kept = new ArrayList<>(events.size() - holes);
+        for (CalendarEvent event : events) {
+            if (event != null) {
+                kept.add(event);
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * restores the transient indexes after deserialization
+     *
+     * @param in the stream this store is being read from
+     * @throws IOException            if the stream could not be read
+     * @throws ClassNotFoundException if a serialized class could not be found
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        tree = new IntervalTree();
+        days = new DayIndex();
+        frozen = PersistentEventMap.empty();
+        positions = new LongMap();
+        for (int i = 0; i < events.size(); i++) {
+            CalendarEvent event = events.get(i);
+            if (positions.get(event.getId()) != LongMap.MISSING) {
+                event.renumber();
+            }
+            positions.put(event.getId(), i);
+            tree.insert(event);
+            days.insert(event);
+            freeze(event, added++);
+        }
+    }
+
+    /**
+     * writes the list without its holes, leaving the store as it is
+     *
+     * @param out the stream to write to
+     * @throws IOException if the stream could not be written
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("events", holes == 0 ? events : withoutHoles());
+        out.writeFields();
+    }
+
+    /**
+     * a private copy of an event, and its position in {@link #events}
+     */
+    private static final class Frozen {
+        private final CalendarEvent copy;
+        private final long order;
+
+        private Frozen(CalendarEvent copy, long order) {
+            this.copy = copy;
+            this.order = order;
+        }
+    }
+
+    /**
+     * the frozen copies of every event in the store at one moment
+     */
+    private static final class Snapshot implements EventSnapshot {
+        private final PersistentEventMap<Frozen> frozen;
+
+        private Snapshot(PersistentEventMap<Frozen> frozen) {
+            this.frozen = frozen;
+        }
+
+        @Override
+        public int size() {
+            return frozen.size();
+        }
+
+        @Override
+        public List<CalendarEvent> copyEvents() {
+            List<CalendarEvent> copies = new ArrayList<>(frozen.size());
+            for (Frozen f : inOrder()) {
+                copies.add(new CalendarEvent(f.copy));
+            }
+            return copies;
+        }
+
+        @Override
+        public CalendarModel toSerialForm(List<CalendarEvent> recurring) {
+            List<CalendarEvent> copies = new ArrayList<>(frozen.size());
+            for (Frozen f : inOrder()) {
+                copies.add(f.copy);
+            }
+            return CalendarModel.serialForm(CalendarModel.StorageMode.OBJECTS, copies, null, recurring);
+        }
+
+        /**
+         * @return the frozen copies, in the order the events were added to the store
+         */
+        private Frozen[] inOrder() {
+            Frozen[] all = new Frozen[frozen.size()];
+            int[] i = {0};
+            frozen.forEachValue(f -> all[i[0]++] = f);
+            Arrays.sort(all, Comparator.comparingLong(f -> f.order));
+            return all;
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package model;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * An augmented AVL tree of CalendarEvents, keyed on the span of time each event
+ * occupies, so that an overlap query reporting k events is O(log n + k).
+ */
+class IntervalTree {
+
+    /**
+     * a single event within the tree
+     */
+    private static final class Node {
+        final CalendarEvent event;
+        final TimeSpan span;
+        final long seq;
+        long maxEnd;
+        int height = 1;
+        Node left, right;
+
+        Node(CalendarEvent event, TimeSpan span, long seq) {
+            this.event = event;
+            this.span = span;
+            this.seq = seq;
+            this.maxEnd = span.getEnd();
+        }
+    }
+
+    private final Map<CalendarEvent, Node> nodes = new IdentityHashMap<>();
+    private Node root;
+    private long nextSeq;
+
+    /**
+     * @return the number of events in the tree
+     */
+    int size() {
+        return nodes.size();
+    }
+
+    /**
+     * remove every event from the tree
+     */
+    void clear() {
+        nodes.clear();
+        root = null;
+    }
+
+    /**
+     * @param event any event
+     * @return the span under which the given event is currently filed,
+     * or null if it is not in the tree
+     */
+    TimeSpan spanOf(CalendarEvent event) {
+        Node n = nodes.get(event);
+        return n == null ? null : n.span;
+    }
+
+    /**
+     * @return a span from the earliest start to the latest start of any event
+     * in the tree, or null if the tree is empty
+     */
+    TimeSpan getBounds() {
+        if (root == null) {
+            return null;
+        }
+        Node first = root, last = root;
+        while (first.left != null) first = first.left;
+        while (last.right != null) last = last.right;
+        return new TimeSpan(first.span.getStart(), last.span.getStart());
+    }
+
+    /**
+     * add an event to the tree under its current span.
+     * If the event is already present it is re-keyed instead.
+     *
+     * @param event the event to add
+     */
+    void insert(CalendarEvent event) {
+        remove(event);
+        Node n = new Node(event, TimeSpan.of(event), nextSeq++);
+        nodes.put(event, n);
+        root = insert(root, n);
+    }
+
+    /**
+     * add many events to the tree at once. When the batch is large compared to the tree,
+     * the whole tree is rebuilt from sorted order in O(n + m log m) rather than
+     * performing m separate insertions.
+     *
+     * @param events events which are not already in the tree
+     */
+    void insertAll(List<CalendarEvent> events) {
+        if (events.size() * 8 < nodes.size()) {
+            for (CalendarEvent event : events) {
+                insert(event);
+            }
+            return;
+        }
+        Node[] existing = new Node[nodes.size()];
+        collect(root, existing, 0);
+        Node[] fresh = new Node[events.size()];
+        for (int i = 0; i < fresh.length; i++) {
+            CalendarEvent event = events.get(i);
+            fresh[i] = new Node(event, TimeSpan.of(event), nextSeq++);
+            nodes.put(event, fresh[i]);
+        }
+        Arrays.sort(fresh, IntervalTree::compare);
+        // merge the two sorted runs, then build a perfectly balanced tree from the result
+        Node[] merged = new Node[existing.length + fresh.length];
+        int a = 0, b = 0;
+        for (int i = 0; i < merged.length; i++) {
+            if (b == fresh.length || (a < existing.length && compare(existing[a], fresh[b]) < 0)) {
+                merged[i] = existing[a++];
+            } else {
+                merged[i] = fresh[b++];
+            }
+        }
+        root = build(merged, 0, merged.length);
+    }
+
+    /**
+     * copy a subtree into an array, in order
+     *
+     * @return the index after the last node copied
+     */
+    private static int collect(Node n, Node[] into, int index) {
+        if (n == null) {
+            return index;
+        }
+        index = collect(n.left, into, index);
+        into[index++] = n;
+        return collect(n.right, into, index);
+    }
+
+    /**
+     * @return the root of a balanced tree built from the sorted nodes in [from, to)
+     */
+    private static Node build(Node[] sorted, int from, int to) {
+        if (from >= to) {
+            return null;
+        }
+        int mid = (from + to) >>> 1;
+        Node n = sorted[mid];
+        n.left = build(sorted, from, mid);
+        n.right = build(sorted, mid + 1, to);
+        update(n);
+        return n;
+    }
+
+    /**
+     * remove an event from the tree
+     *
+     * @param event the event to remove
+     * @return true iff the event was present
+     */
+    boolean remove(CalendarEvent event) {
+        Node n = nodes.remove(event);
+        if (n == null) {
+            return false;
+        }
+        root = remove(root, n);
+        return true;
+    }
+
+    /**
+     * report, in order of start time, every event whose span overlaps
+     * the open window (lo, hi). See {@link TimeSpan#overlaps(long, long)}.
+     *
+     * @param lo   exclusive start of the window, in epoch seconds
+     * @param hi   exclusive end of the window, in epoch seconds
+     * @param sink receives each overlapping event
+     */
+    void query(long lo, long hi, Consumer<CalendarEvent> sink) {
+        query(root, lo, hi, sink);
+    }
+
+    private static void query(Node n, long lo, long hi, Consumer<CalendarEvent> sink) {
+        // nothing in this subtree ends late enough to overlap
+        if (n == null || n.maxEnd <= lo) {
+            return;
+        }
+        query(n.left, lo, hi, sink);
+        // neither this node nor anything to its right starts early enough
+        if (n.span.getStart() >= hi) {
+            return;
+        }
+        if (n.span.getEnd() > lo) {
+            sink.accept(n.event);
+        }
+        query(n.right, lo, hi, sink);
+    }
+
+    /**
+     * @return negative, zero, or positive as a sorts before, equal to, or after b
+     */
+    private static int compare(Node a, Node b) {
+        int c = Long.compare(a.span.getStart(), b.span.getStart());
+        return c != 0 ? c : Long.compare(a.seq, b.seq);
+    }
+
+    private static Node insert(Node subtree, Node n) {
+        if (subtree == null) {
+            return n;
+        }
+        if (compare(n, subtree) < 0) {
+            subtree.left = insert(subtree.left, n);
+        } else {
+            subtree.right = insert(subtree.right, n);
+        }
+        return rebalance(subtree);
+    }
+
+    private static Node remove(Node subtree, Node n) {
+        if (subtree == null) {
+            return null;
+        }
+        if (subtree == n) {
+            if (n.left == null) return n.right;
+            if (n.right == null) return n.left;
+            // splice the in-order successor into the removed node's position
+            Node successor = n.right;
+            while (successor.left != null) {
+                successor = successor.left;
+            }
+            successor.right = removeMin(n.right);
+            successor.left = n.left;
+            return rebalance(successor);
+        }
+        if (compare(n, subtree) < 0) {
+            subtree.left = remove(subtree.left, n);
+        } else {
+            subtree.right = remove(subtree.right, n);
+        }
+        return rebalance(subtree);
+    }
+
+    private static Node removeMin(Node subtree) {
+        if (subtree.left == null) {
+            return subtree.right;
+        }
+        subtree.left = removeMin(subtree.left);
+        return rebalance(subtree);
+    }
+
+    private static int height(Node n) {
+        return n == null ? 0 : n.height;
+    }
+
+    /**
+     * recompute the cached height and maximum end time of a node from its children
+     */
+    private static void update(Node n) {
+        n.height = 1 + Math.max(height(n.left), height(n.right));
+        long max = n.span.getEnd();
+        if (n.left != null) max = Math.max(max, n.left.maxEnd);
+        if (n.right != null) max = Math.max(max, n.right.maxEnd);
+        n.maxEnd = max;
+    }
+
+    private static Node rotateLeft(Node n) {
+        Node r = n.right;
+        n.right = r.left;
+        r.left = n;
+        update(n);
+        update(r);
+        return r;
+    }
+
+    private static Node rotateRight(Node n) {
+        Node l = n.left;
+        n.left = l.right;
+        l.right = n;
+        update(n);
+        update(l);
+        return l;
+    }
+
+    private static Node rebalance(Node n) {
+        update(n);
+        int balance = height(n.left) - height(n.right);
+        if (balance > 1) {
+            if (height(n.left.left) < height(n.left.right)) {
+                n.left = rotateLeft(n.left);
+            }
+            return rotateRight(n);
+        } else if (balance < -1) {
+            if (height(n.right.right) < height(n.right.left)) {
+                n.right = rotateRight(n.right);
+            }
+            return rotateLeft(n);
+        }
+        return n;
+    }
+}
@@ -0,0 +1,130 @@
+package model;
+
+import java.util.Arrays;
+
+/**
+ * A hash map from long keys to long values, kept in two flat arrays with open addressing
+ * and linear probing.
+ */
+class LongMap {
+    /**
+     * the value returned for a key which is not in the map
+     */
+    static final long MISSING = Long.MIN_VALUE;
+    /**
+     * marks an empty slot; the key 0 is kept aside in {@link #zeroValue}
+     */
+    private static final long EMPTY = 0;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private long[] keys = new long[INITIAL_CAPACITY];
+    private long[] values = new long[INITIAL_CAPACITY];
+    private int size;
+    private long zeroValue = MISSING;
+
+    /**
+     * @return the number of keys in the map
+     */
+    int size() {
+        return size + (zeroValue == MISSING ? 0 : 1);
+    }
+
+    /**
+     * @param key any key
+     * @return the value of the key, or {@link #MISSING} if it is not in the map
+     */
+    long get(long key) {
+        if (key == EMPTY) {
+            return zeroValue;
+        }
+        for (int i = slot(key); ; i = (i + 1) & (keys.length - 1)) {
+            if (keys[i] == key) {
+                return values[i];
+            } else if (keys[i] == EMPTY) {
+                return MISSING;
+            }
+        }
+    }
+
+    /**
+     * @param key   any key
+     * @param value any value but {@link #MISSING}
+     */
+    void put(long key, long value) {
+        if (key == EMPTY) {
+            zeroValue = value;
+            return;
+        }
+        if ((size + 1) * 2 > keys.length) {
+            resize(keys.length * 2);
+        }
+        int i = slot(key);
+        while (keys[i] != EMPTY && keys[i] != key) {
+            i = (i + 1) & (keys.length - 1);
+        }
+        if (keys[i] == EMPTY) {
+            keys[i] = key;
+            size++;
+        }
+        values[i] = value;
+    }
+
+    /**
+     * @param key any key
+     * @return the value the key had, or {@link #MISSING} if it was not in the map
+     */
+    long remove(long key) {
+        if (key == EMPTY) {
+            long was = zeroValue;
+            zeroValue = MISSING;
+            return was;
+        }
+        int i = slot(key);
+        while (keys[i] != key) {
+            if (keys[i] == EMPTY) {
+                return MISSING;
+            }
+            i = (i + 1) & (keys.length - 1);
+        }
+        long was = values[i];
+        // shift back any later entry of the same run which would no longer be found past the gap
+        int gap = i;
+        for (int j = (i + 1) & (keys.length - 1); keys[j] != EMPTY; j = (j + 1) & (keys.length - 1)) {
+            int home = slot(keys[j]);
+            if (((j - home) & (keys.length - 1)) >= ((j - gap) & (keys.length - 1))) {
+                keys[gap] = keys[j];
+                values[gap] = values[j];
+                gap = j;
+            }
+        }
+        keys[gap] = EMPTY;
+        size--;
+        return was;
+    }
+
+    /**
+     * remove every key
+     */
+    void clear() {
+        Arrays.fill(keys, EMPTY);
+        size = 0;
+        zeroValue = MISSING;
+    }
+
+    private int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & (keys.length - 1);
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys, oldValues = values;
+        keys = new long[capacity];
+        values = new long[capacity];
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,648 @@
+package model;
+
+import javafx.scene.paint.Color;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OptionalDataException;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.function.LongConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Stores events column-wise in parallel primitive arrays sorted by start time,
+ * materializing CalendarEvent objects only for the rows a query returns.
+ */
+class PackedEventStore implements EventStore {
+    private static final long serialVersionUID = 8213650952297136416L;
+    private static final long SECONDS_PER_DAY = 86_400;
+    /**
+     * packed value standing in for {@link CalendarEvent#DEFAULT_COLOR}
+     */
+    private static final int DEFAULT_RGB = 0;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private transient int size;
+    private transient long[] starts, ends, ids;
+    private transient int[] colors, titles, locations, notes;
+    private transient CalendarEvent[] views;
+    private transient Map<CalendarEvent, TimeSpan> materialized;
+    /**
+     * the start of every event in the store, by id
+     */
+    private transient LongMap startsById;
+    /**
+     * the snapshot the columns are currently shared with, if any
+     */
+    private transient Snapshot snapshot;
+    private StringPool strings;
+    /**
+     * the longest any event in the store has ever lasted, bounding how far
+     * before a window a range query needs to look
+     */
+    private long maxDuration;
+
+    PackedEventStore() {
+        strings = new StringPool();
+        startsById = new LongMap();
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * construct a store over the columns of a snapshot, for writing them out.
+     * The store cannot be queried or changed.
+     *
+     * @param snapshot the snapshot to write
+     */
+    private PackedEventStore(Snapshot snapshot) {
+        size = snapshot.size;
+        starts = snapshot.starts;
+        ends = snapshot.ends;
+        ids = snapshot.ids;
+        colors = snapshot.colors;
+        titles = snapshot.titles;
+        locations = snapshot.locations;
+        notes = snapshot.notes;
+        strings = snapshot.strings;
+        maxDuration = snapshot.maxDuration;
+    }
+
+    /**
+     * @param capacity the number of rows to make room for
+     */
+    private void allocate(int capacity) {
+        starts = new long[capacity];
+        ends = new long[capacity];
+        ids = new long[capacity];
+        colors = new int[capacity];
+        titles = new int[capacity];
+        locations = new int[capacity];
+        notes = new int[capacity];
+        views = new CalendarEvent[capacity];
+        materialized = new IdentityHashMap<>();
+        snapshot = null;
+    }
+
+    /**
+     * give the store columns of its own before they are changed,
+     * if they are shared with a snapshot
+     */
+    private void beforeWrite() {
+        if (snapshot != null) {
+            starts = starts.clone();
+            ends = ends.clone();
+            ids = ids.clone();
+            colors = colors.clone();
+            titles = titles.clone();
+            locations = locations.clone();
+            notes = notes.clone();
+            snapshot = null;
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public CalendarEvent get(long id) {
+        long start = startsById.get(id);
+        if (start == LongMap.MISSING) {
+            return null;
+        }
+        for (int row = lowerBound(start); row < size && starts[row] == start; row++) {
+            if (ids[row] == id) {
+                return materialize(row);
+            }
+        }
+        throw new IllegalStateException("event " + id + " is not filed under its start " + start);
+    }
+
+    @Override
+    public synchronized TimeSpan spanOf(CalendarEvent event) {
+        return materialized.get(event);
+    }
+
+    @Override
+    public void add(CalendarEvent event) {
+        remove(event);
+        TimeSpan span = TimeSpan.of(event);
+        int row = upperBound(span.getStart());
+        openRow(row);
+        fill(row, event, span);
+    }
+
+    @Override
+    public void addAll(List<CalendarEvent> toAdd) {
+        int m = toAdd.size();
+        TimeSpan[] spans = new TimeSpan[m];
+        Integer[] order = new Integer[m];
+        for (int i = 0; i < m; i++) {
+            spans[i] = TimeSpan.of(toAdd.get(i));
+            order[i] = i;
+        }
+        // a stable sort, so events with equal start times keep the order they were given in
+        Arrays.sort(order, Comparator.comparingLong(i -> spans[i].getStart()));
+
+        // merge the new rows into a fresh copy of each column in one pass
+        long[] oldStarts = starts, oldEnds = ends, oldIds = ids;
+        int[] oldColors = colors, oldTitles = titles, oldLocations = locations, oldNotes = notes;
+        CalendarEvent[] oldViews = views;
+        Map<CalendarEvent, TimeSpan> oldMaterialized = materialized;
+        int oldSize = size;
+        allocate(Math.max(INITIAL_CAPACITY, oldSize + m));
+        materialized = oldMaterialized;
+        size = oldSize + m;
+        int a = 0, b = 0;
+        for (int row = 0; row < size; row++) {
+            if (b == m || (a < oldSize && oldStarts[a] <= spans[order[b]].getStart())) {
+                starts[row] = oldStarts[a];
+                ends[row] = oldEnds[a];
+                ids[row] = oldIds[a];
+                colors[row] = oldColors[a];
+                titles[row] = oldTitles[a];
+                locations[row] = oldLocations[a];
+                notes[row] = oldNotes[a];
+                views[row] = oldViews[a];
+                a++;
+            } else {
+                fill(row, toAdd.get(order[b]), spans[order[b]]);
+                b++;
+            }
+        }
+    }
+
+    /**
+     * write an event into an already open row
+     *
+     * @param row   the row to write
+     * @param event the event to write into it
+     * @param span  the event's current span
+     */
+    private void fill(int row, CalendarEvent event, TimeSpan span) {
+        if (startsById.get(event.getId()) != LongMap.MISSING) {
+            event.renumber();
+        }
+        startsById.put(event.getId(), span.getStart());
+        starts[row] = span.getStart();
+        ends[row] = span.getEnd();
+        ids[row] = event.getId();
+        colors[row] = pack(event.getPackedColor());
+        titles[row] = strings.idOf(event.getTitle());
+        locations[row] = strings.idOf(event.getLocation());
+        notes[row] = strings.idOf(event.getNotes());
+        views[row] = event;
+        materialized.put(event, span);
+        maxDuration = Math.max(maxDuration, span.getEnd() - span.getStart());
+    }
+
+    @Override
+    public boolean remove(CalendarEvent event) {
+        TimeSpan span = materialized.remove(event);
+        if (span == null) {
+            return false;
+        }
+        startsById.remove(event.getId());
+        closeRow(rowOf(event, span));
+        return true;
+    }
+
+    @Override
+    public void removeAll(Collection<CalendarEvent> toRemove) {
+        beforeWrite();
+        boolean[] doomed = new boolean[size];
+        for (CalendarEvent event : toRemove) {
+            TimeSpan span = materialized.remove(event);
+            if (span != null) {
+                startsById.remove(event.getId());
+                doomed[rowOf(event, span)] = true;
+            }
+        }
+        // compact the surviving rows in one pass
+        int kept = 0;
+        for (int row = 0; row < size; row++) {
+            if (doomed[row]) {
+                continue;
+            }
+            if (kept != row) {
+                starts[kept] = starts[row];
+                ends[kept] = ends[row];
+                ids[kept] = ids[row];
+                colors[kept] = colors[row];
+                titles[kept] = titles[row];
+                locations[kept] = locations[row];
+                notes[kept] = notes[row];
+                views[kept] = views[row];
+            }
+            kept++;
+        }
+        Arrays.fill(views, kept, size, null);
+        size = kept;
+    }
+
+    @Override
+    public void update(CalendarEvent event) {
+        if (materialized.containsKey(event)) {
+            add(event);
+        }
+    }
+
+    @Override
+    public CalendarEvent[] getEventsInRange(long lo, long hi) {
+        // anything starting at or before lo - maxDuration must have ended by lo
+        int from = upperBound(lo - maxDuration);
+        int to = lowerBound(hi);
+        List<CalendarEvent> found = new ArrayList<>();
+        for (int row = from; row < to; row++) {
+            if (ends[row] > lo) {
+                found.add(materialize(row));
+            }
+        }
+        return found.toArray(new CalendarEvent[0]);
+    }
+
+    @Override
+    public Iterator<CalendarEvent> iterateRange(long lo, long hi) {
+        int to = lowerBound(hi);
+        return new Iterator<CalendarEvent>() {
+            // anything starting at or before lo - maxDuration must have ended by lo
+            private int row = skipEnded(upperBound(lo - maxDuration));
+
+            private int skipEnded(int from) {
+                while (from < to && ends[from] <= lo) {
+                    from++;
+                }
+                return from;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return row < to;
+            }
+
+            @Override
+            public CalendarEvent next() {
+                if (row >= to) {
+                    throw new NoSuchElementException();
+                }
+                CalendarEvent event = materialize(row);
+                row = skipEnded(row + 1);
+                return event;
+            }
+        };
+    }
+
+    @Override
+    public int countInRange(long lo, long hi) {
+        // everything starting within the window overlaps it; of the events starting
+        // earlier, only those within maxDuration of the window can still be running
+        int startsInside = upperBound(lo), startsAfter = lowerBound(hi);
+        int count = Math.max(0, startsAfter - startsInside);
+        for (int row = upperBound(lo - maxDuration); row < Math.min(startsInside, startsAfter); row++) {
+            if (ends[row] > lo) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public int countInDays(long fromDay, long toDay) {
+        return Math.max(0, lowerBound(toDay * SECONDS_PER_DAY) - lowerBound(fromDay * SECONDS_PER_DAY));
+    }
+
+    @Override
+    public CalendarEvent[] scanRange(long lo, long hi, boolean parallel) {
+        IntStream rows = IntStream.range(0, size);
+        // only the column scan runs in parallel: materializing mutates the store
+        int[] hits = (parallel ? rows.parallel() : rows)
+                .filter(row -> starts[row] < hi && ends[row] > lo)
+                .toArray();
+        CalendarEvent[] found = new CalendarEvent[hits.length];
+        for (int i = 0; i < hits.length; i++) {
+            found[i] = materialize(hits[i]);
+        }
+        return found;
+    }
+
+    @Override
+    public TimeSpan getBounds() {
+        return size == 0 ? null : new TimeSpan(starts[0], starts[size - 1]);
+    }
+
+    @Override
+    public CalendarEvent[] getEventsInDays(long fromDay, long toDay) {
+        int from = lowerBound(fromDay * SECONDS_PER_DAY);
+        int to = lowerBound(toDay * SECONDS_PER_DAY);
+        CalendarEvent[] found = new CalendarEvent[to - from];
+        for (int row = from; row < to; row++) {
+            found[row - from] = materialize(row);
+        }
+        return found;
+    }
+
+    @Override
+    public NavigableMap<LocalDate, CalendarEvent[]> getEventsByDay(LocalDate from, LocalDate to) {
+        NavigableMap<LocalDate, CalendarEvent[]> result = new TreeMap<>();
+        int row = lowerBound(from.toEpochDay() * SECONDS_PER_DAY);
+        int end = lowerBound(to.toEpochDay() * SECONDS_PER_DAY);
+        while (row < end) {
+            long day = Math.floorDiv(starts[row], SECONDS_PER_DAY);
+            int dayEnd = Math.min(end, lowerBound((day + 1) * SECONDS_PER_DAY));
+            CalendarEvent[] bucket = new CalendarEvent[dayEnd - row];
+            for (int i = 0; i < bucket.length; i++) {
+                bucket[i] = materialize(row + i);
+            }
+            result.put(LocalDate.ofEpochDay(day), bucket);
+            row = dayEnd;
+        }
+        return result;
+    }
+
+    @Override
+    public List<CalendarEvent> getAllEvents() {
+        List<CalendarEvent> all = new ArrayList<>(size);
+        for (int row = 0; row < size; row++) {
+            all.add(materialize(row));
+        }
+        return Collections.unmodifiableList(all);
+    }
+
+    @Override
+    public void forEachId(LongConsumer action) {
+        for (int row = 0; row < size; row++) {
+            action.accept(ids[row]);
+        }
+    }
+
+    /**
+     * @param row a row of the store
+     * @return the CalendarEvent for that row, creating it if this is the first time it was requested
+     */
+    private synchronized CalendarEvent materialize(int row) {
+        CalendarEvent event = views[row];
+        if (event == null) {
+            event = toEvent(row, starts, ends, ids, colors, titles, locations, notes, strings);
+            views[row] = event;
+            materialized.put(event, new TimeSpan(starts[row], ends[row]));
+        }
+        return event;
+    }
+
+    /**
+     * @return a new CalendarEvent holding the given row of the given columns
+     */
+    private static CalendarEvent toEvent(int row, long[] starts, long[] ends, long[] ids, int[] colors,
+                                         int[] titles, int[] locations, int[] notes, StringPool strings) {
+        long start = starts[row];
+        LocalDate date = LocalDate.ofEpochDay(Math.floorDiv(start, SECONDS_PER_DAY));
+        CalendarEvent event = new CalendarEvent(
+                strings.get(titles[row]),
+                date,
+                LocalTime.ofSecondOfDay(Math.floorMod(start, SECONDS_PER_DAY)),
+                LocalTime.ofSecondOfDay(ends[row] - date.toEpochDay() * SECONDS_PER_DAY),
+                strings.get(locations[row]),
+                strings.get(notes[row]));
+        event.setPackedColor(unpack(colors[row]));
+        event.restoreId(ids[row]);
+        return event;
+    }
+
+    @Override
+    public EventSnapshot snapshot() {
+        if (snapshot == null) {
+            snapshot = new Snapshot(this);
+        }
+        return snapshot;
+    }
+
+    /**
+     * @param event a materialized event
+     * @param span  the span that event was filed under
+     * @return the row holding that event
+     */
+    private int rowOf(CalendarEvent event, TimeSpan span) {
+        for (int row = lowerBound(span.getStart()); row < size && starts[row] == span.getStart(); row++) {
+            if (views[row] == event) {
+                return row;
+            }
+        }
+        throw new IllegalStateException("event is not filed under " + span);
+    }
+
+    /**
+     * @param key an epoch second
+     * @return the first row whose start is not before the key
+     */
+    private int lowerBound(long key) {
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (starts[mid] < key) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * @param key an epoch second
+     * @return the first row whose start is after the key
+     */
+    private int upperBound(long key) {
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (starts[mid] <= key) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * shift every row at or after the given one down by one, growing the arrays if needed
+     *
+     * @param row the index of the new, empty row
+     */
+    private void openRow(int row) {
+        beforeWrite();
+        if (size == starts.length) {
+            int capacity = size * 2;
+            starts = Arrays.copyOf(starts, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+            ids = Arrays.copyOf(ids, capacity);
+            colors = Arrays.copyOf(colors, capacity);
+            titles = Arrays.copyOf(titles, capacity);
+            locations = Arrays.copyOf(locations, capacity);
+            notes = Arrays.copyOf(notes, capacity);
+            views = Arrays.copyOf(views, capacity);
+        }
+        int moved = size - row;
+        System.arraycopy(starts, row, starts, row + 1, moved);
+        System.arraycopy(ends, row, ends, row + 1, moved);
+        System.arraycopy(ids, row, ids, row + 1, moved);
+        System.arraycopy(colors, row, colors, row + 1, moved);
+        System.arraycopy(titles, row, titles, row + 1, moved);
+        System.arraycopy(locations, row, locations, row + 1, moved);
+        System.arraycopy(notes, row, notes, row + 1, moved);
+        System.arraycopy(views, row, views, row + 1, moved);
+        size++;
+    }
+
+    /**
+     * shift every row after the given one up by one, overwriting it
+     *
+     * @param row the index of the row to delete
+     */
+    private void closeRow(int row) {
+        beforeWrite();
+        int moved = size - row - 1;
+        System.arraycopy(starts, row + 1, starts, row, moved);
+        System.arraycopy(ends, row + 1, ends, row, moved);
+        System.arraycopy(ids, row + 1, ids, row, moved);
+        System.arraycopy(colors, row + 1, colors, row, moved);
+        System.arraycopy(titles, row + 1, titles, row, moved);
+        System.arraycopy(locations, row + 1, locations, row, moved);
+        System.arraycopy(notes, row + 1, notes, row, moved);
+        System.arraycopy(views, row + 1, views, row, moved);
+        size--;
+        views[size] = null;
+    }
+
+    /**
+     * @param argb a color packed by {@link ColorPalette#pack(Color)}
+     * @return the color as stored in the column, {@link #DEFAULT_RGB} for the default color
+     */
+    private static int pack(int argb) {
+        return argb == CalendarEvent.DEFAULT_ARGB ? DEFAULT_RGB : argb;
+    }
+
+    /**
+     * @param rgb a value returned by {@link #pack(int)}
+     * @return the color it represents, packed by {@link ColorPalette#pack(Color)}
+     */
+    private static int unpack(int rgb) {
+        return rgb == DEFAULT_RGB ? CalendarEvent.DEFAULT_ARGB : rgb;
+    }
+
+    /**
+     * writes only the occupied part of each column. The ids come last, so that files
+     * written before events had ids can still be read.
+     *
+     * @param out the stream to write to
+     * @throws IOException if the stream could not be written
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(size);
+        out.writeObject(Arrays.copyOf(starts, size));
+        out.writeObject(Arrays.copyOf(ends, size));
+        out.writeObject(Arrays.copyOf(colors, size));
+        out.writeObject(Arrays.copyOf(titles, size));
+        out.writeObject(Arrays.copyOf(locations, size));
+        out.writeObject(Arrays.copyOf(notes, size));
+        out.writeObject(Arrays.copyOf(ids, size));
+    }
+
+    /**
+     * reads the columns written by {@link #writeObject(ObjectOutputStream)};
+     * no events are materialized until they are queried. Events saved without ids are given new ones.
+     *
+     * @param in the stream to read from
+     * @throws IOException            if the stream could not be read
+     * @throws ClassNotFoundException if a serialized class could not be found
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        size = in.readInt();
+        starts = (long[]) in.readObject();
+        ends = (long[]) in.readObject();
+        colors = (int[]) in.readObject();
+        titles = (int[]) in.readObject();
+        locations = (int[]) in.readObject();
+        notes = (int[]) in.readObject();
+        try {
+            ids = (long[]) in.readObject();
+        } catch (OptionalDataException e) {
+            if (!e.eof) {
+                throw e;
+            }
+            ids = new long[size];
+            for (int row = 0; row < size; row++) {
+                ids[row] = CalendarEvent.newId();
+            }
+        }
+        startsById = new LongMap();
+        for (int row = 0; row < size; row++) {
+            if (startsById.get(ids[row]) != LongMap.MISSING) {
+                ids[row] = CalendarEvent.newId();
+            }
+            CalendarEvent.reserveId(ids[row]);
+            startsById.put(ids[row], starts[row]);
+        }
+        views = new CalendarEvent[size];
+        materialized = new IdentityHashMap<>();
+        if (size == 0) {
+            allocate(INITIAL_CAPACITY);
+        }
+    }
+
+    /**
+     * the columns of the store at one moment. They are never changed:
+     * the store copies them before its next change.
+     */
+    private static final class Snapshot implements EventSnapshot {
+        private final int size;
+        private final long[] starts, ends, ids;
+        private final int[] colors, titles, locations, notes;
+        private final StringPool strings;
+        private final long maxDuration;
+
+        private Snapshot(PackedEventStore store) {
+            size = store.size;
+            starts = store.starts;
+            ends = store.ends;
+            ids = store.ids;
+            colors = store.colors;
+            titles = store.titles;
+            locations = store.locations;
+            notes = store.notes;
+            strings = store.strings.freeze();
+            maxDuration = store.maxDuration;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public List<CalendarEvent> copyEvents() {
+            List<CalendarEvent> copies = new ArrayList<>(size);
+            for (int row = 0; row < size; row++) {
+                copies.add(toEvent(row, starts, ends, ids, colors, titles, locations, notes, strings));
+            }
+            return copies;
+        }
+
+        @Override
+        public CalendarModel toSerialForm(List<CalendarEvent> recurring) {
+            return CalendarModel.serialForm(CalendarModel.StorageMode.PACKED, null, new PackedEventStore(this),
+                    recurring);
+        }
+    }
+}
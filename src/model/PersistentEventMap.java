@@ -0,0 +1,301 @@
+package model;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * An immutable map from CalendarEvents, compared by identity, to values: a hash
+ * array mapped trie, whose changed copies share all but O(log n) nodes with the original.
+ *
+ * @param <V> the type of the values
+ */
+final class PersistentEventMap<V> {
+    private static final PersistentEventMap<?> EMPTY = new PersistentEventMap<>(null, 0);
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+    /**
+     * below this shift every bit of the hash has been used, so colliding keys share a node
+     */
+    private static final int MAX_SHIFT = 30;
+    private static final Object[] NO_SLOTS = new Object[0];
+
+    private final Node root;
+    private final int size;
+
+    private PersistentEventMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * @param <V> the type of the values
+     * @return the map with no entries
+     */
+    @SuppressWarnings("unchecked")
+    static <V> PersistentEventMap<V> empty() {
+        return (PersistentEventMap<V>) EMPTY;
+    }
+
+    /**
+     * @return the number of entries in the map
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @param key any event
+     * @return the value mapped to that event, or null if there is none
+     */
+    V get(CalendarEvent key) {
+        return lookup(root, key);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> V lookup(Node node, CalendarEvent key) {
+        int hash = System.identityHashCode(key);
+        for (int shift = 0; node != null; shift += BITS) {
+            if (shift > MAX_SHIFT) {
+                for (int i = 0; i < node.slots.length; i += 2) {
+                    if (node.slots[i] == key) {
+                        return (V) node.slots[i + 1];
+                    }
+                }
+                return null;
+            }
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((node.bitmap & bit) == 0) {
+                return null;
+            }
+            int i = 2 * Integer.bitCount(node.bitmap & (bit - 1));
+            if (node.slots[i] == null) {
+                node = (Node) node.slots[i + 1];
+            } else {
+                return node.slots[i] == key ? (V) node.slots[i + 1] : null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param action called with every value in the map, in no particular order
+     */
+    void forEachValue(Consumer<? super V> action) {
+        forEachValue(root, action);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> void forEachValue(Node node, Consumer<? super V> action) {
+        if (node == null) {
+            return;
+        }
+        for (int i = 0; i < node.slots.length; i += 2) {
+            if (node.slots[i] == null) {
+                forEachValue((Node) node.slots[i + 1], action);
+            } else {
+                action.accept((V) node.slots[i + 1]);
+            }
+        }
+    }
+
+    /**
+     * @return an editor whose changes start from this map, and leave it untouched
+     */
+    Editor<V> edit() {
+        return new Editor<>(root, size);
+    }
+
+    /**
+     * Makes a series of changes to a map, and then produces the changed map.
+     * Not thread safe.
+     *
+     * @param <V> the type of the values
+     */
+    static final class Editor<V> {
+        /**
+         * nodes owned by this token may be changed in place; null once frozen
+         */
+        private Object owner = new Object();
+        private Node root;
+        private int size;
+
+        private Editor(Node root, int size) {
+            this.root = root;
+            this.size = size;
+        }
+
+        /**
+         * @param key any event
+         * @return the value mapped to that event, or null if there is none
+         */
+        V get(CalendarEvent key) {
+            return lookup(root, key);
+        }
+
+        /**
+         * @param key   the key to map
+         * @param value the value to map it to
+         */
+        void put(CalendarEvent key, V value) {
+            checkOwner();
+            root = put(root, 0, System.identityHashCode(key), key, value);
+        }
+
+        /**
+         * @param key the key to unmap. does nothing if it is not in the map
+         */
+        void remove(CalendarEvent key) {
+            checkOwner();
+            root = remove(root, 0, System.identityHashCode(key), key);
+        }
+
+        /**
+         * @return the map with every change made through this editor.
+         * The editor may not be used afterwards.
+         */
+        PersistentEventMap<V> freeze() {
+            checkOwner();
+            owner = null;
+            return new PersistentEventMap<>(root, size);
+        }
+
+        private void checkOwner() {
+            if (owner == null) {
+                throw new IllegalStateException("this editor has been frozen");
+            }
+        }
+
+        private Node put(Node node, int shift, int hash, CalendarEvent key, Object value) {
+            if (node == null) {
+                node = new Node(owner, 0, NO_SLOTS);
+            }
+            if (shift > MAX_SHIFT) {
+                for (int i = 0; i < node.slots.length; i += 2) {
+                    if (node.slots[i] == key) {
+                        return node.slots[i + 1] == value ? node : set(node, i + 1, value);
+                    }
+                }
+                Object[] slots = Arrays.copyOf(node.slots, node.slots.length + 2);
+                slots[node.slots.length] = key;
+                slots[node.slots.length + 1] = value;
+                size++;
+                return with(node, node.bitmap, slots);
+            }
+            int bit = 1 << ((hash >>> shift) & MASK);
+            int i = 2 * Integer.bitCount(node.bitmap & (bit - 1));
+            if ((node.bitmap & bit) == 0) {
+                Object[] slots = new Object[node.slots.length + 2];
+                System.arraycopy(node.slots, 0, slots, 0, i);
+                slots[i] = key;
+                slots[i + 1] = value;
+                System.arraycopy(node.slots, i, slots, i + 2, node.slots.length - i);
+                size++;
+                return with(node, node.bitmap | bit, slots);
+            }
+            Object k = node.slots[i], v = node.slots[i + 1];
+            if (k == null) {
+                Node child = put((Node) v, shift + BITS, hash, key, value);
+                return child == v ? node : set(node, i + 1, child);
+            } else if (k == key) {
+                return v == value ? node : set(node, i + 1, value);
+            }
+            // two keys share this slot: push both down into a new child
+            CalendarEvent other = (CalendarEvent) k;
+            Node child = put(null, shift + BITS, System.identityHashCode(other), other, v);
+            size--; // the existing entry was only moved
+            child = put(child, shift + BITS, hash, key, value);
+            node = set(node, i, null);
+            return set(node, i + 1, child);
+        }
+
+        private Node remove(Node node, int shift, int hash, CalendarEvent key) {
+            if (node == null) {
+                return null;
+            }
+            if (shift > MAX_SHIFT) {
+                for (int i = 0; i < node.slots.length; i += 2) {
+                    if (node.slots[i] == key) {
+                        size--;
+                        return node.slots.length == 2 ? null : removeSlots(node, node.bitmap, i);
+                    }
+                }
+                return node;
+            }
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((node.bitmap & bit) == 0) {
+                return node;
+            }
+            int i = 2 * Integer.bitCount(node.bitmap & (bit - 1));
+            Object k = node.slots[i], v = node.slots[i + 1];
+            if (k == null) {
+                Node child = remove((Node) v, shift + BITS, hash, key);
+                if (child == v) {
+                    return node;
+                } else if (child == null) {
+                    return node.bitmap == bit ? null : removeSlots(node, node.bitmap & ~bit, i);
+                } else if (child.slots.length == 2 && child.slots[0] != null) {
+                    // a child left holding a single entry is folded back into this node
+                    node = set(node, i, child.slots[0]);
+                    return set(node, i + 1, child.slots[1]);
+                }
+                return set(node, i + 1, child);
+            } else if (k == key) {
+                size--;
+                return node.bitmap == bit ? null : removeSlots(node, node.bitmap & ~bit, i);
+            }
+            return node;
+        }
+
+        /**
+         * @return the node without the key and value at slots i and i + 1
+         */
+        private Node removeSlots(Node node, int bitmap, int i) {
+            Object[] slots = new Object[node.slots.length - 2];
+            System.arraycopy(node.slots, 0, slots, 0, i);
+            System.arraycopy(node.slots, i + 2, slots, i, slots.length - i);
+            return with(node, bitmap, slots);
+        }
+
+        /**
+         * @return the node with a different bitmap and slots, changed in place if this editor owns it
+         */
+        private Node with(Node node, int bitmap, Object[] slots) {
+            if (node.owner == owner) {
+                node.bitmap = bitmap;
+                node.slots = slots;
+                return node;
+            }
+            return new Node(owner, bitmap, slots);
+        }
+
+        /**
+         * @return the node with one slot changed, changed in place if this editor owns it
+         */
+        private Node set(Node node, int i, Object slot) {
+            if (node.owner == owner) {
+                node.slots[i] = slot;
+                return node;
+            }
+            Object[] slots = node.slots.clone();
+            slots[i] = slot;
+            return new Node(owner, node.bitmap, slots);
+        }
+    }
+
+    /**
+     * A node of the trie. Its slots hold pairs: a key and its value, or null and a child node.
+     * Which hash fragments are present is recorded in a bitmap, except in collision nodes
+     * past {@link #MAX_SHIFT}, whose slots are searched linearly.
+     */
+    private static final class Node {
+        private final Object owner;
+        private int bitmap;
+        private Object[] slots;
+
+        private Node(Object owner, int bitmap, Object[] slots) {
+            this.owner = owner;
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Counts how often each of a set of strings has been seen, and completes prefixes with the most
+ * frequent strings starting with them, ignoring case.
+ */
+public final class PrefixIndex {
+    private static final Comparator<Entry> BY_FREQUENCY =
+            Comparator.<Entry>comparingInt(entry -> -entry.count).thenComparing(entry -> entry.key);
+    private static final char[] NO_KEYS = new char[0];
+    private static final Node[] NO_NODES = new Node[0];
+    private static final Entry[] NO_ENTRIES = new Entry[0];
+
+    private final int capacity;
+    private final Node root = new Node();
+    private int size;
+
+    /**
+     * @param capacity the most completions each prefix can be asked for
+     * @throws IllegalArgumentException if the capacity is not positive
+     */
+    public PrefixIndex(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive, not " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * count one more use of a string
+     *
+     * @param text any string. Surrounding whitespace is ignored, as are blank strings and null.
+     */
+    public void add(String text) {
+        change(text, 1);
+    }
+
+    /**
+     * count one less use of a string, forgetting it once its count reaches zero
+     *
+     * @param text any string. Does nothing if the string has not been added.
+     */
+    public void remove(String text) {
+        change(text, -1);
+    }
+
+    /**
+     * @param text any string
+     * @return the number of times the string has been added, less the number of times it has been removed
+     */
+    public int count(String text) {
+        if (text == null) {
+            return 0;
+        }
+        Node node = find(text.trim().toLowerCase(Locale.ROOT));
+        return node == null || node.entry == null ? 0 : node.entry.count;
+    }
+
+    /**
+     * @return the number of distinct strings counted
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param prefix the start of a string, in any case
+     * @param limit  the most completions to return; at most the capacity of this index
+     * @return the most frequent strings starting with the prefix, most frequent first, and in
+     * alphabetical order among strings used equally often. Nothing completes a blank prefix.
+     */
+    public List<String> complete(String prefix, int limit) {
+        if (prefix == null || prefix.trim().isEmpty()) {
+            return Collections.emptyList();
+        }
+        Node node = find(prefix.trim().toLowerCase(Locale.ROOT));
+        if (node == null) {
+            return Collections.emptyList();
+        }
+        int n = Math.max(0, Math.min(limit, node.top.length));
+        List<String> found = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            found.add(node.top[i].text);
+        }
+        return found;
+    }
+
+    private Node find(String key) {
+        Node node = root;
+        for (int i = 0; i < key.length() && node != null; i++) {
+            node = node.child(key.charAt(i));
+        }
+        return node;
+    }
+
+    private void change(String text, int delta) {
+        if (text == null || text.trim().isEmpty()) {
+            return;
+        }
+        text = text.trim();
+        String key = text.toLowerCase(Locale.ROOT);
+        Node[] path = new Node[key.length() + 1];
+        path[0] = root;
+        for (int i = 0; i < key.length(); i++) {
+            path[i + 1] = delta > 0 ? path[i].childOrNew(key.charAt(i)) : path[i].child(key.charAt(i));
+            if (path[i + 1] == null) {
+                return;
+            }
+        }
+        Node leaf = path[key.length()];
+        if (leaf.entry == null) {
+            if (delta < 0) {
+                return;
+            }
+            leaf.entry = new Entry(key);
+            size++;
+        }
+        if (delta > 0) {
+            leaf.entry.text = text;
+        }
+        leaf.entry.count += delta;
+        if (leaf.entry.count == 0) {
+            leaf.entry = null;
+            size--;
+        }
+        // re-rank from the bottom up, so each node sees its children's new rankings
+        for (int i = key.length(); i >= 0; i--) {
+            if (i > 0 && path[i].entry == null && path[i].childCount == 0) {
+                path[i - 1].removeChild(key.charAt(i - 1));
+            } else {
+                path[i].rank(capacity);
+            }
+        }
+    }
+
+    /**
+     * A string and how often it has been seen
+     */
+    private static final class Entry {
+        private final String key;
+        private String text;
+        private int count;
+
+        private Entry(String key) {
+            this.key = key;
+        }
+    }
+
+    private static final class Node {
+        /**
+         * the characters leading to each child, sorted
+         */
+        private char[] keys = NO_KEYS;
+        private Node[] children = NO_NODES;
+        private int childCount;
+        /**
+         * the string ending at this node, or null
+         */
+        private Entry entry;
+        /**
+         * the most frequent strings ending at or below this node, most frequent first
+         */
+        private Entry[] top = NO_ENTRIES;
+
+        private Node child(char c) {
+            int i = Arrays.binarySearch(keys, 0, childCount, c);
+            return i >= 0 ? children[i] : null;
+        }
+
+        private Node childOrNew(char c) {
+            int i = Arrays.binarySearch(keys, 0, childCount, c);
+            if (i >= 0) {
+                return children[i];
+            }
+            i = -i - 1;
+            if (childCount == keys.length) {
+                keys = Arrays.copyOf(keys, Math.max(2, childCount * 2));
+                children = Arrays.copyOf(children, keys.length);
+            }
+            System.arraycopy(keys, i, keys, i + 1, childCount - i);
+            System.arraycopy(children, i, children, i + 1, childCount - i);
+            keys[i] = c;
+            children[i] = new Node();
+            childCount++;
+            return children[i];
+        }
+
+        private void removeChild(char c) {
+            int i = Arrays.binarySearch(keys, 0, childCount, c);
+            if (i >= 0) {
+                System.arraycopy(keys, i + 1, keys, i, childCount - i - 1);
+                System.arraycopy(children, i + 1, children, i, childCount - i - 1);
+                children[--childCount] = null;
+            }
+        }
+
+        /**
+         * recompute the most frequent strings below this node from its own and its children's
+         */
+        private void rank(int capacity) {
+            Entry[] best = new Entry[capacity];
+            int n = 0;
+            if (entry != null) {
+                best[n++] = entry;
+            }
+            for (int c = 0; c < childCount; c++) {
+                for (Entry candidate : children[c].top) {
+                    if (n == capacity && BY_FREQUENCY.compare(candidate, best[n - 1]) >= 0) {
+                        // each child's strings are in order, so none of the rest can make it either
+                        break;
+                    }
+                    int i = n == capacity ? n - 1 : n++;
+                    while (i > 0 && BY_FREQUENCY.compare(candidate, best[i - 1]) < 0) {
+                        best[i] = best[i - 1];
+                        i--;
+                    }
+                    best[i] = candidate;
+                }
+            }
+            top = n == capacity ? best : Arrays.copyOf(best, n);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package model;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.Collections;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+/**
+ * Chooses and runs a {@link QueryPlan} for range queries against an {@link EventStore}.
+ */
+final class QueryExecutor {
+    /**
+     * stores with at most this many events are always scanned sequentially
+     */
+    static final int SEQUENTIAL_SCAN_LIMIT = 64;
+    /**
+     * the default minimum store size for a parallel scan, until {@link #calibrate()} is run
+     */
+    static final int DEFAULT_PARALLEL_THRESHOLD = 50_000;
+    /**
+     * the fraction of a store's time span a window must cover before a parallel scan is considered
+     */
+    private static final double PARALLEL_SCAN_COVERAGE = 0.5;
+    private static final int POOL_SIZE = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final ForkJoinPool POOL = new ForkJoinPool(POOL_SIZE, pool -> {
+        ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        t.setName("calendar-query-" + t.getPoolIndex());
+        return t;
+    }, null, false);
+
+    private static volatile int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+    private static boolean calibrated;
+
+    private QueryExecutor() {
+    }
+
+    /**
+     * @param store the store to be queried
+     * @param lo    exclusive start of the window, in epoch seconds
+     * @param hi    exclusive end of the window, in epoch seconds
+     * @return the plan which should be used to query the store for that window
+     */
+    static QueryPlan plan(EventStore store, long lo, long hi) {
+        int n = store.size();
+        if (n <= SEQUENTIAL_SCAN_LIMIT) {
+            return QueryPlan.SEQUENTIAL_SCAN;
+        }
+        if (n < parallelThreshold) {
+            return QueryPlan.INDEX;
+        }
+        // estimate what fraction of the store the window selects, assuming
+        // events are spread evenly between the first and last start times
+        TimeSpan bounds = store.getBounds();
+        double covered = Math.min(hi, bounds.getEnd() + 1) - Math.max(lo, bounds.getStart());
+        double coverage = covered / (bounds.getEnd() - bounds.getStart() + 1);
+        return coverage >= PARALLEL_SCAN_COVERAGE ? QueryPlan.PARALLEL_SCAN : QueryPlan.INDEX;
+    }
+
+    /**
+     * @param store the store to query
+     * @param plan  how to query it
+     * @param lo    exclusive start of the window, in epoch seconds
+     * @param hi    exclusive end of the window, in epoch seconds
+     * @return every event in the store whose span overlaps the window, ordered by start time
+     */
+    static CalendarEvent[] execute(EventStore store, QueryPlan plan, long lo, long hi) {
+        switch (plan) {
+            case SEQUENTIAL_SCAN:
+                return store.scanRange(lo, hi, false);
+            case PARALLEL_SCAN:
+                // parallel streams started from within a pool's task run on that pool
+                return POOL.submit(() -> store.scanRange(lo, hi, true)).join();
+            default:
+                return store.getEventsInRange(lo, hi);
+        }
+    }
+
+    /**
+     * @return the minimum store size for which a parallel scan will be considered
+     */
+    static int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    /**
+     * measure, on synthetic calendars of increasing size, the smallest store for which a
+     * parallel scan of a window covering the whole store beats walking the index,
+     * and use that as the threshold for future queries.
+     * Takes on the order of a second the first time; later calls wait for it, and measure nothing.
+     *
+     * @return the new threshold, or {@link Integer#MAX_VALUE} if a parallel scan never won
+     */
+    static synchronized int calibrate() {
+        if (calibrated) {
+            return parallelThreshold;
+        }
+        int threshold = Integer.MAX_VALUE;
+        IndexedEventStore store = new IndexedEventStore(Collections.emptyList());
+        LocalDate first = LocalDate.of(2000, 1, 1);
+        int added = 0;
+        for (int n = 4_096; n <= 131_072 && threshold == Integer.MAX_VALUE; n *= 2) {
+            for (; added < n; added++) {
+                LocalTime start = LocalTime.ofSecondOfDay((added * 7919L) % 80_000);
+                store.add(new CalendarEvent("", first.plusDays(added % 366), start, start.plusMinutes(30),
+                        null, null));
+            }
+            TimeSpan bounds = store.getBounds();
+            long lo = bounds.getStart() - 1, hi = bounds.getEnd() + 1;
+            long indexTime = Long.MAX_VALUE, scanTime = Long.MAX_VALUE;
+            for (int run = 0; run < 3; run++) {
+                long t0 = System.nanoTime();
+                execute(store, QueryPlan.INDEX, lo, hi);
+                long t1 = System.nanoTime();
+                execute(store, QueryPlan.PARALLEL_SCAN, lo, hi);
+                long t2 = System.nanoTime();
+                indexTime = Math.min(indexTime, t1 - t0);
+                scanTime = Math.min(scanTime, t2 - t1);
+            }
+            if (scanTime < indexTime) {
+                threshold = n;
+            }
+        }
+        parallelThreshold = threshold;
+        calibrated = true;
+        return threshold;
+    }
+}
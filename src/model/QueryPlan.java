@@ -0,0 +1,22 @@
+package model;
+
+/**
+ * The strategies a {@link CalendarModel} can use to answer a range query.
+ *
+ * @see CalendarModel#getLastQueryPlan()
+ */
+public enum QueryPlan {
+    /**
+     * test every event on the calling thread. Used for very small calendars.
+     */
+    SEQUENTIAL_SCAN,
+    /**
+     * test every event, split across a small dedicated thread pool.
+     * Used when a window covers most of a large calendar.
+     */
+    PARALLEL_SCAN,
+    /**
+     * walk the calendar's index, touching only the events which overlap the window.
+     */
+    INDEX
+}
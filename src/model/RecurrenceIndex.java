@@ -0,0 +1,331 @@
+package model;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Holds the recurring events of a {@link CalendarModel}, expanding their occurrences only
+ * for the window a query asks about.
+ */
+class RecurrenceIndex {
+    /**
+     * the number of (event, window) expansions kept
+     */
+    static final int CACHE_SIZE = 256;
+    private static final long SECONDS_PER_DAY = 86_400;
+    private static final CalendarEvent[] NONE = new CalendarEvent[0];
+    private static final Comparator<CalendarEvent> BY_START =
+            Comparator.comparingLong(event -> TimeSpan.toEpochSecond(event.getDate(), event.getStartTime()));
+
+    /**
+     * every recurring event, in the order they were added
+     */
+    private final List<CalendarEvent> events = new ArrayList<>();
+    private final Map<CalendarEvent, Series> series = new IdentityHashMap<>();
+    private final Map<Long, CalendarEvent> byId = new HashMap<>();
+    private final Map<Window, CalendarEvent[]> cache = new LinkedHashMap<Window, CalendarEvent[]>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Window, CalendarEvent[]> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+    /**
+     * private copies of every event for snapshots; null if an event has changed since they were made
+     */
+    private List<CalendarEvent> frozen = Collections.emptyList();
+
+    /**
+     * @return the number of recurring events
+     */
+    int size() {
+        return events.size();
+    }
+
+    /**
+     * @return true iff there are no recurring events
+     */
+    boolean isEmpty() {
+        return events.isEmpty();
+    }
+
+    /**
+     * @param id the id of an event
+     * @return the recurring event with that id, or null if there is none
+     */
+    CalendarEvent get(long id) {
+        return byId.get(id);
+    }
+
+    /**
+     * @param event any event
+     * @return the span of the event's first occurrence as of when it was last filed,
+     * or null if it is not in the index
+     */
+    TimeSpan spanOf(CalendarEvent event) {
+        Series s = series.get(event);
+        return s == null ? null : s.span;
+    }
+
+    /**
+     * add a recurring event, or re-file it under its current date, times and rule if it is already present.
+     * An event whose id is already taken by another recurring event is given a new id.
+     *
+     * @param event an event with a recurrence rule
+     */
+    void add(CalendarEvent event) {
+        if (series.containsKey(event)) {
+            forget(event);
+        } else {
+            if (byId.containsKey(event.getId())) {
+                event.renumber();
+            }
+            byId.put(event.getId(), event);
+            events.add(event);
+        }
+        series.put(event, new Series(event));
+        frozen = null;
+    }
+
+    /**
+     * @param event the event to remove
+     * @return true iff the event was present
+     */
+    boolean remove(CalendarEvent event) {
+        if (series.remove(event) == null) {
+            return false;
+        }
+        byId.remove(event.getId());
+        events.remove(event);
+        forget(event);
+        frozen = null;
+        return true;
+    }
+
+    /**
+     * drop every cached expansion of an event
+     */
+    private void forget(CalendarEvent event) {
+        synchronized (cache) {
+            cache.keySet().removeIf(window -> window.event == event);
+        }
+    }
+
+    /**
+     * @return an unmodifiable list of every recurring event
+     */
+    List<CalendarEvent> getAll() {
+        return Collections.unmodifiableList(events);
+    }
+
+    /**
+     * @return an immutable list of private copies of every recurring event, as of when each was last filed
+     */
+    List<CalendarEvent> snapshot() {
+        if (frozen == null) {
+            List<CalendarEvent> copies = new ArrayList<>(events.size());
+            for (CalendarEvent event : events) {
+                copies.add(series.get(event).copy);
+            }
+            frozen = Collections.unmodifiableList(copies);
+        }
+        return frozen;
+    }
+
+    /**
+     * @param lo exclusive start of the window, in epoch seconds
+     * @param hi exclusive end of the window, in epoch seconds
+     * @return every occurrence overlapping the window, ordered by start time
+     */
+    CalendarEvent[] occurrences(long lo, long hi) {
+        if (events.isEmpty()) {
+            return NONE;
+        }
+        List<CalendarEvent> found = new ArrayList<>();
+        for (CalendarEvent event : events) {
+            Series s = series.get(event);
+            if (s.mayOverlap(lo, hi)) {
+                Window window = new Window(event, lo, hi);
+                CalendarEvent[] expanded;
+                synchronized (cache) {
+                    expanded = cache.get(window);
+                }
+                if (expanded == null) {
+                    List<LocalDate> dates = s.dates(lo, hi);
+                    expanded = new CalendarEvent[dates.size()];
+                    for (int i = 0; i < expanded.length; i++) {
+                        expanded[i] = new CalendarEvent(event, dates.get(i));
+                    }
+                    synchronized (cache) {
+                        // another query may have expanded the same window meanwhile
+                        CalendarEvent[] raced = cache.putIfAbsent(window, expanded);
+                        expanded = raced != null ? raced : expanded;
+                    }
+                }
+                Collections.addAll(found, expanded);
+            }
+        }
+        // a stable sort, so occurrences starting together are in the order their events were added
+        found.sort(BY_START);
+        return found.toArray(NONE);
+    }
+
+    /**
+     * count the occurrences {@link #occurrences(long, long)} would return, without creating them
+     *
+     * @param lo exclusive start of the window, in epoch seconds
+     * @param hi exclusive end of the window, in epoch seconds
+     * @return the number of occurrences overlapping the window
+     */
+    int countInRange(long lo, long hi) {
+        int count = 0;
+        for (CalendarEvent event : events) {
+            Series s = series.get(event);
+            if (s.mayOverlap(lo, hi)) {
+                CalendarEvent[] expanded;
+                synchronized (cache) {
+                    expanded = cache.get(new Window(event, lo, hi));
+                }
+                count += expanded != null ? expanded.length : s.dates(lo, hi).size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param stored      events ordered by start time
+     * @param occurrences occurrences ordered by start time
+     * @return both sets of events in one array, ordered by start time; stored events come first among ties
+     */
+    static CalendarEvent[] merge(CalendarEvent[] stored, CalendarEvent[] occurrences) {
+        if (occurrences.length == 0) {
+            return stored;
+        } else if (stored.length == 0) {
+            return occurrences;
+        }
+        CalendarEvent[] merged = new CalendarEvent[stored.length + occurrences.length];
+        int a = 0, b = 0;
+        for (int i = 0; i < merged.length; i++) {
+            if (b == occurrences.length
+                    || (a < stored.length && BY_START.compare(stored[a], occurrences[b]) <= 0)) {
+                merged[i] = stored[a++];
+            } else {
+                merged[i] = occurrences[b++];
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * @param stored      an iterator over events ordered by start time
+     * @param occurrences occurrences ordered by start time
+     * @return an iterator over both, ordered by start time; stored events come first among ties
+     */
+    static Iterator<CalendarEvent> merge(Iterator<CalendarEvent> stored, CalendarEvent[] occurrences) {
+        if (occurrences.length == 0) {
+            return stored;
+        }
+        return new Iterator<CalendarEvent>() {
+            private CalendarEvent head = stored.hasNext() ? stored.next() : null;
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return head != null || next < occurrences.length;
+            }
+
+            @Override
+            public CalendarEvent next() {
+                if (next < occurrences.length && (head == null || BY_START.compare(head, occurrences[next]) > 0)) {
+                    return occurrences[next++];
+                } else if (head == null) {
+                    throw new NoSuchElementException();
+                }
+                CalendarEvent event = head;
+                head = stored.hasNext() ? stored.next() : null;
+                return event;
+            }
+        };
+    }
+
+    /**
+     * A recurring event as of when it was last filed
+     */
+    private static final class Series {
+        private final RecurrenceRule rule;
+        private final TimeSpan span;
+        private final LocalDate first, last;
+        /**
+         * the second of the day at which every occurrence starts and ends
+         */
+        private final long startSecond, endSecond;
+        private final CalendarEvent copy;
+
+        private Series(CalendarEvent event) {
+            rule = event.getRecurrence();
+            span = TimeSpan.of(event);
+            first = event.getDate();
+            last = rule.getLastDate(first);
+            startSecond = span.getStart() - first.toEpochDay() * SECONDS_PER_DAY;
+            endSecond = span.getEnd() - first.toEpochDay() * SECONDS_PER_DAY;
+            copy = new CalendarEvent(event);
+        }
+
+        /**
+         * @return false if no occurrence can overlap the window (lo, hi)
+         */
+        private boolean mayOverlap(long lo, long hi) {
+            return span.getStart() < hi && (last == null || (last.toEpochDay() * SECONDS_PER_DAY + endSecond) > lo);
+        }
+
+        /**
+         * @return the dates of the occurrences overlapping the window (lo, hi), in order
+         */
+        private List<LocalDate> dates(long lo, long hi) {
+            // an occurrence on day d overlaps iff d * 86400 + startSecond < hi and d * 86400 + endSecond > lo
+            long fromDay = Math.max(first.toEpochDay(), Math.floorDiv(lo - endSecond, SECONDS_PER_DAY) + 1);
+            long toDay = Math.floorDiv(hi - startSecond - 1, SECONDS_PER_DAY);
+            if (last != null) {
+                toDay = Math.min(toDay, last.toEpochDay());
+            }
+            if (toDay < fromDay) {
+                return Collections.emptyList();
+            }
+            return rule.occurrences(first, last, LocalDate.ofEpochDay(fromDay), LocalDate.ofEpochDay(toDay));
+        }
+    }
+
+    /**
+     * One recurring event, compared by identity, and a window it was expanded for
+     */
+    private static final class Window {
+        private final CalendarEvent event;
+        private final long lo, hi;
+
+        private Window(CalendarEvent event, long lo, long hi) {
+            this.event = event;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Window)) return false;
+            Window other = (Window) o;
+            return event == other.event && lo == other.lo && hi == other.hi;
+        }
+
+        @Override
+        public int hashCode() {
+            return (System.identityHashCode(event) * 31 + Long.hashCode(lo)) * 31 + Long.hashCode(hi);
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package model;
+
+import java.io.Serializable;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.TreeSet;
+
+/**
+ * An immutable rule for repeating an event every {@code interval} days, weeks, months or
+ * years, optionally stopping after a number of occurrences or on a given date.
+ */
+public final class RecurrenceRule implements Serializable {
+    private static final long serialVersionUID = 6215083491735082213L;
+
+    /**
+     * How often a rule repeats
+     */
+    public enum Frequency {
+        DAILY(ChronoUnit.DAYS),
+        WEEKLY(ChronoUnit.WEEKS),
+        MONTHLY(ChronoUnit.MONTHS),
+        YEARLY(ChronoUnit.YEARS);
+
+        private final ChronoUnit unit;
+
+        Frequency(ChronoUnit unit) {
+            this.unit = unit;
+        }
+    }
+
+    private final Frequency frequency;
+    private final int interval;
+    /**
+     * the number of occurrences, or 0 if there is no limit
+     */
+    private final int count;
+    private final LocalDate until;
+    private final TreeSet<LocalDate> exceptions;
+
+    /**
+     * construct a rule which repeats forever
+     *
+     * @param frequency the unit the rule repeats in. must not be null.
+     * @param interval  the number of units between occurrences, e.g. 2 for every other week
+     * @throws IllegalArgumentException if the frequency is null or the interval is not positive
+     */
+    public RecurrenceRule(Frequency frequency, int interval) {
+        this(frequency, interval, 0, null, new TreeSet<>());
+    }
+
+    private RecurrenceRule(Frequency frequency, int interval, int count, LocalDate until,
+                           TreeSet<LocalDate> exceptions) {
+        if (frequency == null) {
+            throw new IllegalArgumentException("Frequency must not be null");
+        } else if (interval < 1) {
+            throw new IllegalArgumentException("Interval must be positive, not " + interval);
+        } else if (count < 0) {
+            throw new IllegalArgumentException("Count must not be negative, not " + count);
+        }
+        this.frequency = frequency;
+        this.interval = interval;
+        this.count = count;
+        this.until = until;
+        this.exceptions = exceptions;
+    }
+
+    /**
+     * @param count the total number of occurrences, including the first, or 0 for no limit
+     * @return a copy of this rule which stops after the given number of occurrences
+     */
+    public RecurrenceRule withCount(int count) {
+        return new RecurrenceRule(frequency, interval, count, until, exceptions);
+    }
+
+    /**
+     * @param until the last date an occurrence may fall on, or null for no limit
+     * @return a copy of this rule which stops on the given date
+     */
+    public RecurrenceRule withUntil(LocalDate until) {
+        return new RecurrenceRule(frequency, interval, count, until, exceptions);
+    }
+
+    /**
+     * @param dates dates on which the event should not occur after all
+     * @return a copy of this rule which skips the given dates, as well as any it already skips
+     */
+    public RecurrenceRule withExceptions(Collection<LocalDate> dates) {
+        TreeSet<LocalDate> union = new TreeSet<>(exceptions);
+        union.addAll(dates);
+        return new RecurrenceRule(frequency, interval, count, until, union);
+    }
+
+    /**
+     * @param date a date on which the event should not occur after all
+     * @return a copy of this rule which also skips the given date
+     */
+    public RecurrenceRule withException(LocalDate date) {
+        return withExceptions(Collections.singleton(date));
+    }
+
+    /**
+     * @return the unit the rule repeats in
+     */
+    public Frequency getFrequency() {
+        return frequency;
+    }
+
+    /**
+     * @return the number of units between occurrences
+     */
+    public int getInterval() {
+        return interval;
+    }
+
+    /**
+     * @return the total number of occurrences, or 0 if there is no limit
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return the last date an occurrence may fall on, or null if there is no limit
+     */
+    public LocalDate getUntil() {
+        return until;
+    }
+
+    /**
+     * @return the dates which are skipped, in order
+     */
+    public NavigableSet<LocalDate> getExceptions() {
+        return Collections.unmodifiableNavigableSet(exceptions);
+    }
+
+    /**
+     * @param first the date of the first occurrence
+     * @return the date of the last occurrence, ignoring exceptions, or null if the series never ends
+     */
+    public LocalDate getLastDate(LocalDate first) {
+        LocalDate last = until;
+        if (count > 0) {
+            LocalDate counted;
+            if (canSkip(first)) {
+                // dates which do not exist are not counted, so the occurrences must be walked
+                int found = 0;
+                long k = 0;
+                do {
+                    counted = nth(first, k++);
+                    if (exists(first, counted)) {
+                        found++;
+                    }
+                } while (found < count);
+            } else {
+                counted = nth(first, count - 1);
+            }
+            last = last == null || counted.isBefore(last) ? counted : last;
+        }
+        return last;
+    }
+
+    /**
+     * Find the dates of the occurrences within a range of dates, without walking
+     * the occurrences before the range.
+     *
+     * @param first the date of the first occurrence
+     * @param last  the date of the last occurrence, as returned by {@link #getLastDate(LocalDate)}
+     * @param from  the first date of the range (inclusive)
+     * @param to    the last date of the range (inclusive)
+     * @return the dates of the occurrences within the range, in order, except for any exceptions
+     */
+    List<LocalDate> occurrences(LocalDate first, LocalDate last, LocalDate from, LocalDate to) {
+        if (last != null && last.isBefore(to)) {
+            to = last;
+        }
+        List<LocalDate> dates = new ArrayList<>();
+        if (to.isBefore(first) || to.isBefore(from)) {
+            return dates;
+        }
+        // jump straight to the first occurrence in range; clamped month ends may mean a step or two more
+        long k = from.isAfter(first) ? frequency.unit.between(first, from) / interval : 0;
+        while (nth(first, k).isBefore(from)) {
+            k++;
+        }
+        for (LocalDate date = nth(first, k); !date.isAfter(to); date = nth(first, ++k)) {
+            if (exists(first, date) && !exceptions.contains(date)) {
+                dates.add(date);
+            }
+        }
+        return dates;
+    }
+
+    /**
+     * @return the date k intervals after the first, clamped to the end of the month if need be
+     */
+    private LocalDate nth(LocalDate first, long k) {
+        return first.plus(k * interval, frequency.unit);
+    }
+
+    /**
+     * @return false iff the given date was clamped, because the day of the first occurrence
+     * does not exist in its month
+     */
+    private boolean exists(LocalDate first, LocalDate date) {
+        return frequency.unit.compareTo(ChronoUnit.MONTHS) < 0 || date.getDayOfMonth() == first.getDayOfMonth();
+    }
+
+    /**
+     * @return true iff some occurrences of a series starting on the given date do not exist
+     */
+    private boolean canSkip(LocalDate first) {
+        return (frequency == Frequency.MONTHLY && first.getDayOfMonth() > 28)
+                || (frequency == Frequency.YEARLY && first.getMonthValue() == 2 && first.getDayOfMonth() == 29);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof RecurrenceRule)) return false;
+        RecurrenceRule other = (RecurrenceRule) o;
+        return frequency == other.frequency && interval == other.interval && count == other.count
+                && Objects.equals(until, other.until) && exceptions.equals(other.exceptions);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(frequency, interval, count, until, exceptions);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("every %d %s%s%s%s", interval, frequency.unit,
+                count > 0 ? ", " + count + " times" : "",
+                until != null ? ", until " + until : "",
+                exceptions.isEmpty() ? "" : ", except " + exceptions);
+    }
+}
@@ -0,0 +1,400 @@
+package model;
+
+import java.text.Normalizer;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * A full-text index over the titles, locations and notes of the events in one {@link CalendarModel}.
+ */
+public final class SearchIndex implements CalendarListener {
+    private static final int TITLE = 1, LOCATION = 2, NOTES = 4;
+    /**
+     * the bits of a posting which hold the fields a token appears in; the rest hold the event's id
+     */
+    private static final int FIELD_BITS = 3;
+    /**
+     * how much less a query word counts when it starts a token, or is in the middle of one,
+     * than when it is the whole token
+     */
+    private static final double PREFIX = 0.6, INFIX = 0.3;
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+    private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{Nd}]+");
+
+    private final CalendarModel model;
+    private final Map<CalendarEvent, Integer> ids = new IdentityHashMap<>();
+    /**
+     * the events by id; null where an event has been removed or re-indexed under a new id
+     */
+    private CalendarEvent[] events;
+    /**
+     * the epoch day of each event's first and last occurrence, or {@link Long#MAX_VALUE} if it never ends
+     */
+    private long[] firstDays, lastDays;
+    private int nextId;
+    private final NavigableMap<String, Postings> tokens = new TreeMap<>();
+    private final Map<String, Set<String>> trigrams = new HashMap<>();
+
+    /**
+     * index every event currently in a calendar
+     *
+     * @param model the calendar to index
+     */
+    public SearchIndex(CalendarModel model) {
+        this.model = model;
+        rebuild();
+    }
+
+    /**
+     * An event which matched a search, and how well it matched
+     */
+    public static final class Hit implements Comparable<Hit> {
+        private final CalendarEvent event;
+        private final double score;
+        private final long firstDay;
+
+        private Hit(CalendarEvent event, double score, long firstDay) {
+            this.event = event;
+            this.score = score;
+            this.firstDay = firstDay;
+        }
+
+        /**
+         * @return the event which matched; a recurring event rather than one of its occurrences
+         */
+        public CalendarEvent getEvent() {
+            return event;
+        }
+
+        /**
+         * @return how well the event matched; higher is better
+         */
+        public double getScore() {
+            return score;
+        }
+
+        /**
+         * orders better matches first, and earlier events first among equally good matches
+         */
+        @Override
+        public int compareTo(Hit other) {
+            int byScore = Double.compare(other.score, score);
+            return byScore != 0 ? byScore : Long.compare(firstDay, other.firstDay);
+        }
+    }
+
+    /**
+     * split text into normalized tokens: runs of letters and digits, lowercased and without accents
+     *
+     * @param text any text. can be null
+     * @return the tokens in order, including any repeats
+     */
+    public static List<String> tokenize(String text) {
+        if (text == null || text.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<String> found = new ArrayList<>();
+        if (!isAscii(text)) {
+            String normalized = MARKS.matcher(Normalizer.normalize(text, Normalizer.Form.NFKD))
+                    .replaceAll("").toLowerCase(Locale.ROOT);
+            for (String token : SEPARATORS.split(normalized)) {
+                if (!token.isEmpty()) {
+                    found.add(token);
+                }
+            }
+            return found;
+        }
+        // most text is plain ASCII, which needs no normalizing and can be split without a regex
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean inToken = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (inToken && start < 0) {
+                start = i;
+            } else if (!inToken && start >= 0) {
+                found.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return found;
+    }
+
+    private static boolean isAscii(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) > 0x7f) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of events indexed
+     */
+    public int size() {
+        return ids.size();
+    }
+
+    /**
+     * Find the events containing every word of a query. A word matches a token which equals it,
+     * starts with it, or (if it is at least three characters long) contains it, in that order of
+     * preference. Rarer tokens count for more, and matches in the title count for more than matches
+     * in the location, which count for more than matches in the notes.
+     *
+     * @param query the words to look for
+     * @param from  the first day an event may occur on (inclusive), or null for no limit
+     * @param to    the last day an event may occur on (exclusive), or null for no limit. A recurring
+     *              event is found if its series runs during these days.
+     * @param limit the most events to return
+     * @return the best matches, best first
+     */
+    public List<Hit> search(String query, LocalDate from, LocalDate to, int limit) {
+        List<String> words = new ArrayList<>(new LinkedHashSet<>(tokenize(query)));
+        if (words.isEmpty() || limit <= 0) {
+            return Collections.emptyList();
+        }
+        Scores scores = new Scores(nextId);
+        for (int i = 0; i < words.size(); i++) {
+            String word = words.get(i);
+            Postings exact = tokens.get(word);
+            if (exact != null) {
+                scores.add(i, exact, 1);
+            }
+            for (Postings prefixed : tokens.subMap(word, false, word + Character.MAX_VALUE, false).values()) {
+                scores.add(i, prefixed, PREFIX);
+            }
+            for (String token : containing(word)) {
+                scores.add(i, tokens.get(token), INFIX);
+            }
+        }
+        long fromDay = from == null ? Long.MIN_VALUE : from.toEpochDay();
+        long toDay = to == null ? Long.MAX_VALUE : to.toEpochDay();
+        PriorityQueue<Hit> best = new PriorityQueue<>(Collections.reverseOrder());
+        for (int i = 0; i < scores.candidates.size(); i++) {
+            int id = scores.candidates.get(i);
+            if (scores.matched[id] == words.size() && firstDays[id] < toDay && lastDays[id] >= fromDay) {
+                best.add(new Hit(events[id], scores.total[id], firstDays[id]));
+                if (best.size() > limit) {
+                    best.poll();
+                }
+            }
+        }
+        List<Hit> hits = new ArrayList<>(best);
+        Collections.sort(hits);
+        return hits;
+    }
+
+    /**
+     * @param word a query word of any length
+     * @return the tokens which contain the word other than at their start, found through the
+     * rarest of the word's trigrams; none if the word is shorter than a trigram
+     */
+    private List<String> containing(String word) {
+        if (word.length() < 3) {
+            return Collections.emptyList();
+        }
+        Set<String> rarest = null;
+        for (int i = 0; i + 3 <= word.length(); i++) {
+            Set<String> withTrigram = trigrams.get(word.substring(i, i + 3));
+            if (withTrigram == null) {
+                return Collections.emptyList();
+            } else if (rarest == null || withTrigram.size() < rarest.size()) {
+                rarest = withTrigram;
+            }
+        }
+        List<String> found = new ArrayList<>();
+        for (String token : rarest) {
+            if (token.indexOf(word, 1) > 0 && tokens.containsKey(token)) {
+                found.add(token);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * re-index the events a change names
+     */
+    @Override
+    public void calendarChanged(CalendarModel source, List<CalendarChange> changes) {
+        if (source != model) {
+            return;
+        }
+        for (CalendarChange change : changes) {
+            CalendarEvent event = change.getEvent();
+            unindex(event);
+            if (change.getType() != CalendarChange.Type.REMOVED) {
+                index(event);
+            }
+        }
+        if (nextId - ids.size() > Math.max(ids.size(), 1024)) {
+            rebuild();
+        }
+    }
+
+    /**
+     * discard everything and index every event in the calendar afresh
+     */
+    private void rebuild() {
+        ids.clear();
+        tokens.clear();
+        trigrams.clear();
+        nextId = 0;
+        List<CalendarEvent> all = model.getAllEvents();
+        int capacity = Math.max(16, all.size());
+        events = new CalendarEvent[capacity];
+        firstDays = new long[capacity];
+        lastDays = new long[capacity];
+        for (CalendarEvent event : all) {
+            index(event);
+        }
+    }
+
+    private void index(CalendarEvent event) {
+        if (event.getRecurringEvent() != null || ids.containsKey(event)) {
+            return;
+        }
+        if (nextId == events.length) {
+            int capacity = events.length * 2;
+            events = Arrays.copyOf(events, capacity);
+            firstDays = Arrays.copyOf(firstDays, capacity);
+            lastDays = Arrays.copyOf(lastDays, capacity);
+        }
+        int id = nextId++;
+        ids.put(event, id);
+        events[id] = event;
+        firstDays[id] = event.getDate().toEpochDay();
+        LocalDate last = event.getRecurrence() == null ? event.getDate()
+                : event.getRecurrence().getLastDate(event.getDate());
+        lastDays[id] = last == null ? Long.MAX_VALUE : last.toEpochDay();
+
+        Map<String, Integer> fields = new HashMap<>();
+        for (String token : tokenize(event.getTitle())) {
+            fields.merge(token, TITLE, (a, b) -> a | b);
+        }
+        for (String token : tokenize(event.getLocation())) {
+            fields.merge(token, LOCATION, (a, b) -> a | b);
+        }
+        for (String token : tokenize(event.getNotes())) {
+            fields.merge(token, NOTES, (a, b) -> a | b);
+        }
+        for (Map.Entry<String, Integer> e : fields.entrySet()) {
+            postingsOf(e.getKey()).add(id << FIELD_BITS | e.getValue());
+        }
+    }
+
+    private void unindex(CalendarEvent event) {
+        Integer id = ids.remove(event);
+        if (id != null) {
+            events[id] = null;
+        }
+    }
+
+    private Postings postingsOf(String token) {
+        Postings postings = tokens.get(token);
+        if (postings == null) {
+            postings = new Postings();
+            tokens.put(token, postings);
+            for (int i = 0; i + 3 <= token.length(); i++) {
+                trigrams.computeIfAbsent(token.substring(i, i + 3), t -> new HashSet<>()).add(token);
+            }
+        }
+        return postings;
+    }
+
+    /**
+     * @return how much a token counts for in the given fields
+     */
+    private static double fieldWeight(int fields) {
+        return ((fields & TITLE) != 0 ? 3 : 0) + ((fields & LOCATION) != 0 ? 2 : 0) + ((fields & NOTES) != 0 ? 1 : 0);
+    }
+
+    /**
+     * The events containing a token, with the fields it appears in, in the order they were indexed
+     */
+    private static final class Postings {
+        private int[] entries = new int[4];
+        private int size;
+
+        private void add(int entry) {
+            if (size == entries.length) {
+                entries = Arrays.copyOf(entries, size * 2);
+            }
+            entries[size++] = entry;
+        }
+    }
+
+    /**
+     * The running scores of a search. An event is only a candidate for as long as it has matched
+     * every query word so far, so later words never touch events which cannot be returned.
+     */
+    private final class Scores {
+        private final double[] total, word;
+        private final int[] matched;
+        private final IntList candidates = new IntList();
+
+        private Scores(int ids) {
+            total = new double[ids];
+            word = new double[ids];
+            matched = new int[ids];
+        }
+
+        /**
+         * score the events in some postings for the i'th query word, keeping each event's best match
+         */
+        private void add(int i, Postings postings, double weight) {
+            double idf = Math.log(1 + (double) ids.size() / postings.size);
+            for (int p = 0; p < postings.size; p++) {
+                int entry = postings.entries[p];
+                int id = entry >>> FIELD_BITS;
+                if (events[id] == null || matched[id] < i) {
+                    continue;
+                }
+                double score = weight * idf * fieldWeight(entry & ((1 << FIELD_BITS) - 1));
+                if (matched[id] == i) {
+                    matched[id] = i + 1;
+                    word[id] = score;
+                    total[id] += score;
+                    if (i == 0) {
+                        candidates.add(id);
+                    }
+                } else if (score > word[id]) {
+                    total[id] += score - word[id];
+                    word[id] = score;
+                }
+            }
+        }
+    }
+
+    private static final class IntList {
+        private int[] values = new int[16];
+        private int size;
+
+        private void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        private int get(int i) {
+            return values[i];
+        }
+
+        private int size() {
+            return size;
+        }
+    }
+}
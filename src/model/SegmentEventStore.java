@@ -0,0 +1,441 @@
+package model;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.function.LongConsumer;
+
+/**
+ * Stores the events of a calendar read in place from a {@link CalendarSegment}, along with
+ * every change made since.
+ */
+class SegmentEventStore implements EventStore {
+    private static final long serialVersionUID = 3342186027760944771L;
+    private static final long SECONDS_PER_DAY = 86_400;
+
+    private final transient CalendarSegment segment;
+    private final transient CalendarSegment.Reader reader;
+    private final transient CalendarModel.StorageMode mode;
+    private final transient EventStore overlay;
+    /**
+     * the rows whose events have been removed, or moved to the overlay
+     */
+    private transient BitSet gone = new BitSet();
+    private transient int goneCount;
+    /**
+     * true iff {@link #gone} is shared with a snapshot, so must be copied before it is changed
+     */
+    private transient boolean goneShared;
+    /**
+     * the events decoded and still held by someone, by row
+     */
+    private final transient Map<Integer, View> views = new HashMap<>();
+    private final transient ReferenceQueue<CalendarEvent> collected = new ReferenceQueue<>();
+    /**
+     * the interner for the titles and locations of events as they are decoded; null if there is none
+     */
+    private transient StringInterner strings;
+
+    /**
+     * @param segment the segment holding the calendar's saved events
+     * @param mode    how the calendar stores events which are not in the segment
+     */
+    SegmentEventStore(CalendarSegment segment, CalendarModel.StorageMode mode) {
+        this.segment = segment;
+        this.reader = segment.reader();
+        this.mode = mode;
+        this.overlay = mode == CalendarModel.StorageMode.PACKED
+                ? new PackedEventStore() : new IndexedEventStore(Collections.emptyList());
+        // rows set aside as damaged are treated as if they had been removed
+        this.gone = segment.getLostRows();
+        this.goneCount = gone.cardinality();
+    }
+
+    @Override
+    public int size() {
+        return segment.size() - goneCount + overlay.size();
+    }
+
+    @Override
+    public CalendarEvent get(long id) {
+        CalendarEvent event = overlay.get(id);
+        if (event != null) {
+            return event;
+        }
+        int row = segment.rowOf(id);
+        return row < 0 || gone.get(row) ? null : materialize(row);
+    }
+
+    @Override
+    public TimeSpan spanOf(CalendarEvent event) {
+        TimeSpan span = overlay.spanOf(event);
+        if (span != null) {
+            return span;
+        }
+        int row = rowOf(event);
+        return row < 0 ? null : segment.spanOf(row);
+    }
+
+    @Override
+    public void add(CalendarEvent event) {
+        if (rowOf(event) >= 0) {
+            update(event);
+            return;
+        }
+        if (overlay.spanOf(event) == null && isSaved(event.getId())) {
+            event.renumber();
+        }
+        overlay.add(event);
+    }
+
+    @Override
+    public void addAll(List<CalendarEvent> toAdd) {
+        for (CalendarEvent event : toAdd) {
+            if (isSaved(event.getId())) {
+                event.renumber();
+            }
+        }
+        overlay.addAll(toAdd);
+    }
+
+    @Override
+    public boolean remove(CalendarEvent event) {
+        if (overlay.remove(event)) {
+            return true;
+        }
+        int row = rowOf(event);
+        if (row < 0) {
+            return false;
+        }
+        forget(row);
+        return true;
+    }
+
+    @Override
+    public void removeAll(Collection<CalendarEvent> toRemove) {
+        List<CalendarEvent> added = new ArrayList<>();
+        for (CalendarEvent event : toRemove) {
+            if (overlay.spanOf(event) != null) {
+                added.add(event);
+            } else {
+                int row = rowOf(event);
+                if (row >= 0) {
+                    forget(row);
+                }
+            }
+        }
+        if (!added.isEmpty()) {
+            overlay.removeAll(added);
+        }
+    }
+
+    @Override
+    public void update(CalendarEvent event) {
+        int row = rowOf(event);
+        if (row >= 0) {
+            forget(row);
+            overlay.add(event);
+        } else {
+            overlay.update(event);
+        }
+    }
+
+    /**
+     * @param interner the interner for the titles and locations of events decoded from now on,
+     *                 and of snapshots taken from now on, or null to stop interning
+     */
+    void setInterner(StringInterner interner) {
+        strings = interner;
+    }
+
+    /**
+     * @param id the id of an event
+     * @return true iff a saved event which is not gone has that id
+     */
+    private boolean isSaved(long id) {
+        int row = segment.rowOf(id);
+        return row >= 0 && !gone.get(row);
+    }
+
+    /**
+     * @param event any event
+     * @return the row holding the event, if it was decoded from the segment and is not gone; otherwise -1
+     */
+    private synchronized int rowOf(CalendarEvent event) {
+        int row = segment.rowOf(event.getId());
+        if (row < 0 || gone.get(row)) {
+            return -1;
+        }
+        View view = views.get(row);
+        return view != null && view.get() == event ? row : -1;
+    }
+
+    /**
+     * mark a row as gone, and forget its event
+     */
+    private synchronized void forget(int row) {
+        if (goneShared) {
+            gone = (BitSet) gone.clone();
+            goneShared = false;
+        }
+        gone.set(row);
+        goneCount++;
+        views.remove(row);
+    }
+
+    /**
+     * @param from the first row (inclusive)
+     * @param to   the last row (exclusive)
+     * @return the number of rows between the two which are gone
+     */
+    private int goneBetween(int from, int to) {
+        int count = 0;
+        for (int row = gone.nextSetBit(from); row >= 0 && row < to; row = gone.nextSetBit(row + 1)) {
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public CalendarEvent[] getEventsInRange(long lo, long hi) {
+        // anything starting at or before lo - maxLength must have ended by lo
+        int to = segment.lowerBound(hi);
+        List<CalendarEvent> found = new ArrayList<>();
+        for (int row = segment.upperBound(lo - segment.getMaxLength()); row < to; row++) {
+            if (!gone.get(row) && segment.endOf(row) > lo) {
+                found.add(materialize(row));
+            }
+        }
+        return RecurrenceIndex.merge(found.toArray(new CalendarEvent[0]), overlay.getEventsInRange(lo, hi));
+    }
+
+    @Override
+    public Iterator<CalendarEvent> iterateRange(long lo, long hi) {
+        int to = segment.lowerBound(hi);
+        Iterator<CalendarEvent> saved = new Iterator<CalendarEvent>() {
+            // anything starting at or before lo - maxLength must have ended by lo
+            private int row = skip(segment.upperBound(lo - segment.getMaxLength()));
+
+            private int skip(int from) {
+                while (from < to && (gone.get(from) || segment.endOf(from) <= lo)) {
+                    from++;
+                }
+                return from;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return row < to;
+            }
+
+            @Override
+            public CalendarEvent next() {
+                if (row >= to) {
+                    throw new NoSuchElementException();
+                }
+                CalendarEvent event = materialize(row);
+                row = skip(row + 1);
+                return event;
+            }
+        };
+        return RecurrenceIndex.merge(saved, overlay.getEventsInRange(lo, hi));
+    }
+
+    @Override
+    public int countInRange(long lo, long hi) {
+        // everything starting within the window overlaps it; of the events starting
+        // earlier, only those within maxLength of the window can still be running
+        int startsInside = segment.upperBound(lo), startsAfter = segment.lowerBound(hi);
+        int count = Math.max(0, startsAfter - startsInside - goneBetween(startsInside, startsAfter));
+        for (int row = segment.upperBound(lo - segment.getMaxLength()); row < Math.min(startsInside, startsAfter); row++) {
+            if (!gone.get(row) && segment.endOf(row) > lo) {
+                count++;
+            }
+        }
+        return count + overlay.countInRange(lo, hi);
+    }
+
+    @Override
+    public int countInDays(long fromDay, long toDay) {
+        int from = segment.lowerBound(fromDay * SECONDS_PER_DAY), to = segment.lowerBound(toDay * SECONDS_PER_DAY);
+        return Math.max(0, to - from - goneBetween(from, to)) + overlay.countInDays(fromDay, toDay);
+    }
+
+    /**
+     * the segment is binary searched in any case, so this is the same as {@link #getEventsInRange(long, long)}
+     */
+    @Override
+    public CalendarEvent[] scanRange(long lo, long hi, boolean parallel) {
+        return getEventsInRange(lo, hi);
+    }
+
+    @Override
+    public TimeSpan getBounds() {
+        TimeSpan added = overlay.getBounds();
+        int first = gone.nextClearBit(0), last = gone.previousClearBit(segment.size() - 1);
+        if (first >= segment.size()) {
+            return added;
+        }
+        long start = segment.startOf(first), end = segment.startOf(last);
+        return added == null ? new TimeSpan(start, end)
+                : new TimeSpan(Math.min(start, added.getStart()), Math.max(end, added.getEnd()));
+    }
+
+    @Override
+    public CalendarEvent[] getEventsInDays(long fromDay, long toDay) {
+        int to = segment.lowerBound(toDay * SECONDS_PER_DAY);
+        List<CalendarEvent> found = new ArrayList<>();
+        for (int row = segment.lowerBound(fromDay * SECONDS_PER_DAY); row < to; row++) {
+            if (!gone.get(row)) {
+                found.add(materialize(row));
+            }
+        }
+        return RecurrenceIndex.merge(found.toArray(new CalendarEvent[0]), overlay.getEventsInDays(fromDay, toDay));
+    }
+
+    @Override
+    public NavigableMap<LocalDate, CalendarEvent[]> getEventsByDay(LocalDate from, LocalDate to) {
+        NavigableMap<LocalDate, CalendarEvent[]> result = new TreeMap<>();
+        CalendarEvent[] found = getEventsInDays(from.toEpochDay(), to.toEpochDay());
+        // events are in start order, so each day's are contiguous
+        for (int i = 0, j; i < found.length; i = j) {
+            LocalDate day = found[i].getDate();
+            j = i + 1;
+            while (j < found.length && found[j].getDate().equals(day)) {
+                j++;
+            }
+            CalendarEvent[] bucket = new CalendarEvent[j - i];
+            System.arraycopy(found, i, bucket, 0, bucket.length);
+            result.put(day, bucket);
+        }
+        return result;
+    }
+
+    @Override
+    public List<CalendarEvent> getAllEvents() {
+        List<CalendarEvent> all = new ArrayList<>(size());
+        for (int row = gone.nextClearBit(0); row < segment.size(); row = gone.nextClearBit(row + 1)) {
+            all.add(materialize(row));
+        }
+        all.addAll(overlay.getAllEvents());
+        return Collections.unmodifiableList(all);
+    }
+
+    @Override
+    public void forEachId(LongConsumer action) {
+        segment.forEachId(gone, action);
+        overlay.forEachId(action);
+    }
+
+    /**
+     * @param row a row of the segment which is not gone
+     * @return the CalendarEvent for that row, decoding it unless someone still holds the one decoded before
+     */
+    private synchronized CalendarEvent materialize(int row) {
+        for (View view; (view = (View) collected.poll()) != null; ) {
+            views.remove(view.row, view);
+        }
+        View view = views.get(row);
+        CalendarEvent event = view == null ? null : view.get();
+        if (event == null) {
+            event = reader.read(row);
+            if (strings != null) {
+                strings.intern(event);
+            }
+            views.put(row, new View(event, row, collected));
+        }
+        return event;
+    }
+
+    @Override
+    public EventSnapshot snapshot() {
+        goneShared = true;
+        return new Snapshot(segment, mode, gone, goneCount, overlay.snapshot(), strings);
+    }
+
+    /**
+     * serializes as a store of the calendar's mode holding every event, as the segment
+     * cannot be serialized
+     *
+     * @return the store to serialize in place of this one
+     */
+    private Object writeReplace() {
+        List<CalendarEvent> all = snapshot().copyEvents();
+        if (mode == CalendarModel.StorageMode.PACKED) {
+            PackedEventStore packed = new PackedEventStore();
+            packed.addAll(all);
+            return packed;
+        }
+        return new IndexedEventStore(all);
+    }
+
+    /**
+     * a decoded event, held weakly, and the row it was decoded from
+     */
+    private static final class View extends WeakReference<CalendarEvent> {
+        private final int row;
+
+        private View(CalendarEvent event, int row, ReferenceQueue<CalendarEvent> queue) {
+            super(event, queue);
+            this.row = row;
+        }
+    }
+
+    /**
+     * the saved events not gone at one moment, and a snapshot of the overlay
+     */
+    private static final class Snapshot implements EventSnapshot {
+        private final CalendarSegment segment;
+        private final CalendarModel.StorageMode mode;
+        private final BitSet gone;
+        private final int goneCount;
+        private final EventSnapshot overlay;
+        private final StringInterner strings;
+
+        private Snapshot(CalendarSegment segment, CalendarModel.StorageMode mode, BitSet gone, int goneCount,
+                         EventSnapshot overlay, StringInterner strings) {
+            this.segment = segment;
+            this.mode = mode;
+            this.gone = gone;
+            this.goneCount = goneCount;
+            this.overlay = overlay;
+            this.strings = strings;
+        }
+
+        @Override
+        public int size() {
+            return segment.size() - goneCount + overlay.size();
+        }
+
+        @Override
+        public List<CalendarEvent> copyEvents() {
+            List<CalendarEvent> copies = new ArrayList<>(size());
+            CalendarSegment.Reader reader = segment.reader();
+            for (int row = gone.nextClearBit(0); row < segment.size(); row = gone.nextClearBit(row + 1)) {
+                CalendarEvent copy = reader.read(row);
+                if (strings != null) {
+                    strings.intern(copy);
+                }
+                copies.add(copy);
+            }
+            copies.addAll(overlay.copyEvents());
+            return copies;
+        }
+
+        @Override
+        public CalendarModel toSerialForm(List<CalendarEvent> recurring) {
+            return CalendarModel.serialForm(mode, copyEvents(), null, recurring);
+        }
+    }
+}
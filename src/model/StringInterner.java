@@ -0,0 +1,47 @@
+package model;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Hands out one shared String for each distinct title and location, so that the events of
+ * every calendar given the same interner hold each value once.
+ *
+ * @see CalendarModel#setInterner(StringInterner)
+ */
+public final class StringInterner {
+    private final ConcurrentMap<String, String> pool = new ConcurrentHashMap<>();
+
+    /**
+     * @param value any string, or null
+     * @return the shared string equal to the value, or null if the value is null
+     */
+    public String intern(String value) {
+        if (value == null) {
+            return null;
+        }
+        String shared = pool.putIfAbsent(value, value);
+        return shared == null ? value : shared;
+    }
+
+    /**
+     * @return the number of distinct strings interned
+     */
+    public int size() {
+        return pool.size();
+    }
+
+    /**
+     * replace an event's title and location with the shared strings equal to them
+     *
+     * @param event any event
+     * @return true iff either was not already the shared string
+     */
+    boolean intern(CalendarEvent event) {
+        String title = intern(event.getTitle()), location = intern(event.getLocation());
+        boolean changed = title != event.getTitle() || location != event.getLocation();
+        event.setTitle(title);
+        event.setLocation(location);
+        return changed;
+    }
+}
@@ -0,0 +1,123 @@
+package model;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assigns a small integer id to each distinct string, so that repeated values
+ * are stored once.
+ */
+class StringPool implements Serializable {
+    /**
+     * the id standing in for a null string
+     */
+    static final int NULL_ID = -1;
+    private static final long serialVersionUID = 4302164412870596815L;
+    private static final int INITIAL_CAPACITY = 16;
+    /**
+     * pools are saved as a list of their strings, indexed by id
+     */
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("values", List.class)
+    };
+
+    /**
+     * the string with each id. Entries are only ever appended, so a {@link #freeze() frozen}
+     * pool may keep reading the same array while this one grows.
+     */
+    private transient String[] values;
+    private transient int size;
+    /**
+     * the id of each string; null for a frozen pool
+     */
+    private transient Map<String, Integer> ids;
+
+    StringPool() {
+        values = new String[INITIAL_CAPACITY];
+        ids = new HashMap<>();
+    }
+
+    private StringPool(String[] values, int size) {
+        this.values = values;
+        this.size = size;
+    }
+
+    /**
+     * @param s any string, or null
+     * @return the id of the given string, assigning a new one if necessary
+     * @throws IllegalStateException if the pool is frozen
+     */
+    int idOf(String s) {
+        if (s == null) {
+            return NULL_ID;
+        } else if (ids == null) {
+            throw new IllegalStateException("a frozen StringPool cannot assign ids");
+        }
+        return ids.computeIfAbsent(s, k -> {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size] = k;
+            return size++;
+        });
+    }
+
+    /**
+     * @param id an id previously returned by {@link #idOf(String)}
+     * @return the string with that id
+     */
+    String get(int id) {
+        return id == NULL_ID ? null : values[id];
+    }
+
+    /**
+     * @return the number of distinct strings in the pool
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return a read-only pool of the strings currently in this one, which later
+     * additions to this pool will not affect. O(1).
+     */
+    StringPool freeze() {
+        return new StringPool(values, size);
+    }
+
+    /**
+     * @param out the stream to write to
+     * @throws IOException if the stream could not be written
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("values", new ArrayList<>(Arrays.asList(values).subList(0, size)));
+        out.writeFields();
+    }
+
+    /**
+     * rebuilds the reverse lookup table after deserialization
+     *
+     * @param in the stream this pool is being read from
+     * @throws IOException            if the stream could not be read
+     * @throws ClassNotFoundException if a serialized class could not be found
+     */
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        List<String> saved = (List<String>) in.readFields().get("values", null);
+        size = saved.size();
+        values = saved.toArray(new String[Math.max(INITIAL_CAPACITY, size)]);
+        ids = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            ids.put(values[i], i);
+        }
+    }
+}
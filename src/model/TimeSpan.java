@@ -0,0 +1,110 @@
+package model;
+
+import java.io.Serializable;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneOffset;
+
+/**
+ * An immutable span of time occupied by a calendar event, measured in
+ * seconds since the epoch (1970-01-01T00:00) in local time.
+ */
+public final class TimeSpan implements Serializable {
+    private static final long serialVersionUID = 2771582911493604384L;
+    private static final long SECONDS_PER_DAY = 86_400;
+
+    private final long start;
+    private final long end;
+
+    /**
+     * @param start the first second of the span
+     * @param end   the last second of the span. values before start are clamped to start.
+     */
+    public TimeSpan(long start, long end) {
+        this.start = start;
+        this.end = Math.max(start, end);
+    }
+
+    /**
+     * get the span occupied by the given event at the time of the call
+     *
+     * @param event any event with a date and start time
+     * @return the span of time that event currently occupies
+     */
+    public static TimeSpan of(CalendarEvent event) {
+        long start = toEpochSecond(event.getDate(), event.getStartTime());
+        LocalTime endTime = event.getEndTime();
+        return new TimeSpan(start, endTime == null ? start : toEpochSecond(event.getDate(), endTime));
+    }
+
+    /**
+     * @param date a date
+     * @param time a time of day on that date
+     * @return the number of seconds between the epoch and the given date and time
+     */
+    public static long toEpochSecond(LocalDate date, LocalTime time) {
+        return date.toEpochDay() * SECONDS_PER_DAY + time.toSecondOfDay();
+    }
+
+    /**
+     * @param dateTime a date and time
+     * @return the number of seconds between the epoch and the given date and time
+     */
+    public static long toEpochSecond(LocalDateTime dateTime) {
+        return dateTime.toEpochSecond(ZoneOffset.UTC);
+    }
+
+    /**
+     * @return the first second of this span
+     */
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * @return the last second of this span
+     */
+    public long getEnd() {
+        return end;
+    }
+
+    /**
+     * @return the day on which this span starts, as a count of days since the epoch
+     */
+    public long getStartEpochDay() {
+        return Math.floorDiv(start, SECONDS_PER_DAY);
+    }
+
+    /**
+     * test whether this span overlaps the open window (lo, hi).
+     * A span which ends exactly at lo or starts exactly at hi does not overlap.
+     *
+     * @param lo the (exclusive) start of the window, in epoch seconds
+     * @param hi the (exclusive) end of the window, in epoch seconds
+     * @return true iff any part of this span falls within the window
+     */
+    public boolean overlaps(long lo, long hi) {
+        return start < hi && end > lo;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof TimeSpan)) return false;
+        TimeSpan other = (TimeSpan) o;
+        return start == other.start && end == other.end;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(start) * 31 + Long.hashCode(end);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s..%s",
+                LocalDateTime.ofEpochSecond(start, 0, ZoneOffset.UTC),
+                LocalDateTime.ofEpochSecond(end, 0, ZoneOffset.UTC));
+    }
+}
@@ -5,27 +5,93 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.channels.Channels;
 import java.nio.file.Files;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.LocalTime;
 import java.time.Month;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import controller.CalendarAlreadyExistsException;
 import controller.CalendarController;
+import controller.CalendarEntry;
+import controller.FreeBusy;
 import controller.NoSuchCalendarException;
 import model.CalendarEvent;
+import model.CalendarManifest;
 import model.CalendarModel;
+import model.CalendarSegment;
+import model.RecurrenceRule;
 
 public class CalendarControllerTests {
 	
-	private static File testFile = new File("test_cals.bin");
-	private static File testFile1 = new File("");
-	private static File testFile2 = new File("test_cals.bin");
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File testFile;
+	private File testFile1;
+	private File testFile2;
+	private final List<CalendarController> opened = new ArrayList<>();
 
+	@Before
+	public void setUp() {
+		testFile = new File(folder.getRoot(), "test_cals.bin");
+		testFile1 = new File(folder.getRoot(), "other_cals.bin");
+		testFile2 = testFile;
+	}
+
+	/**
+	 * Closes every controller a test opened, so that no journal writer outlives its test
+	 */
+	@After
+	public void tearDown() {
+		for (CalendarController cont : opened) {
+			try {
+				cont.close();
+			} catch (IOException e) {
+				// a test which broke the journal has already checked this
+			}
+		}
+	}
+
+	/**
+	 * Opens a controller on a file, to be closed after the test
+	 * @param file -- the file the calendars are kept in
+	 */
+	private CalendarController open(File file) throws IOException {
+		CalendarController cont = new CalendarController(file);
+		opened.add(cont);
+		return cont;
+	}
 
 	@Test
 	public void testControllerNull() {
@@ -36,11 +102,10 @@ public class CalendarControllerTests {
 	 */
 	@Test
 	public void testCalendarDefault() throws IOException {
-		CalendarController cont1 = new CalendarController(testFile);
+		CalendarController cont1 = open(testFile);
 		Set<String> set1 = new HashSet<String>();
 		set1.add("Default");
 		assertEquals(cont1.getCalendarNames(), set1);
-		Files.deleteIfExists(cont1.calFile.toPath());
 	}
 	
 	/**
@@ -49,7 +114,7 @@ public class CalendarControllerTests {
 	 */
 	@Test
 	public void testCreateCalendar() throws CalendarAlreadyExistsException, IOException {
-		CalendarController cont1 = new CalendarController(testFile);
+		CalendarController cont1 = open(testFile);
 		Set<String> set1 = new HashSet<String>();
 		set1.add("Default");
 		cont1.createNewCalendar("calendar1");
@@ -59,7 +124,6 @@ public class CalendarControllerTests {
 		           () -> {
 		        	   cont1.createNewCalendar("calendar1");
 		           });
-		Files.deleteIfExists(cont1.calFile.toPath());
 	}
 	
 	/**
@@ -68,11 +132,10 @@ public class CalendarControllerTests {
 	 */
 	@Test
 	public void testDeleteCal() throws CalendarAlreadyExistsException, IOException {
-		CalendarController cont1 = new CalendarController(testFile);
+		CalendarController cont1 = open(testFile);
 		cont1.createNewCalendar("cal1");
 		assertTrue(cont1.deleteCalendar("cal1"));
 		assertFalse(cont1.deleteCalendar("cal2"));
-		Files.deleteIfExists(cont1.calFile.toPath());
 	}
 	
 	/**
@@ -81,7 +144,7 @@ public class CalendarControllerTests {
 	 */
 	@Test
 	public void testRenameCal() throws CalendarAlreadyExistsException, NoSuchCalendarException, IOException {
-		CalendarController cont1 = new CalendarController(testFile);
+		CalendarController cont1 = open(testFile);
 		cont1.createNewCalendar("cal1");
 		assertThrows(NoSuchCalendarException.class,
 		           () -> {
@@ -96,7 +159,6 @@ public class CalendarControllerTests {
 		set1.add("newCal");
 		cont1.renameCalendar("newCal", "cal1");
 		assertEquals(set1,cont1.getCalendarNames());
-		Files.deleteIfExists(cont1.calFile.toPath());
 	}
 	
 	/**
@@ -105,7 +167,7 @@ public class CalendarControllerTests {
 	 */
 	@Test
 	public void testAddEvent() throws NoSuchCalendarException, IOException {
-		CalendarController cont1 = new CalendarController(testFile);
+		CalendarController cont1 = open(testFile);
 		LocalDateTime time = LocalDateTime.of(2020, Month.APRIL, 1, 2,30,20,40);
 		CalendarEvent event = new CalendarEvent("This is an event", time);
 		assertThrows(NoSuchCalendarException.class,
@@ -113,7 +175,6 @@ public class CalendarControllerTests {
 		       			cont1.addEvent("not a calendar", event);
 		           });
 		cont1.addEvent("Default", event);
-		Files.deleteIfExists(cont1.calFile.toPath());
 	}
 	
 	/**
@@ -122,7 +183,7 @@ public class CalendarControllerTests {
 	 */
 	@Test
 	public void testRemoveEvent() throws NoSuchCalendarException, IOException {
-		CalendarController cont1 = new CalendarController(testFile);
+		CalendarController cont1 = open(testFile);
 		LocalDateTime time = LocalDateTime.of(2020, Month.APRIL, 1, 2,30,20,40);
 		CalendarEvent event = new CalendarEvent("This is an event", time);
 		cont1.addEvent("Default", event);
@@ -131,7 +192,6 @@ public class CalendarControllerTests {
 		       			cont1.removeEvent("not a calendar", event);
 		           });
 		cont1.removeEvent("Default", event);
-		Files.deleteIfExists(cont1.calFile.toPath());
 	}
 	
 	/**
@@ -140,7 +200,7 @@ public class CalendarControllerTests {
 	 */
 	@Test
 	public void testGetEventsInYear() throws NoSuchCalendarException, IOException {
-		CalendarController cont1 = new CalendarController(testFile);
+		CalendarController cont1 = open(testFile);
 		LocalDateTime time1 = LocalDateTime.of(2020, Month.APRIL, 1, 2,30,20,40);
 		LocalDateTime time2 = LocalDateTime.of(2020, Month.APRIL, 2, 2,30,20,40);
 		LocalDateTime time3 = LocalDateTime.of(2020, Month.APRIL, 3, 2,30,20,40);
@@ -160,7 +220,6 @@ public class CalendarControllerTests {
 		           });
 		
 		assertTrue(events[0].equals(cont1.getEventsInYear("Default", 2020)[0]));
-		Files.deleteIfExists(cont1.calFile.toPath());
 	}
 	
 	/**
@@ -169,7 +228,7 @@ public class CalendarControllerTests {
 	 */
 	@Test
 	public void testGetEventsInMonth() throws NoSuchCalendarException, IOException {
-		CalendarController cont1 = new CalendarController(testFile);
+		CalendarController cont1 = open(testFile);
 		LocalDateTime time1 = LocalDateTime.of(2020, Month.APRIL, 1, 2,30,20,40);
 		LocalDateTime time2 = LocalDateTime.of(2020, Month.MARCH, 2, 2,30,20,40);
 		LocalDateTime time3 = LocalDateTime.of(2020, Month.FEBRUARY, 3, 2,30,20,40);
@@ -189,7 +248,6 @@ public class CalendarControllerTests {
 		           });
 		
 		assertTrue(events[0].equals(cont1.getEventsInMonth("Default", 2020,4)[0]));
-		Files.deleteIfExists(cont1.calFile.toPath());
 	}
 	
 	/**
@@ -198,7 +256,7 @@ public class CalendarControllerTests {
 	 */
 	@Test
 	public void testGetEventsInDay() throws NoSuchCalendarException, IOException {
-		CalendarController cont1 = new CalendarController(testFile);
+		CalendarController cont1 = open(testFile);
 		LocalDateTime time1 = LocalDateTime.of(2020, Month.APRIL, 1, 2,30,20,40);
 		LocalDateTime time2 = LocalDateTime.of(2020, Month.APRIL, 1, 4,30,20,40);
 		LocalDateTime time3 = LocalDateTime.of(2020, Month.FEBRUARY, 3, 2,30,20,40);
@@ -221,7 +279,6 @@ public class CalendarControllerTests {
 		
 		assertTrue(events[0].equals(cont1.getEventsInDay("Default", x)[0]));
 		assertTrue(events[1].equals(cont1.getEventsInDay("Default", x)[1]));
-		Files.deleteIfExists(cont1.calFile.toPath());
 
 	}
 	
@@ -231,7 +288,7 @@ public class CalendarControllerTests {
 	 */
 	@Test
 	public void testGetEventsInHour() throws NoSuchCalendarException, IOException {
-		CalendarController cont1 = new CalendarController(testFile);
+		CalendarController cont1 = open(testFile);
 		LocalDateTime time1 = LocalDateTime.of(2020, Month.APRIL, 1, 2,30,20,40);
 		LocalDateTime time2 = LocalDateTime.of(2020, Month.APRIL, 1, 4,30,20,40);
 		LocalDateTime time3 = LocalDateTime.of(2020, Month.FEBRUARY, 3, 2,30,20,40);
@@ -253,7 +310,6 @@ public class CalendarControllerTests {
 		           });
 		
 		assertTrue(events[0].equals(cont1.getEventsInHour("Default", x)[0]));
-		Files.deleteIfExists(cont1.calFile.toPath());
 	}
 	
 	/**
@@ -262,7 +318,7 @@ public class CalendarControllerTests {
 	 */
 	@Test
 	public void testGetEventsInRange() throws NoSuchCalendarException, IOException {
-		CalendarController cont1 = new CalendarController(testFile);
+		CalendarController cont1 = open(testFile);
 		LocalDateTime time1 = LocalDateTime.of(2020, Month.APRIL, 1, 2,30,20,40);
 		LocalDateTime time2 = LocalDateTime.of(2020, Month.APRIL, 1, 4,30,20,40);
 		LocalDateTime time3 = LocalDateTime.of(2020, Month.FEBRUARY, 3, 2,30,20,40);
@@ -290,7 +346,6 @@ public class CalendarControllerTests {
 		
 		assertTrue(events[0].equals(cont1.getEventsInRange("Default", x,y)[0]));
 		assertTrue(events[1].equals(cont1.getEventsInRange("Default", x,y)[1]));
-		Files.deleteIfExists(cont1.calFile.toPath());
 	}
 	
 	/**
@@ -299,13 +354,13 @@ public class CalendarControllerTests {
 	 */
 	@Test
 	public void testloadCal() throws NoSuchCalendarException, IOException {
-		CalendarController cont1 = new CalendarController(testFile);
+		CalendarController cont1 = open(testFile);
 		LocalDateTime time1 = LocalDateTime.of(2020, Month.APRIL, 1, 2,30,20,40);
 		LocalDateTime time2 = LocalDateTime.of(2020, Month.APRIL, 1, 4,30,20,40);
 		LocalDateTime time3 = LocalDateTime.of(2020, Month.FEBRUARY, 3, 2,30,20,40); 
 		
-		CalendarController cont2 = new CalendarController(testFile2);
-		CalendarController cont3 = new CalendarController(testFile1);
+		CalendarController cont2 = open(testFile2);
+		CalendarController cont3 = open(testFile1);
 		
 
 		CalendarEvent event1 = new CalendarEvent("event1", time1);
@@ -325,8 +380,965 @@ public class CalendarControllerTests {
 		           });
 		
 		assertTrue(events[0].equals(cont1.getEventsInHour("Default", x)[0]));
-		Files.deleteIfExists(cont1.calFile.toPath());
 	}
-	
-}
 
+	/**
+	 * Tests that a range query over several calendars returns every event, each with the name
+	 * of its calendar, in start order
+	 */
+	@Test
+	public void testMergedRangeQuery() throws IOException, CalendarAlreadyExistsException, NoSuchCalendarException {
+		CalendarController cont1 = open(testFile);
+		cont1.createNewCalendar("work");
+		cont1.createNewCalendar("home");
+		LocalDate day = LocalDate.of(2021, 3, 1);
+		Random rand = new Random(9);
+		for (String name : new String[]{"Default", "work", "home"}) {
+			for (int i = 0; i < 200; i++) {
+				int start = rand.nextInt(23);
+				cont1.addEvent(name, new CalendarEvent(name + i, day.plusDays(rand.nextInt(14)),
+						LocalTime.of(start, rand.nextInt(60)), LocalTime.of(start + 1, 0), null, null));
+			}
+		}
+		LocalDateTime from = day.plusDays(3).atTime(12, 0), to = day.plusDays(10).atStartOfDay();
+		Set<String> names = new HashSet<>(Arrays.asList("work", "home"));
+		List<CalendarEntry> merged = cont1.getEventsInRange(names, from, to).collect(Collectors.toList());
+
+		int expected = 0;
+		for (String name : names) {
+			CalendarEvent[] events = cont1.getEventsInRange(name, from, to);
+			expected += events.length;
+			for (CalendarEvent event : events) {
+				assertTrue(merged.stream().anyMatch(e -> e.getEvent() == event && e.getCalendarName().equals(name)));
+			}
+		}
+		assertEquals(expected, merged.size());
+		for (int i = 1; i < merged.size(); i++) {
+			CalendarEvent prev = merged.get(i - 1).getEvent(), cur = merged.get(i).getEvent();
+			assertFalse(prev.getDate().atTime(prev.getStartTime()).isAfter(cur.getDate().atTime(cur.getStartTime())));
+		}
+		assertEquals(0, cont1.getEventsInRange(new HashSet<>(), from, to).count());
+		assertThrows(NoSuchCalendarException.class,
+				() -> cont1.getEventsInRange(new HashSet<>(Arrays.asList("work", "not a calendar")), from, to));
+	}
+
+	/**
+	 * Tests free/busy queries across several calendars, and that they stay correct as the
+	 * calendars change after being queried
+	 */
+	@Test
+	public void testFreeBusy() throws IOException, CalendarAlreadyExistsException, NoSuchCalendarException {
+		CalendarController cont1 = open(testFile);
+		cont1.createNewCalendar("work");
+		LocalDate day = LocalDate.of(2021, 3, 1);
+		Set<String> both = new HashSet<>(Arrays.asList("Default", "work"));
+		CalendarEvent meeting = new CalendarEvent("meeting", day, LocalTime.of(9, 0), LocalTime.of(10, 10), null, null);
+		cont1.addEvent("work", meeting);
+		cont1.addEvent("Default", new CalendarEvent("gym", day, LocalTime.of(9, 30), LocalTime.of(11, 0), null, null));
+		cont1.addEvent("Default", new CalendarEvent("reminder", day.atTime(13, 0)));
+
+		FreeBusy any = cont1.getFreeBusy(both, day, day.plusDays(2), FreeBusy.Mode.ANY);
+		assertEquals(1, any.getBusyPeriods().size());
+		assertEquals(day.atTime(9, 0), any.getBusyPeriods().get(0).getStart());
+		assertEquals(day.atTime(11, 0), any.getBusyPeriods().get(0).getEnd());
+		assertEquals(120, any.getBusyMinutes());
+		assertFalse(any.isBusy(day.atTime(13, 0)));
+		assertEquals(2, any.getFreePeriods().size());
+		assertEquals(day.plusDays(2).atStartOfDay(), any.getFreePeriods().get(1).getEnd());
+
+		FreeBusy all = cont1.getFreeBusy(both, day, day.plusDays(2), FreeBusy.Mode.ALL);
+		assertEquals(day.atTime(9, 30), all.getBusyPeriods().get(0).getStart());
+		assertEquals(day.atTime(10, 15), all.getBusyPeriods().get(0).getEnd());
+		assertTrue(all.isBusy(day.atTime(10, 14)));
+		assertEquals(2, all.getBitmap(day).length);
+		assertEquals(0, cont1.getFreeBusy(new HashSet<>(), day, day.plusDays(1), FreeBusy.Mode.ALL).getBusyMinutes());
+
+		meeting.setDate(day.plusDays(1));
+		cont1.markModified("work", meeting);
+		assertEquals(0, cont1.getFreeBusy(both, day, day.plusDays(2), FreeBusy.Mode.ALL).getBusyMinutes());
+		assertTrue(cont1.getFreeBusy(both, day, day.plusDays(2), FreeBusy.Mode.ANY).isBusy(day.plusDays(1).atTime(9, 0)));
+
+		cont1.setFreeBusyGranularity(5);
+		assertEquals(5, cont1.getFreeBusyGranularity());
+		CalendarEvent daily = new CalendarEvent("daily", day, LocalTime.of(6, 0), LocalTime.of(6, 40), null, null);
+		daily.setRecurrence(new RecurrenceRule(RecurrenceRule.Frequency.DAILY, 2));
+		cont1.addEvent("work", daily);
+		assertTrue(cont1.getFreeBusy(both, day, day.plusDays(7), FreeBusy.Mode.ANY).isBusy(day.plusDays(4).atTime(6, 35)));
+		Random rand = new Random(10);
+		for (int i = 0; i < 300; i++) {
+			int start = rand.nextInt(23);
+			cont1.addEvent(i % 2 == 0 ? "work" : "Default", new CalendarEvent("e" + i, day.plusDays(rand.nextInt(7)),
+					LocalTime.of(start, rand.nextInt(60)), LocalTime.of(start + 1, rand.nextInt(60)), null, null));
+			if (i == 150) {
+				cont1.getFreeBusy(both, day, day.plusDays(7), FreeBusy.Mode.ANY);
+			}
+		}
+		FreeBusy anyFine = cont1.getFreeBusy(both, day, day.plusDays(7), FreeBusy.Mode.ANY);
+		FreeBusy allFine = cont1.getFreeBusy(both, day, day.plusDays(7), FreeBusy.Mode.ALL);
+		for (LocalDateTime t = day.atStartOfDay(); t.isBefore(day.plusDays(7).atStartOfDay()); t = t.plusMinutes(5)) {
+			LocalDateTime slotEnd = t.plusMinutes(5);
+			boolean work = cont1.countEventsInRange("work", t, slotEnd) > 0;
+			boolean home = cont1.countEventsInRange("Default", t, slotEnd) > 0;
+			assertEquals(work || home, anyFine.isBusy(t));
+			assertEquals(work && home, allFine.isBusy(t));
+		}
+		assertThrows(IllegalArgumentException.class, () -> cont1.setFreeBusyGranularity(7));
+		assertThrows(NoSuchCalendarException.class,
+				() -> cont1.getFreeBusy(new HashSet<>(Arrays.asList("not a calendar")), day, day, FreeBusy.Mode.ANY));
+	}
+	/**
+	 * Tests search ranking, partial words, date ranges, limits and that the index follows changes
+	 */
+	@Test
+	public void testSearch() throws IOException, CalendarAlreadyExistsException, NoSuchCalendarException {
+		CalendarController cont1 = open(testFile);
+		cont1.createNewCalendar("work");
+		Set<String> both = new HashSet<>(Arrays.asList("Default", "work"));
+		LocalDate day = LocalDate.of(2021, 5, 3);
+		CalendarEvent standup = new CalendarEvent("Team Standup", day, LocalTime.of(9, 0), LocalTime.of(9, 15),
+				"Room 4", "discuss the caf\u00e9 menu");
+		CalendarEvent lunch = new CalendarEvent("Lunch", day, LocalTime.of(12, 0), LocalTime.of(13, 0),
+				"Cafe Roma", null);
+		CalendarEvent review = new CalendarEvent("Design review", day.plusDays(10), LocalTime.of(15, 0),
+				LocalTime.of(16, 0), null, "team standup follow-up");
+		cont1.addEvent("work", standup);
+		cont1.addEvent("Default", lunch);
+		cont1.addEvent("work", review);
+
+		// a title match ranks above a match in the notes
+		List<CalendarEntry> found = cont1.search("standup", both, null, null, 10);
+		assertEquals(2, found.size());
+		assertEquals(standup, found.get(0).getEvent());
+		assertEquals("work", found.get(0).getCalendarName());
+		assertEquals(review, found.get(1).getEvent());
+		// every word must match; accents and case are ignored
+		assertEquals(Arrays.asList(lunch, standup), cont1.search("CAFE", both, null, null, 10).stream()
+				.map(CalendarEntry::getEvent).collect(Collectors.toList()));
+		assertEquals(1, cont1.search("team room", both, null, null, 10).size());
+		// prefixes and the middle of words
+		assertEquals(standup, cont1.search("stand", both, null, null, 10).get(0).getEvent());
+		assertEquals(standup, cont1.search("andu", both, null, null, 10).get(0).getEvent());
+		assertEquals(0, cont1.search("xyz", both, null, null, 10).size());
+		assertEquals(1, cont1.search("standup", both, null, null, 1).size());
+		assertEquals(1, cont1.search("standup", both, day.plusDays(1), null, 10).size());
+		assertEquals(0, cont1.search("lunch", new HashSet<>(Arrays.asList("work")), null, null, 10).size());
+
+		// the index follows edits and removals
+		standup.setTitle("Retro");
+		cont1.markModified("work", standup);
+		assertEquals(review, cont1.search("standup", both, null, null, 10).get(0).getEvent());
+		assertEquals(standup, cont1.search("retro", both, null, null, 10).get(0).getEvent());
+		cont1.removeEvent("Default", lunch);
+		assertEquals(0, cont1.search("lunch", both, null, null, 10).size());
+
+		// recurring events are found once, if their series runs during the range
+		CalendarEvent weekly = new CalendarEvent("Piano lesson", day, LocalTime.of(17, 0), LocalTime.of(18, 0), null, null);
+		weekly.setRecurrence(new RecurrenceRule(RecurrenceRule.Frequency.WEEKLY, 1).withCount(4));
+		cont1.addEvent("Default", weekly);
+		assertEquals(1, cont1.search("piano", both, day.plusDays(20), day.plusDays(30), 10).size());
+		assertEquals(0, cont1.search("piano", both, day.plusDays(30), null, 10).size());
+
+		// agrees with a scan over many events, through enough removals to rebuild the index
+		Random rand = new Random(13);
+		String[] words = {"alpha", "beta", "gamma", "delta"};
+		for (int i = 0; i < 3000; i++) {
+			cont1.addEvent("work", new CalendarEvent(words[rand.nextInt(4)] + " " + i, day.plusDays(rand.nextInt(30)),
+					LocalTime.of(8, 0), LocalTime.of(9, 0), words[rand.nextInt(4)], null));
+		}
+		for (CalendarEvent event : cont1.getEventsInRange("work", day.atStartOfDay(), day.plusDays(60).atStartOfDay())) {
+			if (!event.getTitle().startsWith("alpha")) {
+				cont1.removeEvent("work", event);
+			}
+		}
+		for (String word : words) {
+			long expected = Arrays.stream(cont1.getEventsInRange("work", day.atStartOfDay(), day.plusDays(60).atStartOfDay()))
+					.filter(e -> e.getTitle().startsWith(word) || word.equals(e.getLocation())).count();
+			assertEquals(expected, cont1.search(word, both, null, null, 5000).size());
+		}
+		assertThrows(NoSuchCalendarException.class,
+				() -> cont1.search("alpha", new HashSet<>(Arrays.asList("not a calendar")), null, null, 10));
+	}
+	/**
+	 * Tests that title and location suggestions follow the events in every calendar
+	 */
+	@Test
+	public void testSuggestions() throws IOException, CalendarAlreadyExistsException, NoSuchCalendarException {
+		CalendarController cont1 = open(testFile);
+		cont1.createNewCalendar("work");
+		LocalDate day = LocalDate.of(2021, 6, 1);
+		cont1.addEvent("Default", new CalendarEvent("Lunch", day, LocalTime.NOON, LocalTime.of(13, 0), "Cafe", null));
+		cont1.addEvent("work", new CalendarEvent("Lunch", day.plusDays(1), LocalTime.NOON, LocalTime.of(13, 0), "Cafe", null));
+		cont1.addEvent("work", new CalendarEvent("Lecture", day, LocalTime.of(9, 0), LocalTime.of(10, 0), "Hall C", null));
+		assertEquals(Arrays.asList("Lunch", "Lecture"), cont1.suggestTitles("l", 10));
+		assertEquals(Arrays.asList("Lunch"), cont1.suggestTitles("l", 1));
+		assertEquals(Arrays.asList("Cafe"), cont1.suggestLocations("ca", 10));
+
+		// the counts follow additions, edits and deleted calendars
+		CalendarEvent lecture = new CalendarEvent("Lecture", day.plusDays(2), LocalTime.of(9, 0), LocalTime.of(10, 0), "Hall C", null);
+		cont1.addEvent("Default", lecture);
+		cont1.addEvent("Default", new CalendarEvent("Lecture", day.plusDays(3), LocalTime.of(9, 0), LocalTime.of(10, 0), null, null));
+		assertEquals(Arrays.asList("Lecture", "Lunch"), cont1.suggestTitles("L", 10));
+		lecture.setLocation("Cafeteria");
+		cont1.markModified("Default", lecture);
+		assertEquals(Arrays.asList("Cafe", "Cafeteria"), cont1.suggestLocations("caf", 10));
+		assertEquals(Arrays.asList("Hall C"), cont1.suggestLocations("h", 10));
+		cont1.deleteCalendar("work");
+		assertEquals(Arrays.asList("Lecture", "Lunch"), cont1.suggestTitles("l", 10));
+		assertEquals(0, cont1.suggestLocations("h", 10).size());
+	}
+	/**
+	 * Tests finding, moving and removing events by id across calendars, including calendars
+	 * holding events with the same id
+	 */
+	@Test
+	public void testEventsById()
+			throws IOException, ClassNotFoundException, CalendarAlreadyExistsException, NoSuchCalendarException {
+		CalendarController cont1 = open(testFile);
+		cont1.createNewCalendar("work");
+		LocalDate day = LocalDate.of(2021, 7, 1);
+		CalendarEvent dentist = new CalendarEvent("dentist", day, LocalTime.of(9, 0), LocalTime.of(10, 0), null, null);
+		CalendarEvent meeting = new CalendarEvent("meeting", day, LocalTime.of(11, 0), LocalTime.of(12, 0), null, null);
+		cont1.addEvent("Default", dentist);
+		cont1.addEvent("work", meeting);
+		assertEquals(dentist, cont1.getEvent(dentist.getId()).getEvent());
+		assertEquals("Default", cont1.getEvent(dentist.getId()).getCalendarName());
+		assertEquals("work", cont1.getEvent(meeting.getId()).getCalendarName());
+
+		// moving keeps the id, and follows edits made before the move
+		meeting.setDate(day.plusDays(1));
+		assertTrue(cont1.moveEvent(meeting.getId(), "Default"));
+		assertEquals("Default", cont1.getEvent(meeting.getId()).getCalendarName());
+		assertEquals(0, cont1.getEventsInDay("work", day.plusDays(1)).length);
+		assertEquals(meeting, cont1.getEventsInDay("Default", day.plusDays(1))[0]);
+		meeting.setDate(day.plusDays(2));
+		assertTrue(cont1.moveEvent(meeting.getId(), "Default"));
+		assertEquals(meeting, cont1.getEventsInDay("Default", day.plusDays(2))[0]);
+		assertThrows(NoSuchCalendarException.class, () -> cont1.moveEvent(meeting.getId(), "not a calendar"));
+
+		cont1.renameCalendar("home", "Default");
+		assertEquals("home", cont1.getEvent(dentist.getId()).getCalendarName());
+		assertTrue(cont1.removeEvent(dentist.getId()));
+		assertEquals(null, cont1.getEvent(dentist.getId()));
+		assertFalse(cont1.removeEvent(dentist.getId()));
+		assertFalse(cont1.moveEvent(dentist.getId(), "work"));
+		assertEquals(0, cont1.getEventsInDay("home", day).length);
+
+		cont1.moveEvent(meeting.getId(), "work");
+		// ids are only unique within a calendar, and a copy read back from a file keeps its id
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(meeting);
+		}
+		CalendarEvent copy = (CalendarEvent) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+		cont1.createNewCalendar("copies");
+		cont1.addEvent("copies", copy);
+		assertEquals(meeting.getId(), copy.getId());
+		assertTrue(cont1.getEvent(meeting.getId()).getEvent() == meeting);
+		assertTrue(cont1.moveEvent(meeting.getId(), "home"));
+		assertEquals("copies", cont1.getEvent(copy.getId()).getCalendarName());
+		assertTrue(cont1.removeEvent(copy.getId()));
+		assertEquals(0, cont1.getEventsInDay("copies", day.plusDays(2)).length);
+		assertTrue(cont1.getEvent(meeting.getId()).getEvent() == meeting);
+		cont1.addEvent("copies", copy);
+		assertTrue(cont1.moveEvent(meeting.getId(), "copies"));
+		assertFalse(meeting.getId() == copy.getId());
+		assertTrue(cont1.getEvent(copy.getId()).getEvent() == copy);
+		assertEquals("copies", cont1.getEvent(meeting.getId()).getCalendarName());
+
+		// naming the calendar an event is in moves that event, not another calendar's with its id
+		CalendarEvent twin = (CalendarEvent) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+		cont1.addEvent("work", twin);
+		assertEquals(copy.getId(), twin.getId());
+		assertTrue(cont1.moveEvent("work", twin.getId(), "home"));
+		assertTrue(cont1.getEventsInDay("home", day.plusDays(2))[0] == twin);
+		assertEquals(0, cont1.getEventsInDay("work", day.plusDays(2)).length);
+		assertEquals(2, cont1.getEventsInDay("copies", day.plusDays(2)).length);
+		assertTrue(cont1.getEvent(copy.getId()).getEvent() == copy);
+		assertFalse(cont1.moveEvent("work", twin.getId(), "home"));
+		assertThrows(NoSuchCalendarException.class, () -> cont1.moveEvent("not a calendar", twin.getId(), "home"));
+		cont1.removeEvent("home", twin);
+
+		cont1.deleteCalendar("copies");
+		assertEquals(null, cont1.getEvent(meeting.getId()));
+		assertEquals(null, cont1.getEvent(copy.getId()));
+	}
+	/**
+	 * Tests that equal titles and locations are held once, whether added, edited or loaded
+	 */
+	@Test
+	public void testSharedStrings() throws IOException, CalendarAlreadyExistsException, NoSuchCalendarException {
+		CalendarController cont1 = open(testFile);
+		cont1.createNewCalendar("work");
+		LocalDate day = LocalDate.of(2021, 8, 2);
+		for (int i = 0; i < 20; i++) {
+			cont1.addEvent(i % 2 == 0 ? "Default" : "work", new CalendarEvent(new String("standup"),
+					day.plusDays(i), LocalTime.of(9, 0), LocalTime.of(10, 0), new String("Room " + (i % 3)), null));
+		}
+		CalendarEvent edited = cont1.getEventsInDay("work", day.plusDays(1))[0];
+		edited.setTitle(new String("standup"));
+		cont1.markModified("work", edited);
+		assertSameStrings(cont1, day);
+		assertFalse(cont1.getEventsInDay("Default", day)[0].getLocation()
+				== cont1.getEventsInDay("Default", day.plusDays(2))[0].getLocation());
+
+		cont1.saveCalendars();
+		assertSameStrings(open(testFile), day);
+	}
+
+	/**
+	 * asserts the 20 events added by {@link #testSharedStrings()} share their titles and locations
+	 */
+	private static void assertSameStrings(CalendarController cont, LocalDate day) throws NoSuchCalendarException {
+		CalendarEvent first = cont.getEventsInDay("Default", day)[0];
+		for (int i = 0; i < 20; i++) {
+			CalendarEvent event = cont.getEventsInDay(i % 2 == 0 ? "Default" : "work", day.plusDays(i))[0];
+			assertTrue(first.getTitle() == event.getTitle());
+			assertEquals("Room " + (i % 3), event.getLocation());
+			if (i % 3 == 0) {
+				assertTrue(first.getLocation() == event.getLocation());
+			}
+		}
+		// every calendar has been loaded by now, so is in the snapshot
+		for (String calName : cont.getCalendarNames()) {
+			for (CalendarEvent saved : cont.snapshot().get(calName).getEvents()) {
+				assertTrue(first.getTitle() == saved.getTitle());
+			}
+		}
+	}
+
+	/**
+	 * Tests that a calendar file written by Java serialization is loaded, rewritten in the
+	 * current format, and kept beside it
+	 */
+	@Test
+	public void testLegacyMigration() throws IOException, ClassNotFoundException, NoSuchCalendarException {
+		CalendarModel work = new CalendarModel();
+		CalendarEvent review = new CalendarEvent("review", LocalDate.of(2021, 9, 1), LocalTime.of(14, 0), LocalTime.of(15, 0), "hall", null);
+		work.addEvent(review);
+		HashMap<String, CalendarModel> legacy = new HashMap<>();
+		legacy.put("work", work);
+		try (ObjectOutputStream objOut = new ObjectOutputStream(new FileOutputStream(testFile))) {
+			objOut.writeObject(legacy);
+		}
+		File backup = new File(testFile.getPath() + ".legacy");
+
+		CalendarController cont1 = open(testFile);
+		assertTrue(CalendarManifest.isManifest(testFile.toPath()));
+		assertTrue(backup.exists());
+		try (ObjectInputStream objIn = new ObjectInputStream(new FileInputStream(backup))) {
+			assertEquals(1, ((HashMap<?, ?>) objIn.readObject()).size());
+		}
+		for (CalendarController cont : new CalendarController[]{cont1, open(testFile)}) {
+			assertEquals(Collections.singleton("work"), cont.getCalendarNames());
+			CalendarEvent loaded = cont.getEventsInDay("work", LocalDate.of(2021, 9, 1))[0];
+			assertEquals(review.getId(), loaded.getId());
+			assertEquals("hall", loaded.getLocation());
+		}
+	}
+
+	/**
+	 * Tests that changes survive a restart without the calendars being saved, by way of
+	 * the journal, and that saving folds the journal into the calendar file
+	 */
+	@Test
+	public void testJournalRecovery() throws IOException, NoSuchCalendarException, CalendarAlreadyExistsException {
+		CalendarController cont1 = open(testFile);
+		long saved = Files.size(testFile.toPath());
+		cont1.createNewCalendar("work");
+		CalendarEvent standup = new CalendarEvent("standup", LocalDate.of(2022, 5, 2), LocalTime.of(9, 0), LocalTime.of(9, 15), "desk", null);
+		CalendarEvent lunch = new CalendarEvent("lunch", LocalDate.of(2022, 5, 2), LocalTime.of(12, 0), LocalTime.of(13, 0), null, null);
+		cont1.addEvents("work", Arrays.asList(standup, lunch));
+		standup.setLocation("room 4");
+		cont1.markModified("work", standup);
+		cont1.removeEvent(lunch.getId());
+		cont1.createNewCalendar("temp");
+		cont1.renameCalendar("play", "temp");
+		cont1.addEvent("play", new CalendarEvent("game", LocalDateTime.of(2022, 5, 3, 19, 0)));
+		cont1.deleteCalendar("Default");
+		cont1.close();
+		assertEquals(saved, Files.size(testFile.toPath()));
+
+		CalendarController cont2 = open(testFile);
+		assertEquals(new HashSet<>(Arrays.asList("work", "play")), cont2.getCalendarNames());
+		CalendarEvent[] work = cont2.getEventsInDay("work", LocalDate.of(2022, 5, 2));
+		assertEquals(1, work.length);
+		assertEquals(standup.getId(), work[0].getId());
+		assertEquals("room 4", work[0].getLocation());
+		assertEquals(1, cont2.getEventsInDay("play", LocalDate.of(2022, 5, 3)).length);
+
+		cont2.saveCalendars();
+		assertTrue(CalendarManifest.read(testFile.toPath()).getSequence() > 0);
+		assertEquals(8, Files.size(cont2.journalFile.toPath()));
+		cont2.close();
+		CalendarController cont3 = open(testFile);
+		assertEquals(cont2.getCalendarNames(), cont3.getCalendarNames());
+		assertEquals("room 4", cont3.getEventsInDay("work", LocalDate.of(2022, 5, 2))[0].getLocation());
+		cont3.close();
+	}
+
+	/**
+	 * Tests that saving rewrites only the shards of calendars which changed, that renaming a
+	 * calendar rewrites only the manifest, and that deleting one removes its shard
+	 */
+	@Test
+	public void testShardedSave() throws IOException, NoSuchCalendarException, CalendarAlreadyExistsException {
+		CalendarController cont1 = open(testFile);
+		cont1.createNewCalendar("home");
+		cont1.addEvent("Default", new CalendarEvent("dentist", LocalDateTime.of(2023, 1, 9, 8, 0)));
+		cont1.addEvent("home", new CalendarEvent("chores", LocalDateTime.of(2023, 1, 7, 10, 0)));
+		cont1.saveCalendars();
+		CalendarManifest manifest = CalendarManifest.read(testFile.toPath());
+		assertEquals(new HashSet<>(Arrays.asList("Default", "home")), manifest.getCalendars().keySet());
+		java.nio.file.Path home = CalendarManifest.shardPath(testFile.toPath(), manifest.getCalendars().get("home").getShard());
+		java.nio.file.Path other = CalendarManifest.shardPath(testFile.toPath(), manifest.getCalendars().get("Default").getShard());
+		java.nio.file.attribute.FileTime untouched = java.nio.file.attribute.FileTime.fromMillis(0);
+		Files.setLastModifiedTime(home, untouched);
+		Files.setLastModifiedTime(other, untouched);
+
+		cont1.addEvent("Default", new CalendarEvent("checkup", LocalDateTime.of(2023, 2, 9, 8, 0)));
+		cont1.saveCalendars();
+		assertEquals(untouched, Files.getLastModifiedTime(home));
+		assertFalse(untouched.equals(Files.getLastModifiedTime(other)));
+
+		Files.setLastModifiedTime(other, untouched);
+		cont1.renameCalendar("house", "home");
+		cont1.saveCalendars();
+		assertEquals(untouched, Files.getLastModifiedTime(home));
+		assertEquals(untouched, Files.getLastModifiedTime(other));
+		assertEquals(manifest.getCalendars().get("home").getShard(), CalendarManifest.read(testFile.toPath()).getCalendars().get("house").getShard());
+
+		cont1.deleteCalendar("Default");
+		cont1.saveCalendars();
+		assertFalse(Files.exists(other));
+		cont1.close();
+
+		CalendarController cont2 = open(testFile);
+		assertEquals(Collections.singleton("house"), cont2.getCalendarNames());
+		assertEquals("chores", cont2.getEventsInDay("house", LocalDate.of(2023, 1, 7))[0].getTitle());
+		cont2.close();
+	}
+
+	/**
+	 * Tests that a calendar is only read from its shard when it is used, that queries over
+	 * days the manifest says a calendar has no events on do not read it at all, and that an
+	 * event read in place from a shard is saved once edited
+	 */
+	@Test
+	public void testLazyLoading() throws IOException, NoSuchCalendarException, CalendarAlreadyExistsException {
+		CalendarController cont1 = open(testFile);
+		cont1.createNewCalendar("archive");
+		for (int i = 0; i < 30; i++) {
+			cont1.addEvent("archive", new CalendarEvent("old " + i, LocalDateTime.of(2001, 3, 1, 9, 0).plusDays(i)));
+		}
+		cont1.addEvent("Default", new CalendarEvent("new", LocalDateTime.of(2024, 6, 3, 9, 0)));
+		cont1.saveCalendars();
+		cont1.close();
+		CalendarManifest.Entry archive = CalendarManifest.read(testFile.toPath()).getCalendars().get("archive");
+		assertEquals(30, archive.getEvents());
+		assertFalse(archive.mayOverlap(LocalDate.of(2024, 1, 1), LocalDate.of(2024, 12, 31)));
+		assertTrue(archive.mayOverlap(LocalDate.of(2001, 3, 30), LocalDate.of(2001, 4, 30)));
+		java.nio.file.Path shard = CalendarManifest.shardPath(testFile.toPath(), archive.getShard());
+		assertTrue(CalendarSegment.isSegment(shard));
+		byte[] good = Files.readAllBytes(shard);
+		Files.write(shard, new byte[]{1, 2, 3});
+
+		CalendarController cont2 = open(testFile);
+		assertEquals(new HashSet<>(Arrays.asList("Default", "archive")), cont2.getCalendarNames());
+		LocalDateTime from = LocalDateTime.of(2024, 6, 1, 0, 0), to = LocalDateTime.of(2024, 6, 30, 0, 0);
+		assertEquals(1, cont2.getEventsInRange(cont2.getCalendarNames(), from, to).count());
+		assertEquals(1, cont2.search("new", cont2.getCalendarNames(), from.toLocalDate(), to.toLocalDate(), 10).size());
+		assertThrows(java.io.UncheckedIOException.class, () -> cont2.getEventsInDay("archive", LocalDate.of(2001, 3, 1)));
+		cont2.close();
+
+		Files.write(shard, good);
+		CalendarController cont3 = open(testFile);
+		cont3.preload(cont3.getCalendarNames());
+		assertEquals(31, cont3.getEventsInRange(cont3.getCalendarNames(), LocalDateTime.of(2001, 1, 1, 0, 0), to).count());
+		CalendarEvent old = cont3.getEventsInDay("archive", LocalDate.of(2001, 3, 5))[0];
+		old.setTitle("older");
+		old.setDate(LocalDate.of(2001, 5, 5));
+		cont3.markModified("archive", old);
+		cont3.saveCalendars();
+		cont3.close();
+		CalendarController cont4 = open(testFile);
+		assertEquals(0, cont4.getEventsInDay("archive", LocalDate.of(2001, 3, 5)).length);
+		assertEquals("older", cont4.getEventsInDay("archive", LocalDate.of(2001, 5, 5))[0].getTitle());
+		assertEquals(30, cont4.getEventsInRange(Collections.singleton("archive"), LocalDateTime.of(2001, 1, 1, 0, 0), to).count());
+		cont4.close();
+	}
+
+	/**
+	 * Tests that a calendar read from a segment, whose file it still maps, is saved to a new
+	 * shard rather than over the file, that the old file is removed once the manifest no longer
+	 * names it, that later saves rewrite the new shard in place, and that shard files left
+	 * behind by earlier saves are removed when the calendars are next opened
+	 */
+	@Test
+	public void testMappedShardSave() throws IOException, NoSuchCalendarException, CalendarAlreadyExistsException {
+		CalendarController cont1 = open(testFile);
+		cont1.createNewCalendar("work");
+		cont1.addEvent("work", new CalendarEvent("standup", LocalDateTime.of(2024, 3, 4, 9, 0)));
+		cont1.saveCalendars();
+		cont1.close();
+		long first = CalendarManifest.read(testFile.toPath()).getCalendars().get("work").getShard();
+		java.nio.file.Path old = CalendarManifest.shardPath(testFile.toPath(), first);
+		java.nio.file.Path left = CalendarManifest.shardPath(testFile.toPath(), 999);
+		Files.write(left, new byte[]{1, 2, 3});
+
+		CalendarController cont2 = open(testFile);
+		assertFalse(Files.exists(left));
+		assertEquals(1, cont2.getEventsInDay("work", LocalDate.of(2024, 3, 4)).length);
+		cont2.addEvent("work", new CalendarEvent("review", LocalDateTime.of(2024, 3, 5, 14, 0)));
+		cont2.saveCalendars();
+		long second = CalendarManifest.read(testFile.toPath()).getCalendars().get("work").getShard();
+		assertFalse(first == second);
+		assertFalse(Files.exists(old));
+		// the events read in place before the save are still readable
+		assertEquals("standup", cont2.getEventsInDay("work", LocalDate.of(2024, 3, 4))[0].getTitle());
+
+		cont2.addEvent("work", new CalendarEvent("retro", LocalDateTime.of(2024, 3, 6, 16, 0)));
+		cont2.saveCalendars();
+		assertEquals(second, CalendarManifest.read(testFile.toPath()).getCalendars().get("work").getShard());
+		cont2.close();
+
+		CalendarController cont3 = open(testFile);
+		LocalDateTime from = LocalDateTime.of(2024, 3, 1, 0, 0), to = LocalDateTime.of(2024, 3, 31, 0, 0);
+		assertEquals(3, cont3.getEventsInRange(Collections.singleton("work"), from, to).count());
+		cont3.close();
+	}
+
+	/**
+	 * Tests that a calendar whose shard is damaged in part loads without the damaged block's
+	 * events, that the damage is reported and a copy of the damaged shard kept, and that a
+	 * manifest which fails its checksum is reported but still read
+	 */
+	@Test
+	public void testDamagedShard() throws IOException, NoSuchCalendarException, CalendarAlreadyExistsException {
+		CalendarController cont1 = open(testFile);
+		cont1.createNewCalendar("archive");
+		List<CalendarEvent> events = new ArrayList<>();
+		for (int i = 0; i < 10000; i++) {
+			events.add(new CalendarEvent("old " + i, LocalDateTime.of(2001, 3, 1, 9, 0).plusHours(i)));
+		}
+		cont1.addEvents("archive", events);
+		cont1.saveCalendars();
+		cont1.close();
+		java.nio.file.Path shard = CalendarManifest.shardPath(testFile.toPath(),
+				CalendarManifest.read(testFile.toPath()).getCalendars().get("archive").getShard());
+		java.nio.file.Path copy = shard.resolveSibling(shard.getFileName() + ".damaged");
+		byte[] good = Files.readAllBytes(shard);
+		byte[] bad = good.clone();
+		bad[bad.length - 10] ^= 0x40;
+		Files.write(shard, bad);
+
+		CalendarController cont2 = open(testFile);
+		assertTrue(cont2.getLoadProblems().isEmpty());
+		LocalDateTime from = LocalDateTime.of(2001, 1, 1, 0, 0), to = LocalDateTime.of(2003, 1, 1, 0, 0);
+		assertEquals(10000 - (10000 % 4096), cont2.getEventsInRange(Collections.singleton("archive"), from, to).count());
+		assertEquals(2, cont2.getLoadProblems().size());
+		assertTrue(cont2.getLoadProblems().get(0).startsWith("Calendar \"archive\""));
+		assertTrue(Arrays.equals(bad, Files.readAllBytes(copy)));
+		cont2.close();
+
+		Files.write(shard, good);
+		byte[] manifest = Files.readAllBytes(testFile.toPath());
+		manifest[manifest.length - 1] ^= 0x01;
+		Files.write(testFile.toPath(), manifest);
+		assertTrue(CalendarManifest.read(testFile.toPath()).isDamaged());
+		CalendarController cont3 = open(testFile);
+		assertEquals(1, cont3.getLoadProblems().size());
+		assertEquals(new HashSet<>(Arrays.asList("Default", "archive")), cont3.getCalendarNames());
+		assertEquals(10000, cont3.getEventsInRange(Collections.singleton("archive"), from, to).count());
+		cont3.close();
+	}
+
+	/**
+	 * Tests that a save which fails is reported with the load problems, and to the problem
+	 * listener, and that the changes it did not save are kept in the journal
+	 */
+	@Test
+	public void testFailedSave() throws IOException, NoSuchCalendarException {
+		CalendarController cont = open(testFile);
+		List<String> heard = new ArrayList<>();
+		cont.setProblemListener(heard::add);
+		LocalDate day = LocalDate.of(2024, 2, 2);
+		cont.addEvent("Default", new CalendarEvent("kept", day, LocalTime.of(9, 0), LocalTime.of(10, 0), null, null));
+		// the new manifest cannot be written beside the old one
+		java.nio.file.Path blocked = java.nio.file.Paths.get(testFile.getPath() + ".tmp");
+		Files.createDirectories(blocked);
+		try {
+			cont.saveCalendars();
+		} finally {
+			Files.delete(blocked);
+		}
+		assertEquals(1, heard.size());
+		assertTrue(heard.get(0), heard.get(0).contains("could not be saved"));
+		assertEquals(heard, cont.getLoadProblems());
+		cont.close();
+
+		CalendarController reopened = open(testFile);
+		assertEquals(1, reopened.getEventsInDay("Default", day).length);
+		reopened.saveCalendars();
+		assertEquals(0, reopened.getLoadProblems().size());
+		reopened.close();
+	}
+
+	/**
+	 * Tests that a journal which could not be written is reported with the load problems, and
+	 * that changes made afterwards are still kept once the calendars are saved
+	 */
+	@Test
+	public void testJournalFailure() throws Exception {
+		CalendarController cont = open(testFile);
+		CompletableFuture<String> heard = new CompletableFuture<>();
+		cont.setProblemListener(problem -> {
+			if (problem.contains("could not be logged")) {
+				heard.complete(problem);
+			}
+		});
+		LocalDate day = LocalDate.of(2024, 4, 4);
+		cont.addEvent("Default", new CalendarEvent("before", day, LocalTime.of(9, 0), LocalTime.of(10, 0), null, null));
+		// the journal cannot be rewritten once the calendars are saved
+		java.nio.file.Path blocked = java.nio.file.Paths.get(cont.journalFile.getPath() + ".tmp");
+		Files.createDirectories(blocked);
+		try {
+			cont.saveCalendars();
+			assertTrue(cont.getLoadProblems().contains(heard.get(10, TimeUnit.SECONDS)));
+		} finally {
+			Files.delete(blocked);
+		}
+		cont.addEvent("Default", new CalendarEvent("after", day, LocalTime.of(11, 0), LocalTime.of(12, 0), null, null));
+		cont.saveCalendars();
+		assertThrows(IOException.class, cont::close);
+
+		CalendarController reopened = open(testFile);
+		assertEquals(2, reopened.getEventsInDay("Default", day).length);
+		reopened.close();
+	}
+
+	/**
+	 * Tests that the controller behaves as if its operations took effect one at a time while
+	 * many threads use it at once: no event added is lost, a reader never sees a calendar's
+	 * count go backwards, events moved back and forth between two calendars are always found,
+	 * and in exactly one of them, by readers of both at once, calendars nobody changes are
+	 * streamed whole, a calendar renamed back and forth always has exactly one of its names,
+	 * and the journal replays to what the threads left
+	 */
+	@Test
+	public void testConcurrentUse() throws Exception {
+		CalendarController cont = open(testFile);
+		cont.createNewCalendar("left");
+		cont.createNewCalendar("right");
+		cont.createNewCalendar("ping");
+		LocalDateTime start = LocalDateTime.of(2024, 1, 1, 9, 0);
+		List<CalendarEvent> moving = new ArrayList<>();
+		for (int i = 0; i < 50; i++) {
+			moving.add(new CalendarEvent("moving " + i, start.plusDays(i)));
+		}
+		cont.addEvents("left", moving);
+		cont.createNewCalendar("north");
+		cont.createNewCalendar("south");
+		for (int i = 0; i < 25; i++) {
+			cont.addEvent(i % 2 == 0 ? "north" : "south", new CalendarEvent("still " + i, start.plusDays(i)));
+		}
+		Set<String> both = new HashSet<>(Arrays.asList("left", "right"));
+		Set<String> still = new HashSet<>(Arrays.asList("north", "south"));
+		LocalDateTime from = start.minusDays(1), to = start.plusYears(2);
+		int threads = 8, rounds = 250;
+		CyclicBarrier ready = new CyclicBarrier(threads);
+		AtomicInteger renamedAdds = new AtomicInteger();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<?>> running = new ArrayList<>();
+		for (int t = 0; t < threads; t++) {
+			int role = t % 4;
+			Random rand = new Random(t);
+			running.add(pool.submit(() -> {
+				ready.await();
+				int seen = 0;
+				for (int r = 0; r < rounds; r++) {
+					if (role == 0) {
+						cont.addEvent("Default", new CalendarEvent("added", start.plusHours(r)));
+						while (true) {
+							String name = rand.nextBoolean() ? "ping" : "pong";
+							try {
+								cont.addEvent(name, new CalendarEvent("renamed", start.plusHours(r)));
+								renamedAdds.incrementAndGet();
+								break;
+							} catch (NoSuchCalendarException renamed) {
+								// the other name is the current one
+							}
+						}
+					} else if (role == 1) {
+						String target = rand.nextBoolean() ? "left" : "right";
+						assertTrue(cont.moveEvent(moving.get(rand.nextInt(moving.size())).getId(), target));
+					} else if (role == 2) {
+						int count = cont.countEventsInRange("Default", from, to);
+						assertTrue(count + " after " + seen, count >= seen);
+						seen = count;
+						CalendarEntry found = cont.getEvent(moving.get(rand.nextInt(moving.size())).getId());
+						assertTrue(found != null && both.contains(found.getCalendarName()));
+						assertEquals(50, cont.exportICalendar(both, from, to, Channels.newChannel(new ByteArrayOutputStream())));
+						assertEquals(25, cont.getEventsInRange(still, from, to).count());
+						Set<String> names = cont.getCalendarNames();
+						assertTrue(names.toString(), names.contains("ping") != names.contains("pong"));
+					} else {
+						try {
+							cont.renameCalendar("pong", "ping");
+						} catch (NoSuchCalendarException renamed) {
+							try {
+								cont.renameCalendar("ping", "pong");
+							} catch (NoSuchCalendarException renamedBack) {
+								// the other renamer got there first
+							}
+						}
+					}
+				}
+				return null;
+			}));
+		}
+		for (Future<?> thread : running) {
+			thread.get();
+		}
+		pool.shutdown();
+
+		int writers = threads / 4;
+		String current = cont.getCalendarNames().contains("ping") ? "ping" : "pong";
+		assertEquals(rounds * writers, cont.countEventsInRange("Default", from, to));
+		assertEquals(renamedAdds.get(), cont.countEventsInRange(current, from, to));
+		assertEquals(50, cont.countEventsInRange("left", from, to) + cont.countEventsInRange("right", from, to));
+		int left = cont.countEventsInRange("left", from, to);
+		cont.close();
+
+		CalendarController reopened = open(testFile);
+		assertEquals(new HashSet<>(Arrays.asList("Default", "left", "right", "north", "south", current)),
+				reopened.getCalendarNames());
+		assertEquals(rounds * writers, reopened.countEventsInRange("Default", from, to));
+		assertEquals(renamedAdds.get(), reopened.countEventsInRange(current, from, to));
+		assertEquals(left, reopened.countEventsInRange("left", from, to));
+		assertEquals(50 - left, reopened.countEventsInRange("right", from, to));
+		reopened.saveCalendars();
+		reopened.close();
+	}
+
+	/**
+	 * Tests that an iCalendar file is imported with its lines unfolded, its text unescaped,
+	 * its times in other zones converted, its rules and exceptions kept, and its malformed
+	 * events skipped and reported
+	 */
+	@Test
+	public void testICalendarImport() throws IOException, NoSuchCalendarException {
+		java.nio.file.Path ics = folder.newFile("import.ics").toPath();
+		Files.write(ics, String.join("\r\n",
+				"BEGIN:VCALENDAR",
+				"VERSION:2.0",
+				"PRODID:-//Test//Test//EN",
+				"BEGIN:VEVENT",
+				"UID:1",
+				"DTSTART:20240305T090000",
+				"DTEND:20240305T103000",
+				"SUMMARY:Standup\\, daily",
+				"LOCATION:Room 1\\; east",
+				"DESCRIPTION:first line\\nsecond li",
+				" ne",
+				"RRULE:FREQ=WEEKLY;INTERVAL=2;COUNT=5;BYDAY=TU",
+				"EXDATE:20240319T090000",
+				"BEGIN:VALARM",
+				"TRIGGER:-PT15M",
+				"DESCRIPTION:alarm",
+				"END:VALARM",
+				"END:VEVENT",
+				"BEGIN:VEVENT",
+				"DTSTART;VALUE=DATE:20240401",
+				"DTEND;VALUE=DATE:20240403",
+				"SUMMARY:Holiday",
+				"END:VEVENT",
+				"BEGIN:VEVENT",
+				"DTSTART;TZID=America/New_York:20240610T140000",
+				"DURATION:PT1H",
+				"SUMMARY:Call",
+				"END:VEVENT",
+				"BEGIN:VEVENT",
+				"DTSTART:20240611T120000Z",
+				"SUMMARY:Lunch",
+				"END:VEVENT",
+				"BEGIN:VEVENT",
+				"SUMMARY:no start",
+				"END:VEVENT",
+				"BEGIN:VEVENT",
+				"DTSTART:2024-06-12",
+				"SUMMARY:bad date",
+				"END:VEVENT",
+				"END:VCALENDAR", "").getBytes(java.nio.charset.StandardCharsets.UTF_8));
+		CalendarController cont = open(testFile);
+		controller.ImportReport report = cont.importICalendar("Default", ics);
+		assertEquals(4, report.getImported());
+		assertEquals(2, report.getErrors().size());
+		assertThrows(IOException.class, () -> cont.importICalendar("Default", testFile.toPath()));
+		assertThrows(NoSuchCalendarException.class, () -> cont.importICalendar("nope", ics));
+
+		CalendarEvent standup = cont.getEventsInDay("Default", LocalDate.of(2024, 3, 5))[0];
+		assertEquals("Standup, daily", standup.getTitle());
+		assertEquals("Room 1; east", standup.getLocation());
+		assertEquals("first line\nsecond line", standup.getNotes());
+		assertEquals(LocalTime.of(10, 30), standup.getEndTime());
+		assertEquals(new RecurrenceRule(RecurrenceRule.Frequency.WEEKLY, 2).withCount(5)
+				.withException(LocalDate.of(2024, 3, 19)), standup.getRecurringEvent().getRecurrence());
+		assertEquals(0, cont.getEventsInDay("Default", LocalDate.of(2024, 3, 19)).length);
+		assertEquals(1, cont.getEventsInDay("Default", LocalDate.of(2024, 4, 2)).length);
+
+		CalendarEvent holiday = cont.getEventsInDay("Default", LocalDate.of(2024, 4, 1))[0];
+		assertEquals("Holiday", holiday.getTitle());
+		assertEquals(LocalTime.MIDNIGHT, holiday.getStartTime());
+		assertEquals(LocalTime.MAX, holiday.getEndTime());
+
+		LocalDateTime call = java.time.ZonedDateTime.of(2024, 6, 10, 14, 0, 0, 0, java.time.ZoneId.of("America/New_York"))
+				.withZoneSameInstant(java.time.ZoneId.systemDefault()).toLocalDateTime();
+		CalendarEvent[] onCallDay = cont.getEventsInDay("Default", call.toLocalDate());
+		assertTrue(Arrays.stream(onCallDay).anyMatch(e -> e.getTitle().equals("Call")
+				&& e.getStartTime().equals(call.toLocalTime())
+				&& (call.getHour() == 23 ? e.getEndTime().equals(LocalTime.MAX) : e.getEndTime().equals(call.toLocalTime().plusHours(1)))));
+		LocalDateTime lunch = java.time.ZonedDateTime.of(2024, 6, 11, 12, 0, 0, 0, java.time.ZoneOffset.UTC)
+				.withZoneSameInstant(java.time.ZoneId.systemDefault()).toLocalDateTime();
+		assertTrue(Arrays.stream(cont.getEventsInDay("Default", lunch.toLocalDate())).anyMatch(e ->
+				e.getTitle().equals("Lunch") && e.getStartTime().equals(lunch.toLocalTime()) && e.getEndTime() == null));
+		cont.close();
+	}
+
+	/**
+	 * Tests that events exported as iCalendar are imported again unchanged, with no line
+	 * longer than 75 bytes, that a file large enough to be split is read whole on several
+	 * threads, and that importing into a calendar deleted part way through fails
+	 */
+	@Test
+	public void testICalendarRoundTrip()
+			throws IOException, NoSuchCalendarException, CalendarAlreadyExistsException, InterruptedException {
+		CalendarController cont = open(testFile);
+		List<CalendarEvent> events = Arrays.asList(
+				new CalendarEvent("caf\u00e9 " + "\u00e9".repeat(40),
+						LocalDate.of(2024, 1, 2), LocalTime.of(9, 0), LocalTime.of(10, 15), "a, b; c\\d", "one\ntwo"),
+				new CalendarEvent("all day", LocalDate.of(2024, 1, 3), LocalTime.MIDNIGHT, LocalTime.MAX, null, null),
+				new CalendarEvent("late", LocalDate.of(2024, 1, 4), LocalTime.of(22, 0), LocalTime.MAX, null, null),
+				new CalendarEvent("instant", LocalDateTime.of(2024, 1, 5, 7, 30)));
+		cont.addEvents("Default", events);
+		java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+		LocalDateTime from = LocalDateTime.of(2024, 1, 1, 0, 0), to = LocalDateTime.of(2024, 2, 1, 0, 0);
+		assertEquals(4, cont.exportICalendar(Collections.singleton("Default"), from, to, java.nio.channels.Channels.newChannel(bytes)));
+		String text = bytes.toString("UTF-8");
+		for (String line : text.split("\r\n")) {
+			assertTrue(line.getBytes(java.nio.charset.StandardCharsets.UTF_8).length <= 75);
+		}
+		java.nio.file.Path ics = folder.newFile("export.ics").toPath();
+		Files.write(ics, bytes.toByteArray());
+		cont.createNewCalendar("copy");
+		assertEquals(4, cont.importICalendar("copy", ics).getImported());
+		assertEquals(describe(cont.getEventsInRange("Default", from, to)), describe(cont.getEventsInRange("copy", from, to)));
+
+		// enough events to be split into chunks, read on several threads
+		int n = 40000;
+		try (java.nio.channels.FileChannel out = java.nio.channels.FileChannel.open(ics, java.nio.file.StandardOpenOption.WRITE,
+				java.nio.file.StandardOpenOption.TRUNCATE_EXISTING)) {
+			model.ICalendar.Writer writer = new model.ICalendar.Writer(out);
+			for (int i = 0; i < n; i++) {
+				writer.write(new CalendarEvent("event " + i, LocalDateTime.of(2020, 1, 1, 8, 0).plusMinutes(37L * i)));
+			}
+			writer.finish();
+		}
+		assertTrue(Files.size(ics) > 3 * (1 << 20));
+		Set<String> titles = new HashSet<>();
+		int[] batches = {0};
+		model.ICalendar.read(ics, java.time.ZoneId.systemDefault(), 4, new model.ICalendar.Sink() {
+			@Override
+			public void accept(List<CalendarEvent> read) {
+				batches[0]++;
+				read.forEach(e -> titles.add(e.getTitle()));
+			}
+
+			@Override
+			public void skip(long offset, String reason) {
+				throw new AssertionError(reason);
+			}
+		});
+		assertEquals(n, titles.size());
+		assertTrue(titles.contains("event 0") && titles.contains("event " + (n - 1)));
+		assertTrue(batches[0] >= n / 4096);
+
+		cont.createNewCalendar("doomed");
+		Thread[] deleter = {null};
+		cont.addListener("doomed", (source, changes) -> {
+			if (deleter[0] == null) {
+				deleter[0] = new Thread(() -> cont.deleteCalendar("doomed"));
+				deleter[0].start();
+				// the deletion waits for the calendar's lock, which the import holds until this returns
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		assertThrows(NoSuchCalendarException.class, () -> cont.importICalendar("doomed", ics));
+		deleter[0].join();
+		assertFalse(cont.getCalendarNames().contains("doomed"));
+		cont.close();
+	}
+
+	/**
+	 * Tests that rows of a CSV file are imported into the calendars they name, with quoted
+	 * fields, blank times and colors read as such, that bad rows are skipped and reported by
+	 * line without stopping the import, and that a file of many chunks is imported whole
+	 */
+	@Test
+	public void testCsvImport() throws IOException, NoSuchCalendarException {
+		java.nio.file.Path csv = folder.newFile("import.csv").toPath();
+		Files.write(csv, String.join("\r\n",
+				"title,date,start,end,location,notes,color,calendar",
+				"standup,2024-03-05,9:00,09:15,\"Room 1, east\",\"said \"\"hi\"\"",
+				"on two lines\",#FF0000,",
+				"",
+				"holiday,2024-04-01,,,,,,",
+				"bad date,2024-13-01,9:00",
+				"bad time,2024-03-06,9h",
+				"too many,2024-03-06,9:00,10:00,a,b,,work,extra",
+				"review,2024-03-06,14:00:30,15:00,,,blue,work",
+				"").getBytes(java.nio.charset.StandardCharsets.UTF_8));
+		CalendarController cont = open(testFile);
+		controller.ImportReport report = new controller.CsvImporter(cont, 2).importFile(csv, "Default");
+		assertEquals(3, report.getImported());
+		assertEquals(Arrays.asList(6, 7, 8), report.getErrors().stream()
+				.map(e -> Integer.parseInt(e.substring(5, e.indexOf(':')))).sorted().collect(Collectors.toList()));
+
+		CalendarEvent standup = cont.getEventsInDay("Default", LocalDate.of(2024, 3, 5))[0];
+		assertEquals("Room 1, east", standup.getLocation());
+		assertEquals("said \"hi\"\r\non two lines", standup.getNotes());
+		assertEquals(LocalTime.of(9, 15), standup.getEndTime());
+		assertEquals(javafx.scene.paint.Color.RED, standup.getColor());
+		CalendarEvent holiday = cont.getEventsInDay("Default", LocalDate.of(2024, 4, 1))[0];
+		assertEquals(LocalTime.MIDNIGHT, holiday.getStartTime());
+		assertEquals(LocalTime.MAX, holiday.getEndTime());
+		assertEquals(null, holiday.getLocation());
+		CalendarEvent review = cont.getEventsInDay("work", LocalDate.of(2024, 3, 6))[0];
+		assertEquals(LocalTime.of(14, 0, 30), review.getStartTime());
+		assertEquals(javafx.scene.paint.Color.BLUE, review.getColor());
+
+		int n = 5000;
+		StringBuilder rows = new StringBuilder();
+		for (int i = 0; i < n; i++) {
+			rows.append("row ").append(i).append(',').append(LocalDate.of(2021, 1, 1).plusDays(i % 700))
+					.append(",8:00,9:00,,\"line\nbreak\",,bulk\n");
+		}
+		rows.append("last,2021-01-01,nope\n");
+		Files.write(csv, rows.toString().getBytes(java.nio.charset.StandardCharsets.UTF_8));
+		report = new controller.CsvImporter(cont, 3).importFile(csv, "Default");
+		assertEquals(n, report.getImported());
+		assertEquals(Collections.singletonList("line " + (2 * n + 1) + ": \"nope\" is not a time"), report.getErrors());
+		assertEquals(n, cont.countEventsInRange("bulk", LocalDateTime.of(2021, 1, 1, 0, 0), LocalDateTime.of(2023, 1, 1, 0, 0)));
+		assertThrows(IOException.class, () -> new controller.CsvImporter(cont).importFile(testFile.toPath().resolveSibling("missing.csv"), "Default"));
+		cont.close();
+	}
+
+	private static List<String> describe(CalendarEvent[] events) {
+		return Arrays.stream(events).map(e -> String.join("|", e.getTitle(), String.valueOf(e.getDate()),
+				String.valueOf(e.getStartTime()), String.valueOf(e.getEndTime()), String.valueOf(e.getLocation()),
+				String.valueOf(e.getNotes()))).collect(Collectors.toList());
+	}
+}
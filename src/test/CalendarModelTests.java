@@ -1,12 +1,55 @@
 package test;
 
+import model.CalendarChange;
 import model.CalendarEvent;
+import model.CalendarFile;
+import model.CalendarJournal;
+import model.CalendarListener;
 import model.CalendarModel;
+import model.CalendarSegment;
+import model.CalendarSnapshot;
+import model.PrefixIndex;
+import model.QueryPlan;
+import model.RecurrenceRule;
+import javafx.scene.paint.Color;
+import model.TimeSpan;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
 
 public class CalendarModelTests {
 //    @Test
@@ -28,4 +71,1222 @@ public class CalendarModelTests {
 //        CalendarEvent[] events = model.getEventsInHour(2020, Calendar.APRIL, 19, 3);
 //        assertEquals(1, events.length);
 //    }
+
+    private static CalendarEvent event(String title, LocalDate date, int startHour, int endHour) {
+        return new CalendarEvent(title, date, LocalTime.of(startHour, 0), LocalTime.of(endHour, 0), null, null);
+    }
+
+    /**
+     * Tests that an event which started before the queried window but is still running is found
+     */
+    @Test
+    public void testGetEventsInRangeOverlap() {
+        CalendarModel model = new CalendarModel();
+        LocalDate date = LocalDate.of(2020, 4, 1);
+        CalendarEvent longEvent = event("long", date, 8, 17);
+        CalendarEvent morning = event("morning", date, 9, 10);
+        CalendarEvent evening = event("evening", date, 18, 19);
+        model.addEvent(evening);
+        model.addEvent(longEvent);
+        model.addEvent(morning);
+
+        CalendarEvent[] events = model.getEventsInRange(date.atTime(12, 0), date.atTime(13, 0));
+        assertArrayEquals(new CalendarEvent[]{longEvent}, events);
+        events = model.getEventsInRange(date.atTime(9, 30), date.atTime(18, 0));
+        assertArrayEquals(new CalendarEvent[]{longEvent, morning}, events);
+        // events which end exactly at the start of the window are excluded
+        assertEquals(0, model.getEventsInRange(date.atTime(19, 0), date.atTime(20, 0)).length);
+        assertEquals(3, model.getEventsInDay(date).length);
+    }
+
+    /**
+     * Tests that markModified and removeEvent keep range queries up to date
+     */
+    @Test
+    public void testMarkModifiedReindexes() {
+        CalendarModel model = new CalendarModel();
+        LocalDate date = LocalDate.of(2020, 4, 1);
+        CalendarEvent e = event("e", date, 9, 10);
+        model.addEvent(e);
+        e.setDate(date.plusDays(1));
+        model.markModified(e);
+        assertEquals(0, model.getEventsInDay(date).length);
+        assertEquals(1, model.getEventsInDay(date.plusDays(1)).length);
+        model.removeEvent(e);
+        assertEquals(0, model.getEventsInDay(date.plusDays(1)).length);
+        assertEquals(0, model.getAllEvents().size());
+    }
+
+    /**
+     * Tests range queries against a brute-force scan over many random events
+     */
+    @Test
+    public void testGetEventsInRangeMatchesScan() {
+        CalendarModel model = new CalendarModel();
+        Random rand = new Random(335);
+        List<CalendarEvent> all = new ArrayList<>();
+        LocalDate base = LocalDate.of(2020, 1, 1);
+        for (int i = 0; i < 2000; i++) {
+            int start = rand.nextInt(23);
+            CalendarEvent e = event("e" + i, base.plusDays(rand.nextInt(60)), start, start + 1 + rand.nextInt(23 - start));
+            all.add(e);
+            model.addEvent(e);
+        }
+        List<CalendarEvent> remaining = new ArrayList<>(all);
+        for (int i = 0; i < 500; i += 2) {
+            model.removeEvent(all.get(i));
+            remaining.remove(all.get(i));
+        }
+        for (int q = 0; q < 200; q++) {
+            LocalDateTime lo = base.atStartOfDay().plusMinutes(rand.nextInt(60 * 24 * 60));
+            LocalDateTime hi = lo.plusMinutes(rand.nextInt(60 * 24 * 3));
+            long expected = remaining.stream()
+                    .filter(e -> e.getDate().atTime(e.getStartTime()).isBefore(hi)
+                            && e.getDate().atTime(e.getEndTime()).isAfter(lo))
+                    .count();
+            CalendarEvent[] found = model.getEventsInRange(lo, hi);
+            assertEquals(expected, found.length);
+            for (int i = 1; i < found.length; i++) {
+                LocalDateTime prev = found[i - 1].getDate().atTime(found[i - 1].getStartTime());
+                LocalDateTime cur = found[i].getDate().atTime(found[i].getStartTime());
+                assertFalse(cur.isBefore(prev));
+            }
+        }
+        assertEquals(1750, model.getAllEvents().size());
+        assertEquals(1750, Arrays.stream(model.getEventsInYear(2020)).count());
+    }
+
+    /**
+     * Tests that the day index groups events by day in start order and follows modifications
+     */
+    @Test
+    public void testGetEventsByDay() {
+        CalendarModel model = new CalendarModel();
+        LocalDate first = LocalDate.of(2020, 4, 1);
+        CalendarEvent late = event("late", first, 15, 16);
+        CalendarEvent early = event("early", first, 9, 10);
+        CalendarEvent nextMonth = event("next month", first.plusMonths(1), 9, 10);
+        CalendarEvent lastDay = event("last day", first.plusMonths(1).minusDays(1), 9, 10);
+        model.addEvent(late);
+        model.addEvent(early);
+        model.addEvent(nextMonth);
+        model.addEvent(lastDay);
+
+        NavigableMap<LocalDate, CalendarEvent[]> byDay = model.getEventsByDay(first, first.plusMonths(1));
+        assertEquals(2, byDay.size());
+        assertArrayEquals(new CalendarEvent[]{early, late}, byDay.get(first));
+        assertArrayEquals(new CalendarEvent[]{lastDay}, byDay.get(lastDay.getDate()));
+        assertArrayEquals(new CalendarEvent[]{early, late, lastDay}, model.getEventsInMonth(2020, 4));
+        assertEquals(4, model.getEventsInYear(2020).length);
+
+        early.setStartTime(LocalTime.of(17, 0));
+        early.setEndTime(LocalTime.of(18, 0));
+        model.markModified(early);
+        assertArrayEquals(new CalendarEvent[]{late, early}, model.getEventsInDay(first));
+        model.removeEvent(late);
+        assertArrayEquals(new CalendarEvent[]{early}, model.getEventsInDay(2020, 4, 1));
+    }
+
+    /**
+     * Tests that a packed calendar answers queries exactly like an object calendar,
+     * both before and after being serialized
+     */
+    @Test
+    public void testPackedStorageMatchesObjects() throws IOException, ClassNotFoundException {
+        CalendarModel objects = new CalendarModel();
+        CalendarModel packed = new CalendarModel(CalendarModel.StorageMode.PACKED);
+        Random rand = new Random(4);
+        LocalDate base = LocalDate.of(2021, 1, 1);
+        for (int i = 0; i < 500; i++) {
+            int start = rand.nextInt(23);
+            LocalDate date = base.plusDays(rand.nextInt(90));
+            LocalTime end = LocalTime.of(start + 1 + rand.nextInt(23 - start), 0);
+            objects.addEvent(new CalendarEvent("e" + i, date, LocalTime.of(start, 0), end, "room " + (i % 7), null));
+            packed.addEvent(new CalendarEvent("e" + i, date, LocalTime.of(start, 0), end, "room " + (i % 7), null));
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new ObjectOutputStream(bytes).writeObject(packed);
+        CalendarModel loaded = (CalendarModel) new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())).readObject();
+        assertEquals(CalendarModel.StorageMode.PACKED, loaded.getStorageMode());
+
+        for (CalendarModel model : new CalendarModel[]{packed, loaded}) {
+            for (int q = 0; q < 50; q++) {
+                LocalDateTime lo = base.atStartOfDay().plusHours(rand.nextInt(24 * 90));
+                LocalDateTime hi = lo.plusHours(rand.nextInt(72));
+                assertEquals(describe(objects.getEventsInRange(lo, hi)), describe(model.getEventsInRange(lo, hi)));
+                assertEquals(describe(objects.getEventsInRange(lo, hi)), describe(drain(objects.iterateEventsInRange(lo, hi))));
+                assertEquals(describe(objects.getEventsInRange(lo, hi)), describe(drain(model.iterateEventsInRange(lo, hi))));
+                assertEquals(objects.getEventsInRange(lo, hi).length, objects.countEventsInRange(lo, hi));
+                assertEquals(objects.getEventsInRange(lo, hi).length, model.countEventsInRange(lo, hi));
+            }
+            assertEquals(describe(objects.getEventsInMonth(2021, 2)), describe(model.getEventsInMonth(2021, 2)));
+            assertEquals(objects.getEventsByDay(base, base.plusDays(30)).keySet(),
+                    model.getEventsByDay(base, base.plusDays(30)).keySet());
+        }
+
+        // edits to materialized events are re-filed by markModified
+        CalendarEvent moved = loaded.getEventsInMonth(2021, 1)[0];
+        assertEquals("room " + Integer.parseInt(moved.getTitle().substring(1)) % 7, moved.getLocation());
+        moved.setDate(LocalDate.of(2030, 6, 1));
+        loaded.markModified(moved);
+        assertArrayEquals(new CalendarEvent[]{moved}, loaded.getEventsInYear(2030));
+        loaded.removeEvent(moved);
+        assertEquals(0, loaded.getEventsInYear(2030).length);
+        assertEquals(499, loaded.getAllEvents().size());
+    }
+
+    private static List<String> describe(CalendarEvent[] events) {
+        List<String> described = new ArrayList<>();
+        for (CalendarEvent e : events) {
+            described.add(e.getTitle() + "@" + e.getDate() + "T" + e.getStartTime() + "-" + e.getEndTime());
+        }
+        return described;
+    }
+
+    /**
+     * Tests that the query planner picks a plan suited to the calendar's size
+     * and the window's breadth, and that every plan gives the same answer
+     */
+    @Test
+    public void testQueryPlans() {
+        CalendarModel model = new CalendarModel();
+        LocalDate base = LocalDate.of(2019, 1, 1);
+        model.addEvent(event("only", base, 9, 10));
+        assertArrayEquals(new CalendarEvent[]{model.getAllEvents().get(0)},
+                model.getEventsInRange(base.atStartOfDay(), base.plusDays(1).atStartOfDay()));
+        assertEquals(QueryPlan.SEQUENTIAL_SCAN, model.getLastQueryPlan());
+
+        // the threshold depends on the machine, and is the same for every later query
+        int threshold = CalendarModel.calibrateQueryPlanner();
+        assertEquals(threshold, CalendarModel.calibrateQueryPlanner());
+        for (int i = 0; i < 60_000; i++) {
+            model.addEvent(event("e" + i, base.plusDays(i % 365), i % 23, i % 23 + 1));
+        }
+        CalendarEvent[] week = model.getEventsInRange(base.atStartOfDay(), base.plusWeeks(1).atStartOfDay());
+        assertEquals(QueryPlan.INDEX, model.getLastQueryPlan());
+        CalendarEvent[] year = model.getEventsInRange(base.atStartOfDay().minusSeconds(1), base.plusYears(1).atStartOfDay());
+        assertEquals(threshold <= 60_001 ? QueryPlan.PARALLEL_SCAN : QueryPlan.INDEX, model.getLastQueryPlan());
+        assertEquals(60_001, year.length);
+        assertArrayEquals(model.getEventsInYear(2019), year);
+        assertArrayEquals(Arrays.copyOf(model.getEventsInYear(2019), week.length), week);
+    }
+
+    /**
+     * Tests that counts and histograms agree with the queries they summarize, in both storage modes
+     */
+    @Test
+    public void testCountsAndHistograms() {
+        for (CalendarModel.StorageMode mode : CalendarModel.StorageMode.values()) {
+            CalendarModel model = new CalendarModel(mode);
+            Random rand = new Random(5);
+            LocalDate base = LocalDate.of(2020, 2, 1);
+            for (int i = 0; i < 3000; i++) {
+                LocalTime start = LocalTime.of(rand.nextInt(20), rand.nextInt(60));
+                model.addEvent(new CalendarEvent("e" + i, base.plusDays(rand.nextInt(120)), start,
+                        start.plusMinutes(rand.nextInt(180)), null, null));
+            }
+            for (int q = 0; q < 100; q++) {
+                LocalDateTime lo = base.atStartOfDay().plusMinutes(rand.nextInt(60 * 24 * 120));
+                LocalDateTime hi = lo.plusMinutes(rand.nextInt(60 * 24 * 10));
+                assertEquals(model.getEventsInRange(lo, hi).length, model.countEventsInRange(lo, hi));
+            }
+
+            int[] perDay = model.histogram(base.atStartOfDay(), base.plusMonths(1).atStartOfDay(), ChronoUnit.DAYS);
+            assertEquals(29, perDay.length);
+            for (int d = 0; d < perDay.length; d++) {
+                assertEquals(model.getEventsInDay(base.plusDays(d)).length, perDay[d]);
+            }
+            LocalDateTime day = base.plusDays(3).atStartOfDay();
+            int[] perHour = model.histogram(day, day.plusDays(1), ChronoUnit.HOURS);
+            assertEquals(24, perHour.length);
+            for (int h = 0; h < perHour.length; h++) {
+                assertEquals(model.getEventsInHour(day.plusHours(h)).length, perHour[h]);
+            }
+            int[] perMonth = model.histogram(base.atStartOfDay(), base.plusMonths(4).atStartOfDay(), ChronoUnit.MONTHS);
+            assertEquals(model.getEventsInMonth(2020, 3).length, perMonth[1]);
+            assertEquals(3000, Arrays.stream(perMonth).sum());
+            // a partial last period
+            assertEquals(2, model.histogram(day, day.plusHours(36), ChronoUnit.DAYS).length);
+        }
+    }
+
+    /**
+     * Tests that bulk mutations index correctly and notify listeners once with coalesced changes
+     */
+    @Test
+    public void testBatchedMutations() {
+        for (CalendarModel.StorageMode mode : CalendarModel.StorageMode.values()) {
+            CalendarModel bulk = new CalendarModel(mode);
+            CalendarModel single = new CalendarModel(mode);
+            List<List<CalendarChange>> deltas = new ArrayList<>();
+            bulk.addListener((source, changes) -> deltas.add(changes));
+
+            LocalDate base = LocalDate.of(2020, 1, 1);
+            Random rand = new Random(6);
+            List<CalendarEvent> events = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                int start = rand.nextInt(23);
+                LocalDate date = base.plusDays(rand.nextInt(30));
+                events.add(event("e" + i, date, start, start + 1));
+                single.addEvent(event("e" + i, date, start, start + 1));
+            }
+            bulk.addEvent(events.get(0));
+            bulk.addEvents(events);
+            assertEquals(2, deltas.size());
+            assertEquals(999, count(deltas.get(1), CalendarChange.Type.ADDED));
+            assertEquals(1, count(deltas.get(1), CalendarChange.Type.MODIFIED));
+            assertEquals(describe(single.getEventsInMonth(2020, 1)), describe(bulk.getEventsInMonth(2020, 1)));
+
+            bulk.removeEvents(events.subList(0, 500));
+            assertEquals(3, deltas.size());
+            assertEquals(500, count(deltas.get(2), CalendarChange.Type.REMOVED));
+            assertEquals(500, bulk.getAllEvents().size());
+            assertEquals(500, bulk.countEventsInRange(base.atStartOfDay(), base.plusMonths(1).atStartOfDay()));
+
+            CalendarEvent temp = event("temp", base, 1, 2);
+            CalendarEvent kept = events.get(999);
+            CalendarEvent readded = events.get(998);
+            bulk.batch(model -> {
+                model.addEvent(temp);
+                model.removeEvent(temp);
+                model.markModified(kept);
+                model.removeEvent(readded);
+                model.addEvent(readded);
+            });
+            assertEquals(4, deltas.size());
+            List<CalendarChange> last = deltas.get(3);
+            assertEquals(2, last.size());
+            assertEquals(2, count(last, CalendarChange.Type.MODIFIED));
+            assertSame(kept, last.get(0).getEvent());
+
+            // a batch that changes nothing notifies nobody
+            bulk.batch(model -> model.removeEvent(temp));
+            assertEquals(4, deltas.size());
+        }
+    }
+
+    /**
+     * Tests that change records carry the old and new spans, and that removed listeners hear nothing
+     */
+    @Test
+    public void testChangeListeners() {
+        for (CalendarModel.StorageMode mode : CalendarModel.StorageMode.values()) {
+            CalendarModel model = new CalendarModel(mode);
+            List<CalendarChange> heard = new ArrayList<>();
+            CalendarListener listener = (source, changes) -> {
+                assertSame(model, source);
+                heard.addAll(changes);
+            };
+            model.addListener(listener);
+
+            LocalDate day = LocalDate.of(2020, 3, 1);
+            CalendarEvent e = event("move me", day, 9, 10);
+            model.addEvent(e);
+            assertEquals(1, heard.size());
+            assertEquals(CalendarChange.Type.ADDED, heard.get(0).getType());
+            assertNull(heard.get(0).getOldSpan());
+            assertEquals(TimeSpan.of(e), heard.get(0).getNewSpan());
+
+            TimeSpan before = TimeSpan.of(e);
+            e.setDate(day.plusDays(1));
+            model.markModified(e);
+            assertEquals(2, heard.size());
+            CalendarChange moved = heard.get(1);
+            assertEquals(CalendarChange.Type.MODIFIED, moved.getType());
+            assertEquals(before, moved.getOldSpan());
+            assertEquals(TimeSpan.of(e), moved.getNewSpan());
+            assertEquals(day.toEpochDay() + 1, moved.getNewSpan().getStartEpochDay());
+
+            model.removeEvent(e);
+            assertEquals(3, heard.size());
+            assertEquals(CalendarChange.Type.REMOVED, heard.get(2).getType());
+            assertEquals(TimeSpan.of(e), heard.get(2).getOldSpan());
+            assertNull(heard.get(2).getNewSpan());
+
+            assertTrue(model.removeListener(listener));
+            assertFalse(model.removeListener(listener));
+            model.addEvent(e);
+            assertEquals(3, heard.size());
+        }
+    }
+
+    /**
+     * Tests that snapshots are unaffected by later changes, follow the live calendar
+     * through random changes, and are read back as the calendar they were taken from
+     */
+    @Test
+    public void testSnapshots() throws IOException, ClassNotFoundException {
+        for (CalendarModel.StorageMode mode : CalendarModel.StorageMode.values()) {
+            CalendarModel model = new CalendarModel(mode);
+            LocalDate base = LocalDate.of(2022, 5, 1);
+            CalendarEvent first = event("first", base, 9, 10);
+            model.addEvent(first);
+            CalendarSnapshot before = model.snapshot();
+            assertSame(before, model.snapshot());
+
+            first.setTitle("renamed");
+            first.setDate(base.plusDays(1));
+            model.markModified(first);
+            model.addEvent(event("second", base, 11, 12));
+            CalendarSnapshot after = model.snapshot();
+            assertEquals(before.getVersion() + 2, after.getVersion());
+            assertEquals(1, before.size());
+            assertEquals("first", before.getEvents().get(0).getTitle());
+            assertEquals(base, before.getEvents().get(0).getDate());
+            assertEquals(2, after.size());
+
+            // a batch is published as a single version, and a change which does nothing publishes none
+            model.batch(m -> {
+                m.addEvent(event("third", base, 13, 14));
+                m.removeEvent(first);
+            });
+            assertEquals(after.getVersion() + 1, model.snapshot().getVersion());
+            model.removeEvent(first);
+            assertEquals(after.getVersion() + 1, model.snapshot().getVersion());
+
+            Random rand = new Random(8);
+            List<CalendarEvent> live = new ArrayList<>(model.getAllEvents());
+            for (int i = 0; i < 3000; i++) {
+                int op = rand.nextInt(4);
+                if (op == 0 || live.isEmpty()) {
+                    List<CalendarEvent> toAdd = new ArrayList<>();
+                    for (int j = rand.nextInt(40); j >= 0; j--) {
+                        int start = rand.nextInt(23);
+                        toAdd.add(event("e" + i + "." + j, base.plusDays(rand.nextInt(60)), start, start + 1));
+                    }
+                    model.addEvents(toAdd);
+                    live.addAll(toAdd);
+                } else if (op == 1) {
+                    model.removeEvent(live.remove(rand.nextInt(live.size())));
+                } else {
+                    CalendarEvent e = live.get(rand.nextInt(live.size()));
+                    e.setDate(base.plusDays(rand.nextInt(60)));
+                    model.markModified(e);
+                }
+            }
+            CalendarSnapshot snapshot = model.snapshot();
+            assertEquals(sorted(model.getAllEvents()), sorted(snapshot.getEvents()));
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            new ObjectOutputStream(bytes).writeObject(snapshot);
+            model.removeEvents(live);
+            CalendarModel loaded = (CalendarModel) new ObjectInputStream(
+                    new ByteArrayInputStream(bytes.toByteArray())).readObject();
+            assertEquals(mode, loaded.getStorageMode());
+            assertEquals(sorted(snapshot.getEvents()), sorted(loaded.getAllEvents()));
+            assertEquals(snapshot.size(), loaded.getEventsInRange(base.atStartOfDay(),
+                    base.plusDays(61).atStartOfDay()).length);
+        }
+    }
+
+    /**
+     * Tests that a snapshot taken on another thread never reflects part of a batch
+     */
+    @Test
+    public void testSnapshotsFromAnotherThread() throws InterruptedException {
+        CalendarModel model = new CalendarModel();
+        LocalDate day = LocalDate.of(2022, 6, 1);
+        AtomicBoolean done = new AtomicBoolean();
+        List<String> failures = new ArrayList<>();
+        Thread reader = new Thread(() -> {
+            long lastVersion = -1;
+            while (!done.get()) {
+                CalendarSnapshot snapshot = model.snapshot();
+                if (snapshot.size() % 2 != 0 || snapshot.getVersion() < lastVersion) {
+                    failures.add("saw " + snapshot.size() + " events at version " + snapshot.getVersion());
+                }
+                lastVersion = snapshot.getVersion();
+            }
+        });
+        reader.start();
+        for (int i = 0; i < 2000; i++) {
+            CalendarEvent a = event("a" + i, day, i % 23, i % 23 + 1), b = event("b" + i, day, 1, 2);
+            model.batch(m -> {
+                m.addEvent(a);
+                m.addEvent(b);
+            });
+        }
+        done.set(true);
+        reader.join();
+        assertEquals(Collections.emptyList(), failures);
+        assertEquals(4000, model.snapshot().size());
+    }
+
+    /**
+     * Tests that calendars read on several threads at once, as under the controller's shared
+     * locks, while events are removed between the reads, are never changed by the reads: each
+     * read must match the calendar as it was after some number of the removals
+     */
+    @Test
+    public void testReadsDuringRemoval() throws InterruptedException {
+        LocalDate base = LocalDate.of(2023, 1, 1);
+        // a calendar read whole, and one small enough to be scanned rather than looked up
+        CalendarModel big = new CalendarModel(), small = new CalendarModel();
+        List<CalendarEvent> bigEvents = new ArrayList<>(), smallEvents = new ArrayList<>();
+        for (int i = 0; i < 20_000; i++) {
+            bigEvents.add(event("big " + i, base.plusDays(i / 20), i % 20, i % 20 + 1));
+        }
+        for (int i = 0; i < 60; i++) {
+            smallEvents.add(event("small " + i, base.plusDays(i / 20), i % 20, i % 20 + 1));
+        }
+        big.addEvents(bigEvents);
+        small.addEvents(smallEvents);
+        List<CalendarEvent> bigOrder = new ArrayList<>(bigEvents.subList(0, 2000));
+        List<CalendarEvent> smallOrder = new ArrayList<>(smallEvents);
+        Collections.shuffle(bigOrder, new Random(3));
+        Collections.shuffle(smallOrder, new Random(4));
+
+        ReadWriteLock lock = new ReentrantReadWriteLock();
+        AtomicBoolean done = new AtomicBoolean();
+        List<String> failures = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> readers = new ArrayList<>();
+        for (int t = 0; t < 3; t++) {
+            Thread reader = new Thread(() -> {
+                while (!done.get()) {
+                    lock.readLock().lock();
+                    try {
+                        checkRemovals(big.getAllEvents(), bigEvents, bigOrder, failures);
+                        checkRemovals(Arrays.asList(small.getEventsInRange(base.atStartOfDay(), base.plusYears(1).atStartOfDay())),
+                                smallEvents, smallOrder, failures);
+                    } catch (RuntimeException e) {
+                        failures.add(e.toString());
+                    } finally {
+                        lock.readLock().unlock();
+                    }
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+        for (int k = 0; k < bigOrder.size(); k++) {
+            lock.writeLock().lock();
+            try {
+                big.removeEvent(bigOrder.get(k));
+                if (k < smallOrder.size()) {
+                    small.removeEvent(smallOrder.get(k));
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        done.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertEquals(Collections.emptyList(), failures);
+        assertEquals(18_000, big.getAllEvents().size());
+        assertEquals(0, small.getAllEvents().size());
+    }
+
+    /**
+     * records a failure unless the events read are those of the calendar, in the order they
+     * were added, once some number of the removals had been made
+     */
+    private static void checkRemovals(List<CalendarEvent> read, List<CalendarEvent> added, List<CalendarEvent> removals,
+                                      List<String> failures) {
+        int removed = added.size() - read.size();
+        if (removed < 0 || removed > removals.size()) {
+            failures.add(read.size() + " events read, but only " + removals.size() + " are removed");
+            return;
+        }
+        Set<CalendarEvent> gone = Collections.newSetFromMap(new IdentityHashMap<>());
+        gone.addAll(removals.subList(0, removed));
+        List<CalendarEvent> expected = new ArrayList<>(added);
+        expected.removeIf(gone::contains);
+        if (!expected.equals(read)) {
+            failures.add(read.size() + " events read, not the calendar after " + removed + " removals");
+        }
+    }
+
+    /**
+     * Tests that rules jump straight to the occurrences within a range, giving the same dates
+     * as walking every occurrence from the first
+     */
+    @Test
+    public void testRecurrenceRules() {
+        Random rand = new Random(12);
+        RecurrenceRule.Frequency[] frequencies = RecurrenceRule.Frequency.values();
+        LocalDate[] firsts = {LocalDate.of(2020, 1, 31), LocalDate.of(2020, 2, 29), LocalDate.of(2021, 3, 15)};
+        for (int round = 0; round < 300; round++) {
+            LocalDate first = firsts[rand.nextInt(firsts.length)];
+            RecurrenceRule.Frequency frequency = frequencies[rand.nextInt(frequencies.length)];
+            RecurrenceRule rule = new RecurrenceRule(frequency, 1 + rand.nextInt(3));
+            if (rand.nextBoolean()) {
+                rule = rule.withCount(1 + rand.nextInt(20));
+            }
+            if (rand.nextBoolean()) {
+                rule = rule.withUntil(first.plusDays(rand.nextInt(3000)));
+            }
+            List<LocalDate> walked = walk(first, rule, first.plusYears(40));
+            for (LocalDate date : walked) {
+                if (rand.nextInt(4) == 0) {
+                    rule = rule.withException(date);
+                }
+            }
+            walked.removeAll(rule.getExceptions());
+
+            CalendarModel model = new CalendarModel();
+            CalendarEvent series = new CalendarEvent("series", first, LocalTime.of(9, 0), LocalTime.of(10, 0),
+                    null, null);
+            series.setRecurrence(rule);
+            model.addEvent(series);
+            LocalDate from = first.plusDays(rand.nextInt(4000) - 100);
+            LocalDate to = from.plusDays(rand.nextInt(800));
+            List<LocalDate> expected = new ArrayList<>();
+            for (LocalDate date : walked) {
+                if (!date.isBefore(from) && date.isBefore(to)) {
+                    expected.add(date);
+                }
+            }
+            List<LocalDate> found = new ArrayList<>();
+            for (CalendarEvent occurrence : model.getEventsByDay(from, to).values().stream()
+                    .flatMap(Arrays::stream).toArray(CalendarEvent[]::new)) {
+                assertSame(series, occurrence.getRecurringEvent());
+                found.add(occurrence.getDate());
+            }
+            assertEquals(rule.toString(), expected, found);
+            assertEquals(expected.size(), model.countEventsInRange(from.atStartOfDay().minusSeconds(1),
+                    to.atStartOfDay()));
+        }
+    }
+
+    /**
+     * @return every date the rule falls on before the limit, found by stepping from the first
+     * date one unit at a time, ignoring exceptions
+     */
+    private static List<LocalDate> walk(LocalDate first, RecurrenceRule rule, LocalDate limit) {
+        ChronoUnit unit = rule.getFrequency() == RecurrenceRule.Frequency.DAILY ? ChronoUnit.DAYS
+                : rule.getFrequency() == RecurrenceRule.Frequency.WEEKLY ? ChronoUnit.WEEKS
+                : rule.getFrequency() == RecurrenceRule.Frequency.MONTHLY ? ChronoUnit.MONTHS : ChronoUnit.YEARS;
+        List<LocalDate> dates = new ArrayList<>();
+        for (long k = 0; ; k++) {
+            LocalDate date = first.plus(k * rule.getInterval(), unit);
+            if (date.isAfter(limit) || (rule.getUntil() != null && date.isAfter(rule.getUntil()))
+                    || (rule.getCount() > 0 && dates.size() == rule.getCount())) {
+                return dates;
+            } else if (unit.compareTo(ChronoUnit.MONTHS) < 0 || date.getDayOfMonth() == first.getDayOfMonth()) {
+                dates.add(date);
+            }
+        }
+    }
+
+    /**
+     * Tests that a recurring event is stored once, that its occurrences appear in every kind
+     * of query alongside ordinary events, and that changing or removing it is reflected at once
+     */
+    @Test
+    public void testRecurringEvents() throws IOException, ClassNotFoundException {
+        for (CalendarModel.StorageMode mode : CalendarModel.StorageMode.values()) {
+            CalendarModel model = new CalendarModel(mode);
+            List<CalendarChange> heard = new ArrayList<>();
+            model.addListener((source, changes) -> heard.addAll(changes));
+            LocalDate monday = LocalDate.of(2021, 3, 1);
+            CalendarEvent standup = new CalendarEvent("standup", monday, LocalTime.of(9, 0),
+                    LocalTime.of(9, 15), null, null);
+            standup.setRecurrence(new RecurrenceRule(RecurrenceRule.Frequency.WEEKLY, 1)
+                    .withException(monday.plusWeeks(2)));
+            model.addEvent(standup);
+            model.addEvent(event("review", monday.plusWeeks(1), 9, 10));
+            assertEquals(2, count(heard, CalendarChange.Type.ADDED));
+            assertEquals(2, model.getAllEvents().size());
+
+            // March 2021 has five Mondays, one of them an exception
+            CalendarEvent[] march = model.getEventsInMonth(2021, 3);
+            assertEquals(describe(march).toString(), 5, march.length);
+            // among events starting together, ordinary events come before occurrences
+            assertEquals("review", march[1].getTitle());
+            assertEquals("standup", march[2].getTitle());
+            assertEquals(52, model.getEventsInYear(2030).length);
+            assertEquals(1, model.getEventsInHour(LocalDateTime.of(2040, 1, 2, 9, 0)).length);
+            LocalDateTime from = monday.atStartOfDay(), to = monday.plusMonths(6).atStartOfDay();
+            CalendarEvent[] range = model.getEventsInRange(from, to);
+            assertArrayEquals(range, drain(model.iterateEventsInRange(from, to)));
+            assertEquals(range.length, model.countEventsInRange(from, to));
+            assertEquals(range.length, Arrays.stream(model.histogram(from, to, ChronoUnit.DAYS)).sum());
+            assertEquals(range.length - 1, model.getOccurrencesInRange(from, to).length);
+            // the same window returns the same occurrences until the event changes
+            assertSame(range[0], model.getEventsInRange(from, to)[0]);
+
+            standup.setStartTime(LocalTime.of(8, 0));
+            standup.setRecurrence(standup.getRecurrence().withCount(3));
+            model.markModified(standup);
+            assertEquals(1, count(heard, CalendarChange.Type.MODIFIED));
+            CalendarEvent[] moved = model.getEventsInRange(from, to);
+            assertEquals(3, moved.length);
+            assertEquals(LocalTime.of(8, 0), moved[0].getStartTime());
+            // the exception still counts as one of the three occurrences
+            assertEquals(monday.plusWeeks(1), moved[1].getDate());
+            assertEquals("review", moved[2].getTitle());
+
+            CalendarSnapshot snapshot = model.snapshot();
+            assertEquals(2, snapshot.size());
+            for (Object saved : new Object[]{snapshot, model}) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                new ObjectOutputStream(bytes).writeObject(saved);
+                CalendarModel loaded = (CalendarModel) new ObjectInputStream(
+                        new ByteArrayInputStream(bytes.toByteArray())).readObject();
+                assertEquals(describe(moved), describe(loaded.getEventsInRange(from, to)));
+            }
+
+            standup.setRecurrence(null);
+            model.markModified(standup);
+            assertEquals(2, model.getEventsInRange(from, to).length);
+            assertSame(standup, model.getEventsInDay(monday)[0]);
+            standup.setRecurrence(new RecurrenceRule(RecurrenceRule.Frequency.DAILY, 1));
+            model.markModified(standup);
+            assertEquals(1 + 184, model.getEventsInRange(from, to).length);
+            model.removeEvent(standup);
+            assertEquals(1, count(heard, CalendarChange.Type.REMOVED));
+            assertEquals(1, model.getEventsInRange(from, to).length);
+            assertEquals(1, model.getAllEvents().size());
+        }
+    }
+
+    /**
+     * Tests finding and removing events by id in both storage modes, that ids survive
+     * edits, saving and snapshots, and that an id already in a calendar is never reused
+     */
+    @Test
+    public void testEventIds() throws IOException, ClassNotFoundException {
+        for (CalendarModel.StorageMode mode : CalendarModel.StorageMode.values()) {
+            CalendarModel model = new CalendarModel(mode);
+            Random rand = new Random(15);
+            LocalDate base = LocalDate.of(2022, 1, 1);
+            List<CalendarEvent> events = new ArrayList<>();
+            for (int i = 0; i < 2000; i++) {
+                int start = rand.nextInt(20);
+                events.add(new CalendarEvent("e" + i, base.plusDays(rand.nextInt(60)),
+                        LocalTime.of(start, 0), LocalTime.of(start + 1 + rand.nextInt(3), 0), null, null));
+            }
+            model.addEvents(events.subList(0, 1000));
+            for (CalendarEvent event : events.subList(1000, 2000)) {
+                model.addEvent(event);
+            }
+            for (CalendarEvent event : events) {
+                assertSame(mode.toString(), event, model.getEvent(event.getId()));
+            }
+            CalendarEvent weekly = new CalendarEvent("weekly", base, LocalTime.of(7, 0), LocalTime.of(8, 0), null, null);
+            weekly.setRecurrence(new RecurrenceRule(RecurrenceRule.Frequency.WEEKLY, 1));
+            model.addEvent(weekly);
+            assertSame(weekly, model.getEvent(weekly.getId()));
+            for (CalendarEvent occurrence : model.getOccurrencesInRange(base.atStartOfDay(), base.plusDays(30).atStartOfDay())) {
+                assertEquals(weekly.getId(), occurrence.getId());
+            }
+
+            // edits keep the id
+            CalendarEvent edited = events.get(5);
+            long id = edited.getId();
+            edited.setDate(base.plusYears(1));
+            model.markModified(edited);
+            assertEquals(id, edited.getId());
+            assertSame(edited, model.getEvent(id));
+
+            Collections.shuffle(events, rand);
+            List<CalendarEvent> kept = new ArrayList<>(events.subList(0, 500));
+            for (CalendarEvent event : events.subList(500, 2000)) {
+                assertSame(event, model.removeEvent(event.getId()));
+                assertNull(model.getEvent(event.getId()));
+            }
+            assertNull(model.removeEvent(events.get(1999).getId()));
+            assertEquals(501, model.getAllEvents().size());
+            for (CalendarEvent event : kept) {
+                assertSame(event, model.getEvent(event.getId()));
+            }
+            assertEquals(kept.size(), model.getEventsInRange(base.atStartOfDay(), base.plusYears(2).atStartOfDay()).length
+                    - model.getOccurrencesInRange(base.atStartOfDay(), base.plusYears(2).atStartOfDay()).length);
+
+            for (Object saved : new Object[]{model, model.snapshot()}) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                new ObjectOutputStream(bytes).writeObject(saved);
+                CalendarModel loaded = (CalendarModel) new ObjectInputStream(
+                        new ByteArrayInputStream(bytes.toByteArray())).readObject();
+                for (CalendarEvent event : kept) {
+                    assertEquals(event.getTitle(), loaded.getEvent(event.getId()).getTitle());
+                }
+                assertEquals("weekly", loaded.getEvent(weekly.getId()).getTitle());
+                CalendarEvent fresh = new CalendarEvent("fresh", base.atTime(9, 0));
+                assertNull(loaded.getEvent(fresh.getId()));
+            }
+
+            // copies share their original's id, so adding them to the same calendar renumbers them
+            List<CalendarEvent> copies = model.snapshot().getEvents();
+            model.addEvents(copies);
+            assertEquals(1002, model.getAllEvents().size());
+            for (CalendarEvent copy : copies) {
+                assertSame(copy, model.getEvent(copy.getId()));
+            }
+            for (CalendarEvent event : kept) {
+                assertSame(event, model.getEvent(event.getId()));
+            }
+        }
+    }
+
+    /**
+     * Tests that colors survive storing, saving and snapshots in both storage modes, and that
+     * events of one color share a single Color
+     */
+    @Test
+    public void testEventColors() throws IOException, ClassNotFoundException {
+        Color[] palette = {Color.rgb(10, 200, 30), Color.CORNFLOWERBLUE, Color.web("#01020380"), null};
+        for (CalendarModel.StorageMode mode : CalendarModel.StorageMode.values()) {
+            CalendarModel model = new CalendarModel(mode);
+            LocalDate base = LocalDate.of(2022, 3, 1);
+            for (int i = 0; i < 400; i++) {
+                model.addEvent(new CalendarEvent("e" + i, base.plusDays(i % 40), LocalTime.of(9, 0),
+                        LocalTime.of(10, 0), null, null, palette[i % palette.length]));
+            }
+            for (Object saved : new Object[]{model, model.snapshot()}) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                new ObjectOutputStream(bytes).writeObject(saved);
+                CalendarModel loaded = (CalendarModel) new ObjectInputStream(
+                        new ByteArrayInputStream(bytes.toByteArray())).readObject();
+                for (CalendarModel m : new CalendarModel[]{model, loaded}) {
+                    Map<Color, Color> seen = new HashMap<>();
+                    for (CalendarEvent event : m.getAllEvents()) {
+                        int i = Integer.parseInt(event.getTitle().substring(1));
+                        Color expected = palette[i % palette.length] == null
+                                ? CalendarEvent.DEFAULT_COLOR : palette[i % palette.length];
+                        assertEquals(mode + " " + event.getTitle(), expected, event.getColor());
+                        assertSame(seen.computeIfAbsent(event.getColor(), c -> c), event.getColor());
+                    }
+                    assertEquals(palette.length, seen.size());
+                }
+            }
+            CalendarEvent event = model.getAllEvents().get(0);
+            event.setColor(Color.rgb(10, 200, 30));
+            assertSame(event.getColor(), event.getColor());
+            event.setColor(null);
+            assertSame(CalendarEvent.DEFAULT_COLOR, event.getColor());
+        }
+    }
+
+    /**
+     * Tests that calendars written to a calendar file read back the same in both storage
+     * modes, including missing fields, times part way through a minute, colors and
+     * recurrence rules, and that damaged files and unknown versions are rejected
+     */
+    @Test
+    public void testCalendarFile() throws IOException {
+        Random rand = new Random(17);
+        LocalDate base = LocalDate.of(1969, 12, 20);
+        Map<String, CalendarSnapshot> saved = new HashMap<>();
+        for (CalendarModel.StorageMode mode : CalendarModel.StorageMode.values()) {
+            CalendarModel model = new CalendarModel(mode);
+            for (int i = 0; i < 3000; i++) {
+                int start = rand.nextInt(22);
+                CalendarEvent event = new CalendarEvent("e" + rand.nextInt(300), base.plusDays(rand.nextInt(400)),
+                        LocalTime.of(start, rand.nextInt(60)), LocalTime.of(start + 1 + rand.nextInt(2), rand.nextInt(60)),
+                        rand.nextBoolean() ? null : "r\u00e9sum\u00e9 room " + rand.nextInt(9), i % 5 == 0 ? "notes " + i : null,
+                        rand.nextBoolean() ? null : Color.rgb(rand.nextInt(256), rand.nextInt(256), rand.nextInt(256)));
+                if (i % 50 == 0) {
+                    event = new CalendarEvent("untimed " + i, base.plusDays(i).atTime(8, 30, 15, 40));
+                }
+                if (i % 97 == 0) {
+                    event.setRecurrence(new RecurrenceRule(RecurrenceRule.Frequency.values()[i % 4], 1 + i % 3)
+                            .withCount(i % 2 * 10)
+                            .withUntil(i % 3 == 0 ? null : event.getDate().plusYears(1))
+                            .withException(event.getDate().plusDays(7)));
+                }
+                model.addEvent(event);
+            }
+            saved.put(mode + " \u00e9v\u00e9nements", model.snapshot());
+        }
+        saved.put("empty", new CalendarModel().snapshot());
+        java.nio.file.Path file = java.nio.file.Files.createTempFile("calendars", ".bin");
+        try {
+            CalendarFile.write(file, saved, 42);
+            assertTrue(CalendarFile.isCalendarFile(file));
+            assertEquals(42, CalendarFile.readSequence(file));
+            Map<String, CalendarModel> loaded = CalendarFile.read(file);
+            assertEquals(saved.keySet(), loaded.keySet());
+            for (String name : saved.keySet()) {
+                assertEquals(saved.get(name).getStorageMode(), loaded.get(name).getStorageMode());
+                assertEquals(fullyDescribe(saved.get(name).getEvents()), fullyDescribe(loaded.get(name).getAllEvents()));
+            }
+
+            byte[] bytes = java.nio.file.Files.readAllBytes(file);
+            java.nio.file.Files.write(file, Arrays.copyOf(bytes, bytes.length - 3));
+            assertThrowsIOException(file);
+            bytes[5] = 9;
+            java.nio.file.Files.write(file, bytes);
+            assertThrowsIOException(file);
+            new ObjectOutputStream(java.nio.file.Files.newOutputStream(file)).writeObject(new HashMap<>());
+            assertFalse(CalendarFile.isCalendarFile(file));
+            assertThrowsIOException(file);
+        } finally {
+            java.nio.file.Files.delete(file);
+        }
+    }
+
+    /**
+     * Tests that a calendar opened in place from a segment answers queries as the calendar it
+     * was written from did, over several years, that decoded events can be edited as usual,
+     * and that a changed calendar is written back to a new segment whole
+     */
+    @Test
+    public void testCalendarSegment() throws IOException {
+        Random rand = new Random(23);
+        LocalDate base = LocalDate.of(1999, 11, 1);
+        for (CalendarModel.StorageMode mode : CalendarModel.StorageMode.values()) {
+            CalendarModel model = new CalendarModel(mode);
+            for (int i = 0; i < 2000; i++) {
+                int start = rand.nextInt(22);
+                CalendarEvent event = new CalendarEvent("e" + rand.nextInt(300), base.plusDays(rand.nextInt(1500)),
+                        LocalTime.of(start, rand.nextInt(60)), LocalTime.of(start + 1 + rand.nextInt(2), rand.nextInt(60)),
+                        rand.nextBoolean() ? null : "room " + rand.nextInt(9), i % 5 == 0 ? "notes " + i : null,
+                        rand.nextBoolean() ? null : Color.rgb(rand.nextInt(256), rand.nextInt(256), rand.nextInt(256)));
+                if (i % 50 == 0) {
+                    event = new CalendarEvent("untimed " + i, base.plusDays(i).atTime(8, 30, 15, 40));
+                }
+                if (i % 97 == 0) {
+                    event.setRecurrence(new RecurrenceRule(RecurrenceRule.Frequency.WEEKLY, 1).withCount(10));
+                }
+                model.addEvent(event);
+            }
+            java.nio.file.Path file = java.nio.file.Files.createTempFile("calendar", ".seg");
+            java.nio.file.Path again = java.nio.file.Files.createTempFile("calendar", ".seg");
+            try {
+                CalendarSegment.write(file, model.snapshot(), 7);
+                assertTrue(CalendarSegment.isSegment(file));
+                // packed calendars keep times to the second, so compare with what was saved
+                CalendarModel saved = model;
+                model = new CalendarModel();
+                model.addEvents(saved.snapshot().getEvents());
+                CalendarModel opened = CalendarSegment.open(file);
+                assertEquals(mode, opened.getStorageMode());
+                assertEquals(fullyDescribe(model.getAllEvents()), fullyDescribe(opened.getAllEvents()));
+                for (int i = 0; i < 40; i++) {
+                    LocalDateTime from = base.plusDays(rand.nextInt(1500)).atTime(rand.nextInt(24), 0);
+                    LocalDateTime to = from.plusHours(1 + rand.nextInt(24 * 60));
+                    assertEquals(fullyDescribe(Arrays.asList(model.getEventsInRange(from, to))),
+                            fullyDescribe(Arrays.asList(opened.getEventsInRange(from, to))));
+                    assertEquals(fullyDescribe(Arrays.asList(model.getEventsInRange(from, to))),
+                            fullyDescribe(Arrays.asList(drain(opened.iterateEventsInRange(from, to)))));
+                    assertEquals(model.countEventsInRange(from, to), opened.countEventsInRange(from, to));
+                    assertEquals(model.getEventsByDay(from.toLocalDate(), to.toLocalDate()).keySet(),
+                            opened.getEventsByDay(from.toLocalDate(), to.toLocalDate()).keySet());
+                }
+                assertArrayEquals(model.histogram(base.atStartOfDay(), base.plusYears(4).atStartOfDay(), ChronoUnit.MONTHS),
+                        opened.histogram(base.atStartOfDay(), base.plusYears(4).atStartOfDay(), ChronoUnit.MONTHS));
+
+                CalendarEvent moved = opened.getEventsInYear(2001)[0];
+                assertSame(moved, opened.getEvent(moved.getId()));
+                LocalDate was = moved.getDate();
+                moved.setDate(LocalDate.of(2030, 1, 1));
+                opened.markModified(moved);
+                assertArrayEquals(new CalendarEvent[]{moved}, opened.getEventsInYear(2030));
+                assertFalse(Arrays.asList(opened.getEventsInDay(was)).contains(moved));
+                CalendarEvent removed = opened.getEventsInYear(2002)[0];
+                opened.removeEvent(removed);
+                assertNull(opened.getEvent(removed.getId()));
+                CalendarEvent added = new CalendarEvent("added", LocalDateTime.of(2000, 6, 1, 12, 0));
+                opened.addEvent(added);
+                assertEquals(model.getAllEvents().size(), opened.getAllEvents().size());
+                assertTrue(Arrays.asList(opened.getEventsInDay(LocalDate.of(2000, 6, 1))).contains(added));
+
+                CalendarSegment.write(again, opened.snapshot(), 8);
+                assertEquals(fullyDescribe(opened.snapshot().getEvents()),
+                        fullyDescribe(CalendarSegment.open(again).getAllEvents()));
+
+                byte[] bytes = java.nio.file.Files.readAllBytes(again);
+                java.nio.file.Files.write(again, Arrays.copyOf(bytes, bytes.length - 3));
+                try {
+                    CalendarSegment.open(again);
+                    throw new AssertionError("opened " + again);
+                } catch (IOException expected) {
+                    // a truncated segment does not end where its records do
+                }
+            } finally {
+                java.nio.file.Files.delete(file);
+                java.nio.file.Files.delete(again);
+            }
+        }
+    }
+
+    /**
+     * Tests that a segment with a damaged block is refused when opened strictly, and that
+     * opening it with somewhere to report problems loses only the events in that block,
+     * rebuilds a damaged id table, and still refuses a damaged directory
+     */
+    @Test
+    public void testSegmentChecksums() throws IOException {
+        LocalDate base = LocalDate.of(2010, 1, 1);
+        CalendarModel model = new CalendarModel();
+        for (int i = 0; i < 10000; i++) {
+            model.addEvent(new CalendarEvent("e" + i, base.plusDays(i / 8), LocalTime.of(i % 8 + 8, 0),
+                    LocalTime.of(i % 8 + 9, 0), null, null, null));
+        }
+        java.nio.file.Path file = java.nio.file.Files.createTempFile("calendar", ".seg");
+        try {
+            CalendarSegment.write(file, model.snapshot(), 1);
+            byte[] bytes = java.nio.file.Files.readAllBytes(file);
+            int recordBytes = java.nio.ByteBuffer.wrap(bytes).getInt(44);
+
+            // a byte in the middle of the records is in the second of three blocks
+            byte[] damaged = bytes.clone();
+            damaged[bytes.length - recordBytes / 2] ^= 0x20;
+            java.nio.file.Files.write(file, damaged);
+            try {
+                CalendarSegment.open(file);
+                throw new AssertionError("opened " + file);
+            } catch (IOException expected) {
+                // the strict open refuses any damage
+            }
+            List<String> problems = new ArrayList<>();
+            CalendarModel opened = CalendarSegment.open(file, problems::add);
+            assertEquals(1, problems.size());
+            List<CalendarEvent> kept = opened.getAllEvents();
+            assertEquals(10000 - 4096, kept.size());
+            List<CalendarEvent> expected = new ArrayList<>(model.getAllEvents());
+            expected.subList(4096, 2 * 4096).clear();
+            assertEquals(fullyDescribe(expected), fullyDescribe(kept));
+            LocalDateTime from = base.plusDays(400).atStartOfDay();
+            LocalDateTime to = base.plusDays(700).atStartOfDay();
+            assertEquals(fullyDescribe(expected.stream().filter(e -> e.getDate().atTime(e.getStartTime()).isBefore(to)
+                            && e.getDate().atTime(e.getEndTime()).isAfter(from)).collect(java.util.stream.Collectors.toList())),
+                    fullyDescribe(Arrays.asList(opened.getEventsInRange(from, to))));
+            assertEquals(0, opened.countEventsInRange(base.plusDays(520).atStartOfDay(), base.plusDays(1020).atStartOfDay()));
+
+            // a damaged id table is rebuilt from the records
+            damaged = bytes.clone();
+            int ids = bytes.length - recordBytes - 4 * 10000 - 12 * 10000;
+            damaged[ids + 12 * 5000 + 7] ^= 0x01;
+            java.nio.file.Files.write(file, damaged);
+            problems.clear();
+            opened = CalendarSegment.open(file, problems::add);
+            assertEquals(1, problems.size());
+            assertEquals(10000, opened.getAllEvents().size());
+            for (CalendarEvent event : model.getAllEvents()) {
+                assertEquals(event.getTitle(), opened.getEvent(event.getId()).getTitle());
+            }
+
+            // the directory says where everything else is, so damage to it cannot be worked around
+            damaged = bytes.clone();
+            damaged[50] ^= 0x01;
+            java.nio.file.Files.write(file, damaged);
+            try {
+                CalendarSegment.open(file, problems::add);
+                throw new AssertionError("opened " + file);
+            } catch (IOException refused) {
+                // the directory failed its checksum
+            }
+        } finally {
+            java.nio.file.Files.delete(file);
+        }
+    }
+
+    /**
+     * Tests that changes logged to a journal are replayed onto the calendars they were made to,
+     * from the change after the one given, that a torn final record is dropped, and that a
+     * journal cut after a change only replays what follows it
+     */
+    @Test
+    public void testCalendarJournal() throws Exception {
+        java.nio.file.Path file = java.nio.file.Files.createTempFile("calendars", ".journal");
+        java.nio.file.Files.delete(file);
+        try {
+            AtomicBoolean full = new AtomicBoolean();
+            Map<String, CalendarModel> calendars = new HashMap<>();
+            calendars.put("work", new CalendarModel());
+            CalendarJournal journal = CalendarJournal.open(file, 7, calendars, 1 << 10, () -> full.set(true), e -> { });
+            assertEquals(7, journal.getSequence());
+            CalendarModel work = new CalendarModel();
+            List<CalendarEvent> kept = new ArrayList<>();
+            for (int i = 0; i < 40; i++) {
+                CalendarEvent event = new CalendarEvent("meeting " + i, LocalDate.of(2024, 3, 1).plusDays(i),
+                        LocalTime.of(9, 0), LocalTime.of(10, i), i % 2 == 0 ? null : "room " + i, null, null);
+                work.addEvent(event);
+                journal.putEvent("work", event);
+                kept.add(event);
+            }
+            journal.removeEvent("work", kept.remove(3).getId());
+            kept.get(0).setTitle("renamed");
+            journal.putEvent("work", kept.get(0));
+            journal.createCalendar("home");
+            journal.renameCalendar("home", "house");
+            journal.createCalendar("gone");
+            long last = journal.deleteCalendar("gone");
+            assertEquals(7 + 40 + 6, last);
+            journal.flush();
+            assertTrue(full.get());
+            journal.close();
+
+            java.nio.file.Files.write(file, new byte[]{20, 0, 0, 0, 1, 2}, java.nio.file.StandardOpenOption.APPEND);
+            long torn = java.nio.file.Files.size(file);
+            Map<String, CalendarModel> replayed = new HashMap<>();
+            replayed.put("work", new CalendarModel());
+            journal = CalendarJournal.open(file, 7, replayed, 1 << 20, () -> { }, e -> { });
+            assertEquals(last, journal.getSequence());
+            assertEquals(torn - 6, java.nio.file.Files.size(file));
+            assertEquals(new java.util.HashSet<>(Arrays.asList("work", "house")), replayed.keySet());
+            assertEquals(fullyDescribe(kept), fullyDescribe(replayed.get("work").getAllEvents()));
+
+            journal.cut(last - 1);
+            CalendarEvent late = new CalendarEvent("late", LocalDateTime.of(2024, 5, 1, 12, 0));
+            journal.putEvent("house", late);
+            journal.close();
+            Map<String, CalendarModel> tail = new HashMap<>();
+            tail.put("gone", new CalendarModel());
+            tail.put("house", new CalendarModel());
+            journal = CalendarJournal.open(file, last - 1, tail, 1 << 20, () -> { }, e -> { });
+            journal.close();
+            assertEquals(Collections.singleton("house"), tail.keySet());
+            assertEquals(fullyDescribe(Collections.singletonList(late)), fullyDescribe(tail.get("house").getAllEvents()));
+
+            // records are read a block at a time, and may be larger than a block
+            java.nio.file.Path large = java.nio.file.Files.createTempFile("calendars", ".journal");
+            java.nio.file.Files.delete(large);
+            try {
+                Map<String, CalendarModel> empty = new HashMap<>();
+                empty.put("big", new CalendarModel());
+                journal = CalendarJournal.open(large, 0, empty, Long.MAX_VALUE, () -> { }, e -> { });
+                List<CalendarEvent> many = new ArrayList<>();
+                String notes = String.join("", Collections.nCopies(100_000, "n"));
+                for (int i = 0; i < 5000; i++) {
+                    CalendarEvent event = new CalendarEvent("event " + i, LocalDate.of(2020, 1, 1).plusDays(i % 700),
+                            LocalTime.of(9, 0), LocalTime.of(10, 0), null, i % 1000 == 1 ? notes : null);
+                    journal.putEvent("big", event);
+                    many.add(event);
+                }
+                journal.close();
+                Map<String, CalendarModel> read = new HashMap<>();
+                read.put("big", new CalendarModel());
+                journal = CalendarJournal.open(large, 0, read, Long.MAX_VALUE, () -> { }, e -> { });
+                journal.close();
+                assertEquals(5000, journal.getSequence());
+                assertEquals(fullyDescribe(many), fullyDescribe(read.get("big").getAllEvents()));
+            } finally {
+                java.nio.file.Files.deleteIfExists(large);
+            }
+
+            // a journal which could not be written says so, and takes no more changes
+            java.nio.file.Path blocked = java.nio.file.Paths.get(file + ".tmp");
+            java.nio.file.Files.createDirectories(blocked);
+            CompletableFuture<IOException> failed = new CompletableFuture<>();
+            try {
+                journal = CalendarJournal.open(file, last + 1, tail, 1 << 20, () -> { }, failed::complete);
+                long failing = journal.putEvent("house", late);
+                CalendarJournal stopped = journal;
+                assertThrows(IOException.class, () -> stopped.cut(failing));
+                assertTrue(failed.get(10, TimeUnit.SECONDS) != null);
+                assertThrows(UncheckedIOException.class, () -> stopped.putEvent("house", late));
+                assertThrows(IOException.class, stopped::close);
+            } finally {
+                java.nio.file.Files.delete(blocked);
+            }
+        } finally {
+            java.nio.file.Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Tests prefix completion against a brute-force ranking, through random adds and removes
+     */
+    @Test
+    public void testPrefixIndex() {
+        PrefixIndex index = new PrefixIndex(5);
+        index.add("Lunch");
+        index.add("  lunch ");
+        index.add("Lunchroom");
+        index.add(null);
+        index.add(" ");
+        assertEquals(2, index.size());
+        assertEquals(2, index.count("LUNCH"));
+        assertEquals(Arrays.asList("lunch", "Lunchroom"), index.complete("LU", 5));
+        assertEquals(Collections.singletonList("lunch"), index.complete("lu", 1));
+        assertEquals(Collections.emptyList(), index.complete("", 5));
+        assertEquals(Collections.emptyList(), index.complete("x", 5));
+        index.remove("lunch");
+        index.remove("lunch");
+        index.remove("lunch");
+        index.remove("nothing");
+        assertEquals(Collections.singletonList("Lunchroom"), index.complete("l", 5));
+        assertEquals(1, index.size());
+
+        Random rand = new Random(14);
+        Map<String, Integer> counts = new HashMap<>();
+        index = new PrefixIndex(4);
+        for (int i = 0; i < 20000; i++) {
+            StringBuilder word = new StringBuilder();
+            for (int len = 1 + rand.nextInt(4); len > 0; len--) {
+                word.append((char) ('a' + rand.nextInt(4)));
+            }
+            String w = word.toString();
+            if (rand.nextInt(3) == 0) {
+                index.remove(w);
+                counts.computeIfPresent(w, (k, n) -> n == 1 ? null : n - 1);
+            } else {
+                index.add(w);
+                counts.merge(w, 1, Integer::sum);
+            }
+            if (i % 100 == 0) {
+                assertEquals(counts.size(), index.size());
+                String prefix = w.substring(0, 1 + rand.nextInt(w.length()));
+                List<String> expected = new ArrayList<>();
+                for (String candidate : counts.keySet()) {
+                    if (candidate.startsWith(prefix)) {
+                        expected.add(candidate);
+                    }
+                }
+                expected.sort((a, b) -> counts.get(a).equals(counts.get(b)) ? a.compareTo(b) : counts.get(b) - counts.get(a));
+                assertEquals(expected.subList(0, Math.min(4, expected.size())), index.complete(prefix, 4));
+            }
+        }
+    }
+
+    private static void assertThrowsIOException(java.nio.file.Path file) {
+        try {
+            CalendarFile.read(file);
+        } catch (IOException expected) {
+            return;
+        }
+        throw new AssertionError("read " + file);
+    }
+
+    /**
+     * @return a description of every field of each event, sorted
+     */
+    private static List<String> fullyDescribe(List<CalendarEvent> events) {
+        List<String> described = new ArrayList<>();
+        for (CalendarEvent e : events) {
+            described.add(e.getId() + ":" + e.getTitle() + "@" + e.getDate() + "T" + e.getStartTime() + "-"
+                    + e.getEndTime() + "/" + e.getLocation() + "/" + e.getNotes() + "/" + e.getColor()
+                    + "/" + e.getRecurrence());
+        }
+        Collections.sort(described);
+        return described;
+    }
+
+    /**
+     * @return every event left in the iterator, in order
+     */
+    private static CalendarEvent[] drain(Iterator<CalendarEvent> events) {
+        List<CalendarEvent> drained = new ArrayList<>();
+        events.forEachRemaining(drained::add);
+        return drained.toArray(new CalendarEvent[0]);
+    }
+
+    /**
+     * @return a description of each event, in a canonical order
+     */
+    private static List<String> sorted(List<CalendarEvent> events) {
+        List<String> described = describe(events.toArray(new CalendarEvent[0]));
+        Collections.sort(described);
+        return described;
+    }
+
+    /**
+     * @return the number of changes of the given type
+     */
+    private static int count(List<CalendarChange> changes, CalendarChange.Type type) {
+        int n = 0;
+        for (CalendarChange change : changes) {
+            if (change.getType() == type) {
+                n++;
+            }
+        }
+        return n;
+    }
 }
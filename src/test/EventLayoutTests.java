@@ -0,0 +1,105 @@
+package test;
+
+import org.junit.Test;
+import view.EventLayout;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EventLayoutTests {
+
+    /**
+     * Tests columns and cluster widths for a small hand-made day
+     */
+    @Test
+    public void testLayout() {
+        // {start, end}: a and b overlap, c overlaps b only, d ends where e starts
+        long[] a = {0, 30}, b = {10, 60}, c = {40, 50}, d = {100, 110}, e = {110, 120};
+        List<EventLayout.Placement<long[]>> placements = EventLayout.layout(Arrays.asList(e, c, d, b, a),
+                span -> span[0], span -> span[1]);
+        assertEquals(5, placements.size());
+        assertEquals(a, placements.get(0).getItem());
+        assertEquals(0, column(placements, a));
+        assertEquals(1, column(placements, b));
+        assertEquals(0, column(placements, c)); // reuses a's column once a is over
+        assertEquals(2, placements.get(0).getColumns());
+        assertEquals(2, placements.get(2).getColumns());
+        assertEquals(0, column(placements, d));
+        assertEquals(0, column(placements, e));
+        assertEquals(1, placements.get(3).getColumns());
+        assertEquals(1, placements.get(4).getColumns());
+        assertEquals(2, EventLayout.maxColumns(placements));
+        assertEquals(0, EventLayout.maxColumns(EventLayout.layout(Collections.<long[]>emptyList(),
+                span -> span[0], span -> span[1])));
+    }
+
+    /**
+     * Tests that random layouts never put overlapping events in the same column, never use
+     * more columns than a cluster's widest point, and give every cluster a single width
+     */
+    @Test
+    public void testRandomLayouts() {
+        Random rand = new Random(11);
+        for (int round = 0; round < 50; round++) {
+            List<long[]> spans = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                long start = rand.nextInt(1440);
+                spans.add(new long[]{start, start + 1 + rand.nextInt(120)});
+            }
+            List<EventLayout.Placement<long[]>> placements = EventLayout.layout(spans, s -> s[0], s -> s[1]);
+            assertEquals(spans.size(), placements.size());
+            for (int i = 0; i < placements.size(); i++) {
+                EventLayout.Placement<long[]> p = placements.get(i);
+                assertTrue(p.getColumn() < p.getColumns());
+                if (i > 0) {
+                    long[] prev = placements.get(i - 1).getItem();
+                    assertFalse(prev[0] > p.getItem()[0]);
+                }
+                int overlapping = 0;
+                for (int j = 0; j < placements.size(); j++) {
+                    EventLayout.Placement<long[]> q = placements.get(j);
+                    if (overlaps(p.getItem(), q.getItem())) {
+                        overlapping++;
+                        if (j != i) {
+                            assertFalse(p.getColumn() == q.getColumn());
+                            assertEquals(p.getColumns(), q.getColumns());
+                        }
+                    }
+                }
+                assertTrue(overlapping <= 1 || p.getColumns() > 1);
+            }
+            // the widest cluster needs exactly as many columns as the most events going on at once
+            int mostAtOnce = 0;
+            for (int minute = 0; minute < 1440 + 120; minute++) {
+                int atOnce = 0;
+                for (long[] span : spans) {
+                    if (span[0] <= minute && minute < span[1]) {
+                        atOnce++;
+                    }
+                }
+                mostAtOnce = Math.max(mostAtOnce, atOnce);
+            }
+            assertEquals(mostAtOnce, EventLayout.maxColumns(placements));
+        }
+    }
+
+    private static boolean overlaps(long[] a, long[] b) {
+        return a[0] < b[1] && b[0] < a[1];
+    }
+
+    private static int column(List<EventLayout.Placement<long[]>> placements, long[] item) {
+        for (EventLayout.Placement<long[]> p : placements) {
+            if (p.getItem() == item) {
+                return p.getColumn();
+            }
+        }
+        throw new AssertionError("item was not placed");
+    }
+}
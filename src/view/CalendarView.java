@@ -2,18 +2,22 @@ package view;
 
 import controller.CalendarAlreadyExistsException;
 import controller.CalendarController;
+import controller.CalendarEntry;
 import controller.NoSuchCalendarException;
 import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.event.ActionEvent;
+import javafx.geometry.Side;
 import javafx.scene.Node;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Priority;
 import javafx.scene.layout.VBox;
 import javafx.stage.Stage;
 
 import java.io.IOException;
-import java.time.Duration;
+import java.time.LocalDate;
 import java.util.*;
 
 /**
@@ -26,9 +30,10 @@ public class CalendarView extends Application {
             current;
     private Set<String> currentlyVisibleCals;
     private VBox mainColumn;
-    private final Duration
-            SAVE_INTERVAL = Duration.ofSeconds(30),
-            SAVE_DELAY = SAVE_INTERVAL;
+    /**
+     * the most search results listed at once
+     */
+    private static final int SEARCH_LIMIT = 20;
 
     /**
      * @param stage represents the main application window.
@@ -41,8 +46,11 @@ public class CalendarView extends Application {
             controller = new CalendarController(new java.io.File("calendars.bin"));
         } catch (IOException e) {
             e.printStackTrace();
-            System.out.println("An unrecoverable error occurred. Terminating execution.");
-            System.exit(1);
+            // nothing has been written, so the files are as they were for whoever looks into them
+            new Alert(Alert.AlertType.ERROR, "The calendars could not be read, and have been left as they are.\n\n"
+                    + e.getMessage()).showAndWait();
+            Platform.exit();
+            return;
         }
         currentlyVisibleCals = controller.getCalendarNames();
         month = new MonthView(controller);
@@ -51,25 +59,35 @@ public class CalendarView extends Application {
 
         current = month;
 
-        mainColumn = new VBox(constructMenus(), current.getNode());
+        MenuBar menus = constructMenus();
+        HBox.setHgrow(menus, Priority.ALWAYS);
+        mainColumn = new VBox(new HBox(menus, constructSearchBox()), current.getNode());
 
         stage.setTitle("Calendar");
         stage.setScene(new Scene(mainColumn));
-        // schedule periodic saving
-        Timer timer = new Timer();
-        timer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                // use runLater to avoid data races
-                Platform.runLater(() -> controller.saveCalendars());
-            }
-        }, SAVE_DELAY.toMillis(), SAVE_INTERVAL.toMillis());
+        // every change is journaled as it is made, so closing need only finish the journal
         stage.setOnCloseRequest(e -> {
-            timer.cancel();
-            controller.saveCalendars();
+            try {
+                controller.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
         });
 
         stage.show();
+        controller.setProblemListener(problem -> Platform.runLater(() -> showProblems(List.of(problem))));
+        showProblems(controller.getLoadProblems());
+    }
+
+    /**
+     * warn of events set aside as damaged as the calendars were loaded, and of saves which failed
+     */
+    private void showProblems(List<String> problems) {
+        if (!problems.isEmpty()) {
+            Alert alert = new Alert(Alert.AlertType.WARNING, String.join("\n\n", problems));
+            alert.setHeaderText("There was a problem with the files the calendars are kept in");
+            alert.show();
+        }
     }
 
     /**
@@ -104,6 +122,54 @@ public class CalendarView extends Application {
         return new MenuBar(viewMenu, createMenu, changeMenu);
     }
 
+    /**
+     * @return a text field which lists the visible events matching its text as it is typed.
+     * Choosing one shows the day it is on.
+     */
+    private TextField constructSearchBox() {
+        TextField searchBox = new TextField();
+        searchBox.setPromptText("Search");
+        ContextMenu results = new ContextMenu();
+        searchBox.textProperty().addListener((obs, oldText, newText) -> {
+            results.getItems().clear();
+            if (newText.trim().isEmpty()) {
+                results.hide();
+                return;
+            }
+            try {
+                for (CalendarEntry entry : controller.search(newText, currentlyVisibleCals, null, null, SEARCH_LIMIT)) {
+                    LocalDate date = entry.getEvent().getDate();
+                    MenuItem item = new MenuItem(String.format("%s  %s (%s)", date,
+                            entry.getEvent().getTitle(), entry.getCalendarName()));
+                    item.setMnemonicParsing(false);
+                    item.setOnAction(e -> showDay(date));
+                    results.getItems().add(item);
+                }
+            } catch (NoSuchCalendarException e) {
+                e.printStackTrace();
+            }
+            if (results.getItems().isEmpty()) {
+                MenuItem none = new MenuItem("No matching events");
+                none.setDisable(true);
+                results.getItems().add(none);
+            }
+            if (!results.isShowing()) {
+                results.show(searchBox, Side.BOTTOM, 0, 0);
+            }
+        });
+        return searchBox;
+    }
+
+    /**
+     * Switches to the day view, showing the given date
+     *
+     * @param date the date to show
+     */
+    private void showDay(LocalDate date) {
+        current.setDate(date);
+        switchTo(day);
+    }
+
     /**
      * Switches the current viewing mode to the provided one
      *
@@ -202,6 +268,7 @@ public class CalendarView extends Application {
      */
     private void createEvent(ActionEvent e) {
         EventDialog.newEvent(controller.getCalendarNames())
+                .withSuggestions(controller)
                 .showAndWait()
                 .ifPresent(p -> {
                     try {
@@ -1,6 +1,7 @@
 package view;
 
 import controller.CalendarController;
+import controller.CalendarEntry;
 import controller.NoSuchCalendarException;
 import javafx.geometry.Pos;
 import javafx.scene.Node;
@@ -10,12 +11,12 @@ import javafx.scene.control.ScrollPane;
 import javafx.scene.layout.*;
 import javafx.scene.paint.Color;
 import javafx.scene.text.Font;
-import javafx.util.Pair;
 import model.CalendarEvent;
 
 import java.time.LocalDate;
 import java.time.LocalTime;
 import java.util.*;
+import java.util.stream.Collectors;
 
 /**
  * Represents the "day view" of the CalendarView.
@@ -38,39 +39,25 @@ public class DayView implements CalendarViewMode {
     private static final int COL0_PERCENT = 10;
 
     /**
-     * @return a list of columns containing events, used for displaying the events
+     * @return every event in the day, each placed in a column so that overlapping events
+     * are displayed side by side
      */
-    private List<List<Pair<String, CalendarEvent>>> getEventColumns() {
-        List<List<Pair<String, CalendarEvent>>> eventColumns = new ArrayList<>(new ArrayList<>());
-        visibleCalendars.stream()
-                // filter out names that would throw an exception
-                .filter(controller.getCalendarNames()::contains)
-                // get all events for this day from the controller, flattening them into a single stream
-                .flatMap(name -> {
-                    try {
-                        return Arrays.stream(controller.getEventsInDay(name, date)).map(e -> new Pair<>(name, e));
-                    } catch (NoSuchCalendarException e) {
-                        // should never get here: filtered out
-                        return null;
-                    }
-                }).forEach(pair -> {
-            // find any one column which the event could be added to
-            // without overlapping any other events in said column
-            Optional<List<Pair<String, CalendarEvent>>> selectedColumn = eventColumns.parallelStream()
-                    // filter out columns which contain events that overlap with the event to be added
-                    .filter(col -> col.parallelStream().noneMatch(b -> eventsOverlap(pair.getValue(), b.getValue())))
-                    .findAny();
-            if (selectedColumn.isPresent()) {
-                selectedColumn.get().add(pair);
-            } else {
-                // if all columns contained an event that would overlap,
-                // then add a new column
-                List<Pair<String, CalendarEvent>> newColumn = new ArrayList<>();
-                newColumn.add(pair);
-                eventColumns.add(newColumn);
-            }
-        });
-        return eventColumns;
+    private List<EventLayout.Placement<CalendarEntry>> getEventLayout() {
+        // filter out names that would throw an exception
+        Set<String> names = new HashSet<>(visibleCalendars);
+        names.retainAll(controller.getCalendarNames());
+        List<CalendarEntry> events;
+        try {
+            // get all events for this day from the controller, merged into a single stream in start order
+            events = controller.getEventsInRange(names, date.atStartOfDay().minusSeconds(1),
+                    date.plusDays(1).atStartOfDay()).collect(Collectors.toList());
+        } catch (NoSuchCalendarException e) {
+            // should never get here: filtered out
+            return Collections.emptyList();
+        }
+        // events take up whole rows, so two events overlap if they share a row
+        return EventLayout.layout(events, entry -> getRowNumber(entry.getEvent().getStartTime()),
+                entry -> getRowNumber(entry.getEvent().getEndTime()) + 1);
     }
 
     public DayView(CalendarController controller) {
@@ -96,21 +83,6 @@ public class DayView implements CalendarViewMode {
         drawDay();
     }
 
-    /**
-     * test if the given events overlap
-     *
-     * @param a a CalendarEvent
-     * @param b a CalendarEvent
-     * @return true iff "a" and "b" would occupy the same row.
-     */
-    private static boolean eventsOverlap(CalendarEvent a, CalendarEvent b) {
-        int startA = getRowNumber(a.getStartTime());
-        int startB = getRowNumber(b.getStartTime());
-        int endA = getRowNumber(a.getEndTime()) + 1;
-        int endB = getRowNumber(b.getEndTime()) + 1;
-        return startA <= endB && startB <= endA;
-    }
-
     /**
      * @param t a time of day
      * @return the row within dayPanel that corresponds to the given time
@@ -161,47 +133,50 @@ public class DayView implements CalendarViewMode {
     }
 
     /**
-     * add the given collection of events to the dayPane as buttons
+     * add the given events to the dayPane as buttons. The day is split into as many columns
+     * as the busiest cluster of events needs, and each event spans its share of them.
      *
-     * @param eventColumns a grouping of event information of the kind returned by
-     *                     {@link #getEventColumns()}.
+     * @param placements the events and their places, of the kind returned by
+     *                   {@link #getEventLayout()}.
      */
-    private void displayEvents(List<List<Pair<String, CalendarEvent>>> eventColumns) {
-        final int nCols = eventColumns.size();
+    private void displayEvents(List<EventLayout.Placement<CalendarEntry>> placements) {
+        final int nCols = EventLayout.maxColumns(placements);
         for (int colNum = 1; colNum <= nCols; colNum++) {
             ColumnConstraints constraints = new ColumnConstraints();
             constraints.setPercentWidth((100f - COL0_PERCENT) / nCols);
             dayPane.getColumnConstraints().add(constraints);
-            for (Pair<String, CalendarEvent> pair : eventColumns.get(colNum - 1)) {
-                String calName = pair.getKey();
-                CalendarEvent event = pair.getValue();
-                int rowNum = getRowNumber(event.getStartTime());
-                int height = getRowNumber(event.getEndTime()) + 1 - rowNum;
-                Button butt = new Button(event.getTitle());
-                butt.setMaxSize(Double.MAX_VALUE, Double.MAX_VALUE);
-                butt.setAlignment(Pos.TOP_CENTER);
-                Color c = event.getColor();
-                butt.setBackground(new Background(new BackgroundFill(c, null, null)));
-                butt.setTextFill(c.getBrightness() < 0.5 ? Color.WHITE : Color.BLACK);
-                butt.setOnAction(actionEvent ->
-                        EventDialog.editEvent(event, calName, controller.getCalendarNames())
-                                .showAndWait()
-                                .ifPresent(p -> {
-                                    try {
-                                        // move between calendars if necessary
-                                        if (!calName.equals(p.getKey())) {
-                                            controller.removeEvent(calName, event);
-                                            controller.addEvent(p.getKey(), event);
-                                        }
-                                    } catch (NoSuchCalendarException ex) {
-                                        ex.printStackTrace();
-                                    }
-                                    drawDay();
-                                })
-                );
-                dayPane.add(butt, colNum, rowNum, 1, height);
-//                GridPane.setFillHeight(butt, true);
-            }
+        }
+        for (EventLayout.Placement<CalendarEntry> placement : placements) {
+            int firstCol = placement.getColumn() * nCols / placement.getColumns();
+            int lastCol = (placement.getColumn() + 1) * nCols / placement.getColumns();
+            String calName = placement.getItem().getCalendarName();
+            CalendarEvent event = placement.getItem().getEvent();
+            int rowNum = getRowNumber(event.getStartTime());
+            int height = getRowNumber(event.getEndTime()) + 1 - rowNum;
+            Button butt = new Button(event.getTitle());
+            butt.setMaxSize(Double.MAX_VALUE, Double.MAX_VALUE);
+            butt.setAlignment(Pos.TOP_CENTER);
+            Color c = event.getColor();
+            butt.setBackground(new Background(new BackgroundFill(c, null, null)));
+            butt.setTextFill(c.getBrightness() < 0.5 ? Color.WHITE : Color.BLACK);
+            // an occurrence is edited through the recurring event it belongs to
+            CalendarEvent target = event.getRecurringEvent() == null ? event : event.getRecurringEvent();
+            butt.setOnAction(actionEvent ->
+                    EventDialog.editEvent(target, calName, controller.getCalendarNames())
+                            .withSuggestions(controller)
+                            .showAndWait()
+                            .ifPresent(p -> {
+                                try {
+                                    // moves between calendars if necessary, or else marks the event as modified
+                                    controller.moveEvent(calName, target.getId(), p.getKey());
+                                } catch (NoSuchCalendarException ex) {
+                                    ex.printStackTrace();
+                                }
+                                drawDay();
+                            })
+            );
+            dayPane.add(butt, firstCol + 1, rowNum, lastCol - firstCol, height);
+//            GridPane.setFillHeight(butt, true);
         }
     }
 
@@ -210,9 +185,9 @@ public class DayView implements CalendarViewMode {
      */
     private void drawDay() {
         header.setText(date.toString());
-        List<List<Pair<String, CalendarEvent>>> eventColumns = getEventColumns();
+        List<EventLayout.Placement<CalendarEntry>> placements = getEventLayout();
         dayPane = constructDayPane();
-        displayEvents(eventColumns);
+        displayEvents(placements);
 
         ScrollPane scroll = new ScrollPane(dayPane);
         scroll.setPrefSize(500, 400);
@@ -1,7 +1,9 @@
 package view;
 
+import controller.CalendarController;
 import javafx.event.ActionEvent;
 import javafx.geometry.Pos;
+import javafx.geometry.Side;
 import javafx.scene.control.*;
 import javafx.scene.input.KeyEvent;
 import javafx.scene.layout.BorderPane;
@@ -15,6 +17,7 @@ import java.time.LocalDateTime;
 import java.time.LocalTime;
 import java.util.List;
 import java.util.Set;
+import java.util.function.Function;
 
 /**
  * a modal dialog which can produce new or edit existing CalendarEvent objects
@@ -29,7 +32,8 @@ public class EventDialog extends Dialog<Pair<String, CalendarEvent>> {
 
     private static final int
             MAX_YEAR_LEN = 4,
-            MAX_NOTE_AREA_WID = 375, MAX_NOTE_AREA_HEI = 100;
+            MAX_NOTE_AREA_WID = 375, MAX_NOTE_AREA_HEI = 100,
+            MAX_SUGGESTIONS = 8;
 
     private final CalendarEvent event;
     private final TextField titleEntryField, locationEntryField, yearField;
@@ -215,6 +219,57 @@ public class EventDialog extends Dialog<Pair<String, CalendarEvent>> {
         return new EventDialog(dateTime, null, possibleCalendars);
     }
 
+    /**
+     * Offer the titles and locations used most often in the controller's calendars
+     * as suggestions while they are typed.
+     *
+     * @param controller the controller whose calendars the suggestions come from
+     * @return this EventDialog
+     */
+    public EventDialog withSuggestions(CalendarController controller) {
+        offerSuggestions(titleEntryField, prefix -> controller.suggestTitles(prefix, MAX_SUGGESTIONS));
+        offerSuggestions(locationEntryField, prefix -> controller.suggestLocations(prefix, MAX_SUGGESTIONS));
+        return this;
+    }
+
+    /**
+     * show a drop-down list of suggestions under a text field whenever the user changes its text.
+     * Choosing a suggestion replaces the text with it.
+     *
+     * @param field       the text field
+     * @param suggestions gives the suggestions for the field's text
+     */
+    private static void offerSuggestions(TextField field, Function<String, List<String>> suggestions) {
+        ContextMenu popup = new ContextMenu();
+        field.textProperty().addListener((obs, oldText, newText) -> {
+            popup.getItems().clear();
+            if (field.isFocused()) {
+                for (String suggestion : suggestions.apply(newText)) {
+                    if (!suggestion.equalsIgnoreCase(newText.trim())) {
+                        MenuItem item = new MenuItem(suggestion);
+                        item.setMnemonicParsing(false);
+                        item.setOnAction(e -> {
+                            field.setText(suggestion);
+                            field.positionCaret(suggestion.length());
+                            popup.hide();
+                        });
+                        popup.getItems().add(item);
+                    }
+                }
+            }
+            if (popup.getItems().isEmpty()) {
+                popup.hide();
+            } else if (!popup.isShowing()) {
+                popup.show(field, Side.BOTTOM, 0, 0);
+            }
+        });
+        field.focusedProperty().addListener((obs, wasFocused, focused) -> {
+            if (!focused) {
+                popup.hide();
+            }
+        });
+    }
+
     /**
      * intercepts changes to the yearField TextField.
      * If the change contains any non-digit characters, those are filtered out.
@@ -0,0 +1,115 @@
+package view;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.ToLongFunction;
+
+/**
+ * Places overlapping events side by side in columns, so that no two events in the same
+ * column overlap.
+ */
+public final class EventLayout {
+
+    private EventLayout() {
+    }
+
+    /**
+     * Where an item was placed
+     *
+     * @param <T> the type of the item
+     */
+    public static final class Placement<T> {
+        private final T item;
+        private final long end;
+        private final int column;
+        private int columns;
+
+        private Placement(T item, long end, int column) {
+            this.item = item;
+            this.end = end;
+            this.column = column;
+        }
+
+        /**
+         * @return the item which was placed
+         */
+        public T getItem() {
+            return item;
+        }
+
+        /**
+         * @return the column the item is in, counting from 0
+         */
+        public int getColumn() {
+            return column;
+        }
+
+        /**
+         * @return the number of columns shared by the item's cluster, so the item may be
+         * drawn {@code 1 / getColumns()} of the full width
+         */
+        public int getColumns() {
+            return columns;
+        }
+    }
+
+    /**
+     * @param items the items to place, in any order
+     * @param start the time each item starts
+     * @param end   the time each item ends (exclusive); items which end when another starts
+     *              do not overlap it
+     * @param <T>   the type of the items
+     * @return where each item was placed, in order of start time
+     */
+    public static <T> List<Placement<T>> layout(Collection<? extends T> items, ToLongFunction<? super T> start,
+                                                ToLongFunction<? super T> end) {
+        List<T> sorted = new ArrayList<>(items);
+        // among events starting together, the longest goes in the leftmost column
+        sorted.sort(Comparator.<T>comparingLong(start::applyAsLong)
+                .thenComparing(Comparator.<T>comparingLong(end::applyAsLong).reversed()));
+        List<Placement<T>> placements = new ArrayList<>(sorted.size());
+        PriorityQueue<Placement<T>> busy = new PriorityQueue<>(Comparator.comparingLong(p -> p.end));
+        PriorityQueue<Integer> free = new PriorityQueue<>();
+        int clusterStart = 0, columns = 0;
+        for (T item : sorted) {
+            long itemStart = start.applyAsLong(item);
+            while (!busy.isEmpty() && busy.peek().end <= itemStart) {
+                free.add(busy.poll().column);
+            }
+            if (busy.isEmpty()) {
+                // nothing is still going on, so this item starts a new cluster
+                finishCluster(placements, clusterStart, columns);
+                clusterStart = placements.size();
+                columns = 0;
+                free.clear();
+            }
+            Placement<T> placement = new Placement<>(item, end.applyAsLong(item),
+                    free.isEmpty() ? columns++ : free.poll());
+            busy.add(placement);
+            placements.add(placement);
+        }
+        finishCluster(placements, clusterStart, columns);
+        return placements;
+    }
+
+    private static <T> void finishCluster(List<Placement<T>> placements, int from, int columns) {
+        for (int i = from; i < placements.size(); i++) {
+            placements.get(i).columns = columns;
+        }
+    }
+
+    /**
+     * @param placements placements returned by {@link #layout}
+     * @return the largest number of columns any cluster needs, or 0 if there are no placements
+     */
+    public static int maxColumns(List<? extends Placement<?>> placements) {
+        int max = 0;
+        for (Placement<?> placement : placements) {
+            max = Math.max(max, placement.columns);
+        }
+        return max;
+    }
+}
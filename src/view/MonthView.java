@@ -1,6 +1,7 @@
 package view;
 
 import controller.CalendarController;
+import controller.CalendarEntry;
 import controller.NoSuchCalendarException;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
@@ -109,7 +110,7 @@ public class MonthView implements CalendarViewMode {
                             EventDialog.newEventAt(
                                     currentView.withDayOfMonth(day),
                                     visibleCals
-                            ).showAndWait()
+                            ).withSuggestions(controller).showAndWait()
                                     // add the event if it was created
                                     .ifPresent(pair -> {
 										try {
@@ -156,6 +157,20 @@ public class MonthView implements CalendarViewMode {
         
         LocalDate beg = currentView.withDayOfMonth(1);
 
+        // the whole month from every visible calendar, merged into start order,
+        // so each cell takes the next run of events without any sorting
+        Set<String> cals = new HashSet<>(visibleCals);
+        cals.retainAll(controller.getCalendarNames());
+        Iterator<CalendarEntry> monthEvents;
+        try {
+            monthEvents = controller.getEventsInRange(cals, beg.atStartOfDay().minusSeconds(1),
+                    beg.plusMonths(1).atStartOfDay()).iterator();
+        } catch (NoSuchCalendarException e) {
+            e.printStackTrace();
+            monthEvents = Collections.emptyIterator();
+        }
+        CalendarEntry next = monthEvents.hasNext() ? monthEvents.next() : null;
+
         for (int i = 0; i < 6; i++) {
             for (int j = 0; j < 7; j++) {
                 int index = i * 7 + j;
@@ -182,14 +197,9 @@ public class MonthView implements CalendarViewMode {
                     b.setStyle("-fx-background-color:aqua");
 
                 b.getChildren().removeIf(Button.class::isInstance);
-                CalendarEvent[] events;
-                for(String s : visibleCals) {
-                    try {
-                        events = controller.getEventsInDay(s, beg);
-                        printEvents(events, beg, b, s);
-                    } catch (NoSuchCalendarException e) {
-                        e.printStackTrace();
-                    }
+                while (next != null && next.getEvent().getDate().equals(beg)) {
+                    printEvent(next, b);
+                    next = monthEvents.hasNext() ? monthEvents.next() : null;
                 }
 				beg = beg.plusDays(1);
 
@@ -235,32 +245,37 @@ public class MonthView implements CalendarViewMode {
         }
     }
     
-    public void printEvents(CalendarEvent[] events, LocalDate beg, BorderPane b, String calName) {
-    	Arrays.sort(events, Comparator.comparing(CalendarEvent::getStartTime));
-		for (CalendarEvent event : events) {
-		    Button button = new Button(event.getTitle());
-		    button.setPrefSize(100, 5);
-		    button.setStyle("-fx-font-size:5");
-            Color c = event.getColor();
-            button.setBackground(new Background(new BackgroundFill(c, null, null)));
-            button.setTextFill(c.getBrightness() < 0.5 ? Color.WHITE : Color.BLACK);
-		    ((VBox) b.getChildren().get(1)).getChildren().add(button);
-		    button.setOnMouseClicked(butt -> {
-                EventDialog.editEvent(event, calName, controller.getCalendarNames()).showAndWait()
-                        .ifPresent(p -> {
-                            try {
-                                // move between calendars if necessary
-                                if (!calName.equals(p.getKey())) {
-                                    controller.removeEvent(calName, event);
-                                    controller.addEvent(p.getKey(), event);
-                                }
-                            } catch (NoSuchCalendarException ex) {
-                                ex.printStackTrace();
-                            }
-                            drawMonth();
-                        });
-            });
-		}
+    /**
+     * Adds a button for an event to a day's pane
+     *
+     * @param entry the event, and the calendar it belongs to
+     * @param b     the pane of the day the event takes place on
+     */
+    public void printEvent(CalendarEntry entry, BorderPane b) {
+        CalendarEvent event = entry.getEvent();
+        String calName = entry.getCalendarName();
+        Button button = new Button(event.getTitle());
+        button.setPrefSize(100, 5);
+        button.setStyle("-fx-font-size:5");
+        Color c = event.getColor();
+        button.setBackground(new Background(new BackgroundFill(c, null, null)));
+        button.setTextFill(c.getBrightness() < 0.5 ? Color.WHITE : Color.BLACK);
+        ((VBox) b.getChildren().get(1)).getChildren().add(button);
+        // an occurrence is edited through the recurring event it belongs to
+        CalendarEvent target = event.getRecurringEvent() == null ? event : event.getRecurringEvent();
+        button.setOnMouseClicked(butt -> {
+            EventDialog.editEvent(target, calName, controller.getCalendarNames())
+                    .withSuggestions(controller).showAndWait()
+                    .ifPresent(p -> {
+                        try {
+                            // moves between calendars if necessary, or else marks the event as modified
+                            controller.moveEvent(calName, target.getId(), p.getKey());
+                        } catch (NoSuchCalendarException ex) {
+                            ex.printStackTrace();
+                        }
+                        drawMonth();
+                    });
+        });
     }
 
     @Override
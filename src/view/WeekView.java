@@ -1,6 +1,7 @@
 package view;
 
 import controller.CalendarController;
+import controller.CalendarEntry;
 import controller.NoSuchCalendarException;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
@@ -19,6 +20,7 @@ import java.time.LocalDateTime;
 import java.time.LocalTime;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
@@ -124,7 +126,7 @@ public class WeekView implements CalendarViewMode {
                         EventDialog.newEventAt(
                                 time,
                                 controller.getCalendarNames()
-                        ).showAndWait().ifPresent(pair -> {
+                        ).withSuggestions(controller).showAndWait().ifPresent(pair -> {
                             try {
                                 controller.addEvent(pair.getKey(), pair.getValue());
                             } catch (NoSuchCalendarException e) {
@@ -164,57 +166,87 @@ public class WeekView implements CalendarViewMode {
             if (date.isEqual(LocalDate.now())) dayRegions.get(i).setStyle("-fx-background-color:aqua");
         }
 
-        //Go through the visible calendars
-        for (String s : currentCalendars) {
-            CalendarEvent[] events;
-            try {
-                events = controller.getEventsInRange(s, currentView.atStartOfDay(),
-                        endDate.atTime(23, 59, 59));
-            } catch (NoSuchCalendarException e) {
-                e.printStackTrace();
-                return;
-            }
-            //Go through the events in each calendar
-            for (CalendarEvent e : events) {
-                //Do some math to figure out where to put the button
-                int col = e.getDate().getDayOfWeek().getValue() + 1;
-                col = (col == 8) ? 1 : col; //sunday is the 7th day of the week, not the 1st
-                int row = e.getStartTime().getHour() + 1;
-                float diff = (e.getEndTime().getHour() + (e.getEndTime().getMinute() / 60f)) -
-                        (e.getStartTime().getHour() + (e.getStartTime().getMinute() / 60f));
-                int rowSpan = (int) diff + 1;
-                diff += 0.05f; //Fudge the number into something that looks good
-
-                //Create the button that will act as our event view
-                Button b = new Button(e.getTitle());
-                b.setTranslateY(ROW_HEIGHT / 2f * e.getStartTime().getMinute() / 60f - 10); //10 is a magic number to fudge the button into a good looking place
-                b.setPadding(new Insets(5));
-                b.setTextAlignment(TextAlignment.CENTER);
-                b.setMaxHeight(diff * ROW_HEIGHT);
-                b.setPrefHeight(Double.MAX_VALUE);
-                b.setMaxWidth(Double.MAX_VALUE);
-                Color c = e.getColor();
-                b.setBackground(new Background(new BackgroundFill(c, null, null)));
-                b.setTextFill(c.getBrightness() < 0.5 ? Color.WHITE : Color.BLACK);
-
-                //Set up the button event handler
-                b.setOnMouseClicked(event -> EventDialog.editEvent(e, s, controller.getCalendarNames())
-                        .showAndWait().ifPresent(p -> {
-                            try {
-                                // move between calendars if necessary
-                                if (!s.equals(p.getKey())) {
-                                    controller.removeEvent(s, e);
-                                    controller.addEvent(p.getKey(), e);
-                                }
-                            } catch (NoSuchCalendarException ex) {
-                                ex.printStackTrace();
-                            }
-                            drawWeek();
-                        }));
-                days.add(b, col, row, 1, rowSpan);
+        //Go through the events in the visible calendars, merged into start order
+        Iterator<CalendarEntry> events;
+        try {
+            events = controller.getEventsInRange(currentCalendars, currentView.atStartOfDay(),
+                    endDate.atTime(23, 59, 59)).iterator();
+        } catch (NoSuchCalendarException e) {
+            e.printStackTrace();
+            return;
+        }
+        //Events come a day at a time, so lay out each day as soon as its last event is seen
+        List<CalendarEntry> dayEvents = new ArrayList<>();
+        while (events.hasNext()) {
+            CalendarEntry entry = events.next();
+            if (!dayEvents.isEmpty() && !dayEvents.get(0).getEvent().getDate().equals(entry.getEvent().getDate())) {
+                drawEvents(dayEvents);
+                dayEvents.clear();
             }
+            dayEvents.add(entry);
+        }
+        drawEvents(dayEvents);
+    }
+
+    /**
+     * Adds buttons for a single day's events, side by side where they overlap
+     *
+     * @param dayEvents the events of one day
+     */
+    private void drawEvents(List<CalendarEntry> dayEvents) {
+        for (EventLayout.Placement<CalendarEntry> placement : EventLayout.layout(dayEvents,
+                entry -> minuteOfDay(entry.getEvent().getStartTime()),
+                entry -> Math.max(minuteOfDay(entry.getEvent().getEndTime()),
+                        minuteOfDay(entry.getEvent().getStartTime()) + 1))) {
+            String s = placement.getItem().getCalendarName();
+            CalendarEvent e = placement.getItem().getEvent();
+            //Do some math to figure out where to put the button
+            int col = e.getDate().getDayOfWeek().getValue() + 1;
+            col = (col == 8) ? 1 : col; //sunday is the 7th day of the week, not the 1st
+            int row = e.getStartTime().getHour() + 1;
+            float diff = (e.getEndTime().getHour() + (e.getEndTime().getMinute() / 60f)) -
+                    (e.getStartTime().getHour() + (e.getStartTime().getMinute() / 60f));
+            int rowSpan = (int) diff + 1;
+            diff += 0.05f; //Fudge the number into something that looks good
+
+            //Create the button that will act as our event view
+            Button b = new Button(e.getTitle());
+            b.setTranslateY(ROW_HEIGHT / 2f * e.getStartTime().getMinute() / 60f - 10); //10 is a magic number to fudge the button into a good looking place
+            b.setPadding(new Insets(5));
+            b.setTextAlignment(TextAlignment.CENTER);
+            b.setMaxHeight(diff * ROW_HEIGHT);
+            b.setPrefHeight(Double.MAX_VALUE);
+            //Share the day's column with the other events in the same cluster
+            Region dayRegion = dayRegions.get(col - 1);
+            b.maxWidthProperty().bind(dayRegion.widthProperty().divide(placement.getColumns()));
+            b.translateXProperty().bind(dayRegion.widthProperty().multiply(placement.getColumn())
+                    .divide(placement.getColumns()));
+            Color c = e.getColor();
+            b.setBackground(new Background(new BackgroundFill(c, null, null)));
+            b.setTextFill(c.getBrightness() < 0.5 ? Color.WHITE : Color.BLACK);
+
+            //Set up the button event handler; an occurrence is edited through the recurring event it belongs to
+            CalendarEvent target = e.getRecurringEvent() == null ? e : e.getRecurringEvent();
+            b.setOnMouseClicked(event -> EventDialog.editEvent(target, s, controller.getCalendarNames())
+                    .withSuggestions(controller).showAndWait().ifPresent(p -> {
+                        try {
+                            // moves between calendars if necessary, or else marks the event as modified
+                            controller.moveEvent(s, target.getId(), p.getKey());
+                        } catch (NoSuchCalendarException ex) {
+                            ex.printStackTrace();
+                        }
+                        drawWeek();
+                    }));
+            days.add(b, col, row, 1, rowSpan);
         }
+    }
 
+    /**
+     * @param t a time of day
+     * @return the number of minutes since midnight
+     */
+    private static int minuteOfDay(LocalTime t) {
+        return t.getHour() * 60 + t.getMinute();
     }
 
     /**